@@ -32,6 +32,14 @@ public final class BitField implements Serializable {
         bits = new int[(((size) - 1) >>> 0x5) + 1];
     }
 
+    /**
+     * Creates a bit field backed by the given words, as returned by
+     * {@link #getBits()}.
+     */
+    public BitField(int[] bits) {
+        this.bits = bits;
+    }
+
     /**
      * Sets the bit on the given index. Index is expected to be in range - out
      * of performance reasons no checks are done!
@@ -55,4 +63,12 @@ public final class BitField implements Serializable {
     public final boolean get(int index) {
         return (bits[index >>> 0x5] & (1 << (index & 0x1f))) != 0;
     }
+
+    /**
+     * Gets the words backing the bit field, e.g. to store it. The array is not
+     * copied.
+     */
+    public final int[] getBits() {
+        return bits;
+    }
 }
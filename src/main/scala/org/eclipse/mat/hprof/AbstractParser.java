@@ -133,6 +133,10 @@ import java.io.InputStream;
     }
 
     protected long readID() throws IOException {
+        return readID(in);
+    }
+
+    protected long readID(PositionInputStream in) throws IOException {
         return idSize == 4 ? (0x0FFFFFFFFL & in.readInt()) : in.readLong();
     }
 
@@ -142,9 +146,13 @@ import java.io.InputStream;
     }
 
     protected Object readValue(ISnapshot snapshot, int type) throws IOException {
+        return readValue(in, snapshot, type);
+    }
+
+    protected Object readValue(PositionInputStream in, ISnapshot snapshot, int type) throws IOException {
         switch (type) {
             case IObject.Type.OBJECT:
-                long id = readID();
+                long id = readID(in);
                 return id == 0 ? null : new ObjectReference(snapshot, id);
             case IObject.Type.BOOLEAN:
                 return in.readByte() != 0;
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.hprof;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayUtils;
+import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.index.IndexReader;
+import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.parser.index.SnapshotContainer;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
+import org.eclipse.mat.parser.io.PositionInputStream;
+import org.eclipse.mat.parser.io.RandomAccessStreamPool;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.MessageUtil;
+
+import java.io.*;
+import java.util.Collection;
+
+/**
+ * The instance field values of a parsed heap dump, copied out of the dump
+ * file. Reading fields from the store does not touch the heap dump, and the
+ * fields of the instances of one class are next to each other.
+ * <p/>
+ * The store is written after parsing if the <code>field_store</code> option
+ * is set. It consists of two files:
+ * <pre>
+ * fields.index   magic "MATFLDS1" (8), then class by class the field values
+ *                of the instances as stored in the heap dump, in the order
+ *                of the object ids of the class (fixed length per class)
+ * o2field.index  object id -> position of its field values, 0 if the object
+ *                is not in the store (arrays, classes)
+ * </pre>
+ */
+public class HprofFieldStore {
+    public static final String DATA = "fields.index"; //$NON-NLS-1$
+    public static final String INDEX = "o2field.index"; //$NON-NLS-1$
+
+    private static final byte[] MAGIC = {'M', 'A', 'T', 'F', 'L', 'D', 'S', '1'};
+    private static final String THREAD_NAME = "FieldStoreThread"; //$NON-NLS-1$
+    private static final int MIN_CHUNK_SIZE = 10000;
+
+    private final long base;
+    private final IIndexReader.IOne2LongIndex o2field;
+    private final RandomAccessStreamPool streams;
+
+    private HprofFieldStore(File file, long base, IIndexReader.IOne2LongIndex o2field) {
+        this.base = base;
+        this.o2field = o2field;
+        this.streams = new RandomAccessStreamPool(file, ParallelRanges.getNumberOfThreads(), MessageUtil.format(
+                Messages.HprofFieldStore_Error_Closed, file.getAbsolutePath()));
+    }
+
+    /**
+     * Opens the store of the snapshot, either the files next to the other
+     * index files or the sections of the snapshot container.
+     *
+     * @return the store or null if the snapshot has none
+     */
+    public static HprofFieldStore open(ISnapshot snapshot) throws IOException {
+        String prefix = snapshot.getSnapshotInfo().getPrefix();
+        File data = new File(prefix + DATA);
+        File index = new File(prefix + INDEX);
+        if (data.exists() && index.exists())
+            return new HprofFieldStore(data, 0, new IndexReader.LongIndexReader(index));
+
+        Object container = snapshot.getSnapshotInfo().getProperty(SnapshotContainer.PROPERTY);
+        if (container instanceof String) {
+            SnapshotContainer c = SnapshotContainer.open(new File((String) container));
+            if (c.contains(DATA) && c.contains(INDEX))
+                return new HprofFieldStore(c.getFile(), c.getStart(DATA), new IndexReader.LongIndexReader(
+                        c.getFile(), c.getStart(INDEX), c.getLength(INDEX)));
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies the field values of all instances out of the heap dump.
+     */
+    public static HprofFieldStore write(final ISnapshot snapshot, final HprofRandomAccessParser parser,
+                                        final IIndexReader.IOne2LongIndex o2hprof, IProgressListener listener)
+            throws SnapshotException, IOException {
+        String prefix = snapshot.getSnapshotInfo().getPrefix();
+        File data = new File(prefix + DATA);
+        File dumpFile = new File(snapshot.getSnapshotInfo().getPath());
+
+        // positions in the store never exceed the size of the dump
+        int mostSignificantBit = 63 - Long.numberOfLeadingZeros(Math.max(1, dumpFile.length() + MAGIC.length));
+        final IndexWriter.LongIndexCollector o2field = new IndexWriter.LongIndexCollector(snapshot
+                .getSnapshotInfo().getNumberOfObjects(), mostSignificantBit);
+
+        Collection<IClass> classes = snapshot.getClasses();
+        listener.beginTask(Messages.HprofFieldStore_Writing, classes.size());
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(data)));
+        try {
+            out.write(MAGIC);
+            final long[] position = {MAGIC.length};
+
+            for (IClass clazz : classes) {
+                if (listener.isCanceled())
+                    throw new IProgressListener.OperationCanceledException();
+
+                if (!clazz.isArrayType()) {
+                    final int[] objectIds = clazz.getObjectIds();
+                    ParallelRanges.run(THREAD_NAME, 0, objectIds.length, MIN_CHUNK_SIZE,
+                            new ParallelRanges.Task<byte[][]>() {
+                                public byte[][] process(int from, int to) throws Exception {
+                                    // read in file order, classes and objects made up by the
+                                    // parser (e.g. the system class loader) have no instance dump
+                                    long[] positions = new long[to - from];
+                                    int[] rows = new int[to - from];
+                                    for (int ii = from; ii < to; ii++) {
+                                        positions[ii - from] = snapshot.isClass(objectIds[ii]) ? 0 : o2hprof
+                                                .get(objectIds[ii]);
+                                        rows[ii - from] = ii - from;
+                                    }
+                                    ArrayUtils.sortDesc(positions, rows);
+
+                                    byte[][] fields = new byte[to - from][];
+                                    for (int ii = rows.length - 1; ii >= 0; ii--) {
+                                        if (positions[ii] > 0)
+                                            fields[rows[ii]] = parser.readInstanceFields(positions[ii]);
+                                    }
+                                    return fields;
+                                }
+                            }, new ParallelRanges.Consumer<byte[][]>() {
+                                public void consume(int from, int to, byte[][] fields) throws IOException {
+                                    for (int ii = 0; ii < fields.length; ii++) {
+                                        if (fields[ii] == null)
+                                            continue;
+                                        o2field.set(objectIds[from + ii], position[0]);
+                                        out.write(fields[ii]);
+                                        position[0] += fields[ii].length;
+                                    }
+                                }
+                            });
+                }
+
+                listener.worked(1);
+            }
+        } finally {
+            out.close();
+        }
+
+        IIndexReader.IOne2LongIndex index = o2field.writeTo(new File(prefix + INDEX));
+        listener.done();
+        return new HprofFieldStore(data, 0, index);
+    }
+
+    /**
+     * @return the position of the field values of the object in the store or
+     * 0 if the object is not in the store
+     */
+    public long getPosition(int objectId) {
+        return o2field.get(objectId);
+    }
+
+    /**
+     * @return a stream positioned at the field values of the object or null
+     * if the object is not in the store; the stream must be handed back with
+     * {@link #release(PositionInputStream)}
+     */
+    public PositionInputStream open(int objectId) throws IOException {
+        long position = o2field.get(objectId);
+        if (position <= 0)
+            return null;
+
+        PositionInputStream in = streams.borrow();
+        try {
+            in.seek(base + position);
+        } catch (IOException e) {
+            streams.release(in);
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * Hands back a stream returned by {@link #open(int)}.
+     */
+    public void release(PositionInputStream in) {
+        streams.release(in);
+    }
+
+    public void close() throws IOException {
+        try {
+            streams.close();
+        } catch (IOException ignore) {
+            // $JL-EXC$
+        }
+        o2field.close();
+    }
+}
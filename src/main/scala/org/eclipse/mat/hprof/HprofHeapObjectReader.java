@@ -11,17 +11,21 @@
 package org.eclipse.mat.hprof;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayUtils;
 import org.eclipse.mat.hprof.extension.IRuntimeEnhancer;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
 import org.eclipse.mat.parser.IObjectReader;
 import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.index.IndexReader;
+import org.eclipse.mat.parser.index.SnapshotContainer;
 import org.eclipse.mat.parser.model.AbstractArrayImpl;
 import org.eclipse.mat.parser.model.ObjectArrayImpl;
+import org.eclipse.mat.parser.io.PositionInputStream;
 import org.eclipse.mat.parser.model.PrimitiveArrayImpl;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IObject;
 import org.eclipse.mat.snapshot.model.IPrimitiveArray;
+import org.eclipse.mat.util.IProgressListener;
 
 import java.io.File;
 import java.io.IOException;
@@ -35,6 +39,7 @@ public class HprofHeapObjectReader implements IObjectReader {
     private ISnapshot snapshot;
     private HprofRandomAccessParser hprofDump;
     private IIndexReader.IOne2LongIndex o2hprof;
+    private HprofFieldStore fieldStore;
     private List<IRuntimeEnhancer> enhancers;
 
     public void open(ISnapshot snapshot) throws IOException {
@@ -48,8 +53,18 @@ public class HprofHeapObjectReader implements IObjectReader {
         this.hprofDump = new HprofRandomAccessParser(new File(snapshot.getSnapshotInfo().getPath()),
                 version,
                 snapshot.getSnapshotInfo().getIdentifierSize(), strictnessPreference);
-        this.o2hprof = new IndexReader.LongIndexReader(new File(snapshot.getSnapshotInfo().getPrefix()
-                + "o2hprof.index"));
+        File o2hprofFile = new File(snapshot.getSnapshotInfo().getPrefix() + "o2hprof.index");
+        Object container = snapshot.getSnapshotInfo().getProperty(SnapshotContainer.PROPERTY);
+        if (!o2hprofFile.exists() && container instanceof String) {
+            // opened from a snapshot container
+            SnapshotContainer c = SnapshotContainer.open(new File((String) container));
+            this.o2hprof = new IndexReader.LongIndexReader(c.getFile(), c.getStart("o2hprof.index"),
+                    c.getLength("o2hprof.index"));
+        } else {
+            this.o2hprof = new IndexReader.LongIndexReader(o2hprofFile);
+        }
+
+        this.fieldStore = HprofFieldStore.open(snapshot);
 
         this.enhancers = new ArrayList<IRuntimeEnhancer>();
 //        for (EnhancerRegistry.Enhancer enhancer : EnhancerRegistry.instance().delegates())
@@ -167,10 +182,68 @@ public class HprofHeapObjectReader implements IObjectReader {
     }
 
     public IObject read(int objectId, ISnapshot snapshot) throws SnapshotException, IOException {
+        HprofFieldStore store = fieldStore;
+        PositionInputStream fields = store != null ? store.open(objectId) : null;
+        if (fields != null) {
+            try {
+                return hprofDump.readInstance(fields, objectId, snapshot.mapIdToAddress(objectId), snapshot);
+            } finally {
+                store.release(fields);
+            }
+        }
+
         long filePosition = o2hprof.get(objectId);
         return hprofDump.read(objectId, filePosition, snapshot);
     }
 
+    /**
+     * Copies the instance fields out of the heap dump into a field store, so
+     * that instances are read from the store from now on.
+     */
+    public void writeFieldStore(IProgressListener listener) throws SnapshotException, IOException {
+        HprofFieldStore store = HprofFieldStore.write(snapshot, hprofDump, o2hprof, listener);
+        if (fieldStore != null)
+            fieldStore.close();
+        fieldStore = store;
+    }
+
+    public long readField(int objectId, int offset, int type) throws SnapshotException, IOException {
+        HprofFieldStore store = fieldStore;
+        PositionInputStream fields = store != null ? store.open(objectId) : null;
+        if (fields != null) {
+            try {
+                fields.skipBytes(offset);
+                return hprofDump.readFieldValue(fields, type);
+            } finally {
+                store.release(fields);
+            }
+        }
+        return hprofDump.readField(o2hprof.get(objectId), offset, type);
+    }
+
+    /**
+     * Sorts the objects by their position in the heap dump or the field
+     * store, so reading them in that order moves through the files in one
+     * direction.
+     */
+    public int[] getReadingOrder(int[] objectIds) throws SnapshotException, IOException {
+        long[] positions = new long[objectIds.length];
+        int[] indexes = new int[objectIds.length];
+        for (int ii = 0; ii < objectIds.length; ii++) {
+            // instances are read from the field store, if there is one
+            long position = fieldStore != null ? fieldStore.getPosition(objectIds[ii]) : 0;
+            positions[ii] = position > 0 ? position : o2hprof.get(objectIds[ii]);
+            indexes[ii] = ii;
+        }
+
+        ArrayUtils.sortDesc(positions, indexes);
+
+        int[] answer = new int[indexes.length];
+        for (int ii = 0; ii < indexes.length; ii++)
+            answer[ii] = indexes[indexes.length - 1 - ii];
+        return answer;
+    }
+
     /**
      * Returns extra data to be provided by
      * {@link ISnapshot#getSnapshotAddons(Class addon)}. Also can be returned
@@ -201,6 +274,13 @@ public class HprofHeapObjectReader implements IObjectReader {
             o2hprof.close();
         } catch (IOException ignore) {
         }
+
+        if (fieldStore != null) {
+            try {
+                fieldStore.close();
+            } catch (IOException ignore) {
+            }
+        }
     }
 
     // //////////////////////////////////////////////////////////////
@@ -183,7 +183,8 @@ public class HprofParserHandlerImpl implements IHprofParserHandler {
                 continue;
             long diff = next - prev;
             prev = next;
-            if (next == diff)
+            // duplicate addresses are reported by the index validation
+            if (next == diff || diff == 0)
                 continue;
             if (align == 0) {
                 align = diff;
@@ -12,8 +12,9 @@ package org.eclipse.mat.hprof;
 
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
-import org.eclipse.mat.parser.io.BufferedRandomAccessInputStream;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
 import org.eclipse.mat.parser.io.PositionInputStream;
+import org.eclipse.mat.parser.io.RandomAccessStreamPool;
 import org.eclipse.mat.parser.model.*;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.*;
@@ -21,7 +22,6 @@ import org.eclipse.mat.util.MessageUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -29,33 +29,120 @@ import java.util.List;
 public class HprofRandomAccessParser extends AbstractParser {
     public static final int LAZY_LOADING_LIMIT = 256;
 
+    /**
+     * Every read borrows its own stream, so reads of different threads
+     * neither share a file position nor wait for each other.
+     */
+    private final RandomAccessStreamPool streams;
+
     public HprofRandomAccessParser(File file, Version version, int identifierSize,
                                    HprofPreferences.HprofStrictness strictnessPreference) throws IOException {
         super(strictnessPreference);
-        this.in = new PositionInputStream(new BufferedRandomAccessInputStream(new RandomAccessFile(file, "r"), 512));
+        this.streams = new RandomAccessStreamPool(file, ParallelRanges.getNumberOfThreads(),
+                Messages.HprofRandomAccessParser_Error_Closed);
         this.version = version;
         this.idSize = identifierSize;
     }
 
-    public synchronized void close() throws IOException {
-        in.close();
+    public void close() throws IOException {
+        streams.close();
+    }
+
+    public IObject read(int objectId, long position, ISnapshot dump) throws IOException, SnapshotException {
+        PositionInputStream in = streams.borrow();
+        try {
+            in.seek(position);
+            int segmentType = in.readUnsignedByte();
+            switch (segmentType) {
+                case Constants.DumpSegment.INSTANCE_DUMP:
+                    return readInstanceDump(in, objectId, dump);
+                case Constants.DumpSegment.OBJECT_ARRAY_DUMP:
+                    return readObjectArrayDump(in, objectId, dump);
+                case Constants.DumpSegment.PRIMITIVE_ARRAY_DUMP:
+                    return readPrimitiveArrayDump(in, objectId, dump);
+                default:
+                    throw new IOException(MessageUtil.format(
+                            Messages.HprofRandomAccessParser_Error_IllegalDumpSegment, segmentType));
+            }
+        } finally {
+            streams.release(in);
+        }
+    }
+
+    /**
+     * Reads one field value of the instance dump at the given position.
+     *
+     * @param offset where the value starts among the field values
+     * @see org.eclipse.mat.parser.IObjectReader#readField(int, int, int)
+     */
+    public long readField(long position, int offset, int type) throws IOException {
+        PositionInputStream in = streams.borrow();
+        try {
+            in.seek(position);
+            int segmentType = in.readUnsignedByte();
+            if (segmentType != Constants.DumpSegment.INSTANCE_DUMP)
+                throw new IOException(MessageUtil.format(
+                        Messages.HprofRandomAccessParser_Error_IllegalDumpSegment, segmentType));
+
+            // address, stack trace serial number, class address, length
+            in.seek(position + 1 + idSize + 4 + idSize + 4 + offset);
+            return readFieldValue(in, type);
+        } finally {
+            streams.release(in);
+        }
     }
 
-    public synchronized IObject read(int objectId, long position, ISnapshot dump) throws IOException, SnapshotException {
-        in.seek(position);
-        int segmentType = in.readUnsignedByte();
-        switch (segmentType) {
-            case Constants.DumpSegment.INSTANCE_DUMP:
-                return readInstanceDump(objectId, dump);
-            case Constants.DumpSegment.OBJECT_ARRAY_DUMP:
-                return readObjectArrayDump(objectId, dump);
-            case Constants.DumpSegment.PRIMITIVE_ARRAY_DUMP:
-                return readPrimitiveArrayDump(objectId, dump);
+    /**
+     * Reads a field value at the current position of the stream.
+     *
+     * @see org.eclipse.mat.parser.IObjectReader#readField(int, int, int)
+     */
+    public long readFieldValue(PositionInputStream in, int type) throws IOException {
+        switch (type) {
+            case IObject.Type.OBJECT:
+                return readID(in);
+            case IObject.Type.BOOLEAN:
+                return in.readByte() != 0 ? 1 : 0;
+            case IObject.Type.CHAR:
+                return in.readChar();
+            case IObject.Type.FLOAT:
+                return in.readInt();
+            case IObject.Type.DOUBLE:
+                return in.readLong();
+            case IObject.Type.BYTE:
+                return in.readByte();
+            case IObject.Type.SHORT:
+                return in.readShort();
+            case IObject.Type.INT:
+                return in.readInt();
+            case IObject.Type.LONG:
+                return in.readLong();
             default:
-                throw new IOException(MessageUtil.format(Messages.HprofRandomAccessParser_Error_IllegalDumpSegment,
-                        segmentType));
+                throw new IOException(MessageUtil.format(Messages.AbstractParser_Error_IllegalType, type));
         }
+    }
 
+    /**
+     * Reads the field values of the instance dump at the given position,
+     * exactly as they are stored in the dump.
+     */
+    public byte[] readInstanceFields(long position) throws IOException {
+        PositionInputStream in = streams.borrow();
+        try {
+            in.seek(position);
+            int segmentType = in.readUnsignedByte();
+            if (segmentType != Constants.DumpSegment.INSTANCE_DUMP)
+                throw new IOException(MessageUtil.format(
+                        Messages.HprofRandomAccessParser_Error_IllegalDumpSegment, segmentType));
+
+            if (in.skipBytes(idSize + 4 + idSize) != idSize + 4 + idSize)
+                throw new IOException();
+            byte[] fields = new byte[in.readInt()];
+            in.readFully(fields);
+            return fields;
+        } finally {
+            streams.release(in);
+        }
     }
 
     public List<IClass> resolveClassHierarchy(ISnapshot snapshot, IClass clazz) throws SnapshotException {
@@ -71,11 +158,20 @@ public class HprofRandomAccessParser extends AbstractParser {
         return answer;
     }
 
-    private IObject readInstanceDump(int objectId, ISnapshot dump) throws IOException, SnapshotException {
-        long address = readID();
+    private IObject readInstanceDump(PositionInputStream in, int objectId, ISnapshot dump) throws IOException,
+            SnapshotException {
+        long address = readID(in);
         if (in.skipBytes(8 + idSize) != 8 + idSize)
             throw new IOException();
+        return readInstance(in, objectId, address, dump);
+    }
 
+    /**
+     * Reads an instance from its field values at the current position of the
+     * stream.
+     */
+    public IObject readInstance(PositionInputStream in, int objectId, long address, ISnapshot dump)
+            throws IOException, SnapshotException {
         // check if we need to defer reading the class
         List<IClass> hierarchy = resolveClassHierarchy(dump, dump.getClassOf(objectId));
         if (hierarchy == null) {
@@ -87,7 +183,7 @@ public class HprofRandomAccessParser extends AbstractParser {
                 for (int ii = 0; ii < fields.size(); ii++) {
                     FieldDescriptor field = fields.get(ii);
                     int type = field.getType();
-                    Object value = readValue(dump, type);
+                    Object value = readValue(in, dump, type);
                     instanceFields.add(new Field(field.getName(), field.getType(), value));
                 }
             }
@@ -101,13 +197,14 @@ public class HprofRandomAccessParser extends AbstractParser {
         }
     }
 
-    private IArray readObjectArrayDump(int objectId, ISnapshot dump) throws IOException, SnapshotException {
-        long id = readID();
+    private IArray readObjectArrayDump(PositionInputStream in, int objectId, ISnapshot dump) throws IOException,
+            SnapshotException {
+        long id = readID(in);
 
         in.skipBytes(4);
         int size = in.readInt();
 
-        long arrayClassObjectID = readID();
+        long arrayClassObjectID = readID(in);
 
         IClass arrayType = (IClass) dump.getObject(dump.mapAddressToId(arrayClassObjectID));
         if (arrayType == null)
@@ -117,7 +214,7 @@ public class HprofRandomAccessParser extends AbstractParser {
         if ((long) size * idSize < LAZY_LOADING_LIMIT) {
             long[] data = new long[size];
             for (int ii = 0; ii < data.length; ii++)
-                data[ii] = readID();
+                data[ii] = readID(in);
             content = data;
         } else {
             content = new ArrayDescription.Offline(false, in.position(), 0, size);
@@ -128,8 +225,9 @@ public class HprofRandomAccessParser extends AbstractParser {
         return array;
     }
 
-    private IArray readPrimitiveArrayDump(int objectId, ISnapshot dump) throws IOException, SnapshotException {
-        long id = readID();
+    private IArray readPrimitiveArrayDump(PositionInputStream in, int objectId, ISnapshot dump) throws IOException,
+            SnapshotException {
+        long id = readID(in);
 
         in.skipBytes(4);
         int arraySize = in.readInt();
@@ -167,25 +265,35 @@ public class HprofRandomAccessParser extends AbstractParser {
         return array;
     }
 
-    public synchronized long[] readObjectArray(ArrayDescription.Offline descriptor, int offset, int length)
+    public long[] readObjectArray(ArrayDescription.Offline descriptor, int offset, int length)
             throws IOException {
         int elementSize = this.idSize;
 
-        in.seek(descriptor.getPosition() + ((long) offset * elementSize));
-        long[] data = new long[length];
-        for (int ii = 0; ii < data.length; ii++)
-            data[ii] = readID();
-        return data;
+        PositionInputStream in = streams.borrow();
+        try {
+            in.seek(descriptor.getPosition() + ((long) offset * elementSize));
+            long[] data = new long[length];
+            for (int ii = 0; ii < data.length; ii++)
+                data[ii] = readID(in);
+            return data;
+        } finally {
+            streams.release(in);
+        }
     }
 
-    public synchronized byte[] readPrimitiveArray(ArrayDescription.Offline descriptor, int offset, int length)
+    public byte[] readPrimitiveArray(ArrayDescription.Offline descriptor, int offset, int length)
             throws IOException {
         int elementSize = descriptor.getElementSize();
 
-        in.seek(descriptor.getPosition() + ((long) offset * elementSize));
+        PositionInputStream in = streams.borrow();
+        try {
+            in.seek(descriptor.getPosition() + ((long) offset * elementSize));
 
-        byte[] data = new byte[length * elementSize];
-        in.readFully(data);
-        return data;
+            byte[] data = new byte[length * elementSize];
+            in.readFully(data);
+            return data;
+        } finally {
+            streams.release(in);
+        }
     }
 }
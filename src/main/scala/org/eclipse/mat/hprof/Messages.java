@@ -19,6 +19,8 @@ public class Messages  {
     public static String AbstractParser_Error_UnsupportedHPROFVersion="Unsupported HPROF Version {0}";
     public static String EnhancerRegistry_ErrorCreatingParser="Error creating parser for {0}";
     public static String EnhancerRegistry_ErrorCreatingRuntime="Error creating runtime for {0}";
+    public static String HprofFieldStore_Error_Closed="Field store {0} is closed";
+    public static String HprofFieldStore_Writing="Writing instance fields";
     public static String HprofIndexBuilder_ExtractingObjects="Extracting objects from {0}";
     public static String HprofIndexBuilder_Parsing="Parsing {0}";
     public static String HprofIndexBuilder_Scanning="Scanning {0}";
@@ -26,6 +28,7 @@ public class Messages  {
     public static String HprofParserHandlerImpl_Error_ExpectedClassSegment="Error: Found instance segment but expected class segment (see FAQ): 0x{0}";
     public static String HprofParserHandlerImpl_Error_MultipleClassInstancesExist="multiple class instances exist for {0}";
     public static String HprofParserHandlerImpl_HeapContainsObjects="Heap {0} contains {1,number} objects";
+    public static String HprofRandomAccessParser_Error_Closed="Heap dump file is closed";
     public static String HprofRandomAccessParser_Error_DumpIncomplete="need to create dummy class. dump incomplete";
     public static String HprofRandomAccessParser_Error_DuplicateClass="Duplicate class: {0}";
     public static String HprofRandomAccessParser_Error_IllegalDumpSegment="Illegal dump segment {0}";
@@ -16,6 +16,7 @@ import org.eclipse.mat.query.IQuery;
 import org.eclipse.mat.query.IResult;
 import org.eclipse.mat.query.annotations.Argument;
 import org.eclipse.mat.query.annotations.CommandName;
+import org.eclipse.mat.snapshot.IObjectVisitor;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.snapshot.model.IObject;
@@ -45,17 +46,24 @@ public class FindStringsQuery implements IQuery {
         Collection<IClass> classes = snapshot.getClassesByName("java.lang.String", false);
         if (objects == null) {
             if (classes != null)
-                ClassesLoop:for (IClass clasz : classes) {
+                for (IClass clasz : classes) {
                     int[] objectIds = clasz.getObjectIds();
 
-                    for (int id : objectIds) {
-                        if (listener.isCanceled())
-                            break ClassesLoop;
+                    // read the strings in file order, but report them by id
+                    final boolean[] matches = new boolean[objectIds.length];
+                    snapshot.getObjects(objectIds, new IObjectVisitor() {
+                        public void visit(int index, IObject object) {
+                            String value = object.getClassSpecificName();
+                            matches[index] = value != null && pattern.matcher(value).matches();
+                        }
+                    }, listener);
 
-                        String value = snapshot.getObject(id).getClassSpecificName();
-                        if (value != null && pattern.matcher(value).matches())
-                            result.add(id);
-                    }
+                    for (int ii = 0; ii < objectIds.length; ii++)
+                        if (matches[ii])
+                            result.add(objectIds[ii]);
+
+                    if (listener.isCanceled())
+                        break;
                 }
         } else {
             if (classes != null && !classes.isEmpty()) {
@@ -17,8 +17,10 @@ import org.eclipse.mat.query.IResult;
 import org.eclipse.mat.query.annotations.Argument;
 import org.eclipse.mat.query.annotations.CommandName;
 import org.eclipse.mat.query.quantize.Quantize;
+import org.eclipse.mat.snapshot.FieldColumns;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.ObjectReference;
 import org.eclipse.mat.snapshot.query.IHeapObjectArgument;
 import org.eclipse.mat.snapshot.query.RetainedSizeDerivedData;
 import org.eclipse.mat.util.IProgressListener;
@@ -46,6 +48,14 @@ public class GroupByValueQuery implements IQuery {
 
         boolean canceled = false;
         for (int[] objectIds : objects) {
+            FieldColumns columns = null;
+            if (field != null && field.indexOf('.') < 0) {
+                // read just the field of the instances, in file order
+                columns = snapshot.getFieldColumns(objectIds, new String[]{field}, listener);
+                if (columns == null)
+                    break;
+            }
+
             for (int ii = 0; ii < objectIds.length; ii++) {
                 if (listener.isCanceled()) {
                     canceled = true;
@@ -53,6 +63,17 @@ public class GroupByValueQuery implements IQuery {
                 }
 
                 int objectId = objectIds[ii];
+
+                if (columns != null && !snapshot.isArray(objectId) && !snapshot.isClass(objectId)) {
+                    Object subject = columns.getValue(ii, 0);
+                    if (subject instanceof ObjectReference)
+                        subject = snapshot.getObject(columns.getObjectId(ii, 0)).getClassSpecificName();
+
+                    quantize.addValue(objectId, subject, null, snapshot.getHeapSize(objectId),
+                            snapshot.getRetainedHeapSize(objectId));
+                    continue;
+                }
+
                 IObject object = snapshot.getObject(objectId);
 
                 Object subject = object;
@@ -79,7 +79,12 @@ public final class CollectionUtil {
          * @throws SnapshotException
          */
         public int getSize(IObject collection) throws SnapshotException {
-            Integer value = (Integer) collection.resolveValue(sizeField);
+            Integer value;
+            if (sizeField != null && sizeField.indexOf('.') < 0)
+                // just the size, not all fields of the collection
+                value = (Integer) collection.getSnapshot().readField(collection.getObjectId(), sizeField);
+            else
+                value = (Integer) collection.resolveValue(sizeField);
             if (value == null) {
                 if (hasBackingArray()) {
                     IObjectArray array = getBackingArray(collection);
@@ -307,6 +307,9 @@ public class Messages {
     public static String Histogram_Description="Histogram {0} with {1} class loaders, {2} classes, {3} objects, {4} used heap bytes:";
     public static String Histogram_Difference="Histogram difference between {0} and {1}";
     public static String Histogram_Intersection="Histogram intersection of {0} and {1}";
+    public static String HistogramSeries_Column_ObjectsGrowth="Objects Growth";
+    public static String HistogramSeries_Column_RetainedHeapGrowth="Retained Heap Growth";
+    public static String HistogramSeries_Column_ShallowHeapGrowth="Shallow Heap Growth";
     public static String HistogramQuery_GroupByClass="Group by class";
     public static String HistogramQuery_GroupByClassLoader="Group by class loader";
     public static String HistogramQuery_GroupBySuperclass="Group by superclass";
@@ -400,6 +403,12 @@ public class Messages {
     public static String PieFactory_Label_RetainedSize="Retained Size:";
     public static String PieFactory_Label_ShallowSize="Shallow Size:";
     public static String PrimitiveArraysWithAConstantValueQuery_SearchingArrayValues="Searching array values...";
+    public static String QueryServer_Error_Busy="All threads are busy, try again later.";
+    public static String QueryServer_Error_NotOpen="Snapshot {0} is not open.";
+    public static String QueryServer_Error_UnknownCommand="Unknown command: {0}";
+    public static String QueryServer_Error_UnknownFormat="Unknown format {0}, use csv, json or text.";
+    public static String QueryServer_Error_Usage="Cannot understand command: {0}";
+    public static String QueryServer_Listening="Listening on localhost:{0}";
     public static String ReferenceQuery_ErrorMsg_NoMatchingClassesFound="No classes matching pattern {0}";
     public static String ReferenceQuery_Msg_ComputingReferentSet="Computing Referent Set (objects referenced by the Reference objects)...";
     public static String ReferenceQuery_Msg_ComputingRetainedSet="Computing retained set of reference set (assuming only the referents are no longer referenced by the Reference objects)...";
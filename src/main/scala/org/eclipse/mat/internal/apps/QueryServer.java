@@ -0,0 +1,822 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.internal.apps;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.internal.Messages;
+import org.eclipse.mat.internal.snapshot.SnapshotQueryContext;
+import org.eclipse.mat.query.Column;
+import org.eclipse.mat.query.IQueryContext;
+import org.eclipse.mat.query.IResult;
+import org.eclipse.mat.query.IResultTable;
+import org.eclipse.mat.query.IResultTree;
+import org.eclipse.mat.query.IStructuredResult;
+import org.eclipse.mat.query.refined.RefinedResultBuilder;
+import org.eclipse.mat.query.refined.RefinedStructuredResult;
+import org.eclipse.mat.query.results.TextResult;
+import org.eclipse.mat.report.IOutputter;
+import org.eclipse.mat.report.internal.CSVOutputter;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.snapshot.query.SnapshotQuery;
+import org.eclipse.mat.util.MessageUtil;
+import org.eclipse.mat.util.VoidProgressListener;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps snapshots open and runs queries on them for clients connecting to a
+ * socket on the loopback interface, so repeated analyses neither start a JVM
+ * nor reopen the snapshot.
+ * <p/>
+ * A client sends one command per line (UTF-8). Paths containing blanks are
+ * put in double quotes:
+ * <pre>
+ * open &lt;dump&gt; [-option[=value]]*     parse or reopen the dump and keep it open
+ * close &lt;dump&gt;                       dispose the snapshot once the queries
+ *                                    running on it are done
+ * list                               the open snapshots
+ * query &lt;dump&gt; csv|json|text &lt;command line&gt;
+ *                                    run a query, e.g. "histogram" or
+ *                                    "top_consumers_html"
+ * oql &lt;dump&gt; csv|json|text &lt;select statement&gt;
+ * </pre>
+ * Each answer starts with a line <code>OK</code> or <code>ERROR message</code>
+ * followed by the result and ends with a line holding a single dot. Result
+ * lines starting with a dot get a second dot in front. The result is
+ * streamed after the query ran, row by row; should writing it fail, an
+ * <code>ERROR message</code> line precedes the final dot. Tables and the
+ * first level of trees are written in the order of the query, not sorted,
+ * as CSV or as a JSON array of objects, other results as text. Dumps are
+ * opened on first use if needed.
+ * <p/>
+ * Each connection has a thread reading its commands, which are run one after
+ * the other by a fixed number of threads shared by all connections, so idle
+ * connections do not keep the threads from serving others. When all threads
+ * are busy and the queue is full, a command is answered with an error, and
+ * new connections are refused once there are too many.
+ */
+public class QueryServer {
+    public static final int DEFAULT_PORT = 7380;
+
+    private static final String END = "."; //$NON-NLS-1$
+    private static final int QUEUE_SIZE = 64;
+    private static final int MAX_CONNECTIONS = 256;
+
+    private final int port;
+    private final ThreadPoolExecutor executor;
+    // guarded by itself
+    private final Map<File, OpenSnapshot> snapshots = new HashMap<File, OpenSnapshot>();
+    private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    /**
+     * A snapshot and the number of requests using it. A closed snapshot is
+     * disposed when the last of them is done.
+     */
+    private static class OpenSnapshot {
+        final ISnapshot snapshot;
+        int users;
+        boolean closed;
+
+        OpenSnapshot(ISnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * @param port    the port, 0 for any free port
+     * @param threads number of commands run at the same time
+     */
+    public QueryServer(int port, int threads) {
+        this.port = port;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "QueryServer-" + count.incrementAndGet()); //$NON-NLS-1$
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(port, QUEUE_SIZE, InetAddress.getByName(null));
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "QueryServer-Acceptor"); //$NON-NLS-1$
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the port the server listens to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, closes the open connections and disposes
+     * the snapshots, those still in use when their requests are done.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException ignore) {
+            // $JL-EXC$
+        }
+
+        synchronized (connections) {
+            for (Socket socket : connections)
+                close(socket);
+        }
+        // the connections waiting for their commands stop waiting
+        for (Runnable command : executor.shutdownNow())
+            ((Future<?>) command).cancel(false);
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<OpenSnapshot> closed;
+        synchronized (snapshots) {
+            closed = new ArrayList<OpenSnapshot>(snapshots.values());
+            snapshots.clear();
+        }
+        for (OpenSnapshot open : closed)
+            close(open);
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // $JL-EXC$ closed by stop()
+                return;
+            }
+
+            if (connections.size() >= MAX_CONNECTIONS) {
+                try {
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8"); //$NON-NLS-1$
+                    writeBusy(out);
+                } catch (IOException ignore) {
+                    // $JL-EXC$
+                }
+                close(socket);
+                continue;
+            }
+
+            connections.add(socket);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // $JL-EXC$ the client went away
+                    } finally {
+                        connections.remove(socket);
+                        close(socket);
+                    }
+                }
+            }, "QueryServer-Connection-" + connectionCount.incrementAndGet()); //$NON-NLS-1$
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private static void writeBusy(Writer out) throws IOException {
+        out.write("ERROR " + Messages.QueryServer_Error_Busy + "\n" + END + "\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        out.flush();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+            // $JL-EXC$
+        }
+    }
+
+    /**
+     * Reads the commands of a connection and runs each on the executor. The
+     * next command is read when the answer is written, so the answers come
+     * in the order of the commands.
+     */
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")); //$NON-NLS-1$
+        final Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")); //$NON-NLS-1$
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            final String command = line.trim();
+            if (command.length() == 0)
+                continue;
+
+            Future<Void> task;
+            try {
+                task = executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        // the snapshots used until the answer is written
+                        List<OpenSnapshot> used = new ArrayList<OpenSnapshot>(1);
+                        try {
+                            serve(command, used, out);
+                        } finally {
+                            for (OpenSnapshot open : used)
+                                release(open);
+                        }
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                writeBusy(out);
+                continue;
+            }
+
+            try {
+                task.get();
+            } catch (CancellationException e) {
+                // $JL-EXC$ stopped
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw (RuntimeException) cause;
+            }
+        }
+    }
+
+    private void serve(String line, List<OpenSnapshot> used, Writer out) throws IOException {
+        Answer answer;
+        try {
+            answer = execute(line, used);
+            out.write("OK\n"); //$NON-NLS-1$
+        } catch (Exception e) {
+            writeError(out, e);
+            out.write(END + "\n"); //$NON-NLS-1$
+            out.flush();
+            return;
+        }
+
+        // the result is streamed, a failure on the way ends it with an error
+        DotStuffingWriter body = new DotStuffingWriter(out);
+        try {
+            answer.write(body);
+            body.endLine();
+        } catch (SocketException e) {
+            throw e;
+        } catch (Exception e) {
+            body.endLine();
+            writeError(out, e);
+        }
+        out.write(END + "\n"); //$NON-NLS-1$
+        out.flush();
+    }
+
+    private static void writeError(Writer out, Exception e) throws IOException {
+        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        out.write("ERROR " + message.replace('\n', ' ') + "\n"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Doubles dots at the start of lines, so a single dot ends the answer.
+     */
+    private static class DotStuffingWriter extends FilterWriter {
+        private boolean lineStart = true;
+
+        DotStuffingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (lineStart && c == '.')
+                out.write('.');
+            out.write(c);
+            lineStart = c == '\n';
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int ii = off; ii < off + len; ii++)
+                write(cbuf[ii]);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int ii = off; ii < off + len; ii++)
+                write(str.charAt(ii));
+        }
+
+        @Override
+        public void close() {
+            // the socket stays open
+        }
+
+        void endLine() throws IOException {
+            if (!lineStart)
+                write('\n');
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // commands
+    // //////////////////////////////////////////////////////////////
+
+    /**
+     * The result of a command, written after the OK line.
+     */
+    private interface Answer {
+        void write(Writer out) throws Exception;
+    }
+
+    private static final Answer EMPTY = new Answer() {
+        public void write(Writer out) {
+        }
+    };
+
+    private Answer execute(String line, List<OpenSnapshot> used) throws Exception {
+        Tokenizer tokens = new Tokenizer(line);
+        String command = tokens.next();
+
+        if ("open".equals(command)) { //$NON-NLS-1$
+            File file = new File(tokens.required());
+            Map<String, String> options = new HashMap<String, String>();
+            for (String option = tokens.next(); option != null; option = tokens.next()) {
+                if (option.length() < 2 || option.charAt(0) != '-')
+                    throw new SnapshotException(MessageUtil.format(Messages.QueryServer_Error_Usage, line));
+                int p = option.indexOf('=');
+                if (p < 0)
+                    options.put(option.substring(1), Boolean.TRUE.toString());
+                else
+                    options.put(option.substring(1, p), option.substring(p + 1));
+            }
+            final ISnapshot snapshot = use(file, options, used);
+            return new Answer() {
+                public void write(Writer out) throws IOException {
+                    out.write(snapshot.getSnapshotInfo().getPath());
+                }
+            };
+        } else if ("close".equals(command)) { //$NON-NLS-1$
+            File file = new File(tokens.required()).getAbsoluteFile();
+            OpenSnapshot open;
+            synchronized (snapshots) {
+                open = snapshots.remove(file);
+            }
+            if (open == null)
+                throw new SnapshotException(MessageUtil.format(Messages.QueryServer_Error_NotOpen, file));
+            close(open);
+            return EMPTY;
+        } else if ("list".equals(command)) { //$NON-NLS-1$
+            final List<File> files;
+            synchronized (snapshots) {
+                files = new ArrayList<File>(snapshots.keySet());
+            }
+            return new Answer() {
+                public void write(Writer out) throws IOException {
+                    for (File file : files)
+                        out.write(file.getPath() + "\n"); //$NON-NLS-1$
+                }
+            };
+        } else if ("query".equals(command) || "oql".equals(command)) { //$NON-NLS-1$ //$NON-NLS-2$
+            final ISnapshot snapshot = use(new File(tokens.required()), new HashMap<String, String>(), used);
+            final String format = tokens.required();
+            if (!"csv".equals(format) && !"json".equals(format) && !"text".equals(format)) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                throw new SnapshotException(MessageUtil.format(Messages.QueryServer_Error_UnknownFormat, format));
+            String rest = tokens.rest();
+            if (rest.length() == 0)
+                throw new SnapshotException(MessageUtil.format(Messages.QueryServer_Error_Usage, line));
+
+            SnapshotQuery query;
+            if ("oql".equals(command)) { //$NON-NLS-1$
+                query = SnapshotQuery.lookup("oql", snapshot); //$NON-NLS-1$
+                query.setArgument("queryString", rest); //$NON-NLS-1$
+            } else {
+                query = SnapshotQuery.parse(rest, snapshot);
+            }
+
+            final IResult result = query.execute(new VoidProgressListener());
+            return new Answer() {
+                public void write(Writer out) throws Exception {
+                    QueryServer.write(snapshot, result, format, out);
+                }
+            };
+        } else {
+            throw new SnapshotException(MessageUtil.format(Messages.QueryServer_Error_UnknownCommand, command));
+        }
+    }
+
+    /**
+     * Opens the snapshot if needed and counts the request as its user until
+     * the request releases it.
+     */
+    private ISnapshot use(File file, Map<String, String> options, List<OpenSnapshot> used)
+            throws SnapshotException {
+        OpenSnapshot open = acquire(file, options);
+        used.add(open);
+        return open.snapshot;
+    }
+
+    /**
+     * The options of an open snapshot cannot be changed. The snapshot
+     * factory, where the snapshot is in use, rejects options with other
+     * values than at the open, missing options have their defaults. A request
+     * without options uses the open snapshot as it is.
+     */
+    private OpenSnapshot acquire(File file, Map<String, String> options) throws SnapshotException {
+        file = file.getAbsoluteFile();
+        OpenSnapshot open;
+        synchronized (snapshots) {
+            open = snapshots.get(file);
+            if (open != null)
+                open.users++;
+        }
+        if (open != null) {
+            if (!options.isEmpty())
+                checkOptions(open, file, options);
+            return open;
+        }
+
+        // parsing takes long, do not block the other clients. Concurrent
+        // opens of one dump share the parse in the snapshot factory.
+        ISnapshot snapshot = SnapshotFactory.openSnapshot(file, options, new VoidProgressListener());
+        synchronized (snapshots) {
+            if (!snapshots.containsKey(file)) {
+                open = new OpenSnapshot(snapshot);
+                open.users++;
+                snapshots.put(file, open);
+                return open;
+            }
+        }
+        SnapshotFactory.dispose(snapshot);
+        return acquire(file, options);
+    }
+
+    /**
+     * Lets the snapshot factory check the options given for an open snapshot.
+     */
+    private void checkOptions(OpenSnapshot open, File file, Map<String, String> options) throws SnapshotException {
+        try {
+            SnapshotFactory.dispose(SnapshotFactory.openSnapshot(file, options, new VoidProgressListener()));
+        } catch (SnapshotException e) {
+            release(open);
+            throw e;
+        } catch (RuntimeException e) {
+            release(open);
+            throw e;
+        }
+    }
+
+    private void release(OpenSnapshot open) {
+        boolean dispose;
+        synchronized (snapshots) {
+            open.users--;
+            dispose = open.closed && open.users == 0;
+        }
+        if (dispose)
+            SnapshotFactory.dispose(open.snapshot);
+    }
+
+    /**
+     * Disposes the snapshot removed from the open ones now, or when the last
+     * request using it is done.
+     */
+    private void close(OpenSnapshot open) {
+        boolean dispose;
+        synchronized (snapshots) {
+            open.closed = true;
+            dispose = open.users == 0;
+        }
+        if (dispose)
+            SnapshotFactory.dispose(open.snapshot);
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // results
+    // //////////////////////////////////////////////////////////////
+
+    private static void write(ISnapshot snapshot, IResult result, String format, Writer out) throws IOException,
+            SnapshotException {
+        if (result instanceof IStructuredResult && !"text".equals(format)) { //$NON-NLS-1$
+            IQueryContext context = new SnapshotQueryContext(snapshot);
+            RefinedStructuredResult refined = new RefinedResultBuilder(context, (IStructuredResult) result).build();
+            if ("csv".equals(format)) //$NON-NLS-1$
+                new CSVOutputter().embedd(new OutputContext(context), refined, rows((IStructuredResult) result), out);
+            else
+                writeJson(refined, rows((IStructuredResult) result), out);
+        } else if (result instanceof TextResult) {
+            out.write(((TextResult) result).getText());
+        } else if (result instanceof IStructuredResult) {
+            RefinedStructuredResult refined = new RefinedResultBuilder(new SnapshotQueryContext(snapshot),
+                    (IStructuredResult) result).build();
+            Column[] columns = refined.getColumns();
+            for (Object row : rows((IStructuredResult) result)) {
+                for (int column = 0; column < columns.length; column++) {
+                    if (column > 0)
+                        out.write('\t');
+                    String value = refined.getFormattedColumnValue(row, column);
+                    if (value != null)
+                        out.write(value);
+                }
+                out.write('\n');
+            }
+        } else if (result != null) {
+            out.write(String.valueOf(result));
+        }
+    }
+
+    /**
+     * The rows in the order of the query, read one at a time while they are
+     * written, instead of the refined rows, which are all collected and
+     * sorted first. The refined result only gives the column values.
+     */
+    private static Iterable<?> rows(IStructuredResult result) {
+        // only the first level, like the CSV export
+        if (result instanceof IResultTree)
+            return ((IResultTree) result).getElements();
+
+        final IResultTable table = (IResultTable) result;
+        return new Iterable<Object>() {
+            public Iterator<Object> iterator() {
+                return new Iterator<Object>() {
+                    private final int rowCount = table.getRowCount();
+                    private int row;
+
+                    public boolean hasNext() {
+                        return row < rowCount;
+                    }
+
+                    public Object next() {
+                        if (row >= rowCount)
+                            throw new NoSuchElementException();
+                        return table.getRow(row++);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private static void writeJson(RefinedStructuredResult refined, Iterable<?> rows, Writer out) throws IOException {
+        Column[] columns = refined.getColumns();
+        out.write("[\n"); //$NON-NLS-1$
+        boolean first = true;
+        for (Object row : rows) {
+            if (!first)
+                out.write(",\n"); //$NON-NLS-1$
+            first = false;
+
+            out.write('{');
+            for (int column = 0; column < columns.length; column++) {
+                if (column > 0)
+                    out.write(',');
+                String label = columns[column].getLabel();
+                writeJsonString(label != null ? label : String.valueOf(column), out);
+                out.write(':');
+                writeJsonValue(refined.getColumnValue(row, column), out);
+            }
+            out.write('}');
+        }
+        out.write("\n]\n"); //$NON-NLS-1$
+    }
+
+    private static void writeJsonValue(Object value, Writer out) throws IOException {
+        if (value == null) {
+            out.write("null"); //$NON-NLS-1$
+        } else if (value instanceof Boolean) {
+            out.write(value.toString());
+        } else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                out.write("null"); //$NON-NLS-1$
+            else
+                out.write(value.toString());
+        } else {
+            writeJsonString(value.toString(), out);
+        }
+    }
+
+    private static void writeJsonString(String s, Writer out) throws IOException {
+        out.write('"');
+        for (int ii = 0; ii < s.length(); ii++) {
+            char c = s.charAt(ii);
+            switch (c) {
+                case '"':
+                    out.write("\\\""); //$NON-NLS-1$
+                    break;
+                case '\\':
+                    out.write("\\\\"); //$NON-NLS-1$
+                    break;
+                case '\n':
+                    out.write("\\n"); //$NON-NLS-1$
+                    break;
+                case '\r':
+                    out.write("\\r"); //$NON-NLS-1$
+                    break;
+                case '\t':
+                    out.write("\\t"); //$NON-NLS-1$
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c)); //$NON-NLS-1$
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * All columns, no limit.
+     */
+    private static class OutputContext implements IOutputter.Context {
+        private final IQueryContext queryContext;
+
+        OutputContext(IQueryContext queryContext) {
+            this.queryContext = queryContext;
+        }
+
+        public String getId() {
+            return "query"; //$NON-NLS-1$
+        }
+
+        public IQueryContext getQueryContext() {
+            return queryContext;
+        }
+
+        public File getOutputDirectory() {
+            return null;
+        }
+
+        public String getPathToRoot() {
+            return ""; //$NON-NLS-1$
+        }
+
+        public String addIcon(URL icon) {
+            return null;
+        }
+
+        public String addContextResult(String name, IResult result) {
+            return null;
+        }
+
+        public boolean hasLimit() {
+            return false;
+        }
+
+        public int getLimit() {
+            return 0;
+        }
+
+        public boolean isColumnVisible(int columnIndex) {
+            return true;
+        }
+
+        public boolean isTotalsRowVisible() {
+            return false;
+        }
+
+        public String param(String key) {
+            return null;
+        }
+
+        public String param(String key, String defaultValue) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Splits a command into words, double quotes group words.
+     */
+    private static class Tokenizer {
+        private final String line;
+        private int position;
+
+        Tokenizer(String line) {
+            this.line = line;
+        }
+
+        String next() {
+            skipBlanks();
+            if (position >= line.length())
+                return null;
+
+            StringBuilder token = new StringBuilder();
+            boolean quoted = false;
+            while (position < line.length()) {
+                char c = line.charAt(position);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && Character.isWhitespace(c)) {
+                    break;
+                } else {
+                    token.append(c);
+                }
+                position++;
+            }
+            return token.toString();
+        }
+
+        String required() throws SnapshotException {
+            String token = next();
+            if (token == null)
+                throw new SnapshotException(MessageUtil.format(Messages.QueryServer_Error_Usage, line));
+            return token;
+        }
+
+        String rest() {
+            skipBlanks();
+            return line.substring(position);
+        }
+
+        private void skipBlanks() {
+            while (position < line.length() && Character.isWhitespace(line.charAt(position)))
+                position++;
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // standalone
+    // //////////////////////////////////////////////////////////////
+
+    /**
+     * Arguments: [-port=N] [-threads=N] [dump]*, the dumps are opened right
+     * away.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> dumps = new ArrayList<File>();
+
+        for (String arg : args) {
+            if (arg.startsWith("-port=")) //$NON-NLS-1$
+                port = Integer.parseInt(arg.substring(6));
+            else if (arg.startsWith("-threads=")) //$NON-NLS-1$
+                threads = Integer.parseInt(arg.substring(9));
+            else
+                dumps.add(new File(arg));
+        }
+
+        final QueryServer server = new QueryServer(port, threads);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+
+        for (File dump : dumps)
+            server.release(server.acquire(dump, new HashMap<String, String>()));
+
+        System.out.println(MessageUtil.format(Messages.QueryServer_Listening, server.getPort()));
+
+        // serve until the process is stopped
+        server.acceptor.join();
+    }
+}
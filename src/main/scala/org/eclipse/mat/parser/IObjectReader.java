@@ -44,6 +44,34 @@ public interface IObjectReader {
     IObject read(int objectId, ISnapshot snapshot)
             throws SnapshotException, IOException;
 
+    /**
+     * Get the order in which the objects are read fastest, e.g. by their
+     * position in the dump file.
+     *
+     * @param objectIds the object ids
+     * @return the indexes into objectIds in reading order
+     * @throws SnapshotException
+     * @throws IOException
+     */
+    int[] getReadingOrder(int[] objectIds)
+            throws SnapshotException, IOException;
+
+    /**
+     * Read the value of one instance field without reading the other fields.
+     *
+     * @param objectId the object id of an instance
+     * @param offset   the position of the value among the field values of
+     *                 the instance, in bytes
+     * @param type     the field type from {@link IObject.Type}
+     * @return the value bits: integral values sign extended, chars and booleans
+     * as 0 or more, floats and doubles as their raw bits and references as the
+     * address with 0 for null
+     * @throws SnapshotException
+     * @throws IOException
+     */
+    long readField(int objectId, int offset, int type)
+            throws SnapshotException, IOException;
+
     /**
      * Get detailed information about a primitive array
      *
@@ -58,6 +58,12 @@ public class IndexManager {
          * Dominator of: object id to the id of its dominator
          */
         DOMINATOR("domIn", IndexReader.IntIndexReader.class),
+        /**
+         * Parent on a shortest path from the GC roots: object id to the id of
+         * the referrer which reaches it first in a breadth-first search from
+         * all GC roots (encoded as id + 2, 1 for GC roots, 0 if not reached)
+         */
+        GCROOT_PARENT("gcpar", IndexReader.IntIndexReader.class),
         /**
          * Retained size cache.
          * Retained size cache for a class: class+all instances.
@@ -65,7 +71,12 @@ public class IndexManager {
          *
          * @since 1.2
          */
-        I2RETAINED("i2sv2", RetainedSizeCache.class);
+        I2RETAINED("i2sv2", RetainedSizeCache.class),
+        /**
+         * Minimum retained sizes of all classes and class loaders, calculated
+         * with the dominator tree. Same content as for the retained size cache.
+         */
+        I2MINRETAINED("i2min", RetainedSizeCache.class);
         /*
          * Other indexes:
          * i2s
@@ -97,10 +108,15 @@ public class IndexManager {
     public IIndexReader.IOne2ManyIndex domOut;
     public IIndexReader.IOne2LongIndex o2ret;
     public IIndexReader.IOne2OneIndex domIn;
+    public IIndexReader.IOne2OneIndex gcpar;
     /**
      * @noreference This field is not intended to be referenced by clients.
      */
     public RetainedSizeCache i2sv2;
+    /**
+     * @noreference This field is not intended to be referenced by clients.
+     */
+    public RetainedSizeCache i2min;
 
     public void setReader(final Index index, final IIndexReader reader) {
         try {
@@ -130,37 +146,65 @@ public class IndexManager {
                 if (reader != null)
                     return;
 
-                try {
-                    File indexFile = index.getFile(prefix);
-                    if (indexFile.exists()) {
-                        Constructor<?> constructor = index.impl.getConstructor(new Class[]{File.class});
-                        reader = (IIndexReader) constructor.newInstance(new Object[]{indexFile});
-                        setReader(index, reader);
-                    }
-                } catch (NoSuchMethodException e) {
-                    throw new RuntimeException(e);
-                } catch (InstantiationException e) {
-                    throw new RuntimeException(e);
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                } catch (InvocationTargetException e) {
-                    Throwable cause = e.getCause();
-                    IOException ioe = new IOException(MessageUtil.format("{0}: {1}", cause.getClass().getName(),
-                            cause.getMessage()));
-                    ioe.initCause(cause);
-                    throw ioe;
-                } catch (RuntimeException e) {
-                    // re-wrap runtime exceptions caught during index processing
-                    // into IOExceptions -> trigger reparsing of hprof dump
-                    IOException ioe = new IOException();
-                    ioe.initCause(e);
-                    throw ioe;
+                File indexFile = index.getFile(prefix);
+                if (indexFile.exists()) {
+                    reader = create(index, new Class<?>[]{File.class}, new Object[]{indexFile});
+                    setReader(index, reader);
                 }
             }
 
         }.doIt();
     }
 
+    /**
+     * Opens the indices stored as sections of a snapshot container. The
+     * retained size cache is not part of the container.
+     */
+    public void init(final SnapshotContainer container) throws IOException {
+        new Visitor() {
+
+            @Override
+            void visit(Index index, IIndexReader reader) throws IOException {
+                if (reader != null || index == Index.I2RETAINED)
+                    return;
+
+                String section = index.getFile("").getName(); //$NON-NLS-1$
+                if (container.contains(section)) {
+                    reader = create(index, new Class<?>[]{File.class, long.class, long.class}, new Object[]{
+                            container.getFile(), container.getStart(section), container.getLength(section)});
+                    setReader(index, reader);
+                }
+            }
+
+        }.doIt();
+    }
+
+    private static IIndexReader create(Index index, Class<?>[] parameterTypes, Object[] parameters)
+            throws IOException {
+        try {
+            Constructor<?> constructor = index.impl.getConstructor(parameterTypes);
+            return (IIndexReader) constructor.newInstance(parameters);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            IOException ioe = new IOException(MessageUtil.format("{0}: {1}", cause.getClass().getName(),
+                    cause.getMessage()));
+            ioe.initCause(cause);
+            throw ioe;
+        } catch (RuntimeException e) {
+            // re-wrap runtime exceptions caught during index processing
+            // into IOExceptions -> trigger reparsing of hprof dump
+            IOException ioe = new IOException();
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
     public IIndexReader.IOne2ManyIndex inbound() {
         return inbound;
     }
@@ -200,6 +244,10 @@ public class IndexManager {
         return domIn;
     }
 
+    public IIndexReader.IOne2OneIndex gcRootParent() {
+        return gcpar;
+    }
+
     public void close() throws IOException {
         new Visitor() {
 
@@ -63,6 +63,7 @@ public abstract class IndexReader {
         public Object LOCK = new Object();
 
         File indexFile;
+        boolean embedded;
         public SimpleBufferedRandomAccessInputStream in;
         long[] pageStart;
 
@@ -89,9 +90,28 @@ public abstract class IndexReader {
             this.indexFile = indexFile;
         }
 
+        /**
+         * Reads the index from a section of a larger file, e.g. a
+         * {@link SnapshotContainer}.
+         */
+        public IntIndexReader(File file, long start, long length) throws IOException {
+            this(new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(file, "r")), start, 0, length);
+            this.indexFile = file;
+            this.embedded = true;
+        }
+
         public IntIndexReader(SimpleBufferedRandomAccessInputStream in, long start, long length) throws IOException {
+            this(in, 0, start, length);
+        }
+
+        /**
+         * @param base  where the original index file starts in the stream, the
+         *              page offsets stored in the index are relative to it
+         * @param start start of the index, relative to base
+         */
+        IntIndexReader(SimpleBufferedRandomAccessInputStream in, long base, long start, long length) throws IOException {
             this.in = in;
-            this.in.seek(start + length - 16);
+            this.in.seek(base + start + length - 16);
 
             long lastOffset = this.in.readLong();
             int pageSize = this.in.readInt();
@@ -112,8 +132,10 @@ public abstract class IndexReader {
 
             pageStart = new long[pages];
 
-            this.in.seek(start + length - 8 - (pageStart.length * 8));
+            this.in.seek(base + start + length - 8 - (pageStart.length * 8));
             this.in.readLongArray(pageStart);
+            for (int ii = 0; ii < pageStart.length; ii++)
+                pageStart[ii] += base;
         }
 
         private synchronized void open() {
@@ -180,7 +202,8 @@ public abstract class IndexReader {
         public void delete() {
             close();
 
-            if (indexFile != null)
+            // do not delete the file holding other indices, too
+            if (indexFile != null && !embedded)
                 indexFile.delete();
         }
 
@@ -201,6 +224,11 @@ public abstract class IndexReader {
             super(in, start, length);
         }
 
+        PositionIndexReader(SimpleBufferedRandomAccessInputStream in, long base, long start, long length)
+                throws IOException {
+            super(in, base, start, length);
+        }
+
         public PositionIndexReader(File indexFile, IndexWriter.Pages<SoftReference<ArrayIntCompressed>> pages, int size,
                                    int pageSize, long[] pageStart) {
             super(indexFile, pages, (long) size, pageSize, pageStart);
@@ -253,6 +281,18 @@ public abstract class IndexReader {
             this(new IntIndexReader(indexFile));
         }
 
+        /**
+         * Constructor used when opening a snapshot container
+         *
+         * @param file
+         * @param start start of the index in the file
+         * @param length length of the index
+         * @throws IOException
+         */
+        public SizeIndexReader(File file, long start, long length) throws IOException {
+            this(new IntIndexReader(file, start, length));
+        }
+
         /**
          * Construct a size index reader based on a int index holding the compressed data
          *
@@ -322,22 +362,32 @@ public abstract class IndexReader {
 
     /* package */static class IntIndex1NReader implements IIndexReader.IOne2ManyIndex {
         File indexFile;
+        boolean embedded;
         SimpleBufferedRandomAccessInputStream in;
         IntIndexReader header;
         IntIndexReader body;
 
         public IntIndex1NReader(File indexFile) throws IOException {
+            this(indexFile, 0, indexFile.length());
+            this.embedded = false;
+        }
+
+        /**
+         * Reads the index from a section of a larger file, e.g. a
+         * {@link SnapshotContainer}.
+         */
+        public IntIndex1NReader(File file, long start, long length) throws IOException {
             try {
-                this.indexFile = indexFile;
+                this.indexFile = file;
+                this.embedded = true;
 
                 open();
 
-                long indexLength = indexFile.length();
-                in.seek(indexLength - 8);
+                in.seek(start + length - 8);
                 long divider = in.readLong();
 
-                this.header = new PositionIndexReader(in, divider, indexLength - divider - 8);
-                this.body = new IntIndexReader(in, 0, divider);
+                this.header = new PositionIndexReader(in, start, divider, length - divider - 8);
+                this.body = new IntIndexReader(in, start, 0, divider);
 
                 this.body.LOCK = this.header.LOCK;
 
@@ -413,7 +463,7 @@ public abstract class IndexReader {
         public void delete() {
             close();
 
-            if (indexFile != null)
+            if (indexFile != null && !embedded)
                 indexFile.delete();
         }
     }
@@ -423,6 +473,10 @@ public abstract class IndexReader {
             super(indexFile);
         }
 
+        public IntIndex1NSortedReader(File file, long start, long length) throws IOException {
+            super(file, start, length);
+        }
+
         /**
          * @throws IOException
          */
@@ -474,6 +528,10 @@ public abstract class IndexReader {
             super(indexFile);
         }
 
+        public InboundReader(File file, long start, long length) throws IOException {
+            super(file, start, length);
+        }
+
         public InboundReader(File indexFile, IOne2OneIndex header, IOne2OneIndex body) throws IOException {
             super(indexFile, header, body);
         }
@@ -521,6 +579,7 @@ public abstract class IndexReader {
         Object LOCK = new Object();
 
         File indexFile;
+        boolean embedded;
         SimpleBufferedRandomAccessInputStream in;
         long[] pageStart;
 
@@ -543,9 +602,29 @@ public abstract class IndexReader {
             open();
         }
 
+        /**
+         * Reads the index from a section of a larger file, e.g. a
+         * {@link SnapshotContainer}.
+         */
+        public LongIndexReader(File file, long start, long length) throws IOException {
+            this(new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(file, "r")), start, 0, length);
+            this.indexFile = file;
+            this.embedded = true;
+        }
+
         protected LongIndexReader(SimpleBufferedRandomAccessInputStream in, long start, long length) throws IOException {
+            this(in, 0, start, length);
+        }
+
+        /**
+         * @param base  where the original index file starts in the stream, the
+         *              page offsets stored in the index are relative to it
+         * @param start start of the index, relative to base
+         */
+        LongIndexReader(SimpleBufferedRandomAccessInputStream in, long base, long start, long length)
+                throws IOException {
             this.in = in;
-            this.in.seek(start + length - 8);
+            this.in.seek(base + start + length - 8);
 
             int pageSize = this.in.readInt();
             int size = this.in.readInt();
@@ -556,8 +635,10 @@ public abstract class IndexReader {
 
             pageStart = new long[pages];
 
-            this.in.seek(start + length - 8 - (pageStart.length * 8));
+            this.in.seek(base + start + length - 8 - (pageStart.length * 8));
             this.in.readLongArray(pageStart);
+            for (int ii = 0; ii < pageStart.length; ii++)
+                pageStart[ii] += base;
         }
 
         private synchronized void open() throws IOException {
@@ -621,7 +702,7 @@ public abstract class IndexReader {
         public void delete() {
             close();
 
-            if (indexFile != null)
+            if (indexFile != null && !embedded)
                 indexFile.delete();
         }
 
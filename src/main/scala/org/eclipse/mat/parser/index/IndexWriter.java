@@ -665,6 +665,13 @@ public abstract class IndexWriter {
             this.set(index, values, 0, values.length);
         }
 
+        /**
+         * must not contain duplicates!
+         */
+        public void log(int index, int[] values, int offset, int length) throws IOException {
+            this.set(index, values, offset, length);
+        }
+
         void setHeader(int index, long val) {
             header[index] = (int) val;
             byte hi = (byte) (val >> 32);
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.index;
+
+import org.eclipse.mat.parser.internal.Messages;
+import org.eclipse.mat.util.MessageUtil;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed snapshot in one file, which can be copied and opened as a whole.
+ * <p/>
+ * The container holds the files written while parsing the heap dump - the
+ * master index, the index files and the thread stacks - as sections, each
+ * starting at a page boundary. The index readers read their section of the
+ * container directly, nothing is extracted. The retained size cache (
+ * <code>i2sv2.index</code>) is not part of the container as it keeps
+ * changing while the snapshot is in use, nor is its old format (
+ * <code>i2s.index</code>).
+ * <p/>
+ * Disk file structure:
+ * <pre>
+ * magic "MATSNAP1" (8)
+ * number of sections (4)
+ * section name (UTF), section start (8), section length (8)
+ * ...
+ * padding to the page size
+ * section 0 padded to the page size
+ * ...
+ * section n
+ * </pre>
+ * The section names are the file names without the snapshot prefix, e.g.
+ * <code>index</code>, <code>o2c.index</code> or <code>threads</code>.
+ */
+public class SnapshotContainer {
+    /**
+     * File name of the container, appended to the snapshot prefix.
+     */
+    public static final String SUFFIX = "snapshot"; //$NON-NLS-1$
+
+    /**
+     * Section holding the master index.
+     */
+    public static final String MASTER_INDEX = "index"; //$NON-NLS-1$
+
+    /**
+     * Section holding the thread stacks.
+     */
+    public static final String THREADS = "threads"; //$NON-NLS-1$
+
+    /**
+     * Snapshot info property holding the path of the container a snapshot
+     * was opened from.
+     */
+    public static final String PROPERTY = "$container"; //$NON-NLS-1$
+
+    private static final Pattern INDEX_PATTERN = Pattern.compile("[A-Za-z0-9]+\\.index"); //$NON-NLS-1$
+    // the retained size cache keeps changing
+    private static final Set<String> EXCLUDED_INDICES = new HashSet<String>(Arrays.asList(
+            "i2sv2.index", "i2s.index")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    private static final byte[] MAGIC = {'M', 'A', 'T', 'S', 'N', 'A', 'P', '1'};
+    private static final int PAGE_SIZE = 4096;
+
+    private File file;
+    // section name -> {start, length}
+    private Map<String, long[]> sections;
+
+    private SnapshotContainer(File file, Map<String, long[]> sections) {
+        this.file = file;
+        this.sections = sections;
+    }
+
+    /**
+     * @return true if the file starts like a snapshot container
+     */
+    public static boolean isContainer(File file) {
+        if (!file.isFile() || file.length() < MAGIC.length)
+            return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(MAGIC, magic);
+        } catch (IOException e) {
+            // $JL-EXC$
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Reads the table of contents of a snapshot container.
+     */
+    public static SnapshotContainer open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic))
+                throw new IOException(MessageUtil.format(Messages.SnapshotContainer_Error_NotAContainer,
+                        file.getAbsolutePath()));
+
+            int count = in.readInt();
+            Map<String, long[]> sections = new LinkedHashMap<String, long[]>();
+            for (int ii = 0; ii < count; ii++) {
+                String name = in.readUTF();
+                long start = in.readLong();
+                long length = in.readLong();
+                if (start < 0 || length < 0 || start + length > file.length())
+                    throw new IOException(MessageUtil.format(Messages.SnapshotContainer_Error_InvalidSection, name,
+                            file.getAbsolutePath()));
+                sections.put(name, new long[]{start, length});
+            }
+            return new SnapshotContainer(file, sections);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the master index, the index files and the thread stacks of a
+     * parsed snapshot into one container file.
+     *
+     * @param prefix    the prefix of the snapshot files
+     * @param container the container to write
+     */
+    public static SnapshotContainer write(String prefix, File container) throws IOException {
+        // collect the existing files
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        add(files, prefix, MASTER_INDEX);
+        File prefixFile = new File(prefix);
+        File directory = prefixFile.getAbsoluteFile().getParentFile();
+        String fragment = prefixFile.getName();
+        String[] names = directory.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                if (!name.startsWith(fragment))
+                    continue;
+                String section = name.substring(fragment.length());
+                if (INDEX_PATTERN.matcher(section).matches() && !EXCLUDED_INDICES.contains(section))
+                    add(files, prefix, section);
+            }
+        }
+        add(files, prefix, THREADS);
+
+        // lay out the sections
+        long headerSize = MAGIC.length + 4;
+        for (String name : files.keySet()) {
+            headerSize += 2 + name.getBytes("UTF-8").length + 8 + 8; //$NON-NLS-1$
+        }
+
+        Map<String, long[]> sections = new LinkedHashMap<String, long[]>();
+        long position = align(headerSize);
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            long length = entry.getValue().length();
+            sections.put(entry.getKey(), new long[]{position, length});
+            position = align(position + length);
+        }
+
+        RandomAccessFile out = new RandomAccessFile(container, "rw"); //$NON-NLS-1$
+        try {
+            out.setLength(0);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(header);
+            dout.write(MAGIC);
+            dout.writeInt(sections.size());
+            for (Map.Entry<String, long[]> entry : sections.entrySet()) {
+                dout.writeUTF(entry.getKey());
+                dout.writeLong(entry.getValue()[0]);
+                dout.writeLong(entry.getValue()[1]);
+            }
+            dout.flush();
+            out.write(header.toByteArray());
+
+            byte[] buffer = new byte[64 * 1024];
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                long[] section = sections.get(entry.getKey());
+                out.seek(section[0]);
+
+                InputStream in = new FileInputStream(entry.getValue());
+                try {
+                    long remaining = section[1];
+                    int read;
+                    while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    if (remaining != 0)
+                        throw new IOException(MessageUtil.format(Messages.SnapshotContainer_Error_InvalidSection,
+                                entry.getKey(), container.getAbsolutePath()));
+                } finally {
+                    in.close();
+                }
+            }
+            out.setLength(position);
+        } finally {
+            out.close();
+        }
+
+        return new SnapshotContainer(container, sections);
+    }
+
+    private static void add(Map<String, File> files, String prefix, String name) {
+        File f = new File(prefix + name);
+        if (f.isFile())
+            files.put(name, f);
+    }
+
+    private static long align(long position) {
+        return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignore) {
+                // $JL-EXC$
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Set<String> getSectionNames() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    public boolean contains(String name) {
+        return sections.containsKey(name);
+    }
+
+    public long getStart(String name) {
+        return section(name)[0];
+    }
+
+    public long getLength(String name) {
+        return section(name)[1];
+    }
+
+    /**
+     * Opens a stream reading just the given section.
+     */
+    public InputStream openStream(String name) throws IOException {
+        long[] section = section(name);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        raf.seek(section[0]);
+        final long end = section[0] + section[1];
+
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (raf.getFilePointer() >= end)
+                    return -1;
+                return raf.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long remaining = end - raf.getFilePointer();
+                if (remaining <= 0)
+                    return -1;
+                return raf.read(b, off, (int) Math.min(len, remaining));
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, end - raf.getFilePointer()));
+            }
+
+            @Override
+            public void close() throws IOException {
+                raf.close();
+            }
+        };
+    }
+
+    private long[] section(String name) {
+        long[] section = sections.get(name);
+        if (section == null)
+            throw new IllegalArgumentException(MessageUtil.format(Messages.SnapshotContainer_Error_NoSuchSection, name,
+                    file.getAbsolutePath()));
+        return section;
+    }
+}
@@ -12,20 +12,27 @@
 package org.eclipse.mat.parser.internal;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayUtils;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.IteratorInt;
+import org.eclipse.mat.collect.IteratorLong;
 import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.index.IndexManager;
 import org.eclipse.mat.parser.index.IndexManager.Index;
 import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.parser.internal.snapshot.RetainedSizeCache;
 import org.eclipse.mat.parser.internal.util.IntStack;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
+import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.SimpleMonitor;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.Arrays;
-import java.util.NoSuchElementException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class DominatorTree {
 
@@ -52,6 +59,10 @@ public class DominatorTree {
         private int[] label;
         private int[] semi;
 
+        private static final String THREAD_NAME = "DominatorTreeThread";
+        private static final int MIN_CHUNK_SIZE = 100000;
+        private static final int MIN_SUBTREE_CHUNK_SIZE = 16;
+
         private static int ROOT_VALUE = -1;
         private static int[] ROOT_VALUE_ARR = new int[]{ROOT_VALUE};
 
@@ -61,7 +72,7 @@ public class DominatorTree {
             inboundIndex = snapshot.getIndexManager().inbound();
             outboundIndex = snapshot.getIndexManager().outbound();
             this.monitor = new SimpleMonitor(Messages.DominatorTree_CalculatingDominatorTree, listener, new int[]{
-                    300, 300, 200, 200, 200});
+                    300, 300, 200, 200, 200, 100});
             gcRootsArray = snapshot.getGCRoots();
             gcRootsSet = new BitField(snapshot.getSnapshotInfo().getNumberOfObjects());
             for (int id : gcRootsArray) {
@@ -187,6 +198,8 @@ public class DominatorTree {
 
                     }));
 
+            AtomicLongArray ts = calculateTotalSizes();
+
             int[] objectIds = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
             for (int i = 0; i < objectIds.length; i++)
                 objectIds[i] = i - 2;
@@ -198,12 +211,11 @@ public class DominatorTree {
             ArrayUtils.sort(dom, objectIds, 2, dom.length - 2);
             progressListener0.worked(1);
 
-            FlatDominatorTree tree = new FlatDominatorTree(snapshot, dom, objectIds, ROOT_VALUE);
-
             if (progressListener0.isCanceled())
                 throw new IProgressListener.OperationCanceledException();
 
-            writeIndexFiles(tree);
+            writeIndexFiles(objectIds, ts);
+            writeMinRetainedSizes(objectIds, ts);
             progressListener0.done();
 
         }
@@ -346,27 +358,134 @@ public class DominatorTree {
             anchestor[w] = v;
         }
 
-        private void writeIndexFiles(FlatDominatorTree tree) throws IOException {
+        /**
+         * Sums up the total (retained) sizes bottom-up in the dominator tree
+         * and writes the O2RETAINED index. Requires dom[] to be still indexed
+         * by object (i.e. not yet sorted).
+         * <p/>
+         * Several threads work on disjoint ranges of objects. Each node has a
+         * counter of its unfinished children plus one for the thread whose
+         * range contains the node. Whichever thread counts a node down to zero
+         * owns the then complete total of that node, adds it to the total of
+         * the dominator and carries on upwards. So every node is finished
+         * exactly once and no thread ever waits for another one.
+         *
+         * @return the total sizes, indexed by object id + 2
+         */
+        private AtomicLongArray calculateTotalSizes() throws SnapshotException, IOException {
+            final IProgressListener progressListener = this.monitor.nextMonitor();
+            final int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+            progressListener.beginTask(Messages.DominatorTree_CalculateRetainedSizes, numberOfObjects / 1000 * 2);
+
+            final int[] dom = this.dom;
+            final AtomicLongArray ts = new AtomicLongArray(dom.length);
+            final AtomicIntegerArray pending = new AtomicIntegerArray(dom.length);
+            ParallelRanges.Consumer<Object> progress = new ParallelRanges.Consumer<Object>() {
+                public void consume(int from, int to, Object result) {
+                    if (progressListener.isCanceled())
+                        throw new IProgressListener.OperationCanceledException();
+                    progressListener.worked((to - from) / 1000);
+                }
+            };
+
+            // own sizes and the number of children of each node
+            ParallelRanges.run(THREAD_NAME, r, dom.length, MIN_CHUNK_SIZE, new ParallelRanges.Task<Object>() {
+                public Object process(int from, int to) throws SnapshotException {
+                    for (int w = from; w < to; w++) {
+                        if (w == r) {
+                            pending.incrementAndGet(w);
+                        } else if (dom[w] != 0) {
+                            pending.incrementAndGet(w);
+                            pending.incrementAndGet(dom[w]);
+                            ts.set(w, snapshot.getHeapSize(w - 2));
+                        }
+                        // else: not reachable, hence not part of the tree
+                    }
+                    return null;
+                }
+            }, progress);
+
+            // carry the finished totals up the tree
+            ParallelRanges.run(THREAD_NAME, r, dom.length, MIN_CHUNK_SIZE, new ParallelRanges.Task<Object>() {
+                public Object process(int from, int to) {
+                    for (int w = from; w < to; w++) {
+                        if (w != r && dom[w] == 0)
+                            continue;
+
+                        int v = w;
+                        while (pending.decrementAndGet(v) == 0 && v != r) {
+                            int d = dom[v];
+                            ts.addAndGet(d, ts.get(v));
+                            v = d;
+                        }
+                    }
+                    return null;
+                }
+            }, progress);
 
-            IndexWriter.IntArray1NWriter writer = new IndexWriter.IntArray1NWriter(dom.length - 1,
+            snapshot.getIndexManager().setReader(
+                    Index.O2RETAINED,
+                    new IndexWriter.LongIndexStreamer().writeTo(
+                            Index.O2RETAINED.getFile(snapshot.getSnapshotInfo().getPrefix()), new IteratorLong() {
+                        int nextIndex = 2;
+
+                        public boolean hasNext() {
+                            return nextIndex < ts.length();
+                        }
+
+                        public long next() {
+                            return ts.get(nextIndex++);
+                        }
+                    }));
+
+            progressListener.done();
+            return ts;
+        }
+
+        /**
+         * Writes the DOMINATED index. Requires dom[] to be sorted, so that the
+         * objects dominated by one object form a contiguous run in dom[] and
+         * elements[].
+         * <p/>
+         * The runs are sorted by total size on several threads, while the
+         * calling thread appends the finished runs to the index in order.
+         */
+        private void writeIndexFiles(final int[] elements, final AtomicLongArray ts) throws IOException,
+                SnapshotException {
+
+            final IndexWriter.IntArray1NWriter writer = new IndexWriter.IntArray1NWriter(dom.length - 1,
                     IndexManager.Index.DOMINATED.getFile(snapshot.getSnapshotInfo().getPrefix()));
 
             int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
 
-            IProgressListener progressListener = this.monitor.nextMonitor();
+            final IProgressListener progressListener = this.monitor.nextMonitor();
             progressListener.beginTask(Messages.DominatorTree_CreateDominatorsIndexFile, numberOfObjects / 1000);
 
-            for (int i = -1; i < numberOfObjects; i++) {
-                int[] successors = tree.getSuccessorsArr(i);
-                tree.sortByTotalSize(successors);
-                writer.log(i + 1, successors);
+            final int[] dom = this.dom;
+            final int[] position = new int[]{2};
+
+            // dominators are object id + 2, starting with the <ROOT> (r)
+            ParallelRanges.run(THREAD_NAME, r, numberOfObjects + 2, MIN_CHUNK_SIZE, new ParallelRanges.Task<Object>() {
+                public Object process(int from, int to) {
+                    new SuccessorsSorter(elements, ts).sortRuns(firstChildIndex(from), firstChildIndex(to));
+                    return null;
+                }
+            }, new ParallelRanges.Consumer<Object>() {
+                public void consume(int from, int to, Object result) throws IOException {
+                    int pos = position[0];
+                    for (int parent = from; parent < to; parent++) {
+                        int start = pos;
+                        while (pos < dom.length && dom[pos] == parent)
+                            pos++;
+                        writer.log(parent - 1, elements, start, pos - start);
+                    }
+                    position[0] = pos;
 
-                if (i % 1000 == 0) {
                     if (progressListener.isCanceled())
                         throw new IProgressListener.OperationCanceledException();
-                    progressListener.worked(1);
+                    progressListener.worked((to - from) / 1000);
                 }
-            }
+            });
 
             snapshot.getIndexManager().setReader(IndexManager.Index.DOMINATED, writer.flush());
 
@@ -374,176 +493,208 @@ public class DominatorTree {
 
         }
 
-        public class FlatDominatorTree {
-            private static final int TEMP_ARR_LENGTH = 1000000;
-
-            int[] dom;
-            int[] elements;
-            long[] ts;
-            SnapshotImpl dump;
-
-            // temp arrays to pass for the radix sort
-            long[] tempLongArray = new long[TEMP_ARR_LENGTH];
-            int[] tempIntArray = new int[TEMP_ARR_LENGTH];
+        /**
+         * Sums up the minimum retained sizes of all classes and class loaders,
+         * i.e. the retained sizes of the top-most objects of each in the
+         * dominator tree, and writes them to the {@link Index#I2MINRETAINED}
+         * index. The objects of a class are the class and its instances, the
+         * objects of a class loader the loader, its classes and their
+         * instances.
+         * <p/>
+         * Each subtree of the root is walked depth first with a counter per
+         * class and class loader of the objects on the current path: an
+         * object is top-most if the counter is zero when the walk reaches it.
+         */
+        private void writeMinRetainedSizes(final int[] elements, final AtomicLongArray ts) throws IOException,
+                SnapshotException {
+            final IProgressListener progressListener = this.monitor.nextMonitor();
+            int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+            int firstChild = firstChildIndex(r);
+            int lastChild = firstChildIndex(r + 1);
+            progressListener.beginTask(Messages.DominatorTree_CalculateMinRetainedSizes, lastChild - firstChild);
+
+            // keys: the classes first, then the class loaders; keyOf holds
+            // key + 1 for class and class loader objects
+            Collection<IClass> classes = snapshot.getClasses();
+            final int numberOfClasses = classes.size();
+            final int[] keyOf = new int[numberOfObjects];
+            ArrayInt keys = new ArrayInt();
+            for (IClass clazz : classes) {
+                keys.add(clazz.getObjectId());
+                keyOf[clazz.getObjectId()] = keys.size();
+            }
+            final int[] loaderKeyOfClass = new int[numberOfClasses];
+            int classKey = 0;
+            for (IClass clazz : classes) {
+                int loaderId = clazz.getClassLoaderId();
+                if (keyOf[loaderId] == 0) {
+                    keys.add(loaderId);
+                    keyOf[loaderId] = keys.size();
+                }
+                loaderKeyOfClass[classKey++] = keyOf[loaderId] - 1;
+            }
+            final int numberOfKeys = keys.size();
+            final long[] sizes = new long[numberOfKeys];
+
+            final int[] dom = this.dom;
+            final IIndexReader.IOne2OneIndex o2class = snapshot.getIndexManager().o2class();
+
+            ParallelRanges.run(THREAD_NAME, firstChild, lastChild, MIN_SUBTREE_CHUNK_SIZE,
+                    new ParallelRanges.Task<long[]>() {
+                        public long[] process(int from, int to) {
+                            int[] active = new int[numberOfKeys];
+                            long[] result = new long[numberOfKeys];
+                            IntStack stack = new IntStack();
+                            int[] objectKeys = new int[5];
+                            int count = 0;
+
+                            for (int ii = from; ii < to; ii++) {
+                                stack.push(elements[ii]);
+                                while (stack.size() > 0) {
+                                    int objectId = stack.pop();
+                                    if (objectId < 0) {
+                                        // leaving the subtree
+                                        objectId = -objectId - 1;
+                                        int length = getKeys(objectId, objectKeys);
+                                        for (int k = 0; k < length; k++)
+                                            active[objectKeys[k]]--;
+                                        continue;
+                                    }
+
+                                    int length = getKeys(objectId, objectKeys);
+                                    for (int k = 0; k < length; k++) {
+                                        if (active[objectKeys[k]]++ == 0)
+                                            result[objectKeys[k]] += ts.get(objectId + 2);
+                                    }
+
+                                    stack.push(-objectId - 1);
+                                    for (int c = firstChildIndex(objectId + 2); c < dom.length
+                                            && dom[c] == objectId + 2; c++)
+                                        stack.push(elements[c]);
+
+                                    if (++count % 1000 == 0 && progressListener.isCanceled())
+                                        throw new IProgressListener.OperationCanceledException();
+                                }
+                            }
+                            return result;
+                        }
 
-            FlatDominatorTree(SnapshotImpl dump, int[] dom, int[] elements, int root) throws SnapshotException,
-                    IOException {
-                this.dump = dump;
-                this.dom = dom;
-                this.elements = elements;
-                this.ts = new long[dom.length];
-                calculateTotalSizesIterative(root);
+                        /**
+                         * @return the number of keys the object counts for
+                         */
+                        private int getKeys(int objectId, int[] objectKeys) {
+                            int length = 0;
+                            int classKey = keyOf[o2class.get(objectId)] - 1;
+                            objectKeys[length++] = classKey;
+                            objectKeys[length++] = loaderKeyOfClass[classKey];
+
+                            int key = keyOf[objectId] - 1;
+                            if (key >= numberOfClasses) {
+                                // a class loader
+                                objectKeys[length++] = key;
+                            } else if (key >= 0) {
+                                // a class
+                                objectKeys[length++] = key;
+                                objectKeys[length++] = loaderKeyOfClass[key];
+                            }
+                            return length;
+                        }
+                    }, new ParallelRanges.Consumer<long[]>() {
+                        public void consume(int from, int to, long[] result) {
+                            for (int k = 0; k < numberOfKeys; k++)
+                                sizes[k] += result[k];
+                            if (progressListener.isCanceled())
+                                throw new IProgressListener.OperationCanceledException();
+                            progressListener.worked(to - from);
+                        }
+                    });
 
+            File file = Index.I2MINRETAINED.getFile(snapshot.getSnapshotInfo().getPrefix());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                for (int k = 0; k < numberOfKeys; k++) {
+                    out.writeInt(keys.get(k));
+                    out.writeLong(sizes[k]);
+                }
+            } finally {
+                out.close();
             }
+            snapshot.getIndexManager().setReader(Index.I2MINRETAINED, new RetainedSizeCache(file));
 
-            public SuccessorsEnum getSuccessorsEnum(int i) {
-                return new SuccessorsEnum(i);
-            }
+            progressListener.done();
+        }
 
-            public int[] getSuccessorsArr(int parentId) {
-                parentId += 2;
+        /**
+         * @return the index of the first entry in the sorted dom[] which is
+         * greater or equal to the given dominator
+         */
+        private int firstChildIndex(int parent) {
+            int low = 2;
+            int high = dom.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (dom[mid] < parent)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
 
-                // find the first child
-                int j = Arrays.binarySearch(dom, parentId);
-                if (j < 0)
-                    return new int[0];
+        /**
+         * Sorts the runs of objects with the same dominator by descending total
+         * size. One instance per thread, as the temporary arrays are reused.
+         */
+        class SuccessorsSorter {
+            private static final int TEMP_ARR_LENGTH = 1000000;
 
-                int i = j;
-                while ((i > 1) && (dom[i - 1] == parentId))
-                    i--;
+            int[] elements;
+            AtomicLongArray ts;
 
-                // find length
-                while (j < dom.length && dom[j] == parentId)
-                    j++;
+            // temp arrays to pass for the radix sort
+            long[] tempLongArray = new long[0];
+            int[] tempIntArray = new int[0];
 
-                int length = j - i;
-                int[] result = new int[length];
-                System.arraycopy(elements, i, result, 0, length);
+            SuccessorsSorter(int[] elements, AtomicLongArray ts) {
+                this.elements = elements;
+                this.ts = ts;
+            }
 
-                return result;
+            void sortRuns(int start, int end) {
+                int i = start;
+                while (i < end) {
+                    int j = i + 1;
+                    while (j < end && dom[j] == dom[i])
+                        j++;
+                    if (j - i > 1)
+                        sortByTotalSize(i, j - i);
+                    i = j;
+                }
             }
 
-            public void sortByTotalSize(int[] objectIds) {
-                int length = objectIds.length;
+            void sortByTotalSize(int offset, int length) {
+                int[] objectIds = new int[length];
+                System.arraycopy(elements, offset, objectIds, 0, length);
 
                 // collect the total sizes of the objects
                 long[] totalSizes = new long[length];
                 for (int i = 0; i < length; i++) {
-                    totalSizes[i] = ts[objectIds[i] + 2];
+                    totalSizes[i] = ts.get(objectIds[i] + 2);
                 }
 
                 // sort both arrays according to the total sizes
-                if (totalSizes.length > 1)
-                    if (totalSizes.length > TEMP_ARR_LENGTH) {
-                        ArrayUtils.sortDesc(totalSizes, objectIds);
-                    } else {
-                        ArrayUtils.sortDesc(totalSizes, objectIds, tempLongArray, tempIntArray);
-                    }
-            }
-
-            class SuccessorsEnum {
-                int parent;
-                int nextIndex;
-
-                SuccessorsEnum(int parent) {
-                    this.parent = parent;
-                    nextIndex = findFirstChildIndex(parent + 2);
-                }
-
-                public boolean hasMoreElements() {
-                    return nextIndex > 0;
-                }
-
-                public int nextElement() {
-                    if (nextIndex < 0)
-                        throw new NoSuchElementException();
-                    int res = elements[nextIndex++];
-
-                    if (nextIndex >= dom.length || dom[nextIndex] != parent + 2)
-                        nextIndex = -1;
-
-                    return res;
-                }
-
-                int findFirstChildIndex(int el) {
-                    int i = Arrays.binarySearch(dom, el);
-                    while ((i > 1) && (dom[i - 1] == el))
-                        i--;
-                    return i;
-                }
-            }
-
-            public void calculateTotalSizesIterative(int e) throws SnapshotException, IOException {
-                IndexWriter.LongIndexCollector retained = new IndexWriter.LongIndexCollector(dump.getSnapshotInfo()
-                        .getNumberOfObjects(), IndexWriter.mostSignificantBit(dump.getSnapshotInfo()
-                        .getUsedHeapSize()));
-
-                int capacity = 2047; // capacity for the arrays - allows resize up to 2047<<20
-                int size = 0;
-                int[] stack = new int[capacity];
-                SuccessorsEnum[] succStack = new SuccessorsEnum[capacity];
-
-                int currentEntry = e;
-                SuccessorsEnum currentSucc = getSuccessorsEnum(currentEntry);
-                stack[size] = currentEntry;
-                succStack[size] = currentSucc;
-                size++;
-
-                IProgressListener progressListener = Calculator.this.monitor.nextMonitor();
-                progressListener.beginTask(Messages.DominatorTree_CalculateRetainedSizes, dump.getSnapshotInfo()
-                        .getNumberOfObjects() / 1000);
-                int counter = 0;
-
-                while (size > 0) {
-                    currentEntry = stack[size - 1];
-                    currentSucc = succStack[size - 1];
-
-                    if (currentSucc.hasMoreElements()) {
-                        int nextChild = currentSucc.nextElement();
-                        currentSucc = getSuccessorsEnum(nextChild);
-
-                        ts[nextChild + 2] = nextChild < 0 ? 0 : snapshot.getHeapSize(nextChild);
-
-                        if (size == capacity) {
-                            int newCapacity = capacity << 1;
-                            int[] newArr = new int[newCapacity];
-                            System.arraycopy(stack, 0, newArr, 0, capacity);
-                            stack = newArr;
-
-                            // resize successorsStack
-                            SuccessorsEnum[] newSuccessorsArr = new SuccessorsEnum[newCapacity];
-                            System.arraycopy(succStack, 0, newSuccessorsArr, 0, capacity);
-                            succStack = newSuccessorsArr;
-                            capacity = newCapacity;
-                        }
-                        stack[size] = nextChild;
-                        succStack[size] = currentSucc;
-                        size++;
-                    } else {
-                        size--;
-
-                        if (size > 0)
-                            ts[stack[size - 1] + 2] += ts[currentEntry + 2];
-
-                        if (currentEntry >= 0) {
-                            retained.set(currentEntry, ts[currentEntry + 2]);
-                            if (++counter % 1000 == 0) {
-                                if (progressListener.isCanceled())
-                                    throw new IProgressListener.OperationCanceledException();
-                                progressListener.worked(1);
-                            }
-                        }
-
+                if (length > TEMP_ARR_LENGTH) {
+                    ArrayUtils.sortDesc(totalSizes, objectIds);
+                } else {
+                    if (tempLongArray.length < length) {
+                        int newLength = Math.min(Math.max(length, tempLongArray.length << 1), TEMP_ARR_LENGTH);
+                        tempLongArray = new long[newLength];
+                        tempIntArray = new int[newLength];
                     }
+                    ArrayUtils.sortDesc(totalSizes, objectIds, tempLongArray, tempIntArray);
                 }
 
-                dump.getIndexManager().setReader(
-                        Index.O2RETAINED,
-                        retained.writeTo(IndexManager.Index.O2RETAINED.getFile(dump.getSnapshotInfo()
-                                .getPrefix())));
-                retained = null;
-
-                progressListener.done();
+                System.arraycopy(objectIds, 0, elements, offset, length);
             }
         }
     }
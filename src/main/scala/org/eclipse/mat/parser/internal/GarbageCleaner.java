@@ -10,6 +10,7 @@
  *******************************************************************************/
 package org.eclipse.mat.parser.internal;
 
+import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.HashMapIntObject;
@@ -22,7 +23,9 @@ import org.eclipse.mat.parser.index.IndexManager;
 import org.eclipse.mat.parser.index.IndexManager.Index;
 import org.eclipse.mat.parser.index.IndexReader.SizeIndexReader;
 import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.parser.internal.snapshot.MarkingWorkspace;
 import org.eclipse.mat.parser.internal.snapshot.ObjectMarker;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.XGCRootInfo;
 import org.eclipse.mat.snapshot.UnreachableObjectsHistogram;
@@ -37,6 +40,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /* package */class GarbageCleaner {
 
@@ -51,7 +55,7 @@ import java.util.*;
             final int oldNoOfObjects = idx.identifiers.size();
 
             // determine reachable objects
-            boolean[] reachable = new boolean[oldNoOfObjects];
+            MarkingWorkspace reachable = new MarkingWorkspace(oldNoOfObjects);
             int newNoOfObjects = 0;
             int[] newRoots = idx.gcRoots.getAllKeys();
 
@@ -77,9 +81,7 @@ import java.util.*;
                 }
 
                 // find the number of new objects. It's not returned by marker
-                for (boolean b : reachable)
-                    if (b)
-                        newNoOfObjects++;
+                newNoOfObjects = reachable.countMarked();
 
             } else {
                 try {
@@ -121,7 +123,7 @@ import java.util.*;
             final IOne2SizeIndex preA2size = idx.array2size;
             long memFree = 0;
             for (int ii = 0, jj = 0; ii < oldNoOfObjects; ii++) {
-                if (reachable[ii]) {
+                if (reachable.isMarked(ii)) {
                     map[ii] = jj;
                     id2a[jj++] = identifiers.get(ii);
                 } else {
@@ -450,46 +452,62 @@ import java.util.*;
         }
     }
 
-    private static void createHistogramOfUnreachableObjects(PreliminaryIndexImpl idx, boolean[] reachable) {
-        IOne2SizeIndex array2size = idx.array2size;
-
-        HashMapIntObject<Record> histogram = new HashMapIntObject<Record>();
-
-        int totalObjectCount = 0;
-        long totalSize = 0;
-
-        for (int ii = 0; ii < reachable.length; ii++) {
-            if (!reachable[ii]) {
-                int classId = idx.object2classId.get(ii);
+    private static void createHistogramOfUnreachableObjects(final PreliminaryIndexImpl idx, final MarkingWorkspace reachable)
+            throws IOException {
+        final IOne2SizeIndex array2size = idx.array2size;
+
+        final HashMapIntObject<Record> histogram = new HashMapIntObject<Record>();
+
+        // every chunk of objects gets its own histogram, merged in order
+        run(0, reachable.size(), new ParallelRanges.Task<HashMapIntObject<Record>>() {
+            public HashMapIntObject<Record> process(int from, int to) {
+                HashMapIntObject<Record> part = new HashMapIntObject<Record>();
+                for (int ii = from; ii < to; ii++) {
+                    if (!reachable.isMarked(ii)) {
+                        int classId = idx.object2classId.get(ii);
+
+                        Record r = part.get(classId);
+                        if (r == null) {
+                            ClassImpl clazz = idx.classesById.get(classId);
+                            r = new Record(clazz);
+                            part.put(classId, r);
+                        }
 
-                Record r = histogram.get(classId);
-                if (r == null) {
-                    ClassImpl clazz = idx.classesById.get(classId);
-                    r = new Record(clazz);
-                    histogram.put(classId, r);
+                        r.objectCount++;
+                        long s = 0;
+
+                        s = array2size.getSize(ii);
+                        if (s > 0) {
+                            // Already got the size
+                        } else if (IClass.JAVA_LANG_CLASS.equals(r.clazz.getName())) {
+                            ClassImpl classImpl = idx.classesById.get(ii);
+                            if (classImpl == null) {
+                                s = r.clazz.getHeapSizePerInstance();
+                            } else {
+                                s = classImpl.getUsedHeapSize();
+                            }
+                        } else {
+                            s = r.clazz.getHeapSizePerInstance();
+                        }
+                        r.size += s;
+                    }
                 }
-
-                r.objectCount++;
-                totalObjectCount++;
-                long s = 0;
-
-                s = array2size.getSize(ii);
-                if (s > 0) {
-                    // Already got the size
-                } else if (IClass.JAVA_LANG_CLASS.equals(r.clazz.getName())) {
-                    ClassImpl classImpl = idx.classesById.get(ii);
-                    if (classImpl == null) {
-                        s = r.clazz.getHeapSizePerInstance();
+                return part;
+            }
+        }, new ParallelRanges.Consumer<HashMapIntObject<Record>>() {
+            public void consume(int from, int to, HashMapIntObject<Record> part) {
+                for (Iterator<HashMapIntObject.Entry<Record>> iter = part.entries(); iter.hasNext(); ) {
+                    HashMapIntObject.Entry<Record> entry = iter.next();
+                    Record r = histogram.get(entry.getKey());
+                    if (r == null) {
+                        histogram.put(entry.getKey(), entry.getValue());
                     } else {
-                        s = classImpl.getUsedHeapSize();
+                        r.objectCount += entry.getValue().objectCount;
+                        r.size += entry.getValue().size;
                     }
-                } else {
-                    s = r.clazz.getHeapSizePerInstance();
                 }
-                r.size += s;
-                totalSize += s;
             }
-        }
+        });
 
         List<UnreachableObjectsHistogram.Record> records = new ArrayList<UnreachableObjectsHistogram.Record>();
         for (Iterator<Record> iter = histogram.values(); iter.hasNext(); ) {
@@ -506,45 +524,50 @@ import java.util.*;
     // //////////////////////////////////////////////////////////////
 
     private static int markUnreachableAsGCRoots(final PreliminaryIndexImpl idx,
-                                                boolean[] reachable,
+                                                final MarkingWorkspace reachable,
                                                 int noReachableObjects,
-                                                int extraRootType, IProgressListener listener) {
-        final int noOfObjects = reachable.length;
+                                                int extraRootType, IProgressListener listener) throws IOException {
+        final int noOfObjects = reachable.size();
         final IOne2LongIndex identifiers = idx.identifiers;
         final IOne2ManyIndex preOutbound = idx.outbound;
 
         // find objects not referenced by any other object
-        byte inbounds[] = new byte[noOfObjects];
-        for (int ii = 0; ii < noOfObjects; ++ii) {
-            if (!reachable[ii]) {
-                // We only need search the unreachable objects as
-                // the reachable ones will have already marked
-                // its outbound refs.
-                for (int out : preOutbound.get(ii)) {
-                    // Exclude objects pointing to themselves
-                    if (out != ii) {
-                        // Avoid overflow
-                        if (inbounds[out] != -1) inbounds[out]++;
+        final ByteCounters inbounds = new ByteCounters(noOfObjects);
+        run(0, noOfObjects, new ParallelRanges.Task<Object>() {
+            public Object process(int from, int to) {
+                for (int ii = from; ii < to; ++ii) {
+                    if (!reachable.isMarked(ii)) {
+                        // We only need search the unreachable objects as
+                        // the reachable ones will have already marked
+                        // its outbound refs.
+                        for (int out : preOutbound.get(ii)) {
+                            // Exclude objects pointing to themselves
+                            if (out != ii) {
+                                inbounds.increment(out);
+                            }
+                        }
                     }
                 }
+                return null;
             }
-        }
+        }, null);
 
         // First pass mark only the unreferenced objects
-        ArrayInt unref = new ArrayInt();
-        for (int ii = 0; ii < noOfObjects; ++ii) {
-            // Do the objects with no inbounds first
-            if (!reachable[ii] && inbounds[ii] == 0) {
-                // Identify this unreachable object as a root,
-                // No need to mark it as the marker will do that
-                unref.add(ii);
-
-                XGCRootInfo xgc = new XGCRootInfo(identifiers.get(ii), 0, extraRootType);
-                xgc.setObjectId(ii);
-
-                List<XGCRootInfo> xgcs = Collections.singletonList(xgc);
-                idx.gcRoots.put(ii, xgcs);
+        ArrayInt unref = select(0, noOfObjects, new Selector() {
+            boolean accept(int ii) {
+                // Do the objects with no inbounds first
+                return !reachable.isMarked(ii) && inbounds.get(ii) == 0;
             }
+        });
+        for (IteratorInt it = unref.iterator(); it.hasNext(); ) {
+            int ii = it.next();
+            // Identify this unreachable object as a root,
+            // No need to mark it as the marker will do that
+            XGCRootInfo xgc = new XGCRootInfo(identifiers.get(ii), 0, extraRootType);
+            xgc.setObjectId(ii);
+
+            List<XGCRootInfo> xgcs = Collections.singletonList(xgc);
+            idx.gcRoots.put(ii, xgcs);
         }
         // See what else is now reachable
         ObjectMarker marker2 = new ObjectMarker(unref.toArray(), reachable, preOutbound, new SilentProgressListener(listener));
@@ -559,59 +582,74 @@ import java.util.*;
             }
 
             // find the number of new objects. It's not returned by marker
-            int newNoOfObjects = 0;
-            for (boolean b : reachable)
-                if (b)
-                    newNoOfObjects++;
-            noReachableObjects = newNoOfObjects;
+            noReachableObjects = reachable.countMarked();
         } else {
             int marked2 = marker2.markSingleThreaded();
             noReachableObjects += marked2;
         }
 
         // find remaining unreachable objects
-        unref.clear();
-        for (int ii = 0; ii < noOfObjects; ++ii) {
-            if (!reachable[ii]) {
-                // Add to list
-                unref.add(ii);
+        unref = select(0, noOfObjects, new Selector() {
+            boolean accept(int ii) {
+                return !reachable.isMarked(ii);
             }
-        }
+        });
 
         int root[] = new int[1];
         ObjectMarker marker = new ObjectMarker(root, reachable, preOutbound, new SilentProgressListener(listener));
-        int passes = 10;
-        for (int pass = 0; pass < passes; ++pass) {
+        final int passes = 10;
+        for (int pass = 0; pass < passes && noReachableObjects < noOfObjects; ++pass) {
             // find remaining unreachable objects
-            ArrayInt unref2 = new ArrayInt();
-            byte outbounds[] = new byte[noOfObjects];
-            for (IteratorInt it = unref.iterator(); it.hasNext(); ) {
-                int ii = it.next();
-                if (!reachable[ii]) {
+            final int[] candidates = unref.toArray();
+            final byte outbounds[] = new byte[noOfObjects];
+            unref = select(0, candidates.length, new Selector() {
+                boolean accept(int jj) {
+                    int ii = candidates[jj];
+                    if (reachable.isMarked(ii))
+                        return false;
+
                     // We only need search the unreachable objects as
                     // the reachable ones will have already marked
                     // its outbound refs.
-                    unref2.add(ii);
                     for (int out : preOutbound.get(ii)) {
                         // Exclude objects pointing to themselves
                         // and only count unreachable refs
                         // We only need to recount outbound refs as the
                         // inbound ref count will be unchanged.
-                        if (out != ii && !reachable[out]) {
+                        if (out != ii && !reachable.isMarked(out)) {
                             // Avoid overflow
                             if (outbounds[ii] != -1) outbounds[ii]++;
                         }
                     }
+                    return true;
                 }
-            }
-            unref = unref2;
 
-            // choose some of the remaining unreachable objects as roots
-            for (IteratorInt it = unref.iterator(); it.hasNext() && noReachableObjects < noOfObjects; ) {
+                int get(int jj) {
+                    return candidates[jj];
+                }
+            });
+
+            // choose some of the remaining unreachable objects as roots: the
+            // choice only depends on counts fixed for this pass and on the
+            // object itself being reachable, so the candidates are selected
+            // in parallel and re-checked when marked one after the other
+            final int[] remaining = unref.toArray();
+            final int currentPass = pass;
+            ArrayInt roots = select(0, remaining.length, new Selector() {
+                boolean accept(int jj) {
+                    return selectRoot(remaining[jj], currentPass, passes, reachable, preOutbound, outbounds,
+                            inbounds) >= 0;
+                }
+
+                int get(int jj) {
+                    return remaining[jj];
+                }
+            });
+
+            for (IteratorInt it = roots.iterator(); it.hasNext() && noReachableObjects < noOfObjects; ) {
                 int ii = it.next();
-                ii = selectRoot(ii, pass, passes, reachable, preOutbound, outbounds, inbounds);
 
-                if (ii >= 0) {
+                if (!reachable.isMarked(ii)) {
                     // Identify this unreachable object as a root,
                     // and see what else is now reachable
                     // No need to mark it as the marker will do that
@@ -651,21 +689,21 @@ import java.util.*;
      * @param inbounds    count of inbounds (as 0..255)
      * @return candidate root or -1
      */
-    private static int selectRoot(int ii, int pass, int passes, boolean[] reachable, final IOne2ManyIndex preOutbound,
-                                  byte[] outbounds, byte[] inbounds) {
-        if (reachable[ii])
+    private static int selectRoot(int ii, int pass, int passes, MarkingWorkspace reachable, final IOne2ManyIndex preOutbound,
+                                  byte[] outbounds, ByteCounters inbounds) {
+        if (reachable.isMarked(ii))
             return -1;
 
         // Check for objects with 1 inbound, pointing to another object 
         // with 1 inbound, pointing back to this.
         // The cycle has no entry, so must be a root.
         if (pass == 0) {
-            if ((inbounds[ii] & 0xff) == 1) {
+            if (inbounds.get(ii) == 1) {
                 for (int out : preOutbound.get(ii)) {
                     // Exclude objects pointing to themselves
                     // and only count unreachable refs
-                    if (out != ii && !reachable[out]) {
-                        if ((inbounds[out] & 0xff) != 1)
+                    if (out != ii && !reachable.isMarked(out)) {
+                        if (inbounds.get(out) != 1)
                             continue;
                         for (int out2 : preOutbound.get(out)) {
                             if (out2 == ii) {
@@ -687,9 +725,86 @@ import java.util.*;
         // Choose objects with lots of outbounds first as they might mark
         // a lot of objects.
         boolean chooseAsRoot = (outbounds[ii] & 0xff) > 0
-                && (pass == passes - 1 || (inbounds[ii] & 0xff) > 1
-                && (outbounds[ii] & 0xff) - (inbounds[ii] & 0xff) >= passes - pass - 2);
+                && (pass == passes - 1 || inbounds.get(ii) > 1
+                && (outbounds[ii] & 0xff) - inbounds.get(ii) >= passes - pass - 2);
 
         return chooseAsRoot ? ii : -1;
     }
+
+    // //////////////////////////////////////////////////////////////
+    // parallel processing of object ranges
+    // //////////////////////////////////////////////////////////////
+
+    private static final int MIN_CHUNK_SIZE = 100000;
+
+    private static <R> void run(int from, int to, ParallelRanges.Task<R> task, ParallelRanges.Consumer<R> consumer)
+            throws IOException {
+        try {
+            if (consumer == null)
+                ParallelRanges.run("GarbageCleaner", from, to, MIN_CHUNK_SIZE, task); //$NON-NLS-1$
+            else
+                ParallelRanges.run("GarbageCleaner", from, to, MIN_CHUNK_SIZE, task, consumer); //$NON-NLS-1$
+        } catch (SnapshotException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Filter for the positions of a range, the accepted values are collected
+     * in ascending order of the positions.
+     */
+    private static abstract class Selector {
+        abstract boolean accept(int position);
+
+        int get(int position) {
+            return position;
+        }
+    }
+
+    private static ArrayInt select(int from, int to, final Selector selector) throws IOException {
+        final ArrayInt answer = new ArrayInt();
+        run(from, to, new ParallelRanges.Task<ArrayInt>() {
+            public ArrayInt process(int from, int to) {
+                ArrayInt part = new ArrayInt();
+                for (int ii = from; ii < to; ii++)
+                    if (selector.accept(ii))
+                        part.add(selector.get(ii));
+                return part;
+            }
+        }, new ParallelRanges.Consumer<ArrayInt>() {
+            public void consume(int from, int to, ArrayInt part) {
+                answer.addAll(part);
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Counters from 0 to 255 (then stuck at 255), one byte per counter, which
+     * can be incremented concurrently.
+     */
+    private static final class ByteCounters {
+        private final AtomicIntegerArray counters;
+
+        ByteCounters(int size) {
+            counters = new AtomicIntegerArray((size + 3) >>> 2);
+        }
+
+        void increment(int index) {
+            int shift = (index & 3) << 3;
+            for (; ; ) {
+                int old = counters.get(index >>> 2);
+                if (((old >>> shift) & 0xff) == 0xff)
+                    return;
+                if (counters.compareAndSet(index >>> 2, old, old + (1 << shift)))
+                    return;
+            }
+        }
+
+        int get(int index) {
+            return (counters.get(index >>> 2) >>> ((index & 3) << 3)) & 0xff;
+        }
+    }
 }
@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal;
+
+import org.eclipse.mat.collect.BitField;
+import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.collect.IteratorInt;
+import org.eclipse.mat.parser.model.ClassImpl;
+import org.eclipse.mat.parser.model.XGCRootInfo;
+import org.eclipse.mat.parser.model.XSnapshotInfo;
+import org.eclipse.mat.snapshot.model.Field;
+import org.eclipse.mat.snapshot.model.FieldDescriptor;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.ObjectReference;
+import org.eclipse.mat.util.MessageUtil;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The master <code>index</code> file of a snapshot: snapshot info, classes,
+ * GC roots, class loader labels and the array bit field.
+ * <p/>
+ * Version MAT_02 is written field by field with a {@link DataOutputStream}
+ * instead of Java serialization. Strings are written once and referred to by
+ * number afterwards, as class and field names repeat a lot. Only the snapshot
+ * info is serialized, its properties may hold any serializable value:
+ * <pre>
+ * version            UTF "MAT_02"
+ * reader id          UTF
+ * snapshot info      int length, serialized XSnapshotInfo
+ * classes            int n, n * class
+ *   class            id, address, name, super class id + address, loader id +
+ *                    address, class id, used heap size, heap size per
+ *                    instance, instance count, total size, cache entry,
+ *                    static fields (name, type, value), field descriptors
+ *                    (name, type), sub class ids
+ * roots              int n, n * (object id, int m, m * root)
+ * roots per thread   int n, n * (thread id, roots)
+ * loader labels      int n, n * (loader id, string)
+ * array objects      int n, n * int
+ * </pre>
+ * Files of version MAT_01, the serialized objects, can still be read.
+ */
+final class MasterIndex {
+    static final String VERSION = "MAT_02"; //$NON-NLS-1$
+    private static final String LEGACY_VERSION = "MAT_01"; //$NON-NLS-1$
+
+    // first bytes of a Java serialization stream
+    private static final int STREAM_MAGIC = 0xACED;
+
+    private static final int NO_CACHE_ENTRY = 0;
+    private static final int LONG_CACHE_ENTRY = 1;
+    private static final int INT_CACHE_ENTRY = 2;
+
+    String objectReaderUniqueIdentifier;
+    XSnapshotInfo snapshotInfo;
+    HashMapIntObject<ClassImpl> classCache;
+    HashMapIntObject<XGCRootInfo[]> roots;
+    HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> rootsPerThread;
+    HashMapIntObject<String> loaderLabels;
+    BitField arrayObjects;
+
+    // //////////////////////////////////////////////////////////////
+    // writing
+    // //////////////////////////////////////////////////////////////
+
+    private DataOutputStream out;
+    private Map<String, Integer> writtenStrings;
+
+    void write(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        writtenStrings = new HashMap<String, Integer>();
+        try {
+            out.writeUTF(VERSION);
+            out.writeUTF(objectReaderUniqueIdentifier);
+
+            ByteArrayOutputStream info = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(info);
+            oos.writeObject(snapshotInfo);
+            oos.close();
+            out.writeInt(info.size());
+            info.writeTo(out);
+
+            out.writeInt(classCache.size());
+            for (Iterator<ClassImpl> iter = classCache.values(); iter.hasNext(); )
+                writeClass(iter.next());
+
+            writeRoots(roots);
+            out.writeInt(rootsPerThread.size());
+            for (IteratorInt iter = rootsPerThread.keys(); iter.hasNext(); ) {
+                int threadId = iter.next();
+                out.writeInt(threadId);
+                writeRoots(rootsPerThread.get(threadId));
+            }
+
+            out.writeInt(loaderLabels.size());
+            for (IteratorInt iter = loaderLabels.keys(); iter.hasNext(); ) {
+                int loaderId = iter.next();
+                out.writeInt(loaderId);
+                writeString(loaderLabels.get(loaderId));
+            }
+
+            int[] bits = arrayObjects.getBits();
+            out.writeInt(bits.length);
+            for (int word : bits)
+                out.writeInt(word);
+        } finally {
+            out.close();
+            out = null;
+            writtenStrings = null;
+        }
+    }
+
+    private void writeClass(ClassImpl clazz) throws IOException {
+        out.writeInt(clazz.getObjectId());
+        out.writeLong(clazz.getObjectAddress());
+        writeString(clazz.getName());
+        out.writeInt(clazz.getSuperClassId());
+        out.writeLong(clazz.getSuperClassAddress());
+        out.writeInt(clazz.getClassLoaderId());
+        out.writeLong(clazz.getClassLoaderAddress());
+        out.writeInt(clazz.getClazz() != null ? clazz.getClazz().getObjectId() : -1);
+        out.writeLong(clazz.getUsedHeapSize());
+        out.writeLong(clazz.getHeapSizePerInstance());
+        out.writeInt(clazz.getNumberOfObjects());
+        out.writeLong(clazz.getTotalSize());
+
+        Serializable cacheEntry = clazz.getCacheEntry();
+        if (cacheEntry instanceof long[]) {
+            out.writeByte(LONG_CACHE_ENTRY);
+            out.writeLong(((long[]) cacheEntry)[0]);
+            out.writeLong(((long[]) cacheEntry)[1]);
+        } else if (cacheEntry instanceof int[]) {
+            out.writeByte(INT_CACHE_ENTRY);
+            out.writeInt(((int[]) cacheEntry)[0]);
+            out.writeInt(((int[]) cacheEntry)[1]);
+        } else {
+            out.writeByte(NO_CACHE_ENTRY);
+        }
+
+        List<Field> staticFields = clazz.getStaticFields();
+        out.writeInt(staticFields.size());
+        for (Field field : staticFields) {
+            writeString(field.getName());
+            out.writeByte(field.getType());
+            writeValue(field.getType(), field.getValue());
+        }
+
+        List<FieldDescriptor> fields = clazz.getFieldDescriptors();
+        out.writeInt(fields.size());
+        for (FieldDescriptor field : fields) {
+            writeString(field.getName());
+            out.writeByte(field.getType());
+        }
+
+        List<IClass> subClasses = clazz.getSubclasses();
+        out.writeInt(subClasses.size());
+        for (IClass subClass : subClasses)
+            out.writeInt(subClass.getObjectId());
+    }
+
+    private void writeValue(int type, Object value) throws IOException {
+        switch (type) {
+            case IObject.Type.OBJECT:
+                out.writeLong(value != null ? ((ObjectReference) value).getObjectAddress() : 0);
+                break;
+            case IObject.Type.BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case IObject.Type.CHAR:
+                out.writeChar((Character) value);
+                break;
+            case IObject.Type.FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case IObject.Type.DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case IObject.Type.BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case IObject.Type.SHORT:
+                out.writeShort((Short) value);
+                break;
+            case IObject.Type.INT:
+                out.writeInt((Integer) value);
+                break;
+            case IObject.Type.LONG:
+                out.writeLong((Long) value);
+                break;
+            default:
+                throw new IOException(MessageUtil.format(Messages.MasterIndex_Error_IllegalType, type));
+        }
+    }
+
+    private void writeRoots(HashMapIntObject<XGCRootInfo[]> map) throws IOException {
+        out.writeInt(map.size());
+        for (IteratorInt iter = map.keys(); iter.hasNext(); ) {
+            int objectId = iter.next();
+            XGCRootInfo[] infos = map.get(objectId);
+            out.writeInt(objectId);
+            out.writeInt(infos.length);
+            for (XGCRootInfo info : infos) {
+                out.writeLong(info.getObjectAddress());
+                out.writeLong(info.getContextAddress());
+                out.writeInt(info.getType());
+                out.writeInt(info.getObjectId());
+                out.writeInt(info.getContextId());
+            }
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        Integer index = writtenStrings.get(s);
+        if (index != null) {
+            out.writeInt(index);
+        } else {
+            // a new string gets the next number and follows directly
+            index = writtenStrings.size();
+            writtenStrings.put(s, index);
+            out.writeInt(index);
+            byte[] bytes = s.getBytes("UTF-8"); //$NON-NLS-1$
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // reading
+    // //////////////////////////////////////////////////////////////
+
+    private DataInputStream in;
+    private List<String> readStrings;
+
+    static MasterIndex read(InputStream stream) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream, 64 * 1024);
+        buffered.mark(2);
+        int magic = (buffered.read() << 8) | buffered.read();
+        buffered.reset();
+
+        MasterIndex index = new MasterIndex();
+        if (magic == STREAM_MAGIC)
+            index.readLegacy(new ObjectInputStream(buffered));
+        else
+            index.read(new DataInputStream(buffered));
+        return index;
+    }
+
+    private void read(DataInputStream stream) throws IOException {
+        in = stream;
+        readStrings = new ArrayList<String>();
+        try {
+            String version = in.readUTF();
+            if (!VERSION.equals(version))
+                throw new IOException(MessageUtil.format(Messages.SnapshotImpl_Error_UnknownVersion, version));
+
+            objectReaderUniqueIdentifier = in.readUTF();
+
+            byte[] info = new byte[in.readInt()];
+            in.readFully(info);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(info));
+            try {
+                snapshotInfo = (XSnapshotInfo) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw toIOException(e);
+            } catch (ClassCastException e) {
+                throw toIOException(e);
+            }
+
+            int numberOfClasses = in.readInt();
+            classCache = new HashMapIntObject<ClassImpl>(numberOfClasses);
+            ClassImpl[] classes = new ClassImpl[numberOfClasses];
+            int[] classInstanceIds = new int[numberOfClasses];
+            int[][] subClassIds = new int[numberOfClasses][];
+            for (int ii = 0; ii < numberOfClasses; ii++) {
+                classes[ii] = readClass(ii, classInstanceIds, subClassIds);
+                classCache.put(classes[ii].getObjectId(), classes[ii]);
+            }
+
+            // link classes only after all of them exist
+            for (int ii = 0; ii < numberOfClasses; ii++) {
+                if (classInstanceIds[ii] >= 0)
+                    classes[ii].setClassInstance(classCache.get(classInstanceIds[ii]));
+                for (int subClassId : subClassIds[ii])
+                    classes[ii].addSubClass(classCache.get(subClassId));
+            }
+
+            roots = readRoots();
+            int numberOfThreads = in.readInt();
+            rootsPerThread = new HashMapIntObject<HashMapIntObject<XGCRootInfo[]>>(numberOfThreads);
+            for (int ii = 0; ii < numberOfThreads; ii++) {
+                int threadId = in.readInt();
+                rootsPerThread.put(threadId, readRoots());
+            }
+
+            int numberOfLoaders = in.readInt();
+            loaderLabels = new HashMapIntObject<String>(numberOfLoaders);
+            for (int ii = 0; ii < numberOfLoaders; ii++) {
+                int loaderId = in.readInt();
+                loaderLabels.put(loaderId, readString());
+            }
+
+            int[] bits = new int[in.readInt()];
+            for (int ii = 0; ii < bits.length; ii++)
+                bits[ii] = in.readInt();
+            arrayObjects = new BitField(bits);
+        } finally {
+            in = null;
+            readStrings = null;
+        }
+    }
+
+    private ClassImpl readClass(int index, int[] classInstanceIds, int[][] subClassIds) throws IOException {
+        int objectId = in.readInt();
+        long address = in.readLong();
+        String name = readString();
+        int superClassId = in.readInt();
+        long superClassAddress = in.readLong();
+        int classLoaderId = in.readInt();
+        long classLoaderAddress = in.readLong();
+        classInstanceIds[index] = in.readInt();
+        long usedHeapSize = in.readLong();
+        long heapSizePerInstance = in.readLong();
+        int instanceCount = in.readInt();
+        long totalSize = in.readLong();
+
+        Serializable cacheEntry;
+        switch (in.readByte()) {
+            case LONG_CACHE_ENTRY:
+                cacheEntry = new long[]{in.readLong(), in.readLong()};
+                break;
+            case INT_CACHE_ENTRY:
+                cacheEntry = new int[]{in.readInt(), in.readInt()};
+                break;
+            default:
+                cacheEntry = null;
+                break;
+        }
+
+        Field[] staticFields = new Field[in.readInt()];
+        for (int ii = 0; ii < staticFields.length; ii++) {
+            String fieldName = readString();
+            int type = in.readByte();
+            staticFields[ii] = new Field(fieldName, type, readValue(type));
+        }
+
+        FieldDescriptor[] fields = new FieldDescriptor[in.readInt()];
+        for (int ii = 0; ii < fields.length; ii++) {
+            String fieldName = readString();
+            fields[ii] = new FieldDescriptor(fieldName, in.readByte());
+        }
+
+        subClassIds[index] = new int[in.readInt()];
+        for (int ii = 0; ii < subClassIds[index].length; ii++)
+            subClassIds[index][ii] = in.readInt();
+
+        ClassImpl clazz = new ClassImpl(address, name, superClassAddress, classLoaderAddress, staticFields, fields);
+        clazz.setObjectId(objectId);
+        clazz.setSuperClassIndex(superClassId);
+        clazz.setClassLoaderIndex(classLoaderId);
+        clazz.setUsedHeapSize(usedHeapSize);
+        clazz.setHeapSizePerInstance(heapSizePerInstance);
+        clazz.setInstances(instanceCount, totalSize);
+        clazz.setCacheEntry(cacheEntry);
+        return clazz;
+    }
+
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case IObject.Type.OBJECT:
+                long address = in.readLong();
+                return address == 0 ? null : new ObjectReference(null, address);
+            case IObject.Type.BOOLEAN:
+                return in.readBoolean();
+            case IObject.Type.CHAR:
+                return in.readChar();
+            case IObject.Type.FLOAT:
+                return in.readFloat();
+            case IObject.Type.DOUBLE:
+                return in.readDouble();
+            case IObject.Type.BYTE:
+                return in.readByte();
+            case IObject.Type.SHORT:
+                return in.readShort();
+            case IObject.Type.INT:
+                return in.readInt();
+            case IObject.Type.LONG:
+                return in.readLong();
+            default:
+                throw new IOException(MessageUtil.format(Messages.MasterIndex_Error_IllegalType, type));
+        }
+    }
+
+    private HashMapIntObject<XGCRootInfo[]> readRoots() throws IOException {
+        int size = in.readInt();
+        HashMapIntObject<XGCRootInfo[]> map = new HashMapIntObject<XGCRootInfo[]>(size);
+        for (int ii = 0; ii < size; ii++) {
+            int objectId = in.readInt();
+            XGCRootInfo[] infos = new XGCRootInfo[in.readInt()];
+            for (int jj = 0; jj < infos.length; jj++) {
+                long objectAddress = in.readLong();
+                long contextAddress = in.readLong();
+                infos[jj] = new XGCRootInfo(objectAddress, contextAddress, in.readInt());
+                infos[jj].setObjectId(in.readInt());
+                infos[jj].setContextId(in.readInt());
+            }
+            map.put(objectId, infos);
+        }
+        return map;
+    }
+
+    private String readString() throws IOException {
+        int index = in.readInt();
+        if (index < readStrings.size())
+            return readStrings.get(index);
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        String s = new String(bytes, "UTF-8"); //$NON-NLS-1$
+        readStrings.add(s);
+        return s;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readLegacy(ObjectInputStream stream) throws IOException {
+        try {
+            String version = stream.readUTF();
+            if (!LEGACY_VERSION.equals(version))
+                throw new IOException(MessageUtil.format(Messages.SnapshotImpl_Error_UnknownVersion, version));
+
+            objectReaderUniqueIdentifier = stream.readUTF();
+            snapshotInfo = (XSnapshotInfo) stream.readObject();
+            classCache = (HashMapIntObject<ClassImpl>) stream.readObject();
+            roots = (HashMapIntObject<XGCRootInfo[]>) stream.readObject();
+            rootsPerThread = (HashMapIntObject<HashMapIntObject<XGCRootInfo[]>>) stream.readObject();
+            loaderLabels = (HashMapIntObject<String>) stream.readObject();
+            arrayObjects = (BitField) stream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw toIOException(e);
+        } catch (ClassCastException e) {
+            throw toIOException(e);
+        }
+    }
+
+    private static IOException toIOException(Exception e) {
+        IOException ioe = new IOException(e.getMessage());
+        ioe.initCause(e);
+        return ioe;
+    }
+}
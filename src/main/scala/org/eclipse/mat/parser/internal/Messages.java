@@ -17,6 +17,7 @@ public class Messages {
     public static String BitOutputStream_Error_ArrayFull="Array full";
     public static String ClassHistogramRecordBuilder_Error_IllegalUseOfHistogramBuilder="illegal use of class histogram record builder";
     public static String DominatorTree_CalculateRetainedSizes="Calculate retained sizes";
+    public static String DominatorTree_CalculateMinRetainedSizes="Calculate minimum retained sizes of classes and class loaders";
     public static String DominatorTree_CalculatingDominatorTree="Calculating Dominator Tree";
     public static String DominatorTree_ComputingDominators="Computing dominators";
     public static String DominatorTree_CreateDominatorsIndexFile="Create dominators index file";
@@ -36,9 +37,14 @@ public class Messages {
     public static String IndexReader_Error_IndexIsEmbedded="Index is embedded; stream must be set externally";
     public static String IndexWriter_Error_ObjectArrayLength="Requested length of new Object[{0}] exceeds limit of {1}";
     public static String IndexWriter_Error_ArrayLength="Requested length of new long[{0}] exceeds limit of {1}";
+    public static String MasterIndex_Error_IllegalType="Illegal type: {0}";
     public static String MethodCallExpression_Error_MethodNotFound="Method {0}({1}) not found in object {2} of type {3}";
     public static String MultiplePathsFromGCRootsComputerImpl_FindingPaths="Finding paths";
+    public static String SnapshotContainer_Error_InvalidSection="Invalid section ''{0}'' in snapshot container ''{1}''";
+    public static String SnapshotContainer_Error_NoSuchSection="No section ''{0}'' in snapshot container ''{1}''";
+    public static String SnapshotContainer_Error_NotAContainer="''{0}'' is not a snapshot container";
     public static String SnapshotFactoryImpl_EmptyOutbounds="Empty outbounds for index {0} address {1} type {2}";
+    public static String SnapshotFactoryImpl_Error_ConflictingArguments="Heap dump ''{0}'' is in use with {1}={2} and cannot be opened with {1}={3}";
     public static String SnapshotFactoryImpl_Error_NoParserRegistered="No parser registered for file ''{0}''";
     public static String SnapshotFactoryImpl_Error_OpeningHeapDump="Error opening heap dump ''{0}''. Check the error log for further details.";
     public static String SnapshotFactoryImpl_Error_ReparsingHeapDump="Reparsing heap dump file due to {0}";
@@ -70,8 +76,12 @@ public class Messages {
     public static String SnapshotFactoryImpl_UnableToDeleteIndexFile="Unable to delete index file {0}";
     public static String SnapshotFactoryImpl_ValidatingGCRoots="Validating GC roots";
     public static String SnapshotFactoryImpl_ValidatingIndices="Validating indices";
+    public static String SnapshotFactoryImpl_ValidationErrorsNotReported="{0} more index validation errors not reported";
+    public static String SnapshotFactoryImpl_ValidationTimes="Validated indices of {0} objects in {1} ms, time summed over all threads: addresses {2} ms, classes {3} ms, outbounds {4} ms, objects {5} ms";
     public static String SnapshotImpl_BuildingHistogram="building histogram";
     public static String SnapshotImpl_Error_DomTreeNotAvailable="Dominator tree not available. Open the Dominator Tree or delete indices and parse again.";
+    public static String SnapshotImpl_Error_FieldNotFound="Field {0} not found in object {1}.";
+    public static String SnapshotImpl_Error_FieldType="Field {0} cannot be read as {1}.";
     public static String SnapshotImpl_Error_ObjectNotFound="Object {0} not found.";
     public static String SnapshotImpl_Error_ParserNotFound="Heap Parser not found: ";
     public static String SnapshotImpl_Error_ReplacingNonExistentClassLoader="Replacing a non-existent class loader label.";
@@ -79,7 +89,9 @@ public class Messages {
     public static String SnapshotImpl_Error_UnrecognizedState="Unrecognized state : ";
     public static String SnapshotImpl_Histogram="Histogram";
     public static String SnapshotImpl_Label="label";
+    public static String SnapshotImpl_ReadingFields="reading fields";
     public static String SnapshotImpl_ReadingInboundReferrers="reading inbound referrers";
+    public static String SnapshotImpl_ReadingObjects="reading objects";
     public static String SnapshotImpl_ReadingOutboundReferrers="reading outbound referrers";
     public static String SnapshotImpl_ReopeningParsedHeapDumpFile="Reopening parsed heap dump file";
     public static String SnapshotImpl_RetrievingDominators="Retrieving dominators...";
@@ -110,6 +122,7 @@ public class Messages {
     public static String PathExpression_Error_ArrayHasNoProperty="The array of type {0} has no property {1}";
     public static String PathExpression_Error_TypeHasNoProperty="Type {0} has no property {1}";
     public static String PathExpression_Error_UnknownElementInPath="Unknown element in path {0}";
+    public static String PathsFromGCRootsIndex_CalculatingShortestPaths="Calculating shortest paths from GC roots";
     public static String PositionInputStream_mark="mark";
     public static String PositionInputStream_reset="reset";
     public static String PositionInputStream_seek="seek";
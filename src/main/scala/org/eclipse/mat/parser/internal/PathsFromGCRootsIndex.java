@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
+import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.index.IndexManager.Index;
+import org.eclipse.mat.parser.index.IndexWriter;
+import org.eclipse.mat.util.IProgressListener;
+
+import java.io.IOException;
+
+/**
+ * Calculates the {@link Index#GCROOT_PARENT} index. A breadth-first search
+ * from all GC roots at once reaches every object first over one of its
+ * shortest paths, so walking up the parents of an object yields a shortest
+ * path to a GC root in O(depth).
+ */
+public class PathsFromGCRootsIndex {
+    private static final int GC_ROOT = 1;
+    private static final int NOT_REACHED = 0;
+
+    public static void calculate(SnapshotImpl snapshot, IProgressListener listener) throws SnapshotException,
+            IOException {
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        IIndexReader.IOne2ManyIndex outbound = snapshot.getIndexManager().outbound();
+
+        listener.beginTask(Messages.PathsFromGCRootsIndex_CalculatingShortestPaths, numberOfObjects / 1000);
+
+        int[] parents = new int[numberOfObjects];
+        // every object is queued at most once
+        int[] queue = new int[numberOfObjects];
+        int head = 0;
+        int tail = 0;
+        for (int root : snapshot.getGCRoots()) {
+            if (parents[root] == NOT_REACHED) {
+                parents[root] = GC_ROOT;
+                queue[tail++] = root;
+            }
+        }
+
+        while (head < tail) {
+            int id = queue[head++];
+            for (int referent : outbound.get(id)) {
+                if (parents[referent] == NOT_REACHED) {
+                    parents[referent] = id + 2;
+                    queue[tail++] = referent;
+                }
+            }
+
+            if (head % 1000 == 0) {
+                if (listener.isCanceled())
+                    throw new IProgressListener.OperationCanceledException();
+                listener.worked(1);
+            }
+        }
+        queue = null;
+        outbound.unload();
+
+        snapshot.getIndexManager().setReader(
+                Index.GCROOT_PARENT,
+                new IndexWriter.IntIndexStreamer().writeTo(
+                        Index.GCROOT_PARENT.getFile(snapshot.getSnapshotInfo().getPrefix()), parents));
+
+        listener.done();
+    }
+
+    /**
+     * @return the path from the object to its GC root as found by
+     * {@link #calculate(SnapshotImpl, IProgressListener)} or null if the
+     * object was not reached
+     */
+    public static int[] getPath(IIndexReader.IOne2OneIndex parents, int objectId) {
+        int parent = parents.get(objectId);
+        if (parent == NOT_REACHED)
+            return null;
+
+        ArrayInt path = new ArrayInt();
+        path.add(objectId);
+        while (parent != GC_ROOT) {
+            int id = parent - 2;
+            path.add(id);
+            parent = parents.get(id);
+        }
+        return path.toArray();
+    }
+}
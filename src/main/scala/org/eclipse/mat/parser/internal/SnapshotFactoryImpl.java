@@ -18,9 +18,12 @@ import org.eclipse.core.runtime.Status;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.collect.IteratorInt;
+import org.eclipse.mat.hprof.HprofHeapObjectReader;
 import org.eclipse.mat.hprof.HprofIndexBuilder;
 import org.eclipse.mat.parser.IIndexBuilder;
+import org.eclipse.mat.parser.index.SnapshotContainer;
 import org.eclipse.mat.parser.internal.oql.OQLQueryImpl;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
 import org.eclipse.mat.parser.internal.util.ParserRegistry.Parser;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.XGCRootInfo;
@@ -33,41 +36,248 @@ import org.eclipse.mat.snapshot.model.GCRootInfo;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.IProgressListener.Severity;
 import org.eclipse.mat.util.MessageUtil;
+import org.eclipse.mat.util.SilentProgressListener;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
+    /**
+     * Number of snapshots kept open after their last user disposed them, can
+     * be changed with the system property MAT_IDLE_SNAPSHOTS. By default a
+     * snapshot is disposed together with its last user, as before: an idle
+     * snapshot keeps its heap dump and index files open and its indexes and
+     * object cache in memory, which only pays off for callers that open the
+     * same dumps again and again, e.g. the query server.
+     */
+    private static final int DEFAULT_IDLE_SNAPSHOTS = 0;
+
+    /**
+     * The arguments of the parser with their values if not given. They have
+     * no effect when the snapshot is read from existing indices.
+     */
+    private static final Map<String, String> PARSE_ARGUMENTS = new HashMap<String, String>();
+
+    static {
+        PARSE_ARGUMENTS.put("keep_unreachable_objects", Boolean.FALSE.toString()); //$NON-NLS-1$
+        PARSE_ARGUMENTS.put("validate_indices", Boolean.TRUE.toString()); //$NON-NLS-1$
+        PARSE_ARGUMENTS.put("field_store", Boolean.FALSE.toString()); //$NON-NLS-1$
+        PARSE_ARGUMENTS.put("gc_root_paths", Boolean.FALSE.toString()); //$NON-NLS-1$
+        PARSE_ARGUMENTS.put("background_dominator_tree", Boolean.FALSE.toString()); //$NON-NLS-1$
+        PARSE_ARGUMENTS.put("snapshot_container", Boolean.FALSE.toString()); //$NON-NLS-1$
+    }
+
+    /**
+     * Interval in milliseconds to check the listener while waiting for the
+     * open of another caller.
+     */
+    private static final long WAIT_INTERVAL = 100;
+
     private static class SnapshotEntry {
         private int usageCount;
-        private WeakReference<ISnapshot> snapshot;
-
-        public SnapshotEntry(int usageCount, ISnapshot snapshot) {
-            this.usageCount = usageCount;
-            this.snapshot = new WeakReference<ISnapshot>(snapshot);
+        private ISnapshot snapshot;
+        // set while the snapshot is opened
+        private FutureTask<ISnapshot> opening;
+        // the arguments of the first open
+        private final Map<String, String> args;
+        // the heap dump was parsed with the arguments, not read from indices
+        private boolean parsed;
+
+        public SnapshotEntry(Map<String, String> args) {
+            this.usageCount = 1;
+            this.args = new HashMap<String, String>(args);
         }
     }
 
-    private Map<File, SnapshotEntry> snapshotCache = new HashMap<File, SnapshotEntry>();
+    // guarded by this, in order of access: idle snapshots are evicted from the
+    // front
+    private final LinkedHashMap<File, SnapshotEntry> snapshotCache = new LinkedHashMap<File, SnapshotEntry>(16,
+            0.75f, true);
 
-    public ISnapshot openSnapshot(File file, Map<String, String> args, IProgressListener listener) throws SnapshotException {
-        ISnapshot answer = null;
+    /**
+     * Callers opening a dump which is open or being opened share the snapshot
+     * of the first caller, which was opened with its arguments. Giving an
+     * argument with another value, e.g. <code>field_store</code>, fails while
+     * the snapshot is in use, a missing argument has its default value. The
+     * arguments of the parser only count if the first caller parsed the dump.
+     * An idle snapshot is opened again with the new arguments.
+     * <p/>
+     * Callers waiting for the open of another caller stop when their own
+     * listener is canceled, and open the dump themselves when the other
+     * caller canceled.
+     */
+    public ISnapshot openSnapshot(final File file, final Map<String, String> args, final IProgressListener listener)
+            throws SnapshotException {
+        SnapshotEntry entry;
+        FutureTask<ISnapshot> opening;
+        boolean owner = false;
+        ISnapshot evicted = null;
+
+        synchronized (this) {
+            entry = snapshotCache.get(file);
+            // the arguments of a snapshot being opened are checked once it is open
+            String conflict = entry != null && entry.snapshot != null ? getConflictingArgument(entry, args) : null;
+            if (conflict != null) {
+                if (entry.usageCount > 0)
+                    throw conflictingArguments(file, entry, args, conflict);
+                snapshotCache.remove(file);
+                evicted = entry.snapshot;
+                entry = null;
+            }
+            if (entry != null) {
+                entry.usageCount++;
+                if (entry.snapshot != null)
+                    return entry.snapshot;
+                opening = entry.opening;
+            } else {
+                // concurrent requests for the same file wait for this one
+                final SnapshotEntry created = new SnapshotEntry(args);
+                opening = new FutureTask<ISnapshot>(new Callable<ISnapshot>() {
+                    public ISnapshot call() throws Exception {
+                        ISnapshot answer = doOpenSnapshot(file, args, created, listener);
+                        // published before anybody gets the snapshot, so any
+                        // user may dispose it right away
+                        synchronized (SnapshotFactoryImpl.this) {
+                            created.snapshot = answer;
+                            created.opening = null;
+                        }
+                        return answer;
+                    }
+                });
+                created.opening = opening;
+                entry = created;
+                snapshotCache.put(file, entry);
+                owner = true;
+            }
+        }
 
-        // lookup in cache
-        SnapshotEntry entry = snapshotCache.get(file);
-        if (entry != null) {
-            answer = entry.snapshot.get();
+        // disposing closes files, do it outside of the lock
+        if (evicted != null)
+            evicted.dispose();
 
-            if (answer != null) {
-                entry.usageCount++;
-                return answer;
+        if (owner)
+            opening.run();
+
+        ISnapshot answer;
+        try {
+            answer = owner ? opening.get() : waitForOpening(entry, opening, listener);
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (snapshotCache.get(file) == entry)
+                    snapshotCache.remove(file);
+            }
+            Throwable cause = e.getCause();
+            // the first caller canceled, but not this one
+            if (!owner && cause instanceof IProgressListener.OperationCanceledException)
+                return openSnapshot(file, args, listener);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw SnapshotException.rethrow(cause);
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                entry.usageCount--;
             }
+            Thread.currentThread().interrupt();
+            throw new SnapshotException(e);
         }
 
+        if (!owner) {
+            String conflict;
+            synchronized (this) {
+                conflict = getConflictingArgument(entry, args);
+            }
+            if (conflict != null) {
+                dispose(answer);
+                throw conflictingArguments(file, entry, args, conflict);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Waits for the open of another caller until the listener is canceled.
+     */
+    private ISnapshot waitForOpening(SnapshotEntry entry, FutureTask<ISnapshot> opening, IProgressListener listener)
+            throws ExecutionException, InterruptedException {
+        while (true) {
+            try {
+                return opening.get(WAIT_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // $JL-EXC$
+                // not yet open, check the listener
+            }
+
+            if (listener.isCanceled()) {
+                ISnapshot opened;
+                synchronized (this) {
+                    opened = entry.snapshot;
+                    if (opened == null)
+                        entry.usageCount--;
+                }
+                // opened in the meantime, give it back like any user
+                if (opened != null)
+                    dispose(opened);
+                throw new IProgressListener.OperationCanceledException();
+            }
+        }
+    }
+
+    private static SnapshotException conflictingArguments(File file, SnapshotEntry entry, Map<String, String> args,
+                                                          String name) {
+        return new SnapshotException(MessageUtil.format(Messages.SnapshotFactoryImpl_Error_ConflictingArguments,
+                file.getName(), name, getArgument(entry.args, name), getArgument(args, name)));
+    }
+
+    /**
+     * @return the first argument, given now or when the snapshot was opened,
+     * which has another value than when the snapshot was opened, or null
+     */
+    private static String getConflictingArgument(SnapshotEntry entry, Map<String, String> args) {
+        Set<String> names = new TreeSet<String>(entry.args.keySet());
+        names.addAll(args.keySet());
+        for (String name : names) {
+            // the indices were not built with the arguments of the parser
+            if (!entry.parsed && PARSE_ARGUMENTS.containsKey(name))
+                continue;
+            String opened = getArgument(entry.args, name);
+            String value = getArgument(args, name);
+            if (opened == null ? value != null : !opened.equals(value))
+                return name;
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of the argument, for the arguments of the parser the
+     * default if not given and the boolean value
+     */
+    private static String getArgument(Map<String, String> args, String name) {
+        String value = args.get(name);
+        String defaultValue = PARSE_ARGUMENTS.get(name);
+        if (defaultValue == null)
+            return value;
+        return value != null ? String.valueOf(Boolean.parseBoolean(value)) : defaultValue;
+    }
+
+    private static boolean isSet(Map<String, String> args, String name) {
+        return Boolean.parseBoolean(getArgument(args, name));
+    }
+
+    private ISnapshot doOpenSnapshot(File file, Map<String, String> args, SnapshotEntry entry,
+                                     IProgressListener listener) throws SnapshotException {
+        ISnapshot answer = null;
+
         String name = file.getAbsolutePath();
 
         int p = name.lastIndexOf('.');
@@ -77,6 +287,16 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
             prefix += snapshot_identifier + ".";
         }
 
+        if (SnapshotContainer.isContainer(file)) {
+            // a parsed snapshot, there is no heap dump to parse again
+            try {
+                return SnapshotImpl.readFromContainer(SnapshotContainer.open(file), prefix, listener);
+            } catch (IOException e) {
+                throw new SnapshotException(MessageUtil.format(Messages.SnapshotFactoryImpl_Error_OpeningHeapDump,
+                        file.getName()), e);
+            }
+        }
+
         try {
             File indexFile = new File(prefix + "index");
             if (indexFile.exists()) {
@@ -101,37 +321,61 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
 
         if (answer == null) {
             deleteIndexFiles(file, prefix, listener);
+            // published with the snapshot
+            entry.parsed = true;
             answer = parse(file, prefix, args, listener);
         }
 
-        entry = new SnapshotEntry(1, answer);
-
-        snapshotCache.put(file, entry);
-
         return answer;
     }
 
-    public synchronized void dispose(ISnapshot snapshot) {
-
-        for (Iterator<SnapshotEntry> iter = snapshotCache.values().iterator(); iter.hasNext(); ) {
-            SnapshotEntry entry = iter.next();
+    public void dispose(ISnapshot snapshot) {
+        List<ISnapshot> evicted = new ArrayList<ISnapshot>();
+        boolean found = false;
+
+        synchronized (this) {
+            for (Map.Entry<File, SnapshotEntry> e : snapshotCache.entrySet()) {
+                if (e.getValue().snapshot == snapshot) {
+                    e.getValue().usageCount--;
+                    found = true;
+                    // the last use counts as access
+                    snapshotCache.get(e.getKey());
+                    break;
+                }
+            }
 
-            ISnapshot s = entry.snapshot.get();
-            if (s == null) {
-                iter.remove();
-            } else if (s == snapshot) {
-                entry.usageCount--;
-                if (entry.usageCount == 0) {
-                    snapshot.dispose();
-                    iter.remove();
+            if (found) {
+                // evict the least recently used idle snapshots over the budget
+                int idle = 0;
+                for (SnapshotEntry entry : snapshotCache.values())
+                    if (entry.usageCount == 0 && entry.snapshot != null)
+                        idle++;
+
+                int maxIdle = getMaxIdleSnapshots();
+                for (Iterator<SnapshotEntry> iter = snapshotCache.values().iterator(); idle > maxIdle
+                        && iter.hasNext(); ) {
+                    SnapshotEntry entry = iter.next();
+                    if (entry.usageCount == 0 && entry.snapshot != null) {
+                        evicted.add(entry.snapshot);
+                        iter.remove();
+                        idle--;
+                    }
                 }
-                return;
             }
         }
 
         // just in case the snapshot is not stored anymore
-        if (snapshot != null)
-            snapshot.dispose();
+        if (!found && snapshot != null)
+            evicted.add(snapshot);
+
+        // disposing closes files, do it outside of the lock
+        for (ISnapshot s : evicted)
+            s.dispose();
+    }
+
+    private static int getMaxIdleSnapshots() {
+        Integer size = Integer.getInteger("MAT_IDLE_SNAPSHOTS"); //$NON-NLS-1$
+        return size != null && size.intValue() >= 0 ? size.intValue() : DEFAULT_IDLE_SNAPSHOTS;
     }
 
     public IOQLQuery createQuery(String queryString) throws SnapshotException {
@@ -169,7 +413,7 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
             snapshotInfo.setPath(file.getAbsolutePath());
             snapshotInfo.setPrefix(prefix);
             snapshotInfo.setProperty("$heapFormat", "hprof");
-            if (Boolean.parseBoolean(args.get("keep_unreachable_objects"))) {
+            if (isSet(args, "keep_unreachable_objects")) {
                 snapshotInfo.setProperty("keep_unreachable_objects", GCRootInfo.Type.UNREACHABLE);
             }
 
@@ -182,6 +426,9 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
 
             indexBuilder.fill(idx, listener);
 
+            if (isSet(args, "validate_indices"))
+                validateIndices(idx, listener);
+
             SnapshotImplBuilder builder = new SnapshotImplBuilder(idx.getSnapshotInfo());
 
             int[] purgedMapping = GarbageCleaner.clean(idx, builder, args, listener);
@@ -190,7 +437,30 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
 
             SnapshotImpl snapshot = builder.create(listener);
 
-            snapshot.calculateDominatorTree(listener);
+            if (isSet(args, "field_store")
+                    && snapshot.getHeapObjectReader() instanceof HprofHeapObjectReader)
+                ((HprofHeapObjectReader) snapshot.getHeapObjectReader()).writeFieldStore(listener);
+
+            if (isSet(args, "gc_root_paths"))
+                snapshot.calculatePathsFromGCRootsIndex(listener);
+
+            Future<Void> dominatorTree = null;
+            if (isSet(args, "background_dominator_tree"))
+                dominatorTree = snapshot.calculateDominatorTreeInBackground(new SilentProgressListener(listener));
+            else
+                snapshot.calculateDominatorTree(listener);
+
+            if (isSet(args, "snapshot_container")) {
+                // the container packs the dominator tree indices, too
+                if (dominatorTree != null) {
+                    try {
+                        dominatorTree.get();
+                    } catch (ExecutionException e) {
+                        throw SnapshotException.rethrow(e.getCause());
+                    }
+                }
+                SnapshotContainer.write(prefix, new File(prefix + SnapshotContainer.SUFFIX));
+            }
 
             return snapshot;
         } catch (IOException ioe) {
@@ -222,180 +492,282 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
     }
 
     /**
-     * Check that indices look valid
+     * At most this many errors are reported by the index validation, the
+     * others are only counted.
+     */
+    private static final int MAX_VALIDATION_ERRORS = 100;
+
+    /**
+     * Errors, counts and timings of the validation of a range of objects.
+     */
+    private static final class ValidationResult {
+        List<String> errors = new ArrayList<String>();
+        int errorCount;
+        int nObjs;
+        int nObjsFromClass;
+        int nCls;
+        // nanoseconds per check
+        long addressTime;
+        long classTime;
+        long outboundTime;
+        long objectTime;
+
+        void error(String message) {
+            if (errorCount++ < MAX_VALIDATION_ERRORS)
+                errors.add(message);
+        }
+    }
+
+    /**
+     * Check that indices look valid. Ranges of objects are checked on
+     * several threads, errors are reported in order of the object ids.
      *
      * @param listener
      */
-    private void validateIndices(PreliminaryIndexImpl pidx, IProgressListener listener) {
+    private void validateIndices(final PreliminaryIndexImpl pidx, final IProgressListener listener)
+            throws SnapshotException {
         final int maxIndex = pidx.identifiers.size();
         listener.beginTask(Messages.SnapshotFactoryImpl_ValidatingIndices, maxIndex / 1000 + 1);
-        long prevAddress = -1;
-        int nObjs = 0;
-        int nObjsFromClass = 0;
-        int nCls = 0;
+        long start = System.currentTimeMillis();
+
+        final ValidationResult total = new ValidationResult();
         // Look at each object
-        for (int i = 0; i < maxIndex; ++i) {
-            if (i % 1000 == 0) {
+        ParallelRanges.run("ValidateIndices", 0, maxIndex, 100000, new ParallelRanges.Task<ValidationResult>() { //$NON-NLS-1$
+            public ValidationResult process(int from, int to) {
+                ValidationResult result = new ValidationResult();
+                validateAddresses(pidx, from, to, result);
+                validateClasses(pidx, from, to, result);
+                validateOutbounds(pidx, from, to, result);
+                validateObjects(pidx, from, to, result);
+                return result;
+            }
+        }, new ParallelRanges.Consumer<ValidationResult>() {
+            public void consume(int from, int to, ValidationResult result) {
+                for (String error : result.errors) {
+                    if (total.errorCount++ < MAX_VALIDATION_ERRORS)
+                        listener.sendUserMessage(Severity.ERROR, error, null);
+                }
+                total.errorCount += result.errorCount - result.errors.size();
+                total.nObjs += result.nObjs;
+                total.nObjsFromClass += result.nObjsFromClass;
+                total.nCls += result.nCls;
+                total.addressTime += result.addressTime;
+                total.classTime += result.classTime;
+                total.outboundTime += result.outboundTime;
+                total.objectTime += result.objectTime;
+
                 if (listener.isCanceled()) {
                     throw new IProgressListener.OperationCanceledException();
                 }
-                listener.worked(1);
+                listener.worked((to - from) / 1000);
+            }
+        });
+
+        if (total.errorCount > MAX_VALIDATION_ERRORS) {
+            listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                    Messages.SnapshotFactoryImpl_ValidationErrorsNotReported, total.errorCount
+                            - MAX_VALIDATION_ERRORS), null);
+        }
+        if (total.nObjsFromClass != total.nObjs + total.nCls) {
+            listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                    Messages.SnapshotFactoryImpl_ObjectsFoundButClassesHadObjectsAndClassesInTotal, total.nObjs,
+                    total.nCls, total.nObjsFromClass), null);
+        }
+        listener.sendUserMessage(Severity.INFO, MessageUtil.format(Messages.SnapshotFactoryImpl_ValidationTimes,
+                maxIndex, System.currentTimeMillis() - start, total.addressTime / 1000000,
+                total.classTime / 1000000, total.outboundTime / 1000000, total.objectTime / 1000000), null);
+        listener.subTask(Messages.SnapshotFactoryImpl_ValidatingGCRoots);
+        // Check some GC information
+        for (IteratorInt it = pidx.gcRoots.keys(); it.hasNext(); ) {
+            int idx = it.next();
+            if (idx < 0 || idx >= maxIndex) {
+                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                        Messages.SnapshotFactoryImpl_GCRootIDOutOfRange, idx, maxIndex), null);
+            } else {
+                for (ListIterator<XGCRootInfo> it2 = pidx.gcRoots.get(idx).listIterator(); it2.hasNext(); ) {
+                    XGCRootInfo ifo = it2.next();
+                    int objid = ifo.getObjectId();
+                    if (objid != idx) {
+                        listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                                Messages.SnapshotFactoryImpl_GCRootIDDoesNotMatchIndex, objid, idx), null);
+                    }
+                }
+            }
+        }
+        for (int thrd : pidx.thread2objects2roots.getAllKeys()) {
+            if (thrd < 0 || thrd >= maxIndex) {
+                listener.sendUserMessage(Severity.ERROR,
+                        MessageUtil.format(Messages.SnapshotFactoryImpl_GCThreadIDOutOfRange, thrd, maxIndex), null);
+            } else {
+                HashMapIntObject<List<XGCRootInfo>> l = pidx.thread2objects2roots.get(thrd);
+                for (int idx : l.getAllKeys()) {
+                    if (idx < 0 || idx >= maxIndex) {
+                        listener.sendUserMessage(Severity.ERROR, MessageUtil
+                                .format(Messages.SnapshotFactoryImpl_GCThreadRootIDOutOfRange, thrd, idx,
+                                        maxIndex), null);
+                    } else {
+                        for (XGCRootInfo ifo : l.get(idx)) {
+                            int objid = ifo.getObjectId();
+                            if (objid != idx) {
+                                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                                        Messages.SnapshotFactoryImpl_GCThreadRootIDDoesNotMatchIndex,
+                                        thrd, objid, idx), null);
+                            }
+                        }
+                    }
+                }
             }
-            // Check addresses are in ascending order
+        }
+        listener.done();
+    }
+
+    /**
+     * Check addresses are in ascending order and can be found again
+     */
+    private void validateAddresses(PreliminaryIndexImpl pidx, int from, int to, ValidationResult result) {
+        long time = System.nanoTime();
+        long prevAddress = from > 0 ? pidx.identifiers.get(from - 1) : -1;
+        for (int i = from; i < to; ++i) {
             long addr = pidx.identifiers.get(i);
             if (prevAddress == addr) {
                 String desc = objDesc(pidx, i);
                 int j = pidx.identifiers.reverse(addr);
                 String desc2 = objDesc(pidx, j);
-                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                result.error(MessageUtil.format(
                         Messages.SnapshotFactoryImpl_IndexAddressHasSameAddressAsPrevious, i, desc, format(addr),
-                        desc2), null);
+                        desc2));
             }
             if (prevAddress > addr) {
                 String desc = objDesc(pidx, i);
-                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                result.error(MessageUtil.format(
                         Messages.SnapshotFactoryImpl_IndexAddressIsSmallerThanPrevious, i, desc, format(addr),
-                        format(prevAddress)), null);
+                        format(prevAddress)));
             }
             prevAddress = addr;
             int j = pidx.identifiers.reverse(addr);
             if (i != j) {
                 String desc1 = objDesc(pidx, i);
                 String desc2 = objDesc(pidx, j);
-                listener.sendUserMessage(Severity.ERROR,
-                        MessageUtil.format(Messages.SnapshotFactoryImpl_IndexAddressFoundAtOtherID, i,
-                                format(addr), j, desc1, desc2), null);
+                result.error(MessageUtil.format(Messages.SnapshotFactoryImpl_IndexAddressFoundAtOtherID, i,
+                        format(addr), j, desc1, desc2));
             }
-            // Check the type of each object
+        }
+        result.addressTime += System.nanoTime() - time;
+    }
+
+    /**
+     * Check the type of each object
+     */
+    private void validateClasses(PreliminaryIndexImpl pidx, int from, int to, ValidationResult result) {
+        long time = System.nanoTime();
+        for (int i = from; i < to; ++i) {
             int clsId = pidx.object2classId.get(i);
             if (clsId < 0) {
-                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                        Messages.SnapshotFactoryImpl_ClassIDNotFound, i, format(addr), clsId), null);
+                result.error(MessageUtil.format(
+                        Messages.SnapshotFactoryImpl_ClassIDNotFound, i, format(pidx.identifiers.get(i)), clsId));
             } else {
                 ClassImpl ci = pidx.classesById.get(clsId);
                 if (ci == null) {
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                            Messages.SnapshotFactoryImpl_ClassImplNotFound, i, format(addr), clsId), null);
+                    result.error(MessageUtil.format(
+                            Messages.SnapshotFactoryImpl_ClassImplNotFound, i, format(pidx.identifiers.get(i)),
+                            clsId));
                 }
             }
-            // Check the outbounds of each object
+        }
+        result.classTime += System.nanoTime() - time;
+    }
+
+    /**
+     * Check the outbounds of each object
+     */
+    private void validateOutbounds(PreliminaryIndexImpl pidx, int from, int to, ValidationResult result) {
+        long time = System.nanoTime();
+        final int maxIndex = pidx.identifiers.size();
+        for (int i = from; i < to; ++i) {
             int outs[] = pidx.outbound.get(i);
             if (outs == null) {
                 String desc = objDesc(pidx, i);
-                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                        Messages.SnapshotFactoryImpl_NoOutbounds, i, format(addr), desc), null);
+                result.error(MessageUtil.format(
+                        Messages.SnapshotFactoryImpl_NoOutbounds, i, format(pidx.identifiers.get(i)), desc));
             } else {
                 if (outs.length == 0) {
                     String desc = objDesc(pidx, i);
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                            Messages.SnapshotFactoryImpl_EmptyOutbounds, i, format(addr), desc), null);
+                    result.error(MessageUtil.format(
+                            Messages.SnapshotFactoryImpl_EmptyOutbounds, i, format(pidx.identifiers.get(i)), desc));
                 } else {
                     for (int k = 0; k < outs.length; ++k) {
                         if (outs[k] < 0 || outs[k] >= maxIndex) {
                             String desc = objDesc(pidx, i);
-                            listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                                    Messages.SnapshotFactoryImpl_InvalidOutbound, i, format(addr), desc, k, outs[k]), null);
+                            result.error(MessageUtil.format(
+                                    Messages.SnapshotFactoryImpl_InvalidOutbound, i, format(pidx.identifiers.get(i)),
+                                    desc, k, outs[k]));
 
                         }
                     }
+                    int clsId = pidx.object2classId.get(i);
                     if (outs[0] != clsId) {
                         long address = outs[0] >= 0 && outs[0] < maxIndex ? pidx.identifiers.get(outs[0]) : -1;
                         String desc = objDesc(pidx, i);
-                        listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                                Messages.SnapshotFactoryImpl_InvalidFirstOutbound, i, format(addr), desc, outs[0], format(address), clsId), null);
+                        result.error(MessageUtil.format(
+                                Messages.SnapshotFactoryImpl_InvalidFirstOutbound, i, format(pidx.identifiers.get(i)),
+                                desc, outs[0], format(address), clsId));
                     }
                 }
             }
-            // Check the object itself, and do special checks for plain objects or class objects
+        }
+        result.outboundTime += System.nanoTime() - time;
+    }
+
+    /**
+     * Check the object itself, and do special checks for plain objects or class objects
+     */
+    private void validateObjects(PreliminaryIndexImpl pidx, int from, int to, ValidationResult result) {
+        long time = System.nanoTime();
+        for (int i = from; i < to; ++i) {
+            int clsId = pidx.object2classId.get(i);
             ClassImpl ci = pidx.classesById.get(i);
             if (ci == null) {
-                ++nObjs;
+                ++result.nObjs;
                 // Ordinary object
                 long size = pidx.array2size.getSize(i);
                 if (size < 0) {
                     ci = pidx.classesById.get(clsId);
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                            Messages.SnapshotFactoryImpl_IndexAddressNegativeArraySize, i, format(addr), size, ci
-                            .getTechnicalName()), null);
+                    result.error(MessageUtil.format(
+                            Messages.SnapshotFactoryImpl_IndexAddressNegativeArraySize, i,
+                            format(pidx.identifiers.get(i)), size, ci != null ? ci.getTechnicalName() : ""));
                 }
             } else {
-                ++nCls;
+                ++result.nCls;
+                long addr = pidx.identifiers.get(i);
                 long addr2 = ci.getObjectAddress();
                 if (addr != addr2) {
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                    result.error(MessageUtil.format(
                             Messages.SnapshotFactoryImpl_ClassIndexAddressNotEqualClassObjectAddress, i,
-                            format(addr), format(addr2), ci.getTechnicalName()), null);
+                            format(addr), format(addr2), ci.getTechnicalName()));
                 }
                 int id = ci.getObjectId();
                 if (i != id) {
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                    result.error(MessageUtil.format(
                             Messages.SnapshotFactoryImpl_ClassIndexNotEqualClassObjectID, i, format(addr), id, ci
-                            .getTechnicalName()), null);
+                            .getTechnicalName()));
                 }
                 int clsId2 = ci.getClassId();
                 if (clsId != clsId2) {
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                    result.error(MessageUtil.format(
                             Messages.SnapshotFactoryImpl_ClassIndexAddressTypeIDNotEqualClassImplClassId, i,
-                            format(addr), clsId, clsId2, ci.getTechnicalName()), null);
+                            format(addr), clsId, clsId2, ci.getTechnicalName()));
                 }
                 long ldrAddr = ci.getClassLoaderAddress();
                 int ldr = ci.getClassLoaderId();
                 if (ldr < 0) {
-                    listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
+                    result.error(MessageUtil.format(
                             Messages.SnapshotFactoryImpl_ClassIndexAddressNoLoaderID, i, format(addr), clsId, ldr,
-                            format(ldrAddr), ci.getTechnicalName()), null);
-                }
-                nObjsFromClass += ci.getNumberOfObjects();
-            }
-        }
-        if (nObjsFromClass != nObjs + nCls) {
-            listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                    Messages.SnapshotFactoryImpl_ObjectsFoundButClassesHadObjectsAndClassesInTotal, nObjs, nCls,
-                    nObjsFromClass), null);
-        }
-        listener.subTask(Messages.SnapshotFactoryImpl_ValidatingGCRoots);
-        // Check some GC information
-        for (IteratorInt it = pidx.gcRoots.keys(); it.hasNext(); ) {
-            int idx = it.next();
-            if (idx < 0 || idx >= maxIndex) {
-                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                        Messages.SnapshotFactoryImpl_GCRootIDOutOfRange, idx, maxIndex), null);
-            } else {
-                for (ListIterator<XGCRootInfo> it2 = pidx.gcRoots.get(idx).listIterator(); it2.hasNext(); ) {
-                    XGCRootInfo ifo = it2.next();
-                    int objid = ifo.getObjectId();
-                    if (objid != idx) {
-                        listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                                Messages.SnapshotFactoryImpl_GCRootIDDoesNotMatchIndex, objid, idx), null);
-                    }
+                            format(ldrAddr), ci.getTechnicalName()));
                 }
+                result.nObjsFromClass += ci.getNumberOfObjects();
             }
         }
-        for (int thrd : pidx.thread2objects2roots.getAllKeys()) {
-            if (thrd < 0 || thrd >= maxIndex) {
-                listener.sendUserMessage(Severity.ERROR,
-                        MessageUtil.format(Messages.SnapshotFactoryImpl_GCThreadIDOutOfRange, thrd, maxIndex), null);
-            } else {
-                HashMapIntObject<List<XGCRootInfo>> l = pidx.thread2objects2roots.get(thrd);
-                for (int idx : l.getAllKeys()) {
-                    if (idx < 0 || idx >= maxIndex) {
-                        listener.sendUserMessage(Severity.ERROR, MessageUtil
-                                .format(Messages.SnapshotFactoryImpl_GCThreadRootIDOutOfRange, thrd, idx,
-                                        maxIndex), null);
-                    } else {
-                        for (XGCRootInfo ifo : l.get(idx)) {
-                            int objid = ifo.getObjectId();
-                            if (objid != idx) {
-                                listener.sendUserMessage(Severity.ERROR, MessageUtil.format(
-                                        Messages.SnapshotFactoryImpl_GCThreadRootIDDoesNotMatchIndex,
-                                        thrd, objid, idx), null);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        listener.done();
+        result.objectTime += System.nanoTime() - time;
     }
 
     /**
@@ -455,6 +827,7 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
         final Pattern indexPattern = Pattern.compile("([A-Za-z0-9]+\\.)?index$");
         final Pattern threadPattern = Pattern.compile("threads$");
         final Pattern logPattern = Pattern.compile("inbound\\.index.*\\.log$");
+        final Pattern containerPattern = Pattern.compile(SnapshotContainer.SUFFIX + "$");
 
         File[] files = directory.listFiles(new FileFilter() {
             public boolean accept(File f) {
@@ -465,7 +838,8 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation {
                 return name.startsWith(fragment)
                         && (indexPattern.matcher(name.substring(fragment.length())).matches()
                         || threadPattern.matcher(name.substring(fragment.length())).matches()
-                        || logPattern.matcher(name.substring(fragment.length())).matches());
+                        || logPattern.matcher(name.substring(fragment.length())).matches()
+                        || containerPattern.matcher(name.substring(fragment.length())).matches());
             }
         });
 
@@ -16,16 +16,21 @@ import org.eclipse.mat.collect.*;
 import org.eclipse.mat.hprof.HprofHeapObjectReader;
 import org.eclipse.mat.parser.IObjectReader;
 import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.index.IIndexReader.IOne2LongIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2OneIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2SizeIndex;
 import org.eclipse.mat.parser.index.IndexManager;
 import org.eclipse.mat.parser.index.IndexManager.Index;
+import org.eclipse.mat.parser.index.SnapshotContainer;
 import org.eclipse.mat.parser.internal.snapshot.*;
+import org.eclipse.mat.parser.internal.util.ConcurrentBitField;
 import org.eclipse.mat.parser.internal.util.IntStack;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
 import org.eclipse.mat.parser.model.*;
 import org.eclipse.mat.snapshot.*;
 import org.eclipse.mat.snapshot.DominatorsSummary.ClassDominatorRecord;
 import org.eclipse.mat.snapshot.model.*;
+import org.eclipse.mat.snapshot.registry.ClassSpecificNameResolverRegistry;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.IProgressListener.OperationCanceledException;
 import org.eclipse.mat.util.MessageUtil;
@@ -33,6 +38,12 @@ import org.eclipse.mat.util.VoidProgressListener;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 
 public final class SnapshotImpl implements ISnapshot {
@@ -41,51 +52,93 @@ public final class SnapshotImpl implements ISnapshot {
     // factory methods
     // //////////////////////////////////////////////////////////////
 
-    private static final String VERSION = "MAT_01";
+    private static final int DEFAULT_OBJECT_CACHE_SIZE = 1000;
 
-    @SuppressWarnings("unchecked")
-    public static SnapshotImpl readFromFile(File file, String prefix, IProgressListener listener)
-            throws SnapshotException, IOException {
-        FileInputStream fis = null;
+    private static final String READER_THREAD_NAME = "ObjectReaderThread"; //$NON-NLS-1$
+    private static final int MIN_READER_CHUNK_SIZE = 1000;
+    // objects read ahead of the visitor at most
+    private static final int MAX_READER_WINDOW_SIZE = 100000;
 
-        listener.beginTask(Messages.SnapshotImpl_ReopeningParsedHeapDumpFile, 9);
+    private static final String LABEL_THREAD_NAME = "LoaderLabelThread"; //$NON-NLS-1$
+    private static final int MIN_LABEL_CHUNK_SIZE = 64;
 
-        try {
-            File indexFile = new File(prefix + "index");
-            fis = new FileInputStream(indexFile);
-            listener.worked(1);
-            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(fis));
+    private static final String HISTOGRAM_THREAD_NAME = "HistogramThread"; //$NON-NLS-1$
+    private static final int MIN_HISTOGRAM_CHUNK_SIZE = 10000;
 
-            String version = in.readUTF();
-            if (!VERSION.equals(version))
-                throw new IOException(MessageUtil.format(Messages.SnapshotImpl_Error_UnknownVersion, version));
+    /**
+     * The retained set is taken from the dominator tree as long as less than
+     * this share (1/n) of the heap needs to be marked.
+     */
+    private static final int MAX_FRONTIER_SHARE = 16;
 
-            String objectReaderUniqueIdentifier = in.readUTF();
-//            Parser parser = ParserPlugin.getDefault().getParserRegistry().lookupParser(objectReaderUniqueIdentifier);
-//            if (parser == null)
-//                throw new IOException(Messages.SnapshotImpl_Error_ParserNotFound + objectReaderUniqueIdentifier);
-            listener.worked(1);
-            IObjectReader heapObjectReader = new HprofHeapObjectReader();
+    /**
+     * Marking workspaces kept for the next retained set calculation.
+     */
+    private static final int MAX_IDLE_WORKSPACES = 2;
 
-            XSnapshotInfo snapshotInfo = (XSnapshotInfo) in.readObject();
-            snapshotInfo.setProperty("$heapFormat", "hprof");
-            HashMapIntObject<ClassImpl> classCache = (HashMapIntObject<ClassImpl>) in.readObject();
+    /**
+     * BitFields kept for the next retained set taken from the dominator tree,
+     * which uses four at once.
+     */
+    private static final int MAX_IDLE_MARKS = 4;
 
-            if (listener.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
+    private static final String MIN_SWEEP_THREAD_NAME = "MinRetainedSizeThread"; //$NON-NLS-1$
+    private static final int MIN_SWEEP_CHUNK_SIZE = 16;
+
+    /**
+     * The minimum retained sizes of many sets are taken from one walk over the
+     * dominator tree if the sets hold at least this share (1/n) of the heap.
+     */
+    private static final int MIN_SWEEP_SHARE = 64;
+
+    /**
+     * From this number of objects on the top ancestors in the dominator tree
+     * are searched on several threads.
+     */
+    private static final int MIN_PARALLEL_ANCESTORS = 100000;
 
-            HashMapIntObject<XGCRootInfo[]> roots = (HashMapIntObject<XGCRootInfo[]>) in.readObject();
-            HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> rootsPerThread = (HashMapIntObject<HashMapIntObject<XGCRootInfo[]>>) in
-                    .readObject();
+    private static final String ANCESTOR_THREAD_NAME = "DominatorClimbThread"; //$NON-NLS-1$
+    private static final int MIN_ANCESTOR_CHUNK_SIZE = 10000;
+    private static final int MIN_SUBTREE_CHUNK_SIZE = 64;
 
+    public static SnapshotImpl readFromFile(File file, String prefix, IProgressListener listener)
+            throws SnapshotException, IOException {
+        File indexFile = new File(prefix + "index");
+        return read(file, prefix, indexFile, new FileInputStream(indexFile), null, listener);
+    }
+
+    /**
+     * Opens a snapshot stored in a {@link SnapshotContainer}. Files written
+     * later on, e.g. the retained size cache, use the given prefix.
+     */
+    public static SnapshotImpl readFromContainer(SnapshotContainer container, String prefix,
+                                                 IProgressListener listener) throws SnapshotException, IOException {
+        SnapshotImpl snapshot = read(container.getFile(), prefix, container.getFile(),
+                container.openStream(SnapshotContainer.MASTER_INDEX), container, listener);
+        snapshot.container = container;
+        return snapshot;
+    }
+
+    private static SnapshotImpl read(File file, String prefix, File indexFile, InputStream fis,
+                                     SnapshotContainer container, IProgressListener listener)
+            throws SnapshotException, IOException {
+        listener.beginTask(Messages.SnapshotImpl_ReopeningParsedHeapDumpFile, 9);
+
+        try {
             listener.worked(1);
+            MasterIndex index = MasterIndex.read(fis);
+
+//            Parser parser = ParserPlugin.getDefault().getParserRegistry().lookupParser(index.objectReaderUniqueIdentifier);
+//            if (parser == null)
+//                throw new IOException(Messages.SnapshotImpl_Error_ParserNotFound + index.objectReaderUniqueIdentifier);
+            listener.worked(5);
             if (listener.isCanceled())
                 throw new IProgressListener.OperationCanceledException();
 
-            HashMapIntObject<String> loaderLabels = (HashMapIntObject<String>) in.readObject();
-            BitField arrayObjects = (BitField) in.readObject();
-            listener.worked(3);
+            IObjectReader heapObjectReader = new HprofHeapObjectReader();
 
+            XSnapshotInfo snapshotInfo = index.snapshotInfo;
+            snapshotInfo.setProperty("$heapFormat", "hprof");
             snapshotInfo.setPrefix(prefix);
             // Allow a dump to be opened via the index file
             if (file.equals(indexFile)) {
@@ -101,23 +154,19 @@ public final class SnapshotImpl implements ISnapshot {
             }
 
             IndexManager indexManager = new IndexManager();
-            indexManager.init(prefix);
+            if (container != null) {
+                snapshotInfo.setProperty(SnapshotContainer.PROPERTY, container.getFile().getAbsolutePath());
+                indexManager.init(container);
+            } else {
+                indexManager.init(prefix);
+            }
 
-            SnapshotImpl ret = new SnapshotImpl(snapshotInfo, heapObjectReader, classCache, roots, rootsPerThread, loaderLabels,
-                    arrayObjects, indexManager);
+            SnapshotImpl ret = new SnapshotImpl(snapshotInfo, heapObjectReader, index.classCache, index.roots,
+                    index.rootsPerThread, index.loaderLabels, index.arrayObjects, indexManager);
             listener.worked(3);
             return ret;
-        } catch (ClassNotFoundException e) {
-            IOException ioe = new IOException(e.getMessage());
-            ioe.initCause(e);
-            throw ioe;
-        } catch (ClassCastException e) {
-            IOException ioe = new IOException(e.getMessage());
-            ioe.initCause(e);
-            throw ioe;
         } finally {
-            if (fis != null)
-                fis.close();
+            fis.close();
             listener.done();
         }
     }
@@ -136,35 +185,18 @@ public final class SnapshotImpl implements ISnapshot {
 
         answer.calculateLoaderLabels();
 
-        FileOutputStream fos = null;
-        ObjectOutputStream out = null;
-
-        try {
-            fos = new FileOutputStream(snapshotInfo.getPrefix() + "index");
-            out = new ObjectOutputStream(new BufferedOutputStream(fos));
-            out.writeUTF(VERSION);
-            out.writeUTF(objectReaderUniqueIdentifier);
-            out.writeObject(answer.snapshotInfo);
-            out.writeObject(answer.classCache);
-
-            if (listener.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
-
-            out.writeObject(answer.roots);
-            out.writeObject(answer.rootsPerThread);
-
-            if (listener.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
-
-            out.writeObject(answer.loaderLabels);
-            out.writeObject(answer.arrayObjects);
-        } finally {
-            if (out != null)
-                out.close();
+        if (listener.isCanceled())
+            throw new IProgressListener.OperationCanceledException();
 
-            if (fos != null)
-                fos.close();
-        }
+        MasterIndex index = new MasterIndex();
+        index.objectReaderUniqueIdentifier = objectReaderUniqueIdentifier;
+        index.snapshotInfo = answer.snapshotInfo;
+        index.classCache = answer.classCache;
+        index.roots = answer.roots;
+        index.rootsPerThread = answer.rootsPerThread;
+        index.loaderLabels = answer.loaderLabels;
+        index.arrayObjects = answer.arrayObjects;
+        index.write(new File(snapshotInfo.getPrefix() + "index"));
 
         return answer;
     }
@@ -187,10 +219,18 @@ public final class SnapshotImpl implements ISnapshot {
 
     // runtime data
     private IObjectReader heapObjectReader;
-    private boolean dominatorTreeCalculated;
+    private volatile boolean dominatorTreeCalculated;
+    private FutureTask<Void> dominatorTreeTask;
+    private BackgroundListener dominatorTreeTaskListener;
+    private Thread dominatorTreeThread;
     private Map<String, List<IClass>> classCacheByName;
     private ObjectCache<IObject> objectCache;
 
+    private SnapshotContainer container;
+
+    private final List<MarkingWorkspace> idleWorkspaces = new ArrayList<MarkingWorkspace>();
+    private final List<BitField> idleMarks = new ArrayList<BitField>();
+
     private boolean parsedThreads = false;
     HashMapIntObject<IThreadStack> threadId2stack;
 
@@ -235,7 +275,7 @@ public final class SnapshotImpl implements ISnapshot {
         this.dominatorTreeCalculated = indexManager.dominated() != null && indexManager.o2retained() != null
                 && indexManager.dominator() != null;
 
-        this.objectCache = new HeapObjectCache(this, 1000);
+        this.objectCache = new HeapObjectCache(this, getObjectCacheSize());
 
         this.heapObjectReader.open(this);
 
@@ -244,32 +284,35 @@ public final class SnapshotImpl implements ISnapshot {
             ((UnreachableObjectsHistogram) unreach).setSnapshot(this);
     }
 
+    /**
+     * The number of heap objects kept in memory, can be changed with the
+     * system property MAT_OBJECT_CACHE_SIZE.
+     */
+    private static int getObjectCacheSize() {
+        Integer size = Integer.getInteger("MAT_OBJECT_CACHE_SIZE"); //$NON-NLS-1$
+        return size != null && size.intValue() > 0 ? size.intValue() : DEFAULT_OBJECT_CACHE_SIZE;
+    }
+
     private void calculateLoaderLabels() throws SnapshotException {
         loaderLabels = new HashMapIntObject<String>();
         long usedHeapSize = 0;
 
-        int systemClassLoaderId = indexManager.o2address().reverse(0);
+        final int systemClassLoaderId = indexManager.o2address().reverse(0);
 
+        // first collect all class loaders, so that they are read as class
+        // loaders: the object cache uses the loader labels to determine the
+        // implementation class
+        ArrayInt loaderIds = new ArrayInt();
         Object[] classes = classCache.getAllValues();
         for (int i = 0; i < classes.length; i++) {
             ClassImpl clasz = (ClassImpl) classes[i];
             usedHeapSize += clasz.getTotalSize();
 
             int classLoaderId = clasz.getClassLoaderId();
-            String label = loaderLabels.get(classLoaderId);
-            if (label != null)
-                continue;
-
-            if (classLoaderId == systemClassLoaderId) {
-                label = "<system class loader>";
-            } else {
-                IObject classLoader = getObject(classLoaderId);
-                label = classLoader.getClassSpecificName();
-                if (label == null)
-                    label = ClassLoaderImpl.NO_LABEL;
+            if (!loaderLabels.containsKey(classLoaderId)) {
+                loaderLabels.put(classLoaderId, ClassLoaderImpl.NO_LABEL);
+                loaderIds.add(classLoaderId);
             }
-
-            loaderLabels.put(classLoaderId, label);
         }
 
         // now, let's go through all instances of all sub classes to attach
@@ -278,23 +321,40 @@ public final class SnapshotImpl implements ISnapshot {
         if (loaderClasses != null) {
             for (IClass clazz : loaderClasses) {
                 for (int classLoaderId : clazz.getObjectIds()) {
-                    String label = loaderLabels.get(classLoaderId);
-                    if (label != null)
-                        continue;
+                    if (!loaderLabels.containsKey(classLoaderId)) {
+                        loaderLabels.put(classLoaderId, ClassLoaderImpl.NO_LABEL);
+                        loaderIds.add(classLoaderId);
+                    }
+                }
+            }
+        }
 
-                    if (classLoaderId == systemClassLoaderId) {
-                        label = "<system class loader>";
+        // class loaders read before are cached with the wrong implementation
+        // class, drop just those
+        final int[] ids = loaderIds.toArray();
+        for (int classLoaderId : ids)
+            objectCache.remove(classLoaderId);
+
+        // resolving a label reads the class loader and often some of the
+        // objects it references, do it in parallel. The map of labels is
+        // not changed structurally while the workers run.
+        final String[] labels = new String[ids.length];
+        ParallelRanges.run(LABEL_THREAD_NAME, 0, ids.length, MIN_LABEL_CHUNK_SIZE, new ParallelRanges.Task<Void>() {
+            public Void process(int from, int to) throws Exception {
+                for (int ii = from; ii < to; ii++) {
+                    if (ids[ii] == systemClassLoaderId) {
+                        labels[ii] = "<system class loader>";
                     } else {
-                        IObject classLoader = getObject(classLoaderId);
-                        label = classLoader.getClassSpecificName();
-                        if (label == null)
-                            label = ClassLoaderImpl.NO_LABEL;
+                        String label = ClassSpecificNameResolverRegistry.resolve(getObject(ids[ii]));
+                        labels[ii] = label != null ? label : ClassLoaderImpl.NO_LABEL;
                     }
-
-                    loaderLabels.put(classLoaderId, label);
                 }
+                return null;
             }
-        }
+        });
+
+        for (int ii = 0; ii < ids.length; ii++)
+            loaderLabels.put(ids[ii], labels[ii]);
 
         snapshotInfo.setUsedHeapSize(usedHeapSize);
         // numberOfObjects was previously calculated by summing getNumberOfObjects() for
@@ -303,13 +363,6 @@ public final class SnapshotImpl implements ISnapshot {
         snapshotInfo.setNumberOfClassLoaders(loaderLabels.size());
         snapshotInfo.setNumberOfGCRoots(roots.size());
         snapshotInfo.setNumberOfClasses(classCache.size());
-
-        // important: refresh object cache. To calculate the loader labels, the
-        // class loader instances are loaded. however, the object cache uses the
-        // loader label to determine the implementation class. hence, cached
-        // instances from creating the labels have the wrong implementation
-        // class. hence, the refresh.
-        objectCache.clear();
     }
 
     // //////////////////////////////////////////////////////////////
@@ -379,30 +432,54 @@ public final class SnapshotImpl implements ISnapshot {
     }
 
     public Histogram getHistogram(int[] objectIds, IProgressListener progressMonitor) throws SnapshotException {
+        return getHistogram(objectIds, true, progressMonitor);
+    }
+
+    public Histogram getHistogram(final int[] objectIds, final boolean keepObjectIds,
+                                  IProgressListener progressMonitor) throws SnapshotException {
         if (progressMonitor == null)
             progressMonitor = new VoidProgressListener();
+        final IProgressListener listener = progressMonitor;
 
-        HistogramBuilder histogramBuilder = new HistogramBuilder(Messages.SnapshotImpl_Histogram);
+        final HistogramBuilder histogramBuilder = new HistogramBuilder(Messages.SnapshotImpl_Histogram);
 
         progressMonitor.beginTask(Messages.SnapshotImpl_BuildingHistogram, objectIds.length >>> 8);
 
-        // Arrays.sort(objectIds);
-        // int[] classIds = indexManager.o2class().getAll(objectIds);
-
-        IOne2OneIndex o2class = indexManager.o2class();
-
-        int classId;
-
-        for (int ii = 0; ii < objectIds.length; ii++) {
-            classId = o2class.get(objectIds[ii]);
-
-            histogramBuilder.add(classId, objectIds[ii], getHeapSize(objectIds[ii]));
+        final IOne2OneIndex o2class = indexManager.o2class();
 
-            if ((ii & 0xff) == 0) {
-                if (progressMonitor.isCanceled())
-                    return null;
-                progressMonitor.worked(1);
-            }
+        // each chunk gets its own builder, the builders are merged in the
+        // order of the chunks so the object ids per class keep their order
+        try {
+            ParallelRanges.run(HISTOGRAM_THREAD_NAME, 0, objectIds.length, MIN_HISTOGRAM_CHUNK_SIZE,
+                    new ParallelRanges.Task<HistogramBuilder>() {
+                        public HistogramBuilder process(int from, int to) throws Exception {
+                            int[] ids = new int[to - from];
+                            System.arraycopy(objectIds, from, ids, 0, ids.length);
+                            int[] classIds = o2class.getAll(ids);
+
+                            HistogramBuilder builder = new HistogramBuilder(null);
+                            for (int ii = 0; ii < ids.length; ii++) {
+                                long heapSize = getHeapSize(ids[ii], classIds[ii]);
+
+                                if (keepObjectIds)
+                                    builder.add(classIds[ii], ids[ii], heapSize);
+                                else
+                                    builder.add(classIds[ii], heapSize);
+
+                                if ((ii & 0xfff) == 0 && listener.isCanceled())
+                                    throw new IProgressListener.OperationCanceledException();
+                            }
+                            return builder;
+                        }
+                    }, new ParallelRanges.Consumer<HistogramBuilder>() {
+                        public void consume(int from, int to, HistogramBuilder builder) {
+                            histogramBuilder.addAll(builder);
+                            listener.worked((to >>> 8) - (from >>> 8));
+                        }
+                    });
+        } catch (OperationCanceledException e) {
+            // $JL-EXC$
+            return null;
         }
 
         progressMonitor.done();
@@ -505,54 +582,57 @@ public final class SnapshotImpl implements ISnapshot {
         if (progressMonitor == null)
             progressMonitor = new VoidProgressListener();
 
-        /* a bit field to mark all reached objects */
-        boolean[] reachable = new boolean[numberOfObjects];
-
-        /*
-         * Initially mark all the objects whose retained set is to be calculated
-         * Thus the dfs will not go through this objects, and all objects
-         * retained from them will stay unmarked (the bits will be clear)
-         */
-        for (int objId : objectIds) {
-            reachable[objId] = true;
-        }
-
-        /*
-         * The dfs() will start from the GC roots, follow the outbound
-         * references, and mark all unmarked objects. The retained set will
-         * contain the unmarked objects
-         */
-        ObjectMarker marker = new ObjectMarker(roots.getAllKeys(), reachable, indexManager.outbound(),
-                IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
-                progressMonitor);
-        int numReached;
+        /* a workspace to mark all reached objects */
+        MarkingWorkspace reachable = acquireWorkspace();
         try {
-            numReached = marker.markSingleThreaded();
-        } catch (OperationCanceledException e) {
-            // $JL-EXC$
-            return null;
-        }
+            /*
+             * Initially mark all the objects whose retained set is to be
+             * calculated Thus the dfs will not go through this objects, and all
+             * objects retained from them will stay unmarked (the bits will be
+             * clear)
+             */
+            for (int objId : objectIds) {
+                reachable.mark(objId);
+            }
 
-        // int numReached = dfs(reachable);
-        int[] retained = new int[numberOfObjects - numReached];
+            /*
+             * The dfs() will start from the GC roots, follow the outbound
+             * references, and mark all unmarked objects. The retained set will
+             * contain the unmarked objects
+             */
+            ObjectMarker marker = new ObjectMarker(roots.getAllKeys(), reachable, indexManager.outbound(),
+                    IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
+                    progressMonitor);
+            int numReached;
+            try {
+                numReached = marker.markSingleThreaded();
+            } catch (OperationCanceledException e) {
+                // $JL-EXC$
+                return null;
+            }
 
-        /*
-         * Unmark also the initial objects, as we want them to be included in
-         * the retained set
-         */
-        for (int objId : objectIds) {
-            reachable[objId] = false;
-        }
+            // int numReached = dfs(reachable);
+            int[] retained = new int[numberOfObjects - numReached];
 
-        /* Put each unmarked bit into the retained set */
-        int j = 0;
-        for (int i = 0; i < numberOfObjects; i++) {
-            if (!reachable[i]) {
-                retained[j++] = i;
+            /*
+             * Unmark also the initial objects, as we want them to be included
+             * in the retained set
+             */
+            for (int objId : objectIds) {
+                reachable.unmark(objId);
             }
-        }
-        return retained;
 
+            /* Put each unmarked bit into the retained set */
+            int j = 0;
+            for (int i = 0; i < numberOfObjects; i++) {
+                if (!reachable.isMarked(i)) {
+                    retained[j++] = i;
+                }
+            }
+            return retained;
+        } finally {
+            releaseWorkspace(reachable);
+        }
     }
 
     private int[] getRetainedSetMultiThreaded(int[] objectIds, int availableProcessors,
@@ -575,58 +655,302 @@ public final class SnapshotImpl implements ISnapshot {
         if (progressMonitor == null)
             progressMonitor = new VoidProgressListener();
 
-        /* a boolean[] to mark all reached objects */
-        boolean[] reachable = new boolean[numberOfObjects];
+        /* a workspace to mark all reached objects */
+        MarkingWorkspace reachable = acquireWorkspace();
+        try {
+            /*
+             * Initially mark all the objects whose retained set is to be
+             * calculated Thus the dfs will not go through this objects, and all
+             * objects retained from them will stay unmarked (the bits will be
+             * clear)
+             */
+            for (int objId : objectIds) {
+                reachable.mark(objId);
+            }
+
+            /*
+             * Mark all the GC roots, and keep them in a stack. The worker
+             * threads are going to pop() one by one the gc roots and do the
+             * marking from them
+             */
+            int[] gcRoots = roots.getAllKeys();
+            ObjectMarker marker = new ObjectMarker(gcRoots, reachable, indexManager.outbound(),
+                    IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
+                    progressMonitor);
+            try {
+                marker.markMultiThreaded(availableProcessors);
+            } catch (InterruptedException e) {
+                throw new SnapshotException(e);
+            }
+
+            /*
+             * Unmark also the initial objects, as we want them to be included
+             * in the retained set
+             */
+            for (int objId : objectIds) {
+                reachable.unmark(objId);
+            }
+
+            /*
+             * build the result in an IntArray - the exact number of marked is
+             * not known
+             */
+            ArrayIntBig retained = new ArrayIntBig();
+
+            /* Put each unmarked object into the retained set */
+            for (int i = 0; i < numberOfObjects; i++) {
+                if (!reachable.isMarked(i)) {
+                    retained.add(i);
+                }
+            }
+            return retained.toArray();
+        } finally {
+            releaseWorkspace(reachable);
+        }
+    }
+
+    /**
+     * Computes the retained set of several objects with the help of the
+     * dominator tree. The dominated subtrees of the top ancestors are retained
+     * for sure. Only the objects reachable from these subtrees are left
+     * undecided, and they are marked from their entry points - objects
+     * referenced from outside or known to be kept alive without the set.
+     * Everything outside the dominated subtree of the lowest common dominator
+     * of the top ancestors is kept alive without the set.
+     *
+     * @return the retained set in ascending order, as computed by marking, or
+     * null if the undecided objects exceed {@link #MAX_FRONTIER_SHARE} of the
+     * heap
+     */
+    private int[] getRetainedSetFromDominatorTree(int[] objectIds, IProgressListener progressMonitor)
+            throws SnapshotException {
+        int numberOfObjects = snapshotInfo.getNumberOfObjects();
+        int maxFrontier = numberOfObjects / MAX_FRONTIER_SHARE;
+
+        IIndexReader.IOne2OneIndex dominatorIdx = indexManager.dominator();
+        IIndexReader.IOne2ManyIndex dominated = indexManager.dominated();
+        IIndexReader.IOne2ManyIndex outbound = indexManager.outbound();
+        IIndexReader.IOne2ManyIndex inbound = indexManager.inbound();
 
         /*
-         * Initially mark all the objects whose retained set is to be calculated
-         * Thus the dfs will not go through this objects, and all objects
-         * retained from them will stay unmarked (the bits will be clear)
+         * the marks come from a pool and are returned without a sweep over
+         * the heap, each mark set is cleared again by id
          */
-        for (int objId : objectIds) {
-            reachable[objId] = true;
+
+        /* the dominated subtrees of the top ancestors are retained */
+        BitField retained = acquireMarks();
+        ArrayIntBig result = new ArrayIntBig();
+        IntStack stack = new IntStack();
+        ArrayInt distinct = new ArrayInt();
+        for (int topAncestorId : getTopAncestorsInDominatorTree(objectIds, progressMonitor)) {
+            // duplicate ids give the same top ancestor more than once
+            if (retained.get(topAncestorId))
+                continue;
+            distinct.add(topAncestorId);
+            stack.push(topAncestorId);
+            while (stack.size() > 0) {
+                int current = stack.pop();
+                retained.set(current);
+                result.add(current);
+                for (int i : dominated.get(current + 1))
+                    stack.push(i);
+            }
+        }
+        int[] topAncestors = distinct.toArray();
+
+        /* with one top ancestor everything retained is dominated by it */
+        if (topAncestors.length == 1) {
+            releaseMarks(retained, result);
+            return sorted(result);
         }
 
         /*
-         * Mark all the GC roots, and keep them in a stack. The worker threads
-         * are going to pop() one by one the gc roots and do the marking from
-         * them
+         * find the lowest common dominator of the top ancestors. onPath marks
+         * the path from the current common dominator up to the <root>, walked
+         * marks objects whose path has been walked already
          */
-        int[] gcRoots = roots.getAllKeys();
-        ObjectMarker marker = new ObjectMarker(gcRoots, reachable, indexManager.outbound(),
-                IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
-                progressMonitor);
-        try {
-            marker.markMultiThreaded(availableProcessors);
-        } catch (InterruptedException e) {
-            throw new SnapshotException(e);
+        BitField onPath = acquireMarks();
+        BitField walked = acquireMarks();
+        int commonDominator = topAncestors[0];
+        for (int d = commonDominator; d > -1; d = dominatorIdx.get(d) - 2)
+            onPath.set(d);
+
+        for (int ii = 1; ii < topAncestors.length && commonDominator > -1; ii++) {
+            int d = topAncestors[ii];
+            while (d > -1 && !onPath.get(d) && !walked.get(d)) {
+                walked.set(d);
+                d = dominatorIdx.get(d) - 2;
+            }
+            if (d > -1 && walked.get(d))
+                continue;
+
+            // move the common dominator up to the meeting point
+            while (commonDominator != d) {
+                onPath.clear(commonDominator);
+                commonDominator = dominatorIdx.get(commonDominator) - 2;
+            }
         }
 
         /*
-         * Unmark also the initial objects, as we want them to be included in
-         * the retained set
+         * what is left of the paths is cleared again, so the marks serve as
+         * the caches of objects inside and outside the dominated subtree of
+         * the common dominator
          */
-        for (int objId : objectIds) {
-            reachable[objId] = false;
+        for (int d = commonDominator; d > -1; d = dominatorIdx.get(d) - 2)
+            onPath.clear(d);
+        for (int topAncestorId : topAncestors) {
+            for (int d = topAncestorId; d > -1 && walked.get(d); d = dominatorIdx.get(d) - 2)
+                walked.clear(d);
+        }
+        BitField inside = onPath;
+        BitField outside = walked;
+        ArrayIntBig decided = new ArrayIntBig();
+        if (commonDominator > -1) {
+            inside.set(commonDominator);
+            decided.add(commonDominator);
         }
 
         /*
-         * build the result in an IntArray - the exact number of marked is not
-         * known
+         * collect the undecided objects reachable from the retained subtrees.
+         * Objects known to be alive are entry points and are not followed.
          */
-        ArrayIntBig retained = new ArrayIntBig();
+        BitField frontier = acquireMarks();
 
-        /* Put each unmarked object into the retained set */
-        for (int i = 0; i < numberOfObjects; i++) {
-            if (!reachable[i]) {
-                retained.add(i);
+        ArrayIntBig candidates = new ArrayIntBig();
+        IntStack entries = new IntStack();
+        int frontierSize = 0;
+
+        int retainedSize = result.length();
+        int retainedIndex = 0;
+        int iterations = 0;
+        while (retainedIndex < retainedSize || stack.size() > 0) {
+            int current = stack.size() > 0 ? stack.pop() : result.get(retainedIndex++);
+
+            if ((++iterations & 0xffff) == 0 && progressMonitor.isCanceled())
+                throw new IProgressListener.OperationCanceledException();
+
+            for (int next : outbound.get(current)) {
+                if (retained.get(next) || frontier.get(next))
+                    continue;
+                // the marks are left to the garbage collector, marking the
+                // heap instead costs far more
+                if (++frontierSize > maxFrontier)
+                    return null;
+                frontier.set(next);
+                candidates.add(next);
+
+                if (next == commonDominator || isGCRoot(next)
+                        || !isDominatedBy(next, commonDominator, dominatorIdx, inside, outside, decided))
+                    entries.push(next);
+                else
+                    stack.push(next);
+            }
+        }
+
+        /*
+         * objects referenced from outside the retained subtrees and the
+         * undecided objects are kept alive without the set
+         */
+        for (int ii = 0; ii < candidates.length(); ii++) {
+            int candidate = candidates.get(ii);
+
+            if ((++iterations & 0xffff) == 0 && progressMonitor.isCanceled())
+                throw new IProgressListener.OperationCanceledException();
+
+            for (int referrer : inbound.get(candidate)) {
+                if (!retained.get(referrer) && !frontier.get(referrer)) {
+                    entries.push(candidate);
+                    break;
+                }
+            }
+        }
+
+        /* mark from the entry points, the rest of the frontier is retained */
+        while (entries.size() > 0) {
+            int current = entries.pop();
+            if (!frontier.get(current))
+                continue;
+            frontier.clear(current);
+            for (int next : outbound.get(current)) {
+                if (frontier.get(next))
+                    entries.push(next);
+            }
+        }
+
+        for (int ii = 0; ii < candidates.length(); ii++) {
+            int candidate = candidates.get(ii);
+            if (frontier.get(candidate))
+                result.add(candidate);
+        }
+
+        releaseMarks(retained, result);
+        releaseMarks(frontier, candidates);
+        releaseMarks(inside, decided);
+        releaseMarks(outside, decided);
+        return sorted(result);
+    }
+
+    private static int[] sorted(ArrayIntBig ids) {
+        int[] answer = ids.toArray();
+        Arrays.sort(answer);
+        return answer;
+    }
+
+    /**
+     * Walks up the dominator tree. The caches remember objects inside and
+     * outside the dominated subtree of the dominator, the ids added to them
+     * are collected in decided.
+     */
+    private static boolean isDominatedBy(int objectId, int dominatorId, IIndexReader.IOne2OneIndex dominatorIdx,
+                                         BitField inside, BitField outside, ArrayIntBig decided) {
+        if (dominatorId < 0)
+            return true;
+
+        IntStack path = new IntStack();
+        boolean answer = false;
+        int d = objectId;
+        while (true) {
+            if (d < 0) {
+                answer = false;
+                break;
             }
+            if (inside.get(d)) {
+                answer = true;
+                break;
+            }
+            if (outside.get(d)) {
+                answer = false;
+                break;
+            }
+            path.push(d);
+            d = dominatorIdx.get(d) - 2;
         }
-        return retained.toArray();
 
+        while (path.size() > 0) {
+            int id = path.pop();
+            if (answer)
+                inside.set(id);
+            else
+                outside.set(id);
+            decided.add(id);
+        }
+        return answer;
     }
 
     public int[] getRetainedSet(int[] objectIds, IProgressListener progressMonitor) throws SnapshotException {
+        if (objectIds.length > 1 && isDominatorTreeCalculated()) {
+            if (progressMonitor == null)
+                progressMonitor = new VoidProgressListener();
+            try {
+                int[] retained = getRetainedSetFromDominatorTree(objectIds, progressMonitor);
+                if (retained != null)
+                    return retained;
+            } catch (OperationCanceledException e) {
+                // $JL-EXC$
+                return null;
+            }
+        }
+
         int availableProcessors = Runtime.getRuntime().availableProcessors();
         if (availableProcessors > 1) {
             return getRetainedSetMultiThreaded(objectIds, availableProcessors, progressMonitor);
@@ -675,43 +999,48 @@ public final class SnapshotImpl implements ISnapshot {
          * excludedReferences, until initial are reached. The non-marked objects
          * will be a common retained set from the excluded and initial objects
          */
-        boolean[] firstPass = new boolean[getSnapshotInfo().getNumberOfObjects()];
-        // mark all initial
-        for (int objId : objectIds) {
-            firstPass[objId] = true;
-        }
-        ObjectMarker marker = new ObjectMarker(getGCRoots(), firstPass, getIndexManager().outbound,
-                IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
-                new VoidProgressListener());
-        marker.markSingleThreaded(excludedReferences, this);
-
-        // un-mark initial - they have to go into the retained set
-        for (int objId : objectIds) {
-            firstPass[objId] = false;
-        }
+        MarkingWorkspace firstPass = acquireWorkspace();
+        MarkingWorkspace secondPass = acquireWorkspace();
+        try {
+            // mark all initial
+            for (int objId : objectIds) {
+                firstPass.mark(objId);
+            }
+            ObjectMarker marker = new ObjectMarker(getGCRoots(), firstPass, getIndexManager().outbound,
+                    IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
+                    new VoidProgressListener());
+            marker.markSingleThreaded(excludedReferences, this);
+
+            // un-mark initial - they have to go into the retained set
+            for (int objId : objectIds) {
+                firstPass.unmark(objId);
+            }
 
-        /*
-         * Second pass - from the non-marked objects mark the ones starting from
-         * the initial set (objectIds)
-         */
-        boolean[] secondPass = new boolean[firstPass.length];
-        System.arraycopy(firstPass, 0, secondPass, 0, firstPass.length);
+            /*
+             * Second pass - from the non-marked objects mark the ones starting
+             * from the initial set (objectIds)
+             */
+            secondPass.copyFrom(firstPass);
 
-        ObjectMarker secondMarker = new ObjectMarker(objectIds, secondPass, getIndexManager().outbound,
-                new VoidProgressListener());
-        secondMarker.markSingleThreaded();
+            ObjectMarker secondMarker = new ObjectMarker(objectIds, secondPass, getIndexManager().outbound,
+                    new VoidProgressListener());
+            secondMarker.markSingleThreaded();
 
-        /*
-         * Have to merge the results of the two markings here
-         */
-        int numObjects = getSnapshotInfo().getNumberOfObjects();
-        ArrayIntBig retainedSet = new ArrayIntBig();
-        for (int i = 0; i < numObjects; i++) {
-            if (!firstPass[i] && secondPass[i]) {
-                retainedSet.add(i);
+            /*
+             * Have to merge the results of the two markings here
+             */
+            int numObjects = getSnapshotInfo().getNumberOfObjects();
+            ArrayIntBig retainedSet = new ArrayIntBig();
+            for (int i = 0; i < numObjects; i++) {
+                if (!firstPass.isMarked(i) && secondPass.isMarked(i)) {
+                    retainedSet.add(i);
+                }
             }
+            return retainedSet.toArray();
+        } finally {
+            releaseWorkspace(secondPass);
+            releaseWorkspace(firstPass);
         }
-        return retainedSet.toArray();
     }
 
     public long getMinRetainedSize(int[] objectIds, IProgressListener progressMonitor)
@@ -735,11 +1064,141 @@ public final class SnapshotImpl implements ISnapshot {
         return result;
     }
 
+    public long[] getMinRetainedSizes(int[][] objectIds, IProgressListener progressMonitor)
+            throws SnapshotException {
+        if (progressMonitor == null)
+            progressMonitor = new VoidProgressListener();
+
+        final int numberOfSets = objectIds.length;
+        final long[] result = new long[numberOfSets];
+
+        long numberOfIds = 0;
+        for (int[] ids : objectIds)
+            numberOfIds += ids.length;
+
+        /* for a few objects walking up the dominator tree is cheaper */
+        if (numberOfIds * MIN_SWEEP_SHARE < snapshotInfo.getNumberOfObjects()) {
+            for (int ii = 0; ii < numberOfSets; ii++) {
+                if (progressMonitor.isCanceled())
+                    throw new IProgressListener.OperationCanceledException();
+                result[ii] = getMinRetainedSize(objectIds[ii], progressMonitor);
+            }
+            return result;
+        }
+
+        if (!isDominatorTreeCalculated())
+            throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
+
+        /*
+         * label every object with its set. Objects in more than one set keep
+         * the other sets in a separate map
+         */
+        final int[] labels = new int[snapshotInfo.getNumberOfObjects()];
+        Arrays.fill(labels, -1);
+        final HashMapIntObject<ArrayInt> moreLabels = new HashMapIntObject<ArrayInt>();
+        for (int ii = 0; ii < numberOfSets; ii++) {
+            for (int objectId : objectIds[ii]) {
+                int label = labels[objectId];
+                if (label == -1) {
+                    labels[objectId] = ii;
+                } else if (label != ii) {
+                    ArrayInt more = moreLabels.get(objectId);
+                    if (more == null)
+                        moreLabels.put(objectId, more = new ArrayInt(2));
+                    if (!containsLabel(more, ii))
+                        more.add(ii);
+                }
+            }
+        }
+
+        /*
+         * walk down the dominator tree. An object counts for its set if no
+         * object of the same set dominates it. The subtrees below the <root>
+         * are independent and are walked in parallel
+         */
+        final IIndexReader.IOne2ManyIndex dominated = indexManager.dominated();
+        final IIndexReader.IOne2LongIndex retainedSizes = indexManager.o2retained();
+        final int[] topObjects = dominated.get(0);
+        final IProgressListener listener = progressMonitor;
+
+        ParallelRanges.run(MIN_SWEEP_THREAD_NAME, 0, topObjects.length, MIN_SWEEP_CHUNK_SIZE,
+                new ParallelRanges.Task<long[]>() {
+                    public long[] process(int from, int to) {
+                        long[] sizes = new long[numberOfSets];
+                        int[] active = new int[numberOfSets];
+                        IntStack stack = new IntStack();
+
+                        for (int ii = from; ii < to; ii++) {
+                            if (listener.isCanceled())
+                                throw new IProgressListener.OperationCanceledException();
+
+                            stack.push(topObjects[ii]);
+                            while (stack.size() > 0) {
+                                int current = stack.pop();
+
+                                // leaving the subtree of a labeled object
+                                if (current < 0) {
+                                    current = -current - 1;
+                                    active[labels[current]]--;
+                                    ArrayInt more = moreLabels.get(current);
+                                    if (more != null) {
+                                        for (int jj = 0; jj < more.size(); jj++)
+                                            active[more.get(jj)]--;
+                                    }
+                                    continue;
+                                }
+
+                                int label = labels[current];
+                                if (label >= 0) {
+                                    long retainedSize = retainedSizes.get(current);
+                                    if (active[label]++ == 0)
+                                        sizes[label] += retainedSize;
+                                    ArrayInt more = moreLabels.get(current);
+                                    if (more != null) {
+                                        for (int jj = 0; jj < more.size(); jj++) {
+                                            if (active[more.get(jj)]++ == 0)
+                                                sizes[more.get(jj)] += retainedSize;
+                                        }
+                                    }
+                                    stack.push(-current - 1);
+                                }
+
+                                for (int child : dominated.get(current + 1))
+                                    stack.push(child);
+                            }
+                        }
+                        return sizes;
+                    }
+                }, new ParallelRanges.Consumer<long[]>() {
+                    public void consume(int from, int to, long[] part) {
+                        for (int ii = 0; ii < numberOfSets; ii++)
+                            result[ii] += part[ii];
+                    }
+                });
+
+        return result;
+    }
+
+    private static boolean containsLabel(ArrayInt labels, int label) {
+        for (int ii = 0; ii < labels.size(); ii++)
+            if (labels.get(ii) == label)
+                return true;
+        return false;
+    }
+
     public int[] getMinRetainedSet(int[] objectIds, IProgressListener progressMonitor)
             throws UnsupportedOperationException, SnapshotException {
         if (objectIds.length == 1) {
             return getSingleObjectRetainedSet(objectIds[0]);
         }
+        if (!isDominatorTreeCalculated())
+            throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
+
+        if (progressMonitor == null)
+            progressMonitor = new VoidProgressListener();
+
+        if (objectIds.length >= MIN_PARALLEL_ANCESTORS)
+            return getMinRetainedSetInParallel(objectIds, progressMonitor);
 
         SetInt retainedSet = new SetInt(2 * objectIds.length);
         for (int i : objectIds) {
@@ -857,131 +1316,37 @@ public final class SnapshotImpl implements ISnapshot {
 
     }
 
-    public int[] getTopAncestorsInDominatorTree(int[] objectIds, IProgressListener listener) throws SnapshotException {
-        // Used by the dominator_tree query to allow a missing dominator tree to be built
-        if (!isDominatorTreeCalculated() && listener != null && objectIds.length == 0)
-            calculateDominatorTree(listener);
-        if (!isDominatorTreeCalculated())
-            throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
-
-        if (listener == null)
-            listener = new VoidProgressListener();
-
-        /*
-         * For big objects sets use a boolean[] instead of SetInt to mark
-         * processed objects SetInt is too memory expensive and on huge sets may
-         * lead to an OOMError Using the boolean[] is also faster on bigger
-         * sets.
-         */
-        if (objectIds.length > 1000000)
-            return getTopAncestorsWithBooleanCache(objectIds, listener);
-
-        /*
-         * objects on the path from a top-ancestor to the <root> will be saved
-         * here to avoid walking the same path many times
-         */
-        SetInt negativeCache = new SetInt(objectIds.length);
-
-        /*
-         * objects on the path to a top-ancestor will be cached here, to avoid
-         * walking the same path multiple times.
-         */
-        SetInt positiveCache = new SetInt(2 * objectIds.length);
-        for (int i : objectIds) {
-            positiveCache.add(i);
-        }
-
-        /*
-         * an array where all top-ancestors will be saved
-         */
-        ArrayInt result = new ArrayInt();
-
-        // used to temporarily keep the walked-through objects before we decide
-        // in which cache to store them
-        // inline the stack functionality for performance reasons
-        // IntStack temp = new IntStack();
-        int tempSize = 0;
-        int tempCapacity = 10 * 1024;
-        int[] temp = new int[tempCapacity];
-
-        IIndexReader.IOne2OneIndex dominatorIdx = indexManager.dominator();
-
-        int iterations = 0;
-        for (int objectId : objectIds) {
-            iterations++;
-            if ((iterations & 0xffff) == 0) {
-                if (listener.isCanceled()) {
-                    throw new IProgressListener.OperationCanceledException();
-                }
-            }
-
-            int dominatorId = dominatorIdx.get(objectId) - 2;
-            boolean save = true;
-
-            /*
-             * For each object walk up the dominator tree until either the
-             * <root> is reached or an object which is already in the retained
-             * set
-             */
-            while (dominatorId > -1) {
-                // temp.push(dominatorId); // save all objects on the path
-                if (tempSize == tempCapacity) {
-                    int newCapacity = tempCapacity << 1;
-                    int[] newArr = new int[newCapacity];
-                    System.arraycopy(temp, 0, newArr, 0, tempCapacity);
-                    temp = newArr;
-                    tempCapacity = newCapacity;
-
-                }
-                temp[tempSize++] = dominatorId;
-
-                // check if the dominator is in the positive cache (i.e. there
-                // is another object from the initial set dominating it)
-                if (positiveCache.contains(dominatorId)) {
-                    save = false;
-                    // add the marked objects to the positiveCache
-                    while (tempSize > 0) {
-                        // positiveCahce.add(temp.pop());
-                        positiveCache.add(temp[--tempSize]); // pop
-                    }
-                    break;
-                }
-
-                // check if the dominator is in the negative cache - i.e. there
-                // are no objects from the initial set on the way to the <root>
-                if (negativeCache.contains(dominatorId)) {
-                    // save is true, so simply break and let the result be saved
-                    break;
-                }
-                dominatorId = dominatorIdx.get(dominatorId) - 2;
-            }
-            if (save) {
-                result.add(objectId);
-                while (tempSize > 0) {
-                    // negativeCache.add(temp.pop());
-                    negativeCache.add(temp[--tempSize]); // pop
-                }
-            }
-        }
-
-        return result.toArray();
-
-    }
-
-    private int[] getTopAncestorsWithBooleanCache(int[] objectIds, IProgressListener listener) {
+    public int[] getTopAncestorsInDominatorTree(int[] objectIds, IProgressListener listener) throws SnapshotException {
+        // Used by the dominator_tree query to allow a missing dominator tree to be built
+        if (!isDominatorTreeCalculated() && listener != null && objectIds.length == 0)
+            calculateDominatorTree(listener);
+        if (!isDominatorTreeCalculated())
+            throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
+
+        if (listener == null)
+            listener = new VoidProgressListener();
+
+        /*
+         * For big objects sets climb on several threads with bit fields
+         * instead of SetInt to mark processed objects. SetInt is too memory
+         * expensive and on huge sets may lead to an OOMError.
+         */
+        if (objectIds.length >= MIN_PARALLEL_ANCESTORS)
+            return getTopAncestorsInParallel(objectIds, listener);
+
         /*
          * objects on the path from a top-ancestor to the <root> will be saved
          * here to avoid walking the same path many times
          */
-        boolean[] negativeCache = new boolean[snapshotInfo.getNumberOfObjects()];
+        SetInt negativeCache = new SetInt(objectIds.length);
 
         /*
          * objects on the path to a top-ancestor will be cached here, to avoid
          * walking the same path multiple times.
          */
-        boolean[] positiveCache = new boolean[snapshotInfo.getNumberOfObjects()];
+        SetInt positiveCache = new SetInt(2 * objectIds.length);
         for (int i : objectIds) {
-            positiveCache[i] = true;
+            positiveCache.add(i);
         }
 
         /*
@@ -1030,19 +1395,19 @@ public final class SnapshotImpl implements ISnapshot {
 
                 // check if the dominator is in the positive cache (i.e. there
                 // is another object from the initial set dominating it)
-                if (positiveCache[dominatorId]) {
+                if (positiveCache.contains(dominatorId)) {
                     save = false;
                     // add the marked objects to the positiveCache
                     while (tempSize > 0) {
                         // positiveCahce.add(temp.pop());
-                        positiveCache[temp[--tempSize]] = true; // pop
+                        positiveCache.add(temp[--tempSize]); // pop
                     }
                     break;
                 }
 
                 // check if the dominator is in the negative cache - i.e. there
                 // are no objects from the initial set on the way to the <root>
-                if (negativeCache[dominatorId]) {
+                if (negativeCache.contains(dominatorId)) {
                     // save is true, so simply break and let the result be saved
                     break;
                 }
@@ -1052,7 +1417,7 @@ public final class SnapshotImpl implements ISnapshot {
                 result.add(objectId);
                 while (tempSize > 0) {
                     // negativeCache.add(temp.pop());
-                    negativeCache[temp[--tempSize]] = true; // pop
+                    negativeCache.add(temp[--tempSize]); // pop
                 }
             }
         }
@@ -1061,12 +1426,262 @@ public final class SnapshotImpl implements ISnapshot {
 
     }
 
-    private boolean isDominatorTreeCalculated() {
+    /**
+     * Climbs the dominator tree for the objects on several threads. The
+     * caches are shared by all threads.
+     */
+    private int[] getTopAncestorsInParallel(final int[] objectIds, final IProgressListener listener)
+            throws SnapshotException {
+        int numberOfObjects = snapshotInfo.getNumberOfObjects();
+
+        /*
+         * objects on the path to a top-ancestor, including the objects
+         * themselves
+         */
+        final ConcurrentBitField positiveCache = new ConcurrentBitField(numberOfObjects);
+        for (int i : objectIds)
+            positiveCache.set(i);
+
+        /* objects on the path from a top-ancestor to the <root> */
+        final ConcurrentBitField negativeCache = new ConcurrentBitField(numberOfObjects);
+
+        final IIndexReader.IOne2OneIndex dominatorIdx = indexManager.dominator();
+        final ArrayIntBig result = new ArrayIntBig();
+
+        ParallelRanges.run(ANCESTOR_THREAD_NAME, 0, objectIds.length, MIN_ANCESTOR_CHUNK_SIZE,
+                new ParallelRanges.Task<int[]>() {
+                    public int[] process(int from, int to) {
+                        ArrayInt part = new ArrayInt();
+                        IntStack path = new IntStack();
+
+                        for (int ii = from; ii < to; ii++) {
+                            if (((ii - from) & 0xffff) == 0 && listener.isCanceled())
+                                throw new IProgressListener.OperationCanceledException();
+
+                            int objectId = objectIds[ii];
+                            int dominatorId = dominatorIdx.get(objectId) - 2;
+                            boolean save = true;
+
+                            while (dominatorId > -1) {
+                                if (positiveCache.get(dominatorId)) {
+                                    save = false;
+                                    break;
+                                }
+                                if (negativeCache.get(dominatorId))
+                                    break;
+                                path.push(dominatorId);
+                                dominatorId = dominatorIdx.get(dominatorId) - 2;
+                            }
+
+                            ConcurrentBitField cache = save ? negativeCache : positiveCache;
+                            while (path.size() > 0)
+                                cache.set(path.pop());
+
+                            if (save)
+                                part.add(objectId);
+                        }
+                        return part.toArray();
+                    }
+                }, new ParallelRanges.Consumer<int[]>() {
+                    public void consume(int from, int to, int[] part) {
+                        result.addAll(part);
+                    }
+                });
+
+        return result.toArray();
+    }
+
+    /**
+     * Collects the dominated subtrees of the top ancestors on several
+     * threads.
+     */
+    private int[] getMinRetainedSetInParallel(int[] objectIds, final IProgressListener listener)
+            throws SnapshotException {
+        int[] ancestors = getTopAncestorsInParallel(objectIds, listener);
+
+        // the same object may be given more than once
+        Arrays.sort(ancestors);
+        int length = 0;
+        for (int ii = 0; ii < ancestors.length; ii++) {
+            if (ii == 0 || ancestors[ii] != ancestors[ii - 1])
+                ancestors[length++] = ancestors[ii];
+        }
+        final int[] topAncestors = new int[length];
+        System.arraycopy(ancestors, 0, topAncestors, 0, length);
+
+        final IIndexReader.IOne2ManyIndex dominated = indexManager.dominated();
+        final ArrayIntBig result = new ArrayIntBig();
+
+        ParallelRanges.run(ANCESTOR_THREAD_NAME, 0, topAncestors.length, MIN_SUBTREE_CHUNK_SIZE,
+                new ParallelRanges.Task<int[]>() {
+                    public int[] process(int from, int to) {
+                        ArrayIntBig part = new ArrayIntBig();
+                        IntStack stack = new IntStack();
+
+                        for (int ii = from; ii < to; ii++) {
+                            if (listener.isCanceled())
+                                throw new IProgressListener.OperationCanceledException();
+
+                            stack.push(topAncestors[ii]);
+                            while (stack.size() > 0) {
+                                int current = stack.pop();
+                                part.add(current);
+                                for (int child : dominated.get(current + 1))
+                                    stack.push(child);
+                            }
+                        }
+                        return part.toArray();
+                    }
+                }, new ParallelRanges.Consumer<int[]>() {
+                    public void consume(int from, int to, int[] part) {
+                        result.addAll(part);
+                    }
+                });
+
+        return result.toArray();
+    }
+
+
+    /**
+     * Waits for a dominator tree which is calculated in the background.
+     */
+    private boolean isDominatorTreeCalculated() throws SnapshotException {
+        Future<Void> task;
+        synchronized (this) {
+            task = dominatorTreeTask;
+        }
+        if (task != null && !dominatorTreeCalculated) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                throw new SnapshotException(e);
+            } catch (CancellationException e) {
+                // the calculation may still be running until it sees the cancel
+                awaitDominatorTreeThread();
+                throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable, e);
+            } catch (ExecutionException e) {
+                throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable, e.getCause());
+            }
+        }
         return dominatorTreeCalculated;
     }
 
+    private void awaitDominatorTreeThread() throws SnapshotException {
+        Thread thread;
+        synchronized (this) {
+            thread = dominatorTreeThread;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new SnapshotException(e);
+        }
+    }
+
+    /**
+     * Calculates the dominator tree on a background thread. Until it is done,
+     * all methods needing the dominator tree, including
+     * {@link #getRetainedHeapSize(int)}, wait for it.
+     * <p/>
+     * Cancelling the returned task, or the listener, stops the calculation.
+     * The thread is not interrupted, as an interrupt would close the channels
+     * of the index files shared with other threads.
+     *
+     * @param listener gets the progress of the calculation on the background
+     *                 thread
+     * @return the running calculation, which fails with the cause if the
+     * dominator tree could not be calculated
+     */
+    public synchronized Future<Void> calculateDominatorTreeInBackground(IProgressListener listener) {
+        if (dominatorTreeTask == null) {
+            final BackgroundListener backgroundListener = new BackgroundListener(listener);
+            dominatorTreeTaskListener = backgroundListener;
+            dominatorTreeTask = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    doCalculateDominatorTree(backgroundListener);
+                    return null;
+                }
+            }) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    backgroundListener.setCanceled(true);
+                    return super.cancel(false);
+                }
+            };
+
+            dominatorTreeThread = new Thread(dominatorTreeTask, "DominatorTreeThread"); //$NON-NLS-1$
+            dominatorTreeThread.setDaemon(true);
+            dominatorTreeThread.start();
+        }
+        return dominatorTreeTask;
+    }
+
+    /**
+     * Passes the progress of the background calculation on. It is canceled
+     * by the delegate, or by the task and {@link SnapshotImpl#dispose()}
+     * without canceling the delegate.
+     */
+    private static final class BackgroundListener implements IProgressListener {
+        private final IProgressListener delegate;
+        private volatile boolean canceled;
+
+        BackgroundListener(IProgressListener delegate) {
+            this.delegate = delegate;
+        }
+
+        public void beginTask(String name, int totalWork) {
+            delegate.beginTask(name, totalWork);
+        }
+
+        public void done() {
+            delegate.done();
+        }
+
+        public boolean isCanceled() {
+            return canceled || delegate.isCanceled();
+        }
+
+        public void setCanceled(boolean value) {
+            canceled = value;
+        }
+
+        public void subTask(String name) {
+            delegate.subTask(name);
+        }
+
+        public void worked(int work) {
+            delegate.worked(work);
+        }
+
+        public void sendUserMessage(Severity severity, String message, Throwable exception) {
+            delegate.sendUserMessage(severity, message, exception);
+        }
+    }
+
+    /**
+     * @return the calculation started by {@link #calculateDominatorTreeInBackground(IProgressListener)}
+     * or null
+     */
+    public synchronized Future<Void> getDominatorTreeTask() {
+        return dominatorTreeTask;
+    }
+
     public void calculateDominatorTree(IProgressListener listener) throws SnapshotException,
             IProgressListener.OperationCanceledException {
+        if (getDominatorTreeTask() != null) {
+            try {
+                // do not calculate twice if the background calculation succeeds
+                if (isDominatorTreeCalculated())
+                    return;
+            } catch (SnapshotException ignore) {
+                // $JL-EXC$ try again
+            }
+        }
+        doCalculateDominatorTree(listener);
+    }
+
+    private void doCalculateDominatorTree(IProgressListener listener) throws SnapshotException,
+            IProgressListener.OperationCanceledException {
         try {
             DominatorTree.calculate(this, listener);
             dominatorTreeCalculated = indexManager.dominated() != null && indexManager.o2retained() != null
@@ -1076,6 +1691,20 @@ public final class SnapshotImpl implements ISnapshot {
         }
     }
 
+    /**
+     * Calculates the parents on the shortest paths from the GC roots, so that
+     * {@link #getPathsFromGCRoots(int, Map)} finds the first path without a
+     * search. The index is kept with the other indices of the snapshot.
+     */
+    public void calculatePathsFromGCRootsIndex(IProgressListener listener) throws SnapshotException,
+            IProgressListener.OperationCanceledException {
+        try {
+            PathsFromGCRootsIndex.calculate(this, listener);
+        } catch (IOException e) {
+            throw new SnapshotException(e);
+        }
+    }
+
     public int[] getImmediateDominatedIds(int objectId) throws SnapshotException {
         if (!isDominatorTreeCalculated())
             throw new SnapshotException(Messages.SnapshotImpl_Error_DomTreeNotAvailable);
@@ -1198,6 +1827,295 @@ public final class SnapshotImpl implements ISnapshot {
         return this.objectCache.get(objectId);
     }
 
+    public IObject[] getObjects(int[] objectIds, IProgressListener progressListener) throws SnapshotException {
+        final IObject[] answer = new IObject[objectIds.length];
+        boolean completed = readObjects(objectIds, new IObjectVisitor() {
+            public void visit(int index, IObject object) {
+                answer[index] = object;
+            }
+        }, progressListener);
+        return completed ? answer : null;
+    }
+
+    public void getObjects(int[] objectIds, IObjectVisitor visitor, IProgressListener progressListener)
+            throws SnapshotException {
+        readObjects(objectIds, visitor, progressListener);
+    }
+
+    /**
+     * Reads the objects in file order: chunks of the sorted ids are read in
+     * parallel, the visitor gets the chunks in order on the calling thread.
+     * The chunks are read window by window, so at most
+     * {@link #MAX_READER_WINDOW_SIZE} objects are read ahead of the visitor.
+     * Objects not in the object cache are not put into it.
+     *
+     * @return false if cancelled
+     */
+    private boolean readObjects(final int[] objectIds, final IObjectVisitor visitor,
+                                IProgressListener progressListener) throws SnapshotException {
+        if (progressListener == null)
+            progressListener = new VoidProgressListener();
+        final IProgressListener listener = progressListener;
+
+        final int[] order;
+        try {
+            order = objectIds.length > 0 ? heapObjectReader.getReadingOrder(objectIds) : objectIds;
+        } catch (IOException e) {
+            throw new SnapshotException(e);
+        }
+
+        ParallelRanges.Task<IObject[]> task = new ParallelRanges.Task<IObject[]>() {
+            public IObject[] process(int from, int to) throws Exception {
+                IObject[] objects = new IObject[to - from];
+                for (int ii = from; ii < to; ii++) {
+                    if ((ii & 0xff) == 0 && listener.isCanceled())
+                        throw new OperationCanceledException();
+
+                    int objectId = objectIds[order[ii]];
+                    IObject object = classCache.get(objectId);
+                    if (object == null)
+                        object = objectCache.getWithoutCaching(objectId);
+                    // read the fields now, while the position in the file is near
+                    if (object instanceof IInstance)
+                        ((IInstance) object).getFields();
+                    objects[ii - from] = object;
+                }
+                return objects;
+            }
+        };
+        ParallelRanges.Consumer<IObject[]> consumer = new ParallelRanges.Consumer<IObject[]>() {
+            public void consume(int from, int to, IObject[] objects) throws Exception {
+                if (listener.isCanceled())
+                    throw new OperationCanceledException();
+                for (int ii = 0; ii < objects.length; ii++)
+                    visitor.visit(order[from + ii], objects[ii]);
+                listener.worked(to - from);
+            }
+        };
+
+        listener.beginTask(Messages.SnapshotImpl_ReadingObjects, objectIds.length);
+        ExecutorService executor = ParallelRanges.newExecutor(READER_THREAD_NAME);
+        try {
+            for (int start = 0; start < order.length; start += MAX_READER_WINDOW_SIZE) {
+                ParallelRanges.run(executor, start, Math.min(order.length, start + MAX_READER_WINDOW_SIZE),
+                        MIN_READER_CHUNK_SIZE, task, consumer);
+            }
+        } catch (OperationCanceledException e) {
+            // $JL-EXC$
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        listener.done();
+        return true;
+    }
+
+    public FieldRef getFieldRef(IClass clazz, String fieldName) throws SnapshotException {
+        int idSize = snapshotInfo.getIdentifierSize();
+        FieldRef answer = null;
+        int offset = 0;
+        // the values are stored from the class up to java.lang.Object
+        for (IClass c = clazz; c != null; c = c.getSuperClass()) {
+            for (FieldDescriptor field : c.getFieldDescriptors()) {
+                if (field.getName().equals(fieldName))
+                    answer = new FieldRef(clazz.getObjectId(), fieldName, field.getType(), offset);
+                offset += field.getType() == IObject.Type.OBJECT ? idSize
+                        : IPrimitiveArray.ELEMENT_SIZE[field.getType()];
+            }
+        }
+        return answer;
+    }
+
+    public Object readField(int objectId, String fieldName) throws SnapshotException {
+        if (isArray(objectId) || isClass(objectId))
+            return null;
+        FieldRef field = getFieldRef(getClassOf(objectId), fieldName);
+        return field != null ? readField(objectId, field) : null;
+    }
+
+    public Object readField(int objectId, FieldRef field) throws SnapshotException {
+        if (isArray(objectId) || isClass(objectId))
+            return null;
+        field = resolveFieldRef(objectId, field);
+        if (field == null)
+            return null;
+
+        long value = readFieldValue(objectId, field);
+        switch (field.getType()) {
+            case IObject.Type.OBJECT:
+                return value == 0 ? null : new ObjectReference(this, value);
+            case IObject.Type.BOOLEAN:
+                return value != 0;
+            case IObject.Type.CHAR:
+                return (char) value;
+            case IObject.Type.FLOAT:
+                return Float.intBitsToFloat((int) value);
+            case IObject.Type.DOUBLE:
+                return Double.longBitsToDouble(value);
+            case IObject.Type.BYTE:
+                return (byte) value;
+            case IObject.Type.SHORT:
+                return (short) value;
+            case IObject.Type.INT:
+                return (int) value;
+            default:
+                return value;
+        }
+    }
+
+    public int readIntField(int objectId, FieldRef field) throws SnapshotException {
+        field = checkFieldRef(objectId, field);
+        switch (field.getType()) {
+            case IObject.Type.BOOLEAN:
+            case IObject.Type.CHAR:
+            case IObject.Type.BYTE:
+            case IObject.Type.SHORT:
+            case IObject.Type.INT:
+                return (int) readFieldValue(objectId, field);
+            default:
+                throw new SnapshotException(MessageUtil.format(Messages.SnapshotImpl_Error_FieldType,
+                        field.getName(), "int")); //$NON-NLS-1$
+        }
+    }
+
+    public long readLongField(int objectId, FieldRef field) throws SnapshotException {
+        field = checkFieldRef(objectId, field);
+        switch (field.getType()) {
+            case IObject.Type.BOOLEAN:
+            case IObject.Type.CHAR:
+            case IObject.Type.BYTE:
+            case IObject.Type.SHORT:
+            case IObject.Type.INT:
+            case IObject.Type.LONG:
+                return readFieldValue(objectId, field);
+            default:
+                throw new SnapshotException(MessageUtil.format(Messages.SnapshotImpl_Error_FieldType,
+                        field.getName(), "long")); //$NON-NLS-1$
+        }
+    }
+
+    public long readRefField(int objectId, FieldRef field) throws SnapshotException {
+        field = checkFieldRef(objectId, field);
+        if (field.getType() != IObject.Type.OBJECT)
+            throw new SnapshotException(MessageUtil.format(Messages.SnapshotImpl_Error_FieldType, field.getName(),
+                    "reference")); //$NON-NLS-1$
+        return readFieldValue(objectId, field);
+    }
+
+    public FieldColumns getFieldColumns(IClass clazz, boolean includeSubClasses, String[] fieldNames,
+                                        IProgressListener progressListener) throws SnapshotException {
+        ArrayInt objectIds = new ArrayInt(clazz.getObjectIds());
+        if (includeSubClasses) {
+            for (IClass subclass : clazz.getAllSubclasses())
+                objectIds.addAll(subclass.getObjectIds());
+        }
+        return getFieldColumns(objectIds.toArray(), fieldNames, progressListener);
+    }
+
+    public FieldColumns getFieldColumns(final int[] objectIds, final String[] fieldNames,
+                                        IProgressListener progressListener) throws SnapshotException {
+        if (progressListener == null)
+            progressListener = new VoidProgressListener();
+        final IProgressListener listener = progressListener;
+
+        // resolve the fields once per class, null for objects without fields
+        final IOne2OneIndex o2class = indexManager.o2class();
+        final HashMapIntObject<FieldRef[]> fieldsByClass = new HashMapIntObject<FieldRef[]>();
+        for (int objectId : objectIds) {
+            if (isArray(objectId) || isClass(objectId))
+                continue;
+            int classId = o2class.get(objectId);
+            if (!fieldsByClass.containsKey(classId)) {
+                IClass clazz = (IClass) getObject(classId);
+                FieldRef[] fields = new FieldRef[fieldNames.length];
+                for (int ii = 0; ii < fieldNames.length; ii++)
+                    fields[ii] = getFieldRef(clazz, fieldNames[ii]);
+                fieldsByClass.put(classId, fields);
+            }
+        }
+
+        final int[] order;
+        try {
+            order = objectIds.length > 0 ? heapObjectReader.getReadingOrder(objectIds) : objectIds;
+        } catch (IOException e) {
+            throw new SnapshotException(e);
+        }
+
+        final FieldColumns answer = new FieldColumns(this, objectIds, fieldNames);
+        final IOne2LongIndex o2address = indexManager.o2address();
+
+        listener.beginTask(Messages.SnapshotImpl_ReadingFields, objectIds.length);
+        try {
+            // every row is written by exactly one chunk
+            ParallelRanges.run(READER_THREAD_NAME, 0, order.length, MIN_READER_CHUNK_SIZE,
+                    new ParallelRanges.Task<Void>() {
+                        public Void process(int from, int to) throws Exception {
+                            for (int ii = from; ii < to; ii++) {
+                                if ((ii & 0xff) == 0 && listener.isCanceled())
+                                    throw new OperationCanceledException();
+
+                                int row = order[ii];
+                                int objectId = objectIds[row];
+                                if (isArray(objectId) || isClass(objectId))
+                                    continue;
+                                FieldRef[] fields = fieldsByClass.get(o2class.get(objectId));
+
+                                for (int column = 0; column < fields.length; column++) {
+                                    FieldRef field = fields[column];
+                                    if (field == null)
+                                        continue;
+                                    long value = heapObjectReader.readField(objectId, field.getOffset(),
+                                            field.getType());
+                                    if (field.getType() == IObject.Type.OBJECT)
+                                        value = value == 0 ? -1 : o2address.reverse(value);
+                                    answer.set(row, column, field.getType(), value);
+                                }
+                            }
+                            return null;
+                        }
+                    }, new ParallelRanges.Consumer<Void>() {
+                        public void consume(int from, int to, Void result) {
+                            if (listener.isCanceled())
+                                throw new OperationCanceledException();
+                            listener.worked(to - from);
+                        }
+                    });
+        } catch (OperationCanceledException e) {
+            // $JL-EXC$
+            return null;
+        }
+
+        listener.done();
+        return answer;
+    }
+
+    /**
+     * @return the field resolved for the class of the object or null
+     */
+    private FieldRef resolveFieldRef(int objectId, FieldRef field) throws SnapshotException {
+        int classId = indexManager.o2class().get(objectId);
+        if (classId == field.getClassId())
+            return field;
+        return getFieldRef((IClass) getObject(classId), field.getName());
+    }
+
+    private FieldRef checkFieldRef(int objectId, FieldRef field) throws SnapshotException {
+        FieldRef answer = isArray(objectId) || isClass(objectId) ? null : resolveFieldRef(objectId, field);
+        if (answer == null)
+            throw new SnapshotException(MessageUtil.format(Messages.SnapshotImpl_Error_FieldNotFound,
+                    field.getName(), objectId));
+        return answer;
+    }
+
+    private long readFieldValue(int objectId, FieldRef field) throws SnapshotException {
+        try {
+            return heapObjectReader.readField(objectId, field.getOffset(), field.getType());
+        } catch (IOException e) {
+            throw new SnapshotException(e);
+        }
+    }
+
     public GCRootInfo[] getGCRootInfo(int objectId) throws SnapshotException {
         return roots.get(objectId);
     }
@@ -1214,6 +2132,14 @@ public final class SnapshotImpl implements ISnapshot {
     }
 
     public long getHeapSize(int objectId) throws SnapshotException {
+        return getHeapSize(objectId, -1);
+    }
+
+    /**
+     * @param classId the class of the object if already known, else -1 to
+     *                read it from the index if needed
+     */
+    private long getHeapSize(int objectId, int classId) throws SnapshotException {
         if (arrayObjects.get(objectId)) {
             return indexManager.a2size().getSize(objectId);
         } else {
@@ -1224,7 +2150,9 @@ public final class SnapshotImpl implements ISnapshot {
                 return clazz.getUsedHeapSize();
             } else {
                 // it is an instance
-                clazz = classCache.get(indexManager.o2class().get(objectId));
+                if (classId < 0)
+                    classId = indexManager.o2class().get(objectId);
+                clazz = classCache.get(classId);
                 return clazz.getHeapSizePerInstance();
             }
 
@@ -1257,12 +2185,57 @@ public final class SnapshotImpl implements ISnapshot {
     }
 
     public long getRetainedHeapSize(int objectId) throws SnapshotException {
-        if (this.isDominatorTreeCalculated())
+        if (isDominatorTreeCalculated())
             return indexManager.o2retained().get(objectId);
         else
             return 0;
     }
 
+    public long getRetainedHeapSize(int[] objectIds, IProgressListener listener) throws SnapshotException {
+        if (objectIds.length == 1 && isDominatorTreeCalculated())
+            return getRetainedHeapSize(objectIds[0]);
+
+        // the same set in another order or with duplicates has the same size
+        int[] ids = sortedDistinct(objectIds);
+        RetainedSizeCache cache = getRetainedSizeCache();
+        long retainedSize = cache.get(ids);
+        if (retainedSize > 0)
+            return retainedSize;
+
+        int[] retainedSet = getRetainedSet(ids, listener);
+        if (retainedSet == null)
+            throw new IProgressListener.OperationCanceledException();
+        retainedSize = getHeapSize(retainedSet);
+        cache.put(ids, retainedSize);
+        return retainedSize;
+    }
+
+    /**
+     * @return the ids in ascending order without duplicates, the given array
+     * if it is already that way
+     */
+    private static int[] sortedDistinct(int[] objectIds) {
+        int ii = 1;
+        while (ii < objectIds.length && objectIds[ii - 1] < objectIds[ii])
+            ii++;
+        if (ii >= objectIds.length)
+            return objectIds;
+
+        int[] answer = objectIds.clone();
+        Arrays.sort(answer);
+        int length = 0;
+        for (int jj = 0; jj < answer.length; jj++) {
+            if (length == 0 || answer[jj] != answer[length - 1])
+                answer[length++] = answer[jj];
+        }
+        if (length < answer.length) {
+            int[] distinct = new int[length];
+            System.arraycopy(answer, 0, distinct, 0, length);
+            answer = distinct;
+        }
+        return answer;
+    }
+
     public boolean isArray(int objectId) {
         if (arrayObjects.get(objectId)) {
             // Variable size, so see if actually an array
@@ -1296,6 +2269,20 @@ public final class SnapshotImpl implements ISnapshot {
     public void dispose() {
         IOException error = null;
 
+        Future<Void> task;
+        synchronized (this) {
+            task = dominatorTreeTask;
+            if (task != null)
+                dominatorTreeTaskListener.setCanceled(true);
+        }
+        if (task != null) {
+            try {
+                awaitDominatorTreeThread();
+            } catch (SnapshotException ignore) {
+                // $JL-EXC$ canceled or failed anyway
+            }
+        }
+
         try {
             heapObjectReader.close();
         } catch (IOException e1) {
@@ -1310,6 +2297,13 @@ public final class SnapshotImpl implements ISnapshot {
 
         classCacheByName.clear();
 
+        synchronized (idleWorkspaces) {
+            idleWorkspaces.clear();
+        }
+        synchronized (idleMarks) {
+            idleMarks.clear();
+        }
+
         if (error != null)
             throw new RuntimeException(error);
     }
@@ -1415,6 +2409,53 @@ public final class SnapshotImpl implements ISnapshot {
         return count;
     }
 
+    /**
+     * Checks out a workspace without marks. Concurrent queries get
+     * workspaces of their own. Return it with
+     * {@link #releaseWorkspace(MarkingWorkspace)} once the marks are not
+     * needed any longer.
+     */
+    private MarkingWorkspace acquireWorkspace() {
+        synchronized (idleWorkspaces) {
+            if (!idleWorkspaces.isEmpty())
+                return idleWorkspaces.remove(idleWorkspaces.size() - 1);
+        }
+        return new MarkingWorkspace(snapshotInfo.getNumberOfObjects());
+    }
+
+    private void releaseWorkspace(MarkingWorkspace workspace) {
+        workspace.clear();
+        synchronized (idleWorkspaces) {
+            if (idleWorkspaces.size() < MAX_IDLE_WORKSPACES)
+                idleWorkspaces.add(workspace);
+        }
+    }
+
+    /**
+     * Checks out a BitField of all objects without marks. Return it with
+     * {@link #releaseMarks(BitField, ArrayIntBig)}.
+     */
+    private BitField acquireMarks() {
+        synchronized (idleMarks) {
+            if (!idleMarks.isEmpty())
+                return idleMarks.remove(idleMarks.size() - 1);
+        }
+        return new BitField(snapshotInfo.getNumberOfObjects());
+    }
+
+    /**
+     * Clears the marks of the given ids, which have to include all marked
+     * objects, and keeps the BitField for the next call.
+     */
+    private void releaseMarks(BitField marks, ArrayIntBig ids) {
+        for (int ii = 0; ii < ids.length(); ii++)
+            marks.clear(ids.get(ii));
+        synchronized (idleMarks) {
+            if (idleMarks.size() < MAX_IDLE_MARKS)
+                idleMarks.add(marks);
+        }
+    }
+
     private int[] getSingleObjectRetainedSet(int objectId) throws SnapshotException {
         ArrayIntBig result = new ArrayIntBig();
         IntStack stack = new IntStack();
@@ -1489,6 +2530,8 @@ public final class SnapshotImpl implements ISnapshot {
         int[] referringThreads;
         int currentReferringThread;
         int[] foundPath;
+        // the first path, taken from the GC root parents index
+        int[] indexedPath;
 
         Map<IClass, Set<String>> excludeMap;
 
@@ -1557,6 +2600,16 @@ public final class SnapshotImpl implements ISnapshot {
                         return getNextShortestPath();
                     } else {
                         state = 3; // NORMAL
+                        IIndexReader.IOne2OneIndex parents = indexManager.gcRootParent();
+                        if (excludeMap == null && parents != null)
+                            indexedPath = PathsFromGCRootsIndex.getPath(parents, currentId);
+                        if (indexedPath != null) {
+                            // the search only has to find the other paths
+                            referringThreads = null;
+                            state = 2; // PROCESSING GC ROOT
+                            nextState = 3; // NORMAL
+                            foundPath = indexedPath;
+                        }
                         return getNextShortestPath();
                     }
 
@@ -1675,13 +2728,15 @@ public final class SnapshotImpl implements ISnapshot {
                 rootInfo = roots.get(currentReferrers[i]);
                 if (rootInfo != null) {
                     if (excludeMap == null) {
+                        int[] path = path2Int(new Path(currentReferrers[i], currentPath));
+                        if (Arrays.equals(path, indexedPath))
+                            continue; // already returned first
                         // save state
                         lastReadReferrer = i;
-                        Path p = new Path(currentReferrers[i], currentPath);
                         referringThreads = null;
                         state = 2; // FOUND GC ROOT
                         nextState = 3; // NORMAL PROCESSING
-                        foundPath = path2Int(p);
+                        foundPath = path;
                         return getNextShortestPath();
                     } else {
                         if (!refersOnlyThroughExcluded(currentReferrers[i], currentId)) {
@@ -1715,6 +2770,13 @@ public final class SnapshotImpl implements ISnapshot {
 
     }
 
+    /**
+     * @return the container the snapshot was opened from or null
+     */
+    public SnapshotContainer getContainer() {
+        return container;
+    }
+
     public IndexManager getIndexManager() {
         return indexManager;
     }
@@ -1727,6 +2789,18 @@ public final class SnapshotImpl implements ISnapshot {
         return indexManager.i2sv2;
     }
 
+    /**
+     * @return the minimum retained size of the objects of a class or class
+     * loader as calculated with the dominator tree, 0 if not available
+     */
+    public long getMinRetainedSizeOfObjects(int classOrLoaderId) throws SnapshotException {
+        // written with the dominator tree, maybe in the background
+        if (!isDominatorTreeCalculated())
+            return 0;
+        RetainedSizeCache minRetainedSizes = indexManager.i2min;
+        return minRetainedSizes != null ? minRetainedSizes.get(classOrLoaderId) : 0;
+    }
+
     public HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> getRootsPerThread() {
         return rootsPerThread;
     }
@@ -13,6 +13,7 @@ package org.eclipse.mat.parser.internal;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.parser.index.SnapshotContainer;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IThreadStack;
 
@@ -27,14 +28,17 @@ import java.util.List;
     static HashMapIntObject<IThreadStack> loadThreadsData(ISnapshot snapshot) throws SnapshotException {
         String fileName = snapshot.getSnapshotInfo().getPrefix() + "threads";
         File f = new File(fileName);
-        if (!f.exists())
+        SnapshotContainer container = snapshot instanceof SnapshotImpl ? ((SnapshotImpl) snapshot).getContainer()
+                : null;
+        if (!f.exists() && (container == null || !container.contains(SnapshotContainer.THREADS)))
             return null;
 
         HashMapIntObject<IThreadStack> threadId2stack = new HashMapIntObject<IThreadStack>();
 
         BufferedReader in = null;
         try {
-            in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            InputStream stream = f.exists() ? new FileInputStream(f) : container.openStream(SnapshotContainer.THREADS);
+            in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
             String line = in.readLine();
 
             while (line != null) {
@@ -49,6 +49,16 @@ public class ClassHistogramRecordBuilder extends HistogramRecord {
         this.usedHeapSize += usedHeapSize;
     }
 
+    /**
+     * Adds the objects of another builder of the same class.
+     */
+    public void addAll(ClassHistogramRecordBuilder other) {
+        if (other.objectIds.length() > 0)
+            this.objectIds.addAll(other.objectIds.toArray());
+        this.numberOfObjects += other.numberOfObjects;
+        this.usedHeapSize += other.usedHeapSize;
+    }
+
     public ClassHistogramRecord toClassHistogramRecord() {
         if (objectIds.length() > 0 && this.numberOfObjects != objectIds.length())
             throw new RuntimeException(Messages.ClassHistogramRecordBuilder_Error_IllegalUseOfHistogramBuilder);
@@ -51,6 +51,33 @@ public class HistogramBuilder extends HistogramRecord {
         object.add(objectId, heapSize);
     }
 
+    /**
+     * Counts an object without keeping its id.
+     */
+    public void add(int classId, long heapSize) {
+        ClassHistogramRecordBuilder object = (ClassHistogramRecordBuilder) data.get(classId);
+        if (object == null)
+            data.put(classId, object = new ClassHistogramRecordBuilder(null, classId));
+
+        object.add(heapSize);
+    }
+
+    /**
+     * Adds the objects of another builder filled by the add methods, e.g. on
+     * another thread. The objects of a class keep the order they were added
+     * in.
+     */
+    public void addAll(HistogramBuilder other) {
+        for (int classId : other.data.getAllKeys()) {
+            ClassHistogramRecordBuilder record = (ClassHistogramRecordBuilder) other.data.get(classId);
+            ClassHistogramRecordBuilder object = (ClassHistogramRecordBuilder) data.get(classId);
+            if (object == null)
+                data.put(classId, record);
+            else
+                object.addAll(record);
+        }
+    }
+
     public Histogram toHistogram(SnapshotImpl snapshot, boolean isDefaultHistogram) throws SnapshotException {
         ArrayList<ClassHistogramRecord> classHistogramRecords = new ArrayList<ClassHistogramRecord>(data.size());
         HashMapIntObject<ClassLoaderHistogramRecordBuilder> cl2builder = new HashMapIntObject<ClassLoaderHistogramRecordBuilder>();
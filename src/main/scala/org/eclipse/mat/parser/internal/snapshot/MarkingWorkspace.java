@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.snapshot;
+
+import java.util.Arrays;
+
+/**
+ * One mark per object, used by the {@link ObjectMarker}.
+ * <p/>
+ * Instead of a flag the workspace keeps the stamp of the marking which
+ * reached an object last. Clearing all marks just moves on to the next stamp,
+ * the array itself is only wiped once every 255 clears. A workspace can
+ * therefore be reused for many markings of a big heap.
+ */
+public final class MarkingWorkspace {
+    private final byte[] stamps;
+    private byte stamp = 1;
+
+    public MarkingWorkspace(int size) {
+        this.stamps = new byte[size];
+    }
+
+    public int size() {
+        return stamps.length;
+    }
+
+    public boolean isMarked(int index) {
+        return stamps[index] == stamp;
+    }
+
+    public void mark(int index) {
+        stamps[index] = stamp;
+    }
+
+    public void unmark(int index) {
+        // 0 is never the current stamp
+        stamps[index] = 0;
+    }
+
+    /**
+     * Removes all marks.
+     */
+    public void clear() {
+        if (++stamp == 0) {
+            Arrays.fill(stamps, (byte) 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Replaces the marks by the ones of the other workspace of the same size.
+     */
+    public void copyFrom(MarkingWorkspace other) {
+        System.arraycopy(other.stamps, 0, stamps, 0, stamps.length);
+        stamp = other.stamp;
+    }
+
+    public int countMarked() {
+        int count = 0;
+        for (byte b : stamps)
+            if (b == stamp)
+                count++;
+        return count;
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2013 SAP AG.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -12,20 +12,26 @@ package org.eclipse.mat.parser.internal.snapshot;
 
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
-import org.eclipse.mat.collect.BitField;
-import org.eclipse.mat.collect.QueueInt;
+import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.internal.Messages;
+import org.eclipse.mat.parser.internal.PathsFromGCRootsIndex;
 import org.eclipse.mat.parser.internal.SnapshotImpl;
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
+import org.eclipse.mat.parser.model.XGCRootInfo;
 import org.eclipse.mat.snapshot.IMultiplePathsFromGCRootsComputer;
 import org.eclipse.mat.snapshot.MultiplePathsFromGCRootsClassRecord;
 import org.eclipse.mat.snapshot.MultiplePathsFromGCRootsRecord;
+import org.eclipse.mat.snapshot.model.FieldDescriptor;
+import org.eclipse.mat.snapshot.model.FieldRef;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 import org.eclipse.mat.snapshot.model.NamedReference;
 import org.eclipse.mat.util.IProgressListener;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class MultiplePathsFromGCRootsComputerImpl implements IMultiplePathsFromGCRootsComputer {
 
@@ -34,8 +40,12 @@ public class MultiplePathsFromGCRootsComputerImpl implements IMultiplePathsFromG
 
     SnapshotImpl snapshot; // snapshot
     IIndexReader.IOne2ManyIndex outboundIndex; // outbound references index
+    IIndexReader.IOne2OneIndex o2classIndex; // object to class index
 
-    private BitField excludeInstances;
+    // excluded fields by class id, null for all fields
+    private HashMapIntObject<Set<String>> excludeFields;
+    // reference fields of the instances which are not excluded, by class id
+    private HashMapIntObject<FieldRef[]> includedFields;
     private Map<IClass, Set<String>> excludeMap;
 
     private boolean pathsCalculated;
@@ -43,30 +53,76 @@ public class MultiplePathsFromGCRootsComputerImpl implements IMultiplePathsFromG
     private static final int NOT_VISITED = -2;
     private static final int NO_PARENT = -1;
 
+    private static final String THREAD_NAME = "PathsFromGCRootsThread"; //$NON-NLS-1$
+    private static final int MIN_CHUNK_SIZE = 1000;
+    // name of the pseudo reference of an instance to its class
+    private static final String CLASS_REFERENCE = "<class>"; //$NON-NLS-1$
+
     public MultiplePathsFromGCRootsComputerImpl(int[] objectIds, Map<IClass, Set<String>> excludeMap, SnapshotImpl snapshot) throws SnapshotException {
         this.snapshot = snapshot;
         this.objectIds = objectIds;
         this.excludeMap = excludeMap;
         outboundIndex = snapshot.getIndexManager().outbound;
+        o2classIndex = snapshot.getIndexManager().o2class();
 
         if (excludeMap != null) {
-            initExcludeInstances();
+            initExcludeFields();
         }
     }
 
-    private void initExcludeInstances() throws SnapshotException {
-        excludeInstances = new BitField(snapshot.getIndexManager().o2address().size());
-        for (IClass clazz : excludeMap.keySet()) {
-            int[] objects = clazz.getObjectIds();
-            for (int objId : objects) {
-                excludeInstances.set(objId);
+    private void initExcludeFields() {
+        excludeFields = new HashMapIntObject<Set<String>>(excludeMap.size());
+        includedFields = new HashMapIntObject<FieldRef[]>(excludeMap.size());
+        int idSize = snapshot.getSnapshotInfo().getIdentifierSize();
+        for (Map.Entry<IClass, Set<String>> entry : excludeMap.entrySet()) {
+            excludeFields.put(entry.getKey().getObjectId(), entry.getValue());
+            if (entry.getValue() != null) {
+                includedFields.put(entry.getKey().getObjectId(), getIncludedFields(entry.getKey(), entry.getValue(),
+                        idSize));
             }
         }
     }
 
+    /*
+     * The reference fields of the instances of a class which are not
+     * excluded, with the position of their values like
+     * SnapshotImpl.getFieldRef(). Fields hidden by a field of the same name
+     * in a subclass are included, too.
+     */
+    private static FieldRef[] getIncludedFields(IClass clazz, Set<String> excluded, int idSize) {
+        List<FieldRef> fields = new ArrayList<FieldRef>();
+        int offset = 0;
+        for (IClass c = clazz; c != null; c = c.getSuperClass()) {
+            for (FieldDescriptor field : c.getFieldDescriptors()) {
+                if (field.getType() == IObject.Type.OBJECT) {
+                    if (!excluded.contains(field.getName()))
+                        fields.add(new FieldRef(clazz.getObjectId(), field.getName(), IObject.Type.OBJECT, offset));
+                    offset += idSize;
+                } else {
+                    offset += IPrimitiveArray.ELEMENT_SIZE[field.getType()];
+                }
+            }
+        }
+        return fields.toArray(new FieldRef[fields.size()]);
+    }
+
     private void computePaths(IProgressListener progressListener) throws SnapshotException {
         ArrayList<int[]> pathsList = new ArrayList<int[]>();
 
+        // the search from the roots was done while parsing
+        IIndexReader.IOne2OneIndex parents = snapshot.getIndexManager().gcRootParent();
+        if (excludeMap == null && parents != null) {
+            for (int objectId : objectIds) {
+                int[] path = PathsFromGCRootsIndex.getPath(parents, objectId);
+                if (path != null) {
+                    pathsList.add(path);
+                }
+            }
+            pathsCalculated = true;
+            paths = pathsList.toArray();
+            return;
+        }
+
         // make a breadth first search for the objects, starting from the roots
         int[] parent = bfs(progressListener);
 
@@ -122,88 +178,144 @@ public class MultiplePathsFromGCRootsComputerImpl implements IMultiplePathsFromG
     }
 
     private boolean refersOnlyThroughExcluded(int referrerId, int referentId) throws SnapshotException {
-        if (!excludeInstances.get(referrerId)) return false;
+        int classId = o2classIndex.get(referrerId);
+        if (!excludeFields.containsKey(classId)) return false;
 
-        IObject referrerObject = snapshot.getObject(referrerId);
-        Set<String> excludeFields = excludeMap.get(referrerObject.getClazz());
-        if (excludeFields == null) return true; // treat null as all fields
+        Set<String> fields = excludeFields.get(classId);
+        if (fields == null) return true; // treat null as all fields
 
         long referentAddr = snapshot.mapIdToAddress(referentId);
 
+        // an instance refers through its fields and to its class
+        if (!snapshot.isArray(referrerId) && !snapshot.isClass(referrerId) && !hasLocalVariables(referrerId)) {
+            if (referentId == classId && !fields.contains(CLASS_REFERENCE)) return false;
+            for (FieldRef field : includedFields.get(classId)) {
+                if (snapshot.readRefField(referrerId, field) == referentAddr) return false;
+            }
+            return true;
+        }
+
+        // only now the fields of the referrer are needed
+        IObject referrerObject = snapshot.getObject(referrerId);
+
         List<NamedReference> refs = referrerObject.getOutboundReferences();
         for (NamedReference reference : refs) {
-            if (referentAddr == reference.getObjectAddress() && !excludeFields.contains(reference.getName())) {
+            if (referentAddr == reference.getObjectAddress() && !fields.contains(reference.getName())) {
                 return false;
             }
         }
         return true;
     }
 
-    private int[] bfs(IProgressListener progressListener) throws SnapshotException {
+    /*
+     * Threads refer to their local variables, too.
+     */
+    private boolean hasLocalVariables(int objectId) {
+        HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> localVariables = snapshot.getRootsPerThread();
+        return localVariables != null && localVariables.containsKey(objectId);
+    }
+
+    /*
+     * A level-synchronous breadth first search from all GC roots. The
+     * outbound references of a level are read in parallel, the parents are
+     * assigned on the calling thread in the order of the level, so the paths
+     * are the same as the ones of a search with a single queue. All levels
+     * share the same worker threads.
+     */
+    private int[] bfs(final IProgressListener progressListener) throws SnapshotException {
         // number objects in the heap
         final int numObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
         final boolean skipReferences = excludeMap != null; // should some paths
         // be excluded?
 
         // used to store the parent of each object during the BFS
-        int[] parent = new int[numObjects];
+        final int[] parent = new int[numObjects];
         Arrays.fill(parent, NOT_VISITED);
 
         // use boolean[numObjects] instead of SetInt, as it is faster to check
-        boolean[] toBeChecked = new boolean[numObjects];
+        final boolean[] toBeChecked = new boolean[numObjects];
 
-        int count = 0; // the number of distinct objects whose paths should be
-        // calculated
+        // the number of distinct objects whose paths should be calculated
+        final int[] count = new int[1];
         for (int i : objectIds) {
-            if (!toBeChecked[i]) count++;
+            if (!toBeChecked[i]) count[0]++;
             toBeChecked[i] = true;
         }
 
-        // use first-in-first-out to get the shortest paths
-        QueueInt fifo = new QueueInt(numObjects / 8);
-
-        // initially queue all GC roots
+        // initially all GC roots form the first level
         int[] gcRoots = snapshot.getGCRoots();
+        ArrayInt level = new ArrayInt(gcRoots.length);
         for (int root : gcRoots) {
-            fifo.put(root);
+            level.add(root);
             parent[root] = NO_PARENT;
+            if (toBeChecked[root]) count[0]--;
         }
 
-        // used for the progress listener
-        int countVisitedObjects = 0;
-        int reportFrequency = Math.max(10, numObjects / 100);
-
         progressListener.beginTask(Messages.MultiplePathsFromGCRootsComputerImpl_FindingPaths, 100);
 
-        // loop until the queue is empty, or all necessary paths are found
-        while (fifo.size() > 0 && count > 0) {
-            int objectId = fifo.get();
-
-            // was some of the objects of interest reached?
-            if (toBeChecked[objectId]) {
-                count--; // reduce the remaining work
-            }
+        ExecutorService executor = ParallelRanges.newExecutor(THREAD_NAME);
+        try {
+            search(executor, level, parent, toBeChecked, count, skipReferences, progressListener);
+        } finally {
+            executor.shutdownNow();
+        }
+        progressListener.done();
+        return parent;
+    }
 
-            // queue any unprocessed referenced object
-            int[] outbound = outboundIndex.get(objectId);
-            for (int child : outbound) {
-                if (parent[child] == NOT_VISITED) {
-                    if (skipReferences) {
-                        if (refersOnlyThroughExcluded(objectId, child)) continue;
+    private void search(ExecutorService executor, ArrayInt level, final int[] parent, final boolean[] toBeChecked,
+                        final int[] count, final boolean skipReferences, final IProgressListener progressListener)
+            throws SnapshotException {
+        // used for the progress listener
+        final int[] countVisitedObjects = new int[1];
+        final int reportFrequency = Math.max(10, parent.length / 100);
+
+        // loop until all objects are reached or no level is left
+        while (level.size() > 0 && count[0] > 0) {
+            final int[] current = level.toArray();
+            final ArrayInt next = new ArrayInt();
+
+            ParallelRanges.run(executor, 0, current.length, MIN_CHUNK_SIZE, new ParallelRanges.Task<ArrayInt>() {
+                public ArrayInt process(int from, int to) throws Exception {
+                    // pairs of parent and child, the parents are only read
+                    // here and may be assigned meanwhile
+                    ArrayInt candidates = new ArrayInt();
+                    for (int i = from; i < to; i++) {
+                        int objectId = current[i];
+                        for (int child : outboundIndex.get(objectId)) {
+                            if (parent[child] == NOT_VISITED) {
+                                if (skipReferences) {
+                                    if (refersOnlyThroughExcluded(objectId, child)) continue;
+                                }
+                                candidates.add(objectId);
+                                candidates.add(child);
+                            }
+                        }
+                        if (progressListener.isCanceled()) throw new IProgressListener.OperationCanceledException();
                     }
-                    parent[child] = objectId;
-                    fifo.put(child);
+                    return candidates;
                 }
-            }
+            }, new ParallelRanges.Consumer<ArrayInt>() {
+                public void consume(int from, int to, ArrayInt candidates) {
+                    for (int i = 0; i < candidates.size(); i += 2) {
+                        int child = candidates.get(i + 1);
+                        if (parent[child] == NOT_VISITED) {
+                            parent[child] = candidates.get(i);
+                            next.add(child);
+                            // was some of the objects of interest reached?
+                            if (toBeChecked[child]) count[0]--;
+                        }
+                    }
 
-            countVisitedObjects++;
-            if (countVisitedObjects % reportFrequency == 0) {
-                if (progressListener.isCanceled()) throw new IProgressListener.OperationCanceledException();
-                progressListener.worked(1);
-            }
+                    int reported = countVisitedObjects[0] / reportFrequency;
+                    countVisitedObjects[0] += to - from;
+                    int work = countVisitedObjects[0] / reportFrequency - reported;
+                    if (work > 0) progressListener.worked(work);
+                }
+            });
+
+            level = next;
         }
-        progressListener.done();
-        return parent;
     }
 
     /*
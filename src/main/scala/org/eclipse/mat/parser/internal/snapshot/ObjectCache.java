@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2013 SAP AG.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -10,103 +10,285 @@
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.snapshot;
 
-import org.eclipse.mat.collect.HashMapIntObject;
+import java.lang.reflect.Array;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import org.eclipse.mat.collect.HashMapIntObject;
 
+/**
+ * A least frequently used cache, split into segments with a lock each.
+ * <p/>
+ * Every segment keeps its entries in doubly linked usage buckets, so hits,
+ * inserts and evictions do not search lists. Objects are loaded outside of
+ * the segment lock; threads asking for an object that is just being loaded
+ * wait for that load instead of loading the object again.
+ */
 abstract public class ObjectCache<E> {
     static class Entry<E> {
         E object;
         int key;
         int numUsages;
+        Entry<E> previous;
+        Entry<E> next;
     }
 
-    private int maxSize;
-    private final HashMapIntObject<Entry<E>> map;
-    private final List<LinkedList<Entry<E>>> lfus;
-    private int maxLfuBuckets = 0;
-    private int lowestNonEmptyLfu = 0;
+    /**
+     * Entries with the same number of usages, most recent first.
+     */
+    private static class Bucket<E> {
+        Entry<E> first;
+        Entry<E> last;
 
-    public ObjectCache(int maxSize) {
-        this.maxSize = maxSize;
-        this.map = new HashMapIntObject<Entry<E>>(maxSize);
-        this.lfus = new ArrayList<LinkedList<Entry<E>>>(5);
-        this.maxLfuBuckets = maxSize / 3;
+        boolean isEmpty() {
+            return first == null;
+        }
+
+        void addFirst(Entry<E> e) {
+            e.previous = null;
+            e.next = first;
+            if (first != null)
+                first.previous = e;
+            else
+                last = e;
+            first = e;
+        }
+
+        void remove(Entry<E> e) {
+            if (e.previous != null)
+                e.previous.next = e.next;
+            else
+                first = e.next;
+            if (e.next != null)
+                e.next.previous = e.previous;
+            else
+                last = e.previous;
+            e.previous = e.next = null;
+        }
+    }
+
+    /**
+     * A load in progress, other threads wait for its result.
+     */
+    private static class Loading<E> {
+        final Thread owner = Thread.currentThread();
+        private boolean done;
+        private E object;
+        private Throwable failure;
+
+        synchronized void set(E object) {
+            this.object = object;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized E get() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // $JL-EXC$ the load itself is not interrupted, keep waiting
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            return object;
+        }
     }
 
-    public synchronized E get(int objectId) {
-        Entry<E> e = map.get(objectId);
-        if (e != null) {
-            revalueEntry(e);
-        } else {
-            e = new Entry<E>();
-            e.object = load(objectId);
-            e.key = objectId;
+    private static final class Segment<E> {
+        private final int maxSize;
+        private final HashMapIntObject<Entry<E>> map;
+        private final HashMapIntObject<Loading<E>> loading = new HashMapIntObject<Loading<E>>();
+        private final Bucket<E>[] lfus;
+        private int lowestNonEmptyLfu = 0;
+
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+            this.map = new HashMapIntObject<Entry<E>>(maxSize);
+            this.lfus = newArray(Bucket.class, maxSize / 3 + 1);
+        }
+
+        Bucket<E> lfu(int numUsages) {
+            int lfuIndex = Math.min(lfus.length - 1, numUsages);
+            Bucket<E> lfu = lfus[lfuIndex];
+            if (lfu == null)
+                lfu = lfus[lfuIndex] = new Bucket<E>();
+            return lfu;
+        }
+
+        void revalueEntry(Entry<E> e) {
+            lfu(e.numUsages).remove(e);
+            lfu(++e.numUsages).addFirst(e);
+        }
 
-            doInsert(e);
+        void insert(int key, E object) {
+            Entry<E> e = new Entry<E>();
+            e.key = key;
+            e.object = object;
+
+            lfu(0).addFirst(e);
+            Entry<E> p = map.put(key, e);
+            lowestNonEmptyLfu = 0;
+
+            if (p != null)
+                lfu(p.numUsages).remove(p);
 
             while (map.size() > maxSize)
                 removeLeastValuableNode();
         }
 
-        return e.object;
-    }
+        void removeLeastValuableNode() {
+            for (int i = lowestNonEmptyLfu; i < lfus.length; i++) {
+                Bucket<E> lfu = lfus[i];
+                if (lfu != null && !lfu.isEmpty()) {
+                    lowestNonEmptyLfu = i;
+                    Entry<E> lln = lfu.last;
+                    lfu.remove(lln);
+                    map.remove(lln.key);
+                    return;
+                }
+            }
+        }
+
+        void remove(int key) {
+            Entry<E> e = map.remove(key);
+            if (e != null)
+                lfu(e.numUsages).remove(e);
+        }
 
-    public synchronized void clear() {
-        this.map.clear();
-        this.lfus.clear();
+        void clear() {
+            map.clear();
+            for (int i = 0; i < lfus.length; i++)
+                lfus[i] = null;
+            lowestNonEmptyLfu = 0;
+        }
     }
 
-    protected abstract E load(int key);
+    // segments never get smaller than this
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private final Segment<E>[] segments;
+    private final int segmentMask;
 
-    protected synchronized void doInsert(final Entry<E> e) {
-        lfu(e.numUsages).addFirst(e);
-        Entry<?> p = map.put(e.key, e);
-        lowestNonEmptyLfu = 0;
+    public ObjectCache(int maxSize) {
+        int wanted = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        int possible = Integer.highestOneBit(Math.max(1, maxSize / MIN_SEGMENT_SIZE));
+        int numberOfSegments = Math.max(1, Math.min(wanted, possible));
 
-        if (p != null)
-            lfu(p.numUsages).remove(p);
+        this.segments = newArray(Segment.class, numberOfSegments);
+        int segmentSize = (maxSize + numberOfSegments - 1) / numberOfSegments;
+        for (int ii = 0; ii < numberOfSegments; ii++)
+            segments[ii] = new Segment<E>(segmentSize);
+        this.segmentMask = numberOfSegments - 1;
     }
 
-    protected final LinkedList<Entry<E>> lfu(int numUsageIndex) {
-        int lfuIndex = Math.min(maxLfuBuckets, numUsageIndex);
+    public E get(int objectId) {
+        Segment<E> segment = segmentFor(objectId);
 
-        if (lfuIndex >= lfus.size()) {
-            LinkedList<Entry<E>> lfu = new LinkedList<Entry<E>>();
-            lfus.add(lfuIndex, lfu);
-            return lfu;
-        } else {
-            return lfus.get(lfuIndex);
+        Loading<E> l;
+        boolean created = false;
+        synchronized (segment) {
+            Entry<E> e = segment.map.get(objectId);
+            if (e != null) {
+                segment.revalueEntry(e);
+                return e.object;
+            }
+
+            l = segment.loading.get(objectId);
+            if (l == null) {
+                segment.loading.put(objectId, l = new Loading<E>());
+                created = true;
+            }
+        }
+
+        if (!created) {
+            if (l.owner != Thread.currentThread())
+                return l.get();
+            // loading the object needs the object itself
+            return load(objectId);
         }
+
+        E object;
+        try {
+            object = load(objectId);
+        } catch (RuntimeException e) {
+            loadFailed(segment, objectId, l, e);
+            throw e;
+        } catch (Error e) {
+            loadFailed(segment, objectId, l, e);
+            throw e;
+        }
+
+        synchronized (segment) {
+            segment.loading.remove(objectId);
+            segment.insert(objectId, object);
+        }
+        l.set(object);
+        return object;
     }
 
-    protected void revalueEntry(Entry<E> entry) {
-        LinkedList<Entry<E>> currBucket = lfu(entry.numUsages);
-        LinkedList<Entry<E>> nextBucket = lfu(++entry.numUsages);
+    /**
+     * Returns the cached object without counting the use, or loads the object
+     * without putting it into the cache. For bulk reads which should not push
+     * the objects in use out of the cache.
+     */
+    public E getWithoutCaching(int objectId) {
+        Segment<E> segment = segmentFor(objectId);
+        synchronized (segment) {
+            Entry<E> e = segment.map.get(objectId);
+            if (e != null)
+                return e.object;
+        }
+        return load(objectId);
+    }
 
-        currBucket.remove(entry);
-        nextBucket.addFirst(entry);
+    private void loadFailed(Segment<E> segment, int objectId, Loading<E> l, Throwable failure) {
+        synchronized (segment) {
+            segment.loading.remove(objectId);
+        }
+        l.fail(failure);
     }
 
-    protected LinkedList<Entry<E>> getLowestNonEmptyLfu() {
-        LinkedList<Entry<E>> lfu = null;
-        for (int i = lowestNonEmptyLfu; i < lfus.size(); i++) {
-            lfu = lfu(i);
+    /**
+     * Drops the object from the cache. A load in progress is not affected.
+     */
+    public void remove(int objectId) {
+        Segment<E> segment = segmentFor(objectId);
+        synchronized (segment) {
+            segment.remove(objectId);
+        }
+    }
 
-            if (lfu.size() != 0) {
-                lowestNonEmptyLfu = i;
-                return lfu;
+    public void clear() {
+        for (Segment<E> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
             }
         }
-        return lfu;
     }
 
-    protected void removeLeastValuableNode() {
-        LinkedList<Entry<E>> lfu = getLowestNonEmptyLfu();
-        Entry<?> lln = lfu.remove(lfu.size() - 1);
-        map.remove(lln.key);
+    protected abstract E load(int key);
+
+    private Segment<E> segmentFor(int key) {
+        // object ids are dense, spread neighbours over the segments
+        int h = key * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & segmentMask];
     }
 
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(Class<?> componentType, int length) {
+        return (T[]) Array.newInstance(componentType, length);
+    }
 }
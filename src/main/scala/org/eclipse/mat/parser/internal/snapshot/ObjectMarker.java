@@ -30,7 +30,7 @@ import java.util.Set;
 
 public class ObjectMarker {
     int[] roots;
-    boolean[] bits;
+    MarkingWorkspace bits;
     IIndexReader.IOne2ManyIndex outbound;
     long outboundMem;
     IProgressListener progressListener;
@@ -38,12 +38,12 @@ public class ObjectMarker {
     private static final boolean USELOCAL = false;
     private static final int MIN_LOCALITY = 1000000;
 
-    public ObjectMarker(int[] roots, boolean[] bits, IIndexReader.IOne2ManyIndex outbound,
+    public ObjectMarker(int[] roots, MarkingWorkspace bits, IIndexReader.IOne2ManyIndex outbound,
                         IProgressListener progressListener) {
         this(roots, bits, outbound, 0, progressListener);
     }
 
-    public ObjectMarker(int[] roots, boolean[] bits, IIndexReader.IOne2ManyIndex outbound,
+    public ObjectMarker(int[] roots, MarkingWorkspace bits, IIndexReader.IOne2ManyIndex outbound,
                         long outboundLength, IProgressListener progressListener) {
         this.roots = roots;
         this.bits = bits;
@@ -59,7 +59,7 @@ public class ObjectMarker {
         int rootsToProcess = 0;
 
         for (int rootId : roots) {
-            if (!bits[rootId]) {
+            if (!bits.isMarked(rootId)) {
                 /* start stack.push() */
                 if (size == data.length) {
                     int[] newArr = new int[data.length << 1];
@@ -69,7 +69,7 @@ public class ObjectMarker {
                 data[size++] = rootId;
                 /* end stack.push() */
 
-                bits[rootId] = true;
+                bits.mark(rootId);
                 count++;
 
                 rootsToProcess++;
@@ -92,7 +92,7 @@ public class ObjectMarker {
             }
 
             for (int child : outbound.get(current)) {
-                if (!bits[child]) {
+                if (!bits.isMarked(child)) {
                     // stack.push(child);
                     /* start stack.push() */
                     if (size == data.length) {
@@ -103,7 +103,7 @@ public class ObjectMarker {
                     data[size++] = child;
                     /* end stack.push() */
 
-                    bits[child] = true;
+                    bits.mark(child);
                     count++;
                 }
 
@@ -136,7 +136,7 @@ public class ObjectMarker {
 
         /* first put all "roots" in the stack, and mark them as processed */
         for (int rootId : roots) {
-            if (!bits[rootId]) {
+            if (!bits.isMarked(rootId)) {
                 /* start stack.push() */
                 if (size == data.length) {
                     int[] newArr = new int[data.length << 1];
@@ -146,7 +146,7 @@ public class ObjectMarker {
                 data[size++] = rootId;
                 /* end stack.push() */
 
-                bits[rootId] = true; // mark the object
+                bits.mark(rootId); // mark the object
                 count++;
 
                 rootsToProcess++;
@@ -172,7 +172,7 @@ public class ObjectMarker {
             }
 
             for (int child : outbound.get(current)) {
-                if (!bits[child]) // already visited?
+                if (!bits.isMarked(child)) // already visited?
                 {
                     if (!refersOnlyThroughExcluded(current, child, excludeSets, excludeObjectsBF, snapshot)) {
                         /* start stack.push() */
@@ -184,7 +184,7 @@ public class ObjectMarker {
                         data[size++] = child;
                         /* end stack.push() */
 
-                        bits[child] = true; // mark the object
+                        bits.mark(child); // mark the object
                         count++;
                     }
                 }
@@ -328,9 +328,9 @@ public class ObjectMarker {
         MultiThreadedRootStack rootsStack = new MultiThreadedRootStack(roots.length);
 
         for (int rootId : roots) {
-            if (!bits[rootId]) {
+            if (!bits.isMarked(rootId)) {
                 rootsStack.push(rootId);
-                bits[rootId] = true;
+                bits.mark(rootId);
             }
         }
 
@@ -339,7 +339,7 @@ public class ObjectMarker {
         progressListener.beginTask(Messages.ObjectMarker_MarkingObjects, rootsStack.size());
 
         // Heuristic guess as to a reasonable local range for thread to search
-        int n = bits.length;
+        int n = bits.size();
         Runtime runtime = Runtime.getRuntime();
         // This free memory calculation is very approximate - we do a GC to get a better estimate
         long maxFree = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
@@ -351,7 +351,7 @@ public class ObjectMarker {
          *  Guess as to how many objects with outbound refs we can support @ 30 bytes per ref.
          *  A better estimate would use the size of the outbound refs file.
          */
-        int n1 = (int) Math.min(bits.length, bits.length * maxFree / outboundMem);
+        int n1 = (int) Math.min(bits.size(), bits.size() * maxFree / outboundMem);
         // guess as to size for each thread so we don't use all of the memory - allow for overlaps
         int m = (int) ((1.0 - Math.pow((double) (n - n1) / n, 1.0 / numberOfThreads)) * n);
         // now impose some reasonable limits
@@ -426,8 +426,8 @@ public class ObjectMarker {
                          * performance It is possible that some bits are marked
                          * more than once, but this is not a problem
                          */
-                        if (!bits[child]) {
-                            bits[child] = true;
+                        if (!bits.isMarked(child)) {
+                            bits.mark(child);
                             // stack.push(child);
                             /* start stack.push() */
                             if (size == data.length) {
@@ -571,8 +571,8 @@ public class ObjectMarker {
                                  * marked more than once, but this is not a
                                  * problem
                                  */
-                                if (!bits[child]) {
-                                    bits[child] = true;
+                                if (!bits.isMarked(child)) {
+                                    bits.mark(child);
                                     if (size == 0) {
                                         // We have emptied the stack, so reset
                                         // the base and refill
@@ -626,7 +626,7 @@ public class ObjectMarker {
          */
         private int calcBase(int v) {
             calcRange();
-            return Math.max(Math.min(v + (localRange * 3 >>> 2), bits.length) - localRange, 0);
+            return Math.max(Math.min(v + (localRange * 3 >>> 2), bits.size()) - localRange, 0);
         }
 
         /**
@@ -640,9 +640,9 @@ public class ObjectMarker {
                 // set trigger
                 sr = new SoftReference<int[]>(new int[1024]);
             } else if (sr.get() != null) {
-                if (localRange < bits.length && scaleUp > 0.0) {
+                if (localRange < bits.size() && scaleUp > 0.0) {
                     // Increase slowly
-                    localRange = Math.min((int) (localRange * (1.0 + scaleUp)), bits.length);
+                    localRange = Math.min((int) (localRange * (1.0 + scaleUp)), bits.size());
                     if (DEBUG)
                         System.out.println("Increased local range=" + localRange + " " + scaleUp);
                 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2013 SAP AG.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -16,14 +16,54 @@ import org.eclipse.mat.parser.internal.Messages;
 import org.eclipse.mat.parser.model.XSnapshotInfo;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Retained sizes of classes and class loaders, and of object sets.
+ * <p/>
+ * The sizes per id are kept in a log file of (id, size) records: each new
+ * size is appended at once, so a crash loses nothing, and the last record of
+ * an id wins. The log is compacted once it holds too many outdated records.
+ * The sizes of object sets are only kept in memory, for the last
+ * {@link #MAX_SET_ENTRIES} sets used. They are found by a SHA-256 digest and
+ * the number of the ids, so a set does not hit the size of another set.
+ * <p/>
+ * All methods are thread-safe.
+ */
 public class RetainedSizeCache implements IIndexReader {
+    private static final int RECORD_LENGTH = 12;
+
+    /**
+     * Compact the log if it holds more than this many records per entry
+     */
+    private static final int MAX_RECORDS_PER_ENTRY = 2;
+    private static final int MIN_RECORDS_TO_COMPACT = 1024;
+
+    private static final int MAX_SET_ENTRIES = 1000;
+
+    // null for a section of a snapshot container, which is not written
     private String filename;
     private HashMapIntLong id2size;
-    private boolean isDirty = false;
+    private Map<SetKey, Long> set2size = new LinkedHashMap<SetKey, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SetKey, Long> eldest) {
+            return size() > MAX_SET_ENTRIES;
+        }
+    };
+
+    private DataOutputStream log;
+    private int numberOfRecords;
+    // the file does not match the map, e.g. after reading the old format
+    private boolean rewrite = false;
 
     /**
      * File is expected to exist, and is read in the new format.
@@ -32,7 +72,20 @@ public class RetainedSizeCache implements IIndexReader {
      */
     public RetainedSizeCache(File f) {
         this.filename = f.getAbsolutePath();
-        doRead(f, false);
+        doRead(f, 0, f.length(), false);
+    }
+
+    /**
+     * Reads a section of a snapshot container in the new format. The sizes
+     * put into the cache are kept in memory only.
+     *
+     * @param f      the container
+     * @param start  the position of the section
+     * @param length the length of the section
+     */
+    public RetainedSizeCache(File f, long start, long length) {
+        this.filename = null;
+        doRead(f, start, length, false);
     }
 
     /**
@@ -47,7 +100,7 @@ public class RetainedSizeCache implements IIndexReader {
         readId2Size(snapshotInfo.getPrefix());
     }
 
-    public long get(int key) {
+    public synchronized long get(int key) {
         try {
             return id2size.get(key);
         } catch (NoSuchElementException e) {
@@ -56,57 +109,189 @@ public class RetainedSizeCache implements IIndexReader {
         }
     }
 
-    public void put(int key, long value) {
+    public synchronized void put(int key, long value) {
         id2size.put(key, value);
-        isDirty = true;
+        if (filename == null)
+            return;
+
+        try {
+            if (rewrite || numberOfRecords >= MIN_RECORDS_TO_COMPACT
+                    && numberOfRecords >= MAX_RECORDS_PER_ENTRY * id2size.size()) {
+                compact();
+            } else {
+                if (log == null)
+                    log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename, true)));
+                log.writeInt(key);
+                log.writeLong(value);
+                log.flush();
+                numberOfRecords++;
+            }
+        } catch (IOException e) {
+            Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
+                    Messages.RetainedSizeCache_Warning_IgnoreError, e);
+            // write everything again with the next size
+            closeLog();
+            rewrite = true;
+        }
+    }
+
+    /**
+     * @param sortedIds the distinct ids of the set in ascending order
+     * @return the retained size of the object set stored before, or 0
+     */
+    public long get(int[] sortedIds) {
+        SetKey key = new SetKey(sortedIds);
+        synchronized (this) {
+            Long size = set2size.get(key);
+            return size != null ? size : 0;
+        }
+    }
+
+    /**
+     * @param sortedIds the distinct ids of the set in ascending order
+     */
+    public void put(int[] sortedIds, long value) {
+        SetKey key = new SetKey(sortedIds);
+        synchronized (this) {
+            set2size.put(key, value);
+        }
+    }
+
+    /**
+     * The SHA-256 digest and the number of the ids of a set.
+     */
+    private static final class SetKey {
+        private final byte[] digest;
+        private final int length;
+
+        SetKey(int[] sortedIds) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform has to support SHA-256
+                throw new IllegalStateException(e);
+            }
+
+            byte[] buffer = new byte[4096];
+            int pos = 0;
+            for (int id : sortedIds) {
+                if (pos == buffer.length) {
+                    md.update(buffer, 0, pos);
+                    pos = 0;
+                }
+                buffer[pos++] = (byte) (id >>> 24);
+                buffer[pos++] = (byte) (id >>> 16);
+                buffer[pos++] = (byte) (id >>> 8);
+                buffer[pos++] = (byte) id;
+            }
+            md.update(buffer, 0, pos);
+
+            this.digest = md.digest();
+            this.length = sortedIds.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SetKey))
+                return false;
+            SetKey other = (SetKey) obj;
+            return length == other.length && Arrays.equals(digest, other.digest);
+        }
     }
 
-    public void close() {
-        if (!isDirty)
+    public synchronized void close() {
+        if (filename == null)
             return;
 
         try {
-            File file = new File(filename);
+            if (rewrite || numberOfRecords > id2size.size())
+                compact();
+        } catch (IOException e) {
+            Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
+                    Messages.RetainedSizeCache_Warning_IgnoreError, e);
+        }
+        closeLog();
+    }
 
-            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    private void closeLog() {
+        if (log == null)
+            return;
 
+        try {
+            log.close();
+        } catch (IOException ignore) {
+            // $JL-EXC$
+        }
+        log = null;
+    }
+
+    /**
+     * Writes one record per id into a new file which then replaces the log.
+     */
+    private void compact() throws IOException {
+        closeLog();
+
+        File file = new File(filename);
+        File tmp = new File(filename + ".tmp"); //$NON-NLS-1$
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
             for (int key : id2size.getAllKeys()) {
                 out.writeInt(key);
                 out.writeLong(id2size.get(key));
             }
-
+        } finally {
             out.close();
+        }
 
-            isDirty = false;
-        } catch (IOException e) {
-            Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
-                    Messages.RetainedSizeCache_Warning_IgnoreError, e);
+        if (!tmp.renameTo(file)) {
+            // cannot rename over an existing file on some platforms
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException(tmp.getAbsolutePath());
         }
+
+        numberOfRecords = id2size.size();
+        rewrite = false;
     }
 
-    private void doRead(File file, boolean readOldFormat) {
+    private void doRead(File file, long start, long length, boolean readOldFormat) {
         DataInputStream in = null;
         boolean delete = false;
 
         try {
-            id2size = new HashMapIntLong((int) file.length() / 8);
+            id2size = new HashMapIntLong((int) (length / RECORD_LENGTH));
 
-            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            FileInputStream fis = new FileInputStream(file);
+            in = new DataInputStream(new BufferedInputStream(fis));
+            fis.getChannel().position(start);
 
-            while (in.available() > 0) {
+            // a record only partly written before a crash is dropped
+            long records = length / RECORD_LENGTH;
+            for (long ii = 0; ii < records; ii++) {
                 int key = in.readInt();
                 long value = in.readLong();
                 if (value < 0 && readOldFormat)
                     value = -(value - (Long.MIN_VALUE + 1));
                 id2size.put(key, value);
             }
+            numberOfRecords = (int) records;
+            rewrite = readOldFormat || length % RECORD_LENGTH != 0;
         } catch (IOException e) {
             Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
                     Messages.RetainedSizeCache_ErrorReadingRetainedSizes, e);
 
             // might have read corrupt data
             id2size.clear();
-            delete = true;
+            numberOfRecords = 0;
+            // never delete the snapshot container
+            delete = filename != null;
         } finally {
             try {
                 if (in != null) {
@@ -128,18 +313,18 @@ public class RetainedSizeCache implements IIndexReader {
     private void readId2Size(String prefix) {
         File file = new File(filename);
         if (file.exists()) {
-            doRead(file, false);
+            doRead(file, 0, file.length(), false);
         } else {
             File legacyFile = new File(prefix + "i2s.index");
             if (legacyFile.exists()) {
-                doRead(legacyFile, true);
+                doRead(legacyFile, 0, legacyFile.length(), true);
             } else {
                 id2size = new HashMapIntLong();
             }
         }
     }
 
-    public int size() {
+    public synchronized int size() {
         return id2size.size();
     }
 
@@ -147,8 +332,11 @@ public class RetainedSizeCache implements IIndexReader {
         close();
     }
 
-    public void delete() {
-        close();
+    public synchronized void delete() {
+        closeLog();
+        set2size.clear();
+        if (filename == null)
+            return;
 
         File file = new File(filename);
         file.delete();
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A bit field which several threads may set bits in at the same time, see
+ * {@link org.eclipse.mat.collect.BitField}. No bit set by one thread gets lost
+ * by another thread setting a bit in the same word.
+ */
+public final class ConcurrentBitField {
+    private final AtomicIntegerArray bits;
+
+    public ConcurrentBitField(int size) {
+        bits = new AtomicIntegerArray(((size - 1) >>> 0x5) + 1);
+    }
+
+    /**
+     * Sets the bit on the given index.
+     *
+     * @return true if the bit was not set before
+     */
+    public boolean set(int index) {
+        int word = index >>> 0x5;
+        int mask = 1 << (index & 0x1f);
+        while (true) {
+            int old = bits.get(word);
+            if ((old & mask) != 0)
+                return false;
+            if (bits.compareAndSet(word, old, old | mask))
+                return true;
+        }
+    }
+
+    public boolean get(int index) {
+        return (bits.get(index >>> 0x5) & (1 << (index & 0x1f))) != 0;
+    }
+}
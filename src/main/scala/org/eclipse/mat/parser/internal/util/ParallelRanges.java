@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.util;
+
+import org.eclipse.mat.SnapshotException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a range of ints (usually object ids) into chunks and processes the
+ * chunks on several worker threads.
+ * <p/>
+ * The calling thread collects the results chunk by chunk in ascending order,
+ * so results can be consumed (e.g. written to an index file) while later
+ * chunks are still being computed. Exceptions thrown by a task or by the
+ * consumer cancel the remaining chunks and are passed on to the caller.
+ */
+public final class ParallelRanges {
+    /**
+     * Number of chunks per thread - more chunks give a better balance if the
+     * cost per id differs a lot between the chunks.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * System property to replace the minimum chunk size of all callers, e.g.
+     * to split the small test dumps into several chunks.
+     */
+    public static final String MIN_CHUNK_SIZE_PROPERTY = "MAT_PARALLEL_MIN_CHUNK_SIZE"; //$NON-NLS-1$
+
+    /**
+     * System property to replace the number of worker threads, which is the
+     * number of available processors by default.
+     */
+    public static final String THREADS_PROPERTY = "MAT_PARALLEL_THREADS"; //$NON-NLS-1$
+
+    public interface Task<R> {
+        /**
+         * Process the ids from (inclusive) to (exclusive).
+         */
+        R process(int from, int to) throws Exception;
+    }
+
+    public interface Consumer<R> {
+        /**
+         * Called on the calling thread, in ascending order of the chunks.
+         */
+        void consume(int from, int to, R result) throws Exception;
+    }
+
+    private ParallelRanges() {
+    }
+
+    public static int getNumberOfThreads() {
+        Integer threads = Integer.getInteger(THREADS_PROPERTY);
+        if (threads != null && threads > 0)
+            return threads;
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Process the range and return the chunk results in ascending order.
+     */
+    public static <R> List<R> run(String name, int from, int to, int minChunkSize, Task<R> task)
+            throws SnapshotException {
+        final List<R> answer = new ArrayList<R>();
+        run(name, from, to, minChunkSize, task, new Consumer<R>() {
+            public void consume(int from, int to, R result) {
+                answer.add(result);
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Process the range and hand the chunk results in ascending order to the
+     * consumer.
+     *
+     * @param name         base name of the worker threads
+     * @param from         first id (inclusive)
+     * @param to           last id (exclusive)
+     * @param minChunkSize chunks are never smaller than this, so small ranges
+     *                     are processed on the calling thread only
+     */
+    public static <R> void run(String name, int from, int to, int minChunkSize, Task<R> task, Consumer<R> consumer)
+            throws SnapshotException {
+        if (runOnCallingThread(from, to, minChunkSize, task, consumer))
+            return;
+
+        ExecutorService executor = newExecutor(name);
+        try {
+            run(executor, from, to, minChunkSize, task, consumer);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates worker threads for several calls of
+     * {@link #run(ExecutorService, int, int, int, Task, Consumer)}, e.g. one
+     * per level of a search. The caller shuts the executor down.
+     *
+     * @param name base name of the worker threads
+     */
+    public static ExecutorService newExecutor(String name) {
+        return Executors.newFixedThreadPool(getNumberOfThreads(), new WorkerThreadFactory(name));
+    }
+
+    /**
+     * Process the range on the threads of the given executor and hand the
+     * chunk results in ascending order to the consumer. The executor is not
+     * shut down.
+     *
+     * @see #run(String, int, int, int, Task, Consumer)
+     */
+    public static <R> void run(ExecutorService executor, int from, int to, int minChunkSize, Task<R> task,
+                               Consumer<R> consumer) throws SnapshotException {
+        if (runOnCallingThread(from, to, minChunkSize, task, consumer))
+            return;
+
+        int chunkSize = getChunkSize(from, to, minChunkSize);
+        List<Future<R>> futures = new ArrayList<Future<R>>();
+        List<int[]> ranges = new ArrayList<int[]>();
+        try {
+            for (int start = from; start < to; ) {
+                final int s = start;
+                final int e = (int) Math.min(to, (long) start + chunkSize);
+                final Task<R> t = task;
+                futures.add(executor.submit(new Callable<R>() {
+                    public R call() throws Exception {
+                        return t.process(s, e);
+                    }
+                }));
+                ranges.add(new int[]{s, e});
+                start = e;
+            }
+
+            for (int ii = 0; ii < futures.size(); ii++) {
+                R result = futures.get(ii).get();
+                int[] range = ranges.get(ii);
+                consumer.consume(range[0], range[1], result);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw SnapshotException.rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            throw new SnapshotException(e);
+        } catch (Exception e) {
+            throw SnapshotException.rethrow(e);
+        } finally {
+            for (Future<R> f : futures)
+                f.cancel(true);
+        }
+    }
+
+    private static int getChunkSize(int from, int to, int minChunkSize) {
+        Integer override = Integer.getInteger(MIN_CHUNK_SIZE_PROPERTY);
+        if (override != null)
+            minChunkSize = override;
+        int threads = getNumberOfThreads();
+        long length = (long) to - from;
+        return (int) Math.max(Math.max(1, minChunkSize), (length + threads * CHUNKS_PER_THREAD - 1)
+                / (threads * CHUNKS_PER_THREAD));
+    }
+
+    /**
+     * Processes small ranges, or all ranges on a single processor, on the
+     * calling thread.
+     *
+     * @return true if the range is done
+     */
+    private static <R> boolean runOnCallingThread(int from, int to, int minChunkSize, Task<R> task,
+                                                  Consumer<R> consumer) throws SnapshotException {
+        if (to <= from)
+            return true;
+
+        int chunkSize = getChunkSize(from, to, minChunkSize);
+        if (getNumberOfThreads() > 1 && (long) to - from > chunkSize)
+            return false;
+
+        try {
+            for (int start = from; start < to; ) {
+                int end = (int) Math.min(to, (long) start + chunkSize);
+                consumer.consume(start, end, task.process(start, end));
+                start = end;
+            }
+            return true;
+        } catch (Exception e) {
+            throw SnapshotException.rethrow(e);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams on one file for reads from several threads at the same time. A
+ * reader borrows a stream for one read and releases it right after, so no
+ * two reads share a file position. At most <code>maxIdle</code> streams are
+ * kept open between reads, the others are closed when released, so the
+ * number of open files never exceeds the number of concurrent reads plus
+ * <code>maxIdle</code>, however many threads come and go.
+ * <p/>
+ * <pre>
+ * PositionInputStream in = pool.borrow();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.release(in);
+ * }
+ * </pre>
+ */
+public class RandomAccessStreamPool {
+    private static final int BUFFER_SIZE = 512;
+
+    private final File file;
+    private final int maxIdle;
+    private final String closedMessage;
+
+    private final List<PositionInputStream> idle = new ArrayList<PositionInputStream>();
+    private boolean closed;
+
+    /**
+     * @param file          the file to read
+     * @param maxIdle       the number of streams kept open between reads
+     * @param closedMessage the message of the exception thrown by
+     *                      {@link #borrow()} after {@link #close()}
+     */
+    public RandomAccessStreamPool(File file, int maxIdle, String closedMessage) {
+        this.file = file;
+        this.maxIdle = maxIdle;
+        this.closedMessage = closedMessage;
+    }
+
+    /**
+     * @return a stream nobody else reads from until it is released
+     */
+    public PositionInputStream borrow() throws IOException {
+        synchronized (idle) {
+            if (closed)
+                throw new IOException(closedMessage);
+            if (!idle.isEmpty())
+                return idle.remove(idle.size() - 1);
+        }
+
+        return new PositionInputStream(new BufferedRandomAccessInputStream(new RandomAccessFile(file, "r"), //$NON-NLS-1$
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Hands the stream back to the pool, or closes it if enough streams are
+     * idle or the pool is closed.
+     */
+    public void release(PositionInputStream stream) {
+        synchronized (idle) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.add(stream);
+                return;
+            }
+        }
+
+        try {
+            stream.close();
+        } catch (IOException ignore) {
+            // $JL-EXC$
+        }
+    }
+
+    /**
+     * Closes the idle streams. Streams still borrowed are closed when they
+     * are released.
+     */
+    public void close() throws IOException {
+        IOException error = null;
+        synchronized (idle) {
+            closed = true;
+            for (PositionInputStream stream : idle) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            idle.clear();
+        }
+        if (error != null)
+            throw error;
+    }
+}
@@ -13,6 +13,7 @@ package org.eclipse.mat.parser.model;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayLong;
+import org.eclipse.mat.parser.internal.snapshot.RetainedSizeCache;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.*;
 import org.eclipse.mat.util.IProgressListener;
@@ -125,6 +126,8 @@ public class ClassImpl extends AbstractObjectImpl implements IClass, Comparable<
     public long getRetainedHeapSizeOfObjects(boolean calculateIfNotAvailable, boolean approximation,
                                              IProgressListener listener) throws SnapshotException {
         long answer = this.source.getRetainedSizeCache().get(getObjectId());
+        if (answer == 0)
+            answer = -this.source.getMinRetainedSizeOfObjects(getObjectId());
 
         if (answer > 0 || !calculateIfNotAvailable)
             return answer;
@@ -135,20 +138,18 @@ public class ClassImpl extends AbstractObjectImpl implements IClass, Comparable<
         if (listener == null)
             listener = new VoidProgressListener();
 
-        ArrayInt ids = new ArrayInt();
-        ids.add(getObjectId());
-        ids.addAll(getObjectIds());
+        int[] ids = getRetainedSizeObjectIds();
 
         int[] retainedSet;
         long retainedSize = 0;
 
         if (!approximation) {
-            retainedSet = source.getRetainedSet(ids.toArray(), listener);
+            retainedSet = source.getRetainedSet(ids, listener);
             if (listener.isCanceled())
                 return 0;
             retainedSize = source.getHeapSize(retainedSet);
         } else {
-            retainedSize = source.getMinRetainedSize(ids.toArray(), listener);
+            retainedSize = source.getMinRetainedSize(ids, listener);
             if (listener.isCanceled())
                 return 0;
         }
@@ -161,6 +162,31 @@ public class ClassImpl extends AbstractObjectImpl implements IClass, Comparable<
 
     }
 
+    /**
+     * Keeps the minimum retained size of the objects, calculated together
+     * with other classes, like an approximation calculated by
+     * {@link #getRetainedHeapSizeOfObjects(boolean, boolean, IProgressListener)}.
+     * A precise retained size is kept.
+     *
+     * @param minRetainedSize the minimum retained size, not negated
+     */
+    public void setMinRetainedHeapSizeOfObjects(long minRetainedSize) {
+        RetainedSizeCache cache = this.source.getRetainedSizeCache();
+        if (cache.get(getObjectId()) <= 0)
+            cache.put(getObjectId(), -minRetainedSize);
+    }
+
+    /**
+     * @return the class and its instances, the objects of the retained size of
+     * the instances
+     */
+    int[] getRetainedSizeObjectIds() throws SnapshotException {
+        ArrayInt ids = new ArrayInt();
+        ids.add(getObjectId());
+        ids.addAll(getObjectIds());
+        return ids.toArray();
+    }
+
     @Override
     public long getUsedHeapSize() {
         return usedHeapSize;
@@ -285,6 +311,15 @@ public class ClassImpl extends AbstractObjectImpl implements IClass, Comparable<
         this.totalSize += usedHeapSize;
     }
 
+    /**
+     * Sets the number and total size of the instances, e.g. when restoring a
+     * class from the index.
+     */
+    public void setInstances(int instanceCount, long totalSize) {
+        this.instanceCount = instanceCount;
+        this.totalSize = totalSize;
+    }
+
     /**
      * @since 1.0
      */
@@ -13,6 +13,7 @@ package org.eclipse.mat.parser.model;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.parser.internal.SnapshotImpl;
+import org.eclipse.mat.parser.internal.snapshot.RetainedSizeCache;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.Field;
 import org.eclipse.mat.snapshot.model.IClass;
@@ -126,6 +127,8 @@ public class ClassLoaderImpl extends InstanceImpl implements IClassLoader {
                                                             boolean calculateIfNotAvailable, boolean calculateMinRetainedSize, IProgressListener listener)
             throws SnapshotException {
         long answer = ((SnapshotImpl) dump).getRetainedSizeCache().get(classLoaderId);
+        if (answer == 0)
+            answer = -((SnapshotImpl) dump).getMinRetainedSizeOfObjects(classLoaderId);
 
         if (answer > 0 || !calculateIfNotAvailable)
             return answer;
@@ -136,23 +139,18 @@ public class ClassLoaderImpl extends InstanceImpl implements IClassLoader {
         if (listener == null)
             listener = new VoidProgressListener();
 
-        ArrayInt objectIds = new ArrayInt();
-        objectIds.add(classLoaderId);
-        for (IClass clasz : doGetDefinedClasses(dump, classLoaderId)) {
-            objectIds.add(clasz.getObjectId());
-            objectIds.addAll(clasz.getObjectIds());
-        }
+        int[] objectIds = doGetRetainedSizeObjectIds(dump, classLoaderId);
 
         int[] retainedSet;
         long retainedSize = 0;
 
         if (!calculateMinRetainedSize) {
-            retainedSet = dump.getRetainedSet(objectIds.toArray(), listener);
+            retainedSet = dump.getRetainedSet(objectIds, listener);
             if (listener.isCanceled())
                 return 0;
             retainedSize = dump.getHeapSize(retainedSet);
         } else {
-            retainedSize = dump.getMinRetainedSize(objectIds.toArray(), listener);
+            retainedSize = dump.getMinRetainedSize(objectIds, listener);
             if (listener.isCanceled())
                 return 0;
         }
@@ -164,4 +162,38 @@ public class ClassLoaderImpl extends InstanceImpl implements IClassLoader {
         return retainedSize;
     }
 
+    /**
+     * Keeps the minimum retained size of all classes and instances of the
+     * classes loaded by a class loader, calculated together with other class
+     * loaders. A precise retained size is kept.
+     *
+     * @param dump            the snapshot
+     * @param classLoaderId   the class loader
+     * @param minRetainedSize the minimum retained size, not negated
+     */
+    public static final void doSetMinRetainedHeapSizeOfObjects(ISnapshot dump, int classLoaderId,
+                                                               long minRetainedSize) {
+        RetainedSizeCache cache = ((SnapshotImpl) dump).getRetainedSizeCache();
+        if (cache.get(classLoaderId) <= 0)
+            cache.put(classLoaderId, -minRetainedSize);
+    }
+
+    /**
+     * Gets the class loader, the classes defined by it and their instances.
+     *
+     * @param dump          the snapshot
+     * @param classLoaderId the class loader
+     * @return the objects of the retained size of the class loader
+     * @throws SnapshotException
+     */
+    public static final int[] doGetRetainedSizeObjectIds(ISnapshot dump, int classLoaderId) throws SnapshotException {
+        ArrayInt objectIds = new ArrayInt();
+        objectIds.add(classLoaderId);
+        for (IClass clasz : doGetDefinedClasses(dump, classLoaderId)) {
+            objectIds.add(clasz.getObjectId());
+            objectIds.addAll(clasz.getObjectIds());
+        }
+        return objectIds.toArray();
+    }
+
 }
@@ -51,6 +51,11 @@ public final class XClassHistogramRecord extends ClassHistogramRecord {
         }
     }
 
+    @Override
+    public int[] getRetainedSizeObjectIds(ISnapshot snapshot) throws SnapshotException {
+        return classInstance.getRetainedSizeObjectIds();
+    }
+
     @Override
     public long calculateRetainedSize(ISnapshot snapshot, boolean calculateIfNotAvailable, boolean approximation,
                                       IProgressListener listener) throws SnapshotException {
@@ -64,4 +69,10 @@ public final class XClassHistogramRecord extends ClassHistogramRecord {
 
         return retainedHeapSize;
     }
+
+    @Override
+    public void setMinRetainedSize(ISnapshot snapshot, long minRetainedSize) throws SnapshotException {
+        super.setMinRetainedSize(snapshot, minRetainedSize);
+        classInstance.setMinRetainedHeapSizeOfObjects(minRetainedSize);
+    }
 }
@@ -42,6 +42,15 @@ public final class XClassLoaderHistogramRecord extends ClassLoaderHistogramRecor
         super(label, classLoaderId, classHistogramRecords, numberOfObjects, usedHeapSize, retainedHeapSize);
     }
 
+    @Override
+    public int[] getRetainedSizeObjectIds(ISnapshot snapshot) throws SnapshotException {
+        IObject object = snapshot.getObject(classLoaderId);
+        if (object instanceof IClassLoader)
+            return ClassLoaderImpl.doGetRetainedSizeObjectIds(snapshot, classLoaderId);
+        else
+            return super.getRetainedSizeObjectIds(snapshot);
+    }
+
     @Override
     public long calculateRetainedSize(ISnapshot snapshot, boolean calculateIfNotAvailable, boolean approximation,
                                       IProgressListener listener) throws SnapshotException {
@@ -61,4 +70,11 @@ public final class XClassLoaderHistogramRecord extends ClassLoaderHistogramRecor
         }
     }
 
+    @Override
+    public void setMinRetainedSize(ISnapshot snapshot, long minRetainedSize) throws SnapshotException {
+        super.setMinRetainedSize(snapshot, minRetainedSize);
+        if (snapshot.getObject(classLoaderId) instanceof IClassLoader)
+            ClassLoaderImpl.doSetMinRetainedHeapSizeOfObjects(snapshot, classLoaderId, minRetainedSize);
+    }
+
 }
@@ -15,6 +15,8 @@ import org.eclipse.mat.report.internal.Messages;
 import org.eclipse.mat.util.IProgressListener;
 import org.eclipse.mat.util.MessageUtil;
 
+import java.util.List;
+
 /**
  * Synthetic data columns
  */
@@ -122,6 +124,23 @@ public abstract class ContextDerivedData {
         void calculate(DerivedOperation operation, Object row, IProgressListener listener) throws SnapshotException;
     }
 
+    /**
+     * A calculator which is faster when doing the calculation for many rows
+     * at once.
+     */
+    public interface DerivedBatchCalculator extends DerivedCalculator {
+        /**
+         * Do the calculation for all the rows. Called before the rows are
+         * calculated one by one, so rows may be skipped here.
+         *
+         * @param operation the operation to do on the rows to get the derived data
+         * @param rows      the rows
+         * @param listener  to indicate progress and exceptions
+         * @throws SnapshotException
+         */
+        void calculate(DerivedOperation operation, List<?> rows, IProgressListener listener) throws SnapshotException;
+    }
+
     /**
      * Get all the derived columns for the current context (page)
      * Do not modify the returned array.
@@ -15,6 +15,7 @@ import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.query.*;
 import org.eclipse.mat.query.Column.SortDirection;
+import org.eclipse.mat.query.ContextDerivedData.DerivedBatchCalculator;
 import org.eclipse.mat.query.ContextDerivedData.DerivedCalculator;
 import org.eclipse.mat.query.ContextDerivedData.DerivedColumn;
 import org.eclipse.mat.query.ContextDerivedData.DerivedOperation;
@@ -377,6 +378,13 @@ public abstract class RefinedStructuredResult implements IStructuredResult,
         }
 
         int work = elements.size();
+        if (work > 1 && accessor.calculator instanceof DerivedBatchCalculator) {
+            ((DerivedBatchCalculator) accessor.calculator).calculate(operation, elements, new SilentProgressListener(
+                    listener));
+            if (listener.isCanceled())
+                return;
+        }
+
         SimpleMonitor sm;
         IProgressListener l1, l2;
         if (work == 1) {
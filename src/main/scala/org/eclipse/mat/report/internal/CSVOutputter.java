@@ -17,6 +17,7 @@ import org.eclipse.mat.query.IResult;
 import org.eclipse.mat.query.IResultTable;
 import org.eclipse.mat.query.IResultTree;
 import org.eclipse.mat.query.refined.Filter;
+import org.eclipse.mat.query.refined.RefinedStructuredResult;
 import org.eclipse.mat.query.refined.RefinedTable;
 import org.eclipse.mat.query.refined.RefinedTree;
 import org.eclipse.mat.report.IOutputter;
@@ -36,9 +37,24 @@ public class CSVOutputter implements IOutputter {
     }
 
     public void embedd(Context context, IResult result, Writer writer) throws IOException {
+        // export only first level of the RefinedTree
+        List<?> rows = (result instanceof RefinedTable) ? ((RefinedTable) result).getRows()
+                : ((RefinedTree) result).getElements();
+        if (context.hasLimit() && rows.size() > context.getLimit())
+            rows = rows.subList(0, context.getLimit());
+
+        embedd(context, (RefinedStructuredResult) result, rows, writer);
+    }
+
+    /**
+     * Writes the column names and then the given rows of the result, which
+     * can be read one at a time while they are written, e.g. from the subject
+     * of the result. The limit of the context is not applied.
+     */
+    public void embedd(Context context, RefinedStructuredResult result, Iterable<?> rows, Writer writer)
+            throws IOException {
         // add column names to first row
-        Column[] columns = (result instanceof RefinedTable) ? ((RefinedTable) result).getColumns()
-                : ((RefinedTree) result).getColumns();
+        Column[] columns = result.getColumns();
         Filter.ValueConverter[] filter = new Filter.ValueConverter[columns.length];
 
         for (int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
@@ -54,40 +70,17 @@ public class CSVOutputter implements IOutputter {
         writer.append("\n");
 
         // add data records
-        if (result instanceof RefinedTable) {
-            RefinedTable table = ((RefinedTable) result);
-            int limit = context.hasLimit() ? Math.min(table.getRowCount(), context.getLimit()) : table.getRowCount();
-
-            for (int row = 0; row < limit; row++) {
-                for (int column = 0; column < columns.length; column++) {
-                    if (context.isColumnVisible(column)) {
-                        Object columnValue = table.getColumnValue(table.getRow(row), column);
-                        if (columnValue != null)
-                            escape(writer, getStringValue(columnValue, filter[column]));
-
-                        writer.append(SEPARATOR);
-                    }
-                }
-                writer.append("\n");
-            }
-        } else if (result instanceof RefinedTree) {
-            // export only first level of the RefinedTree
-            RefinedTree tree = (RefinedTree) result;
-            List<?> elements = tree.getElements();
-            int limit = context.hasLimit() ? Math.min(elements.size(), context.getLimit()) : elements.size();
-
-            for (int row = 0; row < limit; row++) {
-                for (int column = 0; column < columns.length; column++) {
-                    if (context.isColumnVisible(column)) {
-                        Object columnValue = tree.getColumnValue(elements.get(row), column);
-                        if (columnValue != null)
-                            escape(writer, getStringValue(columnValue, filter[column]));
-
-                        writer.append(SEPARATOR);
-                    }
+        for (Object row : rows) {
+            for (int column = 0; column < columns.length; column++) {
+                if (context.isColumnVisible(column)) {
+                    Object columnValue = result.getColumnValue(row, column);
+                    if (columnValue != null)
+                        escape(writer, getStringValue(columnValue, filter[column]));
+
+                    writer.append(SEPARATOR);
                 }
-                writer.append("\n");
             }
+            writer.append("\n");
         }
     }
 
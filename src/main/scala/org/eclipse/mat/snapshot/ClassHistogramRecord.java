@@ -78,6 +78,18 @@ public class ClassHistogramRecord extends HistogramRecord {
         return objectIds;
     }
 
+    /**
+     * Get ids of the objects the retained size of this record is calculated
+     * for.
+     *
+     * @param snapshot the snapshot
+     * @return ids of the objects the retained size is calculated for
+     * @throws SnapshotException
+     */
+    public int[] getRetainedSizeObjectIds(ISnapshot snapshot) throws SnapshotException {
+        return getObjectIds();
+    }
+
     /**
      * Find out the retained size
      *
@@ -100,12 +112,25 @@ public class ClassHistogramRecord extends HistogramRecord {
             retainedHeapSize = snapshot.getMinRetainedSize(objectIds, listener);
             retainedHeapSize = -retainedHeapSize;
         } else {
-            retainedHeapSize = snapshot.getHeapSize(snapshot.getRetainedSet(objectIds, listener));
+            retainedHeapSize = snapshot.getRetainedHeapSize(objectIds, listener);
         }
 
         return retainedHeapSize;
     }
 
+    /**
+     * Set the minimum retained size, calculated for the objects of
+     * {@link #getRetainedSizeObjectIds(ISnapshot)} together with other
+     * records.
+     *
+     * @param snapshot        the snapshot
+     * @param minRetainedSize the minimum retained size, not negated
+     * @throws SnapshotException
+     */
+    public void setMinRetainedSize(ISnapshot snapshot, long minRetainedSize) throws SnapshotException {
+        retainedHeapSize = -minRetainedSize;
+    }
+
     @SuppressWarnings("nls")
     @Override
     public String toString() {
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.snapshot;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.ObjectReference;
+
+/**
+ * Values of some instance fields of many objects, one column per field and
+ * one row per object. Get it from
+ * {@link ISnapshot#getFieldColumns(int[], String[], org.eclipse.mat.util.IProgressListener)}.
+ * <p/>
+ * Rows are in the order of the object ids. A value is missing if the object
+ * is no instance (e.g. an array or a class) or its class has no such field.
+ * References are stored as object ids, with -1 for null.
+ */
+public final class FieldColumns {
+    private final ISnapshot snapshot;
+    private final int[] objectIds;
+    private final String[] fieldNames;
+    private final long[][] values;
+    private final byte[][] types;
+
+    /**
+     * @noreference
+     */
+    public FieldColumns(ISnapshot snapshot, int[] objectIds, String[] fieldNames) {
+        this.snapshot = snapshot;
+        this.objectIds = objectIds;
+        this.fieldNames = fieldNames;
+        this.values = new long[fieldNames.length][objectIds.length];
+        this.types = new byte[fieldNames.length][objectIds.length];
+    }
+
+    /**
+     * @noreference
+     */
+    public void set(int row, int column, int type, long value) {
+        types[column][row] = (byte) type;
+        values[column][row] = value;
+    }
+
+    public int[] getObjectIds() {
+        return objectIds;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    public int getNumberOfRows() {
+        return objectIds.length;
+    }
+
+    /**
+     * @return the column of the field or -1
+     */
+    public int getColumn(String fieldName) {
+        for (int ii = 0; ii < fieldNames.length; ii++)
+            if (fieldNames[ii].equals(fieldName))
+                return ii;
+        return -1;
+    }
+
+    public boolean isPresent(int row, int column) {
+        return types[column][row] != 0;
+    }
+
+    /**
+     * @return the type as {@link IObject.Type} or 0 if the value is missing
+     */
+    public int getType(int row, int column) {
+        return types[column][row];
+    }
+
+    /**
+     * @return boolean (1 or 0), byte, char, short and int values or 0 if missing
+     */
+    public int getInt(int row, int column) {
+        return (int) values[column][row];
+    }
+
+    /**
+     * @return all integral values or 0 if missing
+     */
+    public long getLong(int row, int column) {
+        return values[column][row];
+    }
+
+    /**
+     * @return float and double values, other numbers converted or 0 if missing
+     */
+    public double getDouble(int row, int column) {
+        switch (types[column][row]) {
+            case IObject.Type.FLOAT:
+                return Float.intBitsToFloat((int) values[column][row]);
+            case IObject.Type.DOUBLE:
+                return Double.longBitsToDouble(values[column][row]);
+            default:
+                return values[column][row];
+        }
+    }
+
+    /**
+     * @return the id of the referenced object or -1 for null, missing values
+     * and values of other types
+     */
+    public int getObjectId(int row, int column) {
+        return types[column][row] == IObject.Type.OBJECT ? (int) values[column][row] : -1;
+    }
+
+    /**
+     * @return the value as {@link org.eclipse.mat.snapshot.model.Field#getValue()}
+     * returns it or null if missing
+     */
+    public Object getValue(int row, int column) throws SnapshotException {
+        long value = values[column][row];
+        switch (types[column][row]) {
+            case IObject.Type.OBJECT:
+                return value < 0 ? null : new ObjectReference(snapshot, snapshot.mapIdToAddress((int) value));
+            case IObject.Type.BOOLEAN:
+                return value != 0;
+            case IObject.Type.CHAR:
+                return (char) value;
+            case IObject.Type.FLOAT:
+                return Float.intBitsToFloat((int) value);
+            case IObject.Type.DOUBLE:
+                return Double.longBitsToDouble(value);
+            case IObject.Type.BYTE:
+                return (byte) value;
+            case IObject.Type.SHORT:
+                return (short) value;
+            case IObject.Type.INT:
+                return (int) value;
+            case IObject.Type.LONG:
+                return value;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the column as int values, see {@link #getInt(int, int)}
+     */
+    public int[] getIntColumn(int column) {
+        int[] answer = new int[objectIds.length];
+        for (int ii = 0; ii < answer.length; ii++)
+            answer[ii] = (int) values[column][ii];
+        return answer;
+    }
+
+    /**
+     * @return the column as long values, see {@link #getLong(int, int)}
+     */
+    public long[] getLongColumn(int column) {
+        return values[column].clone();
+    }
+
+    /**
+     * @return the column as object ids, see {@link #getObjectId(int, int)}
+     */
+    public int[] getObjectIdColumn(int column) {
+        int[] answer = new int[objectIds.length];
+        for (int ii = 0; ii < answer.length; ii++)
+            answer[ii] = getObjectId(ii, column);
+        return answer;
+    }
+}
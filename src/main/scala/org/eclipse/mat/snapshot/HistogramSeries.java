@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.snapshot;
+
+import org.eclipse.mat.collect.HashMapObjectLong;
+import org.eclipse.mat.internal.Messages;
+import org.eclipse.mat.query.Column;
+import org.eclipse.mat.query.Column.SortDirection;
+import org.eclipse.mat.query.IContextObject;
+import org.eclipse.mat.query.IResultTable;
+import org.eclipse.mat.query.ResultMetaData;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Class histograms of a series of heap dumps, e.g. taken one after the other
+ * from the same process, side by side. Other than
+ * {@link Histogram#diffWithBaseline(Histogram)} it compares any number of
+ * histograms, and holds per class and per dump only the number of objects,
+ * the shallow heap and the retained heap.
+ * <p/>
+ * Classes are matched by name only, as the class loaders usually differ from
+ * dump to dump. Each class name is stored once; the records of classes with
+ * the same name are summed up. The rows are sorted by the growth of the
+ * shallow heap, the slope of the least squares line through the dumps, so the
+ * classes growing the most steadily come first.
+ */
+public class HistogramSeries implements IResultTable, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of objects
+     */
+    public static final int OBJECTS = 0;
+    /**
+     * The shallow heap
+     */
+    public static final int SHALLOW_HEAP = 1;
+    /**
+     * The retained heap, 0 if unknown
+     */
+    public static final int RETAINED_HEAP = 2;
+
+    private static final int NUMBER_OF_VALUES = 3;
+
+    private HashMapObjectLong<String> rowByClassName = new HashMapObjectLong<String>();
+    private List<String> classNames = new ArrayList<String>();
+    private List<String> labels = new ArrayList<String>();
+    // values[dump][value][row], rows added after a dump are not in its arrays
+    private List<long[][]> values = new ArrayList<long[][]>();
+
+    private transient int[] order;
+
+    /**
+     * Create an empty series, to add histograms to one by one.
+     */
+    public HistogramSeries() {
+    }
+
+    /**
+     * Create the series of the given histograms, the oldest first.
+     *
+     * @param histograms the histograms of the dumps
+     */
+    public HistogramSeries(Histogram... histograms) {
+        for (Histogram histogram : histograms)
+            add(histogram);
+    }
+
+    /**
+     * Add the histogram of the next dump. Only its class records are read, so
+     * the histogram itself need not be kept.
+     *
+     * @param histogram the histogram of the dump after all the ones added
+     *                  before
+     * @return this series
+     */
+    public HistogramSeries add(Histogram histogram) {
+        long[][] dump = new long[NUMBER_OF_VALUES][];
+        int rows = classNames.size();
+        for (int ii = 0; ii < NUMBER_OF_VALUES; ii++)
+            dump[ii] = new long[Math.max(rows, histogram.getClassHistogramRecords().size())];
+
+        for (ClassHistogramRecord record : histogram.getClassHistogramRecords()) {
+            int row = getOrAddRow(record.getLabel());
+            if (row >= dump[0].length) {
+                for (int ii = 0; ii < NUMBER_OF_VALUES; ii++) {
+                    long[] grown = new long[row * 2];
+                    System.arraycopy(dump[ii], 0, grown, 0, dump[ii].length);
+                    dump[ii] = grown;
+                }
+            }
+            dump[OBJECTS][row] += record.getNumberOfObjects();
+            dump[SHALLOW_HEAP][row] += record.getUsedHeapSize();
+            // negative if only a lower bound is known
+            dump[RETAINED_HEAP][row] += Math.abs(record.getRetainedHeapSize());
+        }
+
+        labels.add(histogram.getLabel());
+        values.add(dump);
+        order = null;
+        return this;
+    }
+
+    private int getOrAddRow(String className) {
+        if (rowByClassName.containsKey(className))
+            return (int) rowByClassName.get(className);
+
+        int row = classNames.size();
+        rowByClassName.put(className, row);
+        classNames.add(className);
+        return row;
+    }
+
+    /**
+     * @return the number of dumps added
+     */
+    public int getNumberOfDumps() {
+        return values.size();
+    }
+
+    /**
+     * @param dump the index of the dump, in the order added
+     * @return the label of the histogram of the dump
+     */
+    public String getLabel(int dump) {
+        return labels.get(dump);
+    }
+
+    /**
+     * @param rowId the row, in the order sorted by growth
+     * @return the class name of the row
+     */
+    public String getClassName(int rowId) {
+        return classNames.get(getOrder()[rowId]);
+    }
+
+    /**
+     * @param rowId the row, in the order sorted by growth
+     * @param dump  the index of the dump, in the order added
+     * @param value {@link #OBJECTS}, {@link #SHALLOW_HEAP} or
+     *              {@link #RETAINED_HEAP}
+     * @return the value of the class in the dump, 0 if the dump had no objects
+     * of the class
+     */
+    public long getValue(int rowId, int dump, int value) {
+        return get(getOrder()[rowId], dump, value);
+    }
+
+    /**
+     * @param rowId the row, in the order sorted by growth
+     * @param value {@link #OBJECTS}, {@link #SHALLOW_HEAP} or
+     *              {@link #RETAINED_HEAP}
+     * @return the average growth of the value from one dump to the next, the
+     * slope of the least squares line
+     */
+    public double getGrowth(int rowId, int value) {
+        return slope(getOrder()[rowId], value);
+    }
+
+    private long get(int row, int dump, int value) {
+        long[] column = values.get(dump)[value];
+        return row < column.length ? column[row] : 0;
+    }
+
+    private double slope(int row, int value) {
+        int n = values.size();
+        if (n < 2)
+            return 0;
+
+        // x is the index of the dump, centered around its mean
+        double mean = (n - 1) / 2.0;
+        double sumXY = 0;
+        double sumXX = 0;
+        for (int dump = 0; dump < n; dump++) {
+            double x = dump - mean;
+            sumXY += x * get(row, dump, value);
+            sumXX += x * x;
+        }
+        return sumXY / sumXX;
+    }
+
+    private int[] getOrder() {
+        if (order != null)
+            return order;
+
+        int rows = classNames.size();
+        final double[] growth = new double[rows];
+        Integer[] sorted = new Integer[rows];
+        for (int row = 0; row < rows; row++) {
+            growth[row] = slope(row, SHALLOW_HEAP);
+            sorted[row] = row;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                int c = Double.compare(growth[o2], growth[o1]);
+                return c != 0 ? c : classNames.get(o1).compareTo(classNames.get(o2));
+            }
+        });
+
+        int[] order = new int[rows];
+        for (int row = 0; row < rows; row++)
+            order[row] = sorted[row];
+        return this.order = order;
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // result table
+    // //////////////////////////////////////////////////////////////
+
+    public ResultMetaData getResultMetaData() {
+        return null;
+    }
+
+    /**
+     * The class name, the shallow heap per dump, and the growth of the number
+     * of objects, the shallow heap and the retained heap.
+     */
+    public Column[] getColumns() {
+        int dumps = values.size();
+        Column[] columns = new Column[dumps + 4];
+        columns[0] = new Column(Messages.Column_ClassName);
+        for (int dump = 0; dump < dumps; dump++)
+            columns[dump + 1] = new Column(labels.get(dump), long.class);
+        columns[dumps + 1] = new Column(Messages.HistogramSeries_Column_ObjectsGrowth, double.class);
+        columns[dumps + 2] = new Column(Messages.HistogramSeries_Column_ShallowHeapGrowth, double.class)
+                .sorting(SortDirection.DESC);
+        columns[dumps + 3] = new Column(Messages.HistogramSeries_Column_RetainedHeapGrowth, double.class);
+        return columns;
+    }
+
+    public int getRowCount() {
+        return classNames.size();
+    }
+
+    public Object getRow(int rowId) {
+        return getOrder()[rowId];
+    }
+
+    public Object getColumnValue(Object row, int columnIndex) {
+        int r = (Integer) row;
+        int dumps = values.size();
+        if (columnIndex == 0)
+            return classNames.get(r);
+        else if (columnIndex <= dumps)
+            return get(r, columnIndex - 1, SHALLOW_HEAP);
+        else if (columnIndex == dumps + 1)
+            return slope(r, OBJECTS);
+        else if (columnIndex == dumps + 2)
+            return slope(r, SHALLOW_HEAP);
+        else if (columnIndex == dumps + 3)
+            return slope(r, RETAINED_HEAP);
+        return null;
+    }
+
+    /**
+     * The rows are classes of several dumps, so there are no objects behind
+     * them.
+     */
+    public IContextObject getContext(Object row) {
+        return null;
+    }
+}
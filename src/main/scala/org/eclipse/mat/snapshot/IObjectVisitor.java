@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.snapshot;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.model.IObject;
+
+/**
+ * Receives the objects read by
+ * {@link ISnapshot#getObjects(int[], IObjectVisitor, org.eclipse.mat.util.IProgressListener)}.
+ */
+public interface IObjectVisitor {
+    /**
+     * Called for every requested object, in the order the objects are stored
+     * in the heap dump and always on the thread which asked for the objects.
+     *
+     * @param index  the position of the object id in the requested array
+     * @param object the object
+     * @throws SnapshotException stops reading the remaining objects
+     */
+    void visit(int index, IObject object) throws SnapshotException;
+}
@@ -12,6 +12,8 @@
 package org.eclipse.mat.snapshot;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.model.Field;
+import org.eclipse.mat.snapshot.model.FieldRef;
 import org.eclipse.mat.snapshot.model.GCRootInfo;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.snapshot.model.IObject;
@@ -161,6 +163,23 @@ public interface ISnapshot {
      */
     public Histogram getHistogram(int[] objectIds, IProgressListener progressListener) throws SnapshotException;
 
+    /**
+     * Get histogram for some specific objects, optionally without the object
+     * ids per class. Such a histogram only knows the number of objects and
+     * their shallow size per class, but is cheaper to build and to keep for
+     * many millions of objects.
+     *
+     * @param objectIds        object ids for which the histogram should be computed
+     * @param keepObjectIds    false to only count the objects
+     * @param progressListener progress listener informing about the current state of
+     *                         execution
+     * @return histogram
+     * @throws SnapshotException
+     * @see #getHistogram(int[], IProgressListener)
+     */
+    public Histogram getHistogram(int[] objectIds, boolean keepObjectIds, IProgressListener progressListener)
+            throws SnapshotException;
+
     /**
      * Get all objects referencing the given object.
      * <p/>
@@ -387,6 +406,21 @@ public interface ISnapshot {
      */
     public long getMinRetainedSize(int[] objectIds, IProgressListener listener) throws SnapshotException;
 
+    /**
+     * Calculate the minimum retained sizes of many object sets at once, e.g.
+     * of all the classes of a histogram. For big sets this takes one walk over
+     * the dominator tree instead of one calculation per set. The sets may
+     * overlap.
+     *
+     * @param objectIds the object sets
+     * @param listener  progress listener informing about the current state of
+     *                  execution
+     * @return the minimum retained sizes, in the order of the sets
+     * @throws SnapshotException
+     * @see #getMinRetainedSize(int[], IProgressListener)
+     */
+    public long[] getMinRetainedSizes(int[][] objectIds, IProgressListener listener) throws SnapshotException;
+
     /**
      * Get objects the given object directly dominates, i.e. the objects which
      * are life-time dependent on the given object (not recursively, so just the
@@ -469,6 +503,157 @@ public interface ISnapshot {
      */
     public IObject getObject(int objectId) throws SnapshotException;
 
+    /**
+     * Get the objects for the given ids, like {@link #getObject(int)} does
+     * for a single object.
+     * <p/>
+     * The objects are read in the order they are stored in the heap dump and
+     * on several threads, which is much faster than reading them one by one in
+     * the order of their ids. Objects read for this call are not put into the
+     * object cache.
+     * <p/>
+     * Performance: Medium - depending on the number of objects.
+     *
+     * @param objectIds        ids of the objects
+     * @param progressListener progress listener informing about the current state of
+     *                         execution
+     * @return the objects in the order of the given ids or null if the
+     * operation was cancelled
+     * @throws SnapshotException
+     */
+    public IObject[] getObjects(int[] objectIds, IProgressListener progressListener) throws SnapshotException;
+
+    /**
+     * Read the objects for the given ids and pass them to the visitor in the
+     * order they are stored in the heap dump. Unlike
+     * {@link #getObjects(int[], IProgressListener)} the objects are not all
+     * kept in memory at the same time: they are read window by window, at
+     * most a limited number ahead of the visitor, and they are not put into
+     * the object cache, so a scan over many objects does not push the objects
+     * in use out of it.
+     * <p/>
+     * If the operation is cancelled, the remaining objects are not visited.
+     * <p/>
+     * Performance: Medium - depending on the number of objects.
+     *
+     * @param objectIds        ids of the objects
+     * @param visitor          receives the objects
+     * @param progressListener progress listener informing about the current state of
+     *                         execution
+     * @throws SnapshotException
+     */
+    public void getObjects(int[] objectIds, IObjectVisitor visitor, IProgressListener progressListener)
+            throws SnapshotException;
+
+    /**
+     * Resolve an instance field of a class, so that it can be read from many
+     * objects with {@link #readField(int, FieldRef)} and the other read
+     * methods. If the hierarchy declares several fields with that name, the
+     * one of the topmost class is used, like {@link IObject#resolveValue(String)}
+     * does.
+     * <p/>
+     * Performance: Fast - in memory.
+     *
+     * @param clazz     the class of the objects
+     * @param fieldName the name of the field
+     * @return the resolved field or null if the class has no such field
+     * @throws SnapshotException
+     */
+    public FieldRef getFieldRef(IClass clazz, String fieldName) throws SnapshotException;
+
+    /**
+     * Read one field of an object without reading the other fields or
+     * keeping the object in memory.
+     * <p/>
+     * Performance: Relatively fast - single read from the heap dump.
+     *
+     * @param objectId  id of the object
+     * @param fieldName the name of the field
+     * @return the value as returned by {@link Field#getValue()} or null if the
+     * object is no instance or has no such field
+     * @throws SnapshotException
+     */
+    public Object readField(int objectId, String fieldName) throws SnapshotException;
+
+    /**
+     * Read one field of an object without reading the other fields or
+     * keeping the object in memory.
+     *
+     * @param objectId id of the object
+     * @param field    the field, resolved with {@link #getFieldRef(IClass, String)}
+     * @return the value as returned by {@link Field#getValue()} or null if the
+     * object is no instance or has no such field
+     * @throws SnapshotException
+     */
+    public Object readField(int objectId, FieldRef field) throws SnapshotException;
+
+    /**
+     * Read a boolean, byte, char, short or int field without boxing the value.
+     *
+     * @param objectId id of the object
+     * @param field    the field, resolved with {@link #getFieldRef(IClass, String)}
+     * @return the value, 1 or 0 for a boolean
+     * @throws SnapshotException if the object has no such field or the field
+     *                           has another type
+     */
+    public int readIntField(int objectId, FieldRef field) throws SnapshotException;
+
+    /**
+     * Read a boolean, byte, char, short, int or long field without boxing the
+     * value.
+     *
+     * @param objectId id of the object
+     * @param field    the field, resolved with {@link #getFieldRef(IClass, String)}
+     * @return the value, 1 or 0 for a boolean
+     * @throws SnapshotException if the object has no such field or the field
+     *                           has another type
+     */
+    public long readLongField(int objectId, FieldRef field) throws SnapshotException;
+
+    /**
+     * Read a reference field.
+     *
+     * @param objectId id of the object
+     * @param field    the field, resolved with {@link #getFieldRef(IClass, String)}
+     * @return the address of the referenced object or 0 for null, use
+     * {@link #mapAddressToId(long)} to get its id
+     * @throws SnapshotException if the object has no such field or the field
+     *                           has another type
+     */
+    public long readRefField(int objectId, FieldRef field) throws SnapshotException;
+
+    /**
+     * Read some instance fields of many objects into columns, without
+     * building the objects. The objects are read in the order they are
+     * stored in the heap dump and on several threads.
+     * <p/>
+     * Performance: Medium - depending on the number of objects.
+     *
+     * @param objectIds        ids of the objects, the rows of the result
+     * @param fieldNames       names of the fields, the columns of the result
+     * @param progressListener progress listener informing about the current state of
+     *                         execution
+     * @return the field values or null if the operation was cancelled
+     * @throws SnapshotException
+     */
+    public FieldColumns getFieldColumns(int[] objectIds, String[] fieldNames, IProgressListener progressListener)
+            throws SnapshotException;
+
+    /**
+     * Read some instance fields of all instances of a class into columns.
+     *
+     * @param clazz             the class
+     * @param includeSubClasses also read the instances of all subclasses
+     * @param fieldNames        names of the fields, the columns of the result
+     * @param progressListener  progress listener informing about the current state of
+     *                          execution
+     * @return the field values or null if the operation was cancelled
+     * @throws SnapshotException
+     * @see #getFieldColumns(int[], String[], IProgressListener)
+     */
+    public FieldColumns getFieldColumns(IClass clazz, boolean includeSubClasses, String[] fieldNames,
+                                        IProgressListener progressListener) throws SnapshotException;
+
     /**
      * Get the GC root info for an object. If the provided object is no GC root
      * null will be returned otherwise a GCRootInfo[]. An object can be a GC
@@ -543,6 +728,22 @@ public interface ISnapshot {
      */
     public long getRetainedHeapSize(int objectId) throws SnapshotException;
 
+    /**
+     * Get the retained heap size of the given objects together, i.e. the heap
+     * size of their retained set. The sizes of the last object sets are
+     * cached, so asking again for the same objects, in any order, is fast.
+     * <p/>
+     * Performance: Usually extremely slow for new object sets, see
+     * {@link #getRetainedSet(int[], IProgressListener)}.
+     *
+     * @param objectIds objects for which you want the retained heap size
+     * @param listener  progress listener informing about the current state of
+     *                  execution
+     * @return retained heap size of the given objects
+     * @throws SnapshotException
+     */
+    public long getRetainedHeapSize(int[] objectIds, IProgressListener listener) throws SnapshotException;
+
     /**
      * Returns true if the object by this id is a class.
      * <p/>
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.snapshot.model;
+
+/**
+ * An instance field resolved for one class, i.e. where its value is stored
+ * in the instances of the class. Get it from
+ * {@link org.eclipse.mat.snapshot.ISnapshot#getFieldRef(IClass, String)} once
+ * and use it to read the field of many objects without reading their other
+ * fields.
+ * <p/>
+ * It can be used for objects of other classes, e.g. subclasses, too - the
+ * field is then looked up again by its name.
+ */
+public final class FieldRef {
+    private final int classId;
+    private final String name;
+    private final int type;
+    private final int offset;
+
+    /**
+     * @param classId the class the field was resolved for
+     * @param name    the field name
+     * @param type    the field type from {@link IObject.Type}
+     * @param offset  the position of the value among the field values of an
+     *                instance, in bytes
+     */
+    public FieldRef(int classId, String name, int type, int offset) {
+        this.classId = classId;
+        this.name = name;
+        this.type = type;
+        this.offset = offset;
+    }
+
+    /**
+     * @return the id of the class the field was resolved for
+     */
+    public int getClassId() {
+        return classId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the type as {@link IObject.Type}
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return the position of the value among the field values of an instance
+     * of the class, in bytes
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return name + "@" + offset; //$NON-NLS-1$
+    }
+}
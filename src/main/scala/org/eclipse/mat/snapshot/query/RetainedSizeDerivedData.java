@@ -27,9 +27,7 @@ import org.eclipse.mat.util.VoidProgressListener;
 import java.text.FieldPosition;
 import java.text.Format;
 import java.text.ParsePosition;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -119,7 +117,7 @@ public class RetainedSizeDerivedData extends ContextDerivedData {
         return column;
     }
 
-    private static class DerivedCalculatorImpl implements DerivedCalculator {
+    private static class DerivedCalculatorImpl implements DerivedBatchCalculator {
         protected final ISnapshot snapshot;
         protected final ContextProvider provider;
         protected final HashMapObjectLong<Object> values;
@@ -176,8 +174,7 @@ public class RetainedSizeDerivedData extends ContextDerivedData {
                                 retainedSize = snapshot.getMinRetainedSize(retainedSet, listener);
                                 retainedSize = -retainedSize;
                             } else {
-                                retainedSet = snapshot.getRetainedSet(retainedSet, listener);
-                                retainedSize = snapshot.getHeapSize(retainedSet);
+                                retainedSize = snapshot.getRetainedHeapSize(retainedSet, listener);
                             }
                         }
 
@@ -198,6 +195,50 @@ public class RetainedSizeDerivedData extends ContextDerivedData {
             }
 
         }
+
+        public void calculate(DerivedOperation operation, List<?> rows, IProgressListener listener)
+                throws SnapshotException {
+            // precise retained sizes need one marking per row anyway
+            if (operation != APPROXIMATE)
+                return;
+
+            List<Object> batch = new ArrayList<Object>();
+            List<int[]> objectIds = new ArrayList<int[]>();
+            for (Object row : rows) {
+                int[] ids = getMinRetainedSizeObjectIds(row);
+                if (ids != null && ids.length > 1) {
+                    batch.add(row);
+                    objectIds.add(ids);
+                }
+            }
+            if (batch.size() < 2)
+                return;
+
+            long[] sizes = snapshot.getMinRetainedSizes(objectIds.toArray(new int[objectIds.size()][]), listener);
+            for (int ii = 0; ii < sizes.length; ii++)
+                setMinRetainedSize(batch.get(ii), sizes[ii]);
+        }
+
+        /**
+         * @return the objects of a row without a retained size, null if the
+         * row has one already
+         */
+        protected int[] getMinRetainedSizeObjectIds(Object row) throws SnapshotException {
+            if (values.containsKey(row))
+                return null;
+
+            IContextObject contextObject = provider.getContext(row);
+            if (contextObject instanceof IContextObjectSet) {
+                int[] ids = ((IContextObjectSet) contextObject).getObjectIds();
+                if (ids != null && !(ids.length == 1 && ids[0] == -1))
+                    return ids;
+            }
+            return null;
+        }
+
+        protected void setMinRetainedSize(Object row, long retainedSize) throws SnapshotException {
+            values.put(row, -retainedSize);
+        }
     }
 
     private static class AllClasses extends DerivedCalculatorImpl {
@@ -259,6 +300,30 @@ public class RetainedSizeDerivedData extends ContextDerivedData {
             }
         }
 
+        @Override
+        protected int[] getMinRetainedSizeObjectIds(Object row) throws SnapshotException {
+            if (row instanceof ClassHistogramRecord) {
+                ClassHistogramRecord record = (ClassHistogramRecord) row;
+                return record.getRetainedHeapSize() != 0 ? null : record.getRetainedSizeObjectIds(snapshot);
+            } else if (row instanceof ClassLoaderHistogramRecord) {
+                ClassLoaderHistogramRecord record = (ClassLoaderHistogramRecord) row;
+                return record.getRetainedHeapSize() != 0 ? null : record.getRetainedSizeObjectIds(snapshot);
+            } else {
+                return super.getMinRetainedSizeObjectIds(row);
+            }
+        }
+
+        @Override
+        protected void setMinRetainedSize(Object row, long retainedSize) throws SnapshotException {
+            // the records of the default histogram keep the size with their class or class loader
+            if (row instanceof ClassHistogramRecord)
+                ((ClassHistogramRecord) row).setMinRetainedSize(snapshot, retainedSize);
+            else if (row instanceof ClassLoaderHistogramRecord)
+                ((ClassLoaderHistogramRecord) row).setMinRetainedSize(snapshot, retainedSize);
+            else
+                super.setMinRetainedSize(row, retainedSize);
+        }
+
         @Override
         public void calculate(DerivedOperation operation, Object row, IProgressListener listener)
                 throws SnapshotException {
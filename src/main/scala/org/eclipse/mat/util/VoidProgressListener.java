@@ -18,7 +18,7 @@ package org.eclipse.mat.util;
  * @see IProgressListener
  */
 public class VoidProgressListener implements IProgressListener {
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
 
     /**
      * Does nothing.
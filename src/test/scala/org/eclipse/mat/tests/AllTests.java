@@ -26,14 +26,24 @@ import org.junit.runners.Suite.SuiteClasses;
         org.eclipse.mat.tests.collect.ExtractCollectionEntriesTest.class,
         org.eclipse.mat.tests.parser.TestIndex.class,
         org.eclipse.mat.tests.parser.TestIndex1to1.class,
+        org.eclipse.mat.tests.parser.RandomAccessStreamPoolTest.class,
+        org.eclipse.mat.tests.parser.ObjectCacheTest.class,
+        org.eclipse.mat.tests.parser.MarkingWorkspaceTest.class,
+        org.eclipse.mat.tests.parser.RetainedSizeCacheTest.class,
+        org.eclipse.mat.tests.parser.IndexValidationTest.class,
         org.eclipse.mat.tests.snapshot.DominatorTreeTest.class,
+        org.eclipse.mat.tests.snapshot.PathsFromGCRootsTest.class,
+        org.eclipse.mat.tests.snapshot.HistogramSeriesTest.class,
         org.eclipse.mat.tests.snapshot.TestUnreachableObjects.class,
         org.eclipse.mat.tests.snapshot.GeneralSnapshotTests.class,
         org.eclipse.mat.tests.snapshot.TestInstanceSizes.class,
         org.eclipse.mat.tests.snapshot.QueryLookupTest.class,
         org.eclipse.mat.tests.snapshot.QueriesTest.class,
         org.eclipse.mat.tests.snapshot.OQLTest.class,
-        org.eclipse.mat.tests.snapshot.MultipleSnapshots.class})
+        org.eclipse.mat.tests.snapshot.MultipleSnapshots.class,
+        org.eclipse.mat.tests.snapshot.SnapshotContainerTest.class,
+        org.eclipse.mat.tests.snapshot.SnapshotFactoryTest.class,
+        org.eclipse.mat.tests.snapshot.QueryServerTest.class})
 public class AllTests {
 
     /**
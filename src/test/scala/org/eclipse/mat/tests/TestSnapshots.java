@@ -10,6 +10,7 @@
  *******************************************************************************/
 package org.eclipse.mat.tests;
 
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.SnapshotFactory;
 import org.eclipse.mat.util.VoidProgressListener;
@@ -54,6 +55,22 @@ public class TestSnapshots {
         return getSnapshot(name, new HashMap<String, String>(), pristine);
     }
 
+    /**
+     * Get a brand new snapshot from a dump, parsed with small chunks on
+     * several threads, so that the parallel parts of the parser split even
+     * the small test dumps.
+     */
+    public static ISnapshot getSnapshotInChunks(String dumpname, Map<String, String> options) {
+        System.setProperty(ParallelRanges.MIN_CHUNK_SIZE_PROPERTY, "100");
+        System.setProperty(ParallelRanges.THREADS_PROPERTY, "4");
+        try {
+            return getSnapshot(dumpname, options, true);
+        } finally {
+            System.clearProperty(ParallelRanges.MIN_CHUNK_SIZE_PROPERTY);
+            System.clearProperty(ParallelRanges.THREADS_PROPERTY);
+        }
+    }
+
     /**
      * Get a snapshot from a dump
      *
@@ -207,7 +224,7 @@ public class TestSnapshots {
         return file;
     }
 
-    private static File createGeneratedName(String prefix, File directory) throws IOException {
+    public static File createGeneratedName(String prefix, File directory) throws IOException {
         File tempFile = File.createTempFile(prefix, "", directory);
         if (!tempFile.delete())
             throw new IOException();
@@ -217,7 +234,7 @@ public class TestSnapshots {
         return tempFile;
     }
 
-    private static void copyFile(File in, File out) throws IOException {
+    public static void copyFile(File in, File out) throws IOException {
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(in);
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import org.eclipse.mat.parser.internal.util.ParallelRanges;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * The indices are validated while parsing, on several threads for heap dumps
+ * with enough objects.
+ */
+public class IndexValidationTest {
+    // more than one chunk of object ids for the validation
+    private static final int NUMBER_OF_INSTANCES = 250000;
+    // the instances, the classes and the system class loader
+    private static final int NUMBER_OF_OBJECTS = NUMBER_OF_INSTANCES + 5;
+    // object ids per range of the validation
+    private static final int CHUNK_SIZE = 100000;
+    // the damaged dump has these instances twice, less than 100 errors per range
+    private static final int DUPLICATE_EVERY = 7000;
+    private static final Pattern INDEX = Pattern.compile("[Ii]ndex ([^ ]+)");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestSnapshots.createGeneratedName("validation", null);
+    }
+
+    @Test
+    public void testValidIndices() throws Exception {
+        Listener listener = new Listener();
+        ISnapshot snapshot = open(new HashMap<String, String>(), listener);
+        try {
+            assertEquals(NUMBER_OF_OBJECTS, snapshot.getSnapshotInfo().getNumberOfObjects());
+        } finally {
+            SnapshotFactory.dispose(snapshot);
+        }
+
+        assertEquals(new ArrayList<String>(), listener.errors);
+        assertEquals(1, listener.count(MessageFormat.format("Validated indices of {0} objects", NUMBER_OF_OBJECTS)));
+    }
+
+    @Test
+    public void testValidationSwitchedOff() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("validate_indices", "false");
+        Listener listener = new Listener();
+        ISnapshot snapshot = open(options, listener);
+        SnapshotFactory.dispose(snapshot);
+
+        assertEquals(new ArrayList<String>(), listener.errors);
+        assertEquals(0, listener.count("Validated indices"));
+    }
+
+    /**
+     * Every duplicated instance leaves an object id without class and
+     * outbounds. The errors of the ranges are reported in order of the
+     * ranges, up to the limit of 100.
+     */
+    @Test
+    public void testDamagedIndices() throws Exception {
+        Listener listener = new Listener();
+        openDamaged(new HashMap<String, String>(), listener);
+
+        // duplicate address twice, class and first outbound
+        int errorCount = NUMBER_OF_INSTANCES / DUPLICATE_EVERY * 4;
+        assertTrue(errorCount > 100);
+        assertEquals(101, listener.errors.size());
+        assertEquals(MessageFormat.format("{0} more index validation errors not reported", errorCount - 100),
+                listener.errors.get(100));
+
+        int classErrors = 0;
+        int outboundErrors = 0;
+        int previousRange = 0;
+        for (String error : listener.errors.subList(0, 100)) {
+            if (error.startsWith("ClassImpl not found"))
+                classErrors++;
+            else if (error.contains("which is not its class index"))
+                outboundErrors++;
+
+            Matcher matcher = INDEX.matcher(error);
+            assertTrue(error, matcher.find());
+            int range = NumberFormat.getIntegerInstance().parse(matcher.group(1)).intValue() / CHUNK_SIZE;
+            assertTrue(error, range >= previousRange);
+            previousRange = range;
+        }
+        assertTrue(classErrors > 0);
+        assertTrue(outboundErrors > 0);
+        // the limit is reached in the second range
+        assertEquals(1, previousRange);
+    }
+
+    @Test
+    public void testDamagedIndicesNotValidated() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("validate_indices", "false");
+        Listener listener = new Listener();
+        openDamaged(options, listener);
+
+        assertEquals(new ArrayList<String>(), listener.errors);
+    }
+
+    private void openDamaged(Map<String, String> options, Listener listener) throws Exception {
+        File dump = new File(directory, "damaged.hprof");
+        writeDump(dump, DUPLICATE_EVERY);
+        // check the ranges on several threads also on a single processor
+        System.setProperty(ParallelRanges.THREADS_PROPERTY, "4");
+        try {
+            SnapshotFactory.dispose(SnapshotFactory.openSnapshot(dump, options, listener));
+            fail();
+        } catch (Exception e) {
+            // $JL-EXC$ the damaged dump cannot be parsed completely
+        } finally {
+            System.clearProperty(ParallelRanges.THREADS_PROPERTY);
+        }
+    }
+
+    private ISnapshot open(Map<String, String> options, Listener listener) throws Exception {
+        File dump = new File(directory, "chain.hprof");
+        writeDump(dump, 0);
+        return SnapshotFactory.openSnapshot(dump, options, listener);
+    }
+
+    private static class Listener extends VoidProgressListener {
+        final List<String> errors = new ArrayList<String>();
+        final List<String> infos = new ArrayList<String>();
+
+        @Override
+        public synchronized void sendUserMessage(Severity severity, String message, Throwable exception) {
+            if (severity == Severity.ERROR)
+                errors.add(message);
+            else if (severity == Severity.INFO)
+                infos.add(message);
+        }
+
+        synchronized int count(String prefix) {
+            int count = 0;
+            for (String message : infos)
+                if (message.startsWith(prefix))
+                    count++;
+            return count;
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // a small HPROF dump: java.lang.Object, java.lang.Class,
+    // java.lang.ClassLoader and a chain of Node instances
+    // //////////////////////////////////////////////////////////////
+
+    private static final int UTF8 = 0x01;
+    private static final int LOAD_CLASS = 0x02;
+    private static final int HEAP_DUMP = 0x0c;
+    private static final int ROOT_STICKY_CLASS = 0x05;
+    private static final int ROOT_UNKNOWN = 0xff;
+    private static final int CLASS_DUMP = 0x20;
+    private static final int INSTANCE_DUMP = 0x21;
+    private static final int TYPE_OBJECT = 2;
+
+    private static final int OBJECT_CLASS = 0x1000;
+    private static final int CLASS_CLASS = 0x1010;
+    private static final int CLASSLOADER_CLASS = 0x1020;
+    private static final int NODE_CLASS = 0x1030;
+    private static final int FIRST_NODE = 0x100000;
+    private static final int NODE_SIZE = 16;
+
+    /**
+     * @param duplicateEvery if positive, every so many instances are written
+     *                       twice with the same address
+     */
+    private static void writeDump(File file, int duplicateEvery) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeBytes("JAVA PROFILE 1.0.2");
+            out.writeByte(0);
+            out.writeInt(4);
+            out.writeLong(System.currentTimeMillis());
+
+            int[] classes = {OBJECT_CLASS, CLASS_CLASS, CLASSLOADER_CLASS, NODE_CLASS};
+            String[] names = {"java/lang/Object", "java/lang/Class", "java/lang/ClassLoader", "Node"};
+            for (int ii = 0; ii < classes.length; ii++) {
+                writeString(out, ii + 1, names[ii]);
+                writeRecord(out, LOAD_CLASS, 16);
+                out.writeInt(ii + 1);
+                out.writeInt(classes[ii]);
+                out.writeInt(0);
+                out.writeInt(ii + 1);
+            }
+            int nextName = classes.length + 1;
+            writeString(out, nextName, "next");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream heap = new DataOutputStream(bytes);
+            for (int ii = 0; ii < classes.length; ii++) {
+                heap.writeByte(ROOT_STICKY_CLASS);
+                heap.writeInt(classes[ii]);
+            }
+            heap.writeByte(ROOT_UNKNOWN);
+            heap.writeInt(FIRST_NODE);
+            for (int ii = 0; ii < classes.length; ii++) {
+                heap.writeByte(CLASS_DUMP);
+                heap.writeInt(classes[ii]);
+                heap.writeInt(0);
+                heap.writeInt(classes[ii] == OBJECT_CLASS ? 0 : OBJECT_CLASS);
+                // loader, signers, protection domain, reserved
+                for (int jj = 0; jj < 5; jj++)
+                    heap.writeInt(0);
+                heap.writeInt(classes[ii] == NODE_CLASS ? 4 : 0);
+                heap.writeShort(0);
+                heap.writeShort(0);
+                if (classes[ii] == NODE_CLASS) {
+                    heap.writeShort(1);
+                    heap.writeInt(nextName);
+                    heap.writeByte(TYPE_OBJECT);
+                } else {
+                    heap.writeShort(0);
+                }
+            }
+            for (int ii = 0; ii < NUMBER_OF_INSTANCES; ii++) {
+                int copies = duplicateEvery > 0 && ii % duplicateEvery == duplicateEvery - 1 ? 2 : 1;
+                for (int jj = 0; jj < copies; jj++) {
+                    heap.writeByte(INSTANCE_DUMP);
+                    heap.writeInt(FIRST_NODE + ii * NODE_SIZE);
+                    heap.writeInt(0);
+                    heap.writeInt(NODE_CLASS);
+                    heap.writeInt(4);
+                    heap.writeInt(ii + 1 < NUMBER_OF_INSTANCES ? FIRST_NODE + (ii + 1) * NODE_SIZE : 0);
+                }
+            }
+            heap.flush();
+
+            writeRecord(out, HEAP_DUMP, bytes.size());
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, int id, String value) throws IOException {
+        byte[] chars = value.getBytes("UTF-8");
+        writeRecord(out, UTF8, 4 + chars.length);
+        out.writeInt(id);
+        out.write(chars);
+    }
+
+    private static void writeRecord(DataOutputStream out, int tag, int length) throws IOException {
+        out.writeByte(tag);
+        out.writeInt(0);
+        out.writeInt(length);
+    }
+}
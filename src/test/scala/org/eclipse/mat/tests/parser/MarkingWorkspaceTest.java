@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import org.eclipse.mat.parser.internal.snapshot.MarkingWorkspace;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MarkingWorkspaceTest {
+
+    /**
+     * Marks never survive a clear, also not when the stamps wrap around.
+     */
+    @Test
+    public void testClear() {
+        MarkingWorkspace workspace = new MarkingWorkspace(100);
+        for (int round = 0; round < 1000; round++) {
+            assertEquals(0, workspace.countMarked());
+            for (int ii = round % 3; ii < workspace.size(); ii += 3)
+                workspace.mark(ii);
+            workspace.unmark(round % 3);
+            assertFalse(workspace.isMarked(round % 3));
+            assertTrue(workspace.isMarked(round % 3 + 3));
+            assertFalse(workspace.isMarked(round % 3 + 1));
+            assertEquals((100 - round % 3 + 2) / 3 - 1, workspace.countMarked());
+            workspace.clear();
+        }
+    }
+
+    @Test
+    public void testCopy() {
+        MarkingWorkspace first = new MarkingWorkspace(10);
+        MarkingWorkspace second = new MarkingWorkspace(10);
+        first.clear();
+        first.mark(1);
+        first.mark(7);
+        second.mark(2);
+
+        second.copyFrom(first);
+        assertTrue(second.isMarked(1));
+        assertFalse(second.isMarked(2));
+        assertTrue(second.isMarked(7));
+        assertEquals(2, second.countMarked());
+
+        second.clear();
+        assertEquals(0, second.countMarked());
+        assertEquals(2, first.countMarked());
+    }
+}
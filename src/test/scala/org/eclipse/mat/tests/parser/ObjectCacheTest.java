@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import org.eclipse.mat.parser.internal.snapshot.ObjectCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ObjectCacheTest {
+    private static class CountingCache extends ObjectCache<String> {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release;
+
+        CountingCache(int maxSize, CountDownLatch release) {
+            super(maxSize);
+            this.release = release;
+        }
+
+        @Override
+        protected String load(int key) {
+            loads.incrementAndGet();
+            try {
+                if (release != null)
+                    release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (key < 0)
+                throw new IllegalArgumentException(String.valueOf(key));
+            return "object" + key;
+        }
+    }
+
+    @Test
+    public void testHitsDoNotLoad() {
+        CountingCache cache = new CountingCache(100, null);
+        for (int ii = 0; ii < 10; ii++)
+            assertEquals("object7", cache.get(7));
+        assertEquals(1, cache.loads.get());
+    }
+
+    @Test
+    public void testEvictsLeastFrequentlyUsed() {
+        CountingCache cache = new CountingCache(64, null);
+        // a frequently used object survives a scan over many others
+        for (int ii = 0; ii < 10; ii++)
+            cache.get(1);
+        for (int ii = 2; ii < 10000; ii++)
+            assertEquals("object" + ii, cache.get(ii));
+        int loads = cache.loads.get();
+        cache.get(1);
+        assertEquals(loads, cache.loads.get());
+
+        cache.clear();
+        cache.get(1);
+        assertEquals(loads + 1, cache.loads.get());
+    }
+
+    @Test
+    public void testGetWithoutCaching() {
+        CountingCache cache = new CountingCache(100, null);
+        cache.get(1);
+        assertEquals("object1", cache.getWithoutCaching(1));
+        assertEquals(1, cache.loads.get());
+
+        assertEquals("object2", cache.getWithoutCaching(2));
+        assertEquals("object2", cache.getWithoutCaching(2));
+        assertEquals(3, cache.loads.get());
+        cache.get(2);
+        assertEquals(4, cache.loads.get());
+    }
+
+    @Test
+    public void testRemove() {
+        CountingCache cache = new CountingCache(100, null);
+        cache.get(1);
+        cache.get(2);
+        cache.remove(1);
+        cache.remove(3);
+        cache.get(2);
+        assertEquals(2, cache.loads.get());
+        cache.get(1);
+        assertEquals(3, cache.loads.get());
+    }
+
+    @Test
+    public void testConcurrentLoadsAreShared() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        final CountingCache cache = new CountingCache(100, release);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int ii = 0; ii < threads; ii++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return cache.get(42);
+                    }
+                }));
+            }
+            // give all threads the chance to ask for the object
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> f : futures)
+                assertEquals("object42", f.get());
+            assertEquals(1, cache.loads.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() {
+        CountingCache cache = new CountingCache(100, null);
+        for (int ii = 0; ii < 2; ii++) {
+            try {
+                cache.get(-1);
+                fail();
+            } catch (IllegalArgumentException expected) {
+                // $JL-EXC$
+            }
+        }
+        assertEquals(2, cache.loads.get());
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import org.eclipse.mat.parser.io.PositionInputStream;
+import org.eclipse.mat.parser.io.RandomAccessStreamPool;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RandomAccessStreamPoolTest {
+
+    /**
+     * Borrowed streams are never handed out twice, released streams are
+     * reused up to the limit and closed beyond it.
+     */
+    @Test
+    public void testBorrowAndRelease() throws IOException {
+        File file = createFile();
+        try {
+            RandomAccessStreamPool pool = new RandomAccessStreamPool(file, 2, "closed");
+
+            List<PositionInputStream> borrowed = new ArrayList<PositionInputStream>();
+            for (int ii = 0; ii < 4; ii++) {
+                PositionInputStream in = pool.borrow();
+                assertFalse(borrowed.contains(in));
+                in.seek(ii);
+                borrowed.add(in);
+            }
+            for (int ii = 0; ii < 4; ii++)
+                assertEquals(ii, borrowed.get(ii).read());
+
+            for (PositionInputStream in : borrowed)
+                pool.release(in);
+
+            // the first two released are kept, the others are closed
+            PositionInputStream first = pool.borrow();
+            PositionInputStream second = pool.borrow();
+            PositionInputStream third = pool.borrow();
+            assertSame(borrowed.get(1), first);
+            assertSame(borrowed.get(0), second);
+            assertFalse(borrowed.contains(third));
+
+            pool.release(first);
+            pool.close();
+            try {
+                pool.borrow();
+                fail();
+            } catch (IOException expected) {
+                assertEquals("closed", expected.getMessage());
+            }
+
+            // still borrowed streams keep working until released
+            second.seek(7);
+            assertEquals(7, second.read());
+            pool.release(second);
+            pool.release(third);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private static File createFile() throws IOException {
+        File file = File.createTempFile("pool", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int ii = 0; ii < 16; ii++)
+                out.write(ii);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import org.eclipse.mat.parser.internal.snapshot.RetainedSizeCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RetainedSizeCacheTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("i2sv2", ".index");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Sizes are in the file as soon as they are put, also without a close.
+     */
+    @Test
+    public void testNothingLostWithoutClose() {
+        RetainedSizeCache cache = new RetainedSizeCache(file);
+        cache.put(1, -100);
+        cache.put(2, 200);
+        cache.put(1, 150);
+
+        RetainedSizeCache reopened = new RetainedSizeCache(file);
+        assertEquals(2, reopened.size());
+        assertEquals(150, reopened.get(1));
+        assertEquals(200, reopened.get(2));
+        assertEquals(0, reopened.get(3));
+        cache.close();
+        reopened.close();
+    }
+
+    /**
+     * A record only partly written is dropped, the others survive.
+     */
+    @Test
+    public void testPartialRecord() throws IOException {
+        RetainedSizeCache cache = new RetainedSizeCache(file);
+        cache.put(1, 100);
+        cache.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{0, 0, 0, 2, 0});
+        out.close();
+
+        cache = new RetainedSizeCache(file);
+        assertEquals(100, cache.get(1));
+        cache.put(3, 300);
+        cache.close();
+        assertEquals(24, file.length());
+
+        cache = new RetainedSizeCache(file);
+        assertEquals(100, cache.get(1));
+        assertEquals(300, cache.get(3));
+        cache.close();
+    }
+
+    @Test
+    public void testCompaction() {
+        RetainedSizeCache cache = new RetainedSizeCache(file);
+        for (int ii = 0; ii < 10000; ii++)
+            cache.put(ii % 10, ii);
+        // never more than a few records per entry
+        assertTrue(file.length() < 12 * 2000);
+        cache.close();
+        assertEquals(12 * 10, file.length());
+
+        cache = new RetainedSizeCache(file);
+        for (int ii = 0; ii < 10; ii++)
+            assertEquals(9990 + ii, cache.get(ii));
+        cache.close();
+    }
+
+    /**
+     * Only the same ids find the size of a set.
+     */
+    @Test
+    public void testSets() {
+        RetainedSizeCache cache = new RetainedSizeCache(file);
+        cache.put(new int[]{3, 5, 9}, 1000);
+        assertEquals(1000, cache.get(new int[]{3, 5, 9}));
+        assertEquals(0, cache.get(new int[]{3, 5}));
+        assertEquals(0, cache.get(new int[]{3, 5, 9, 10}));
+        assertEquals(0, cache.get(new int[]{3, 5, 10}));
+        assertEquals(0, cache.get(new int[0]));
+
+        int[] big = new int[100000];
+        for (int ii = 0; ii < big.length; ii++)
+            big[ii] = ii * 2;
+        cache.put(big, 2000);
+        assertEquals(2000, cache.get(big.clone()));
+        big[big.length - 1]++;
+        assertEquals(0, cache.get(big));
+        assertEquals(1000, cache.get(new int[]{3, 5, 9}));
+
+        // only the last sets are kept
+        for (int ii = 0; ii < 10000; ii++)
+            cache.put(new int[]{ii, ii + 1}, ii + 1);
+        assertEquals(0, cache.get(new int[]{3, 5, 9}));
+        assertEquals(10000, cache.get(new int[]{9999, 10000}));
+        cache.close();
+    }
+}
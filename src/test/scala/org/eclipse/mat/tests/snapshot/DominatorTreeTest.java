@@ -11,13 +11,29 @@
 package org.eclipse.mat.tests.snapshot;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.SetInt;
+import org.eclipse.mat.parser.internal.SnapshotImpl;
+import org.eclipse.mat.parser.internal.snapshot.RetainedSizeCache;
+import org.eclipse.mat.query.Column;
+import org.eclipse.mat.query.ContextDerivedData;
+import org.eclipse.mat.query.ContextProvider;
+import org.eclipse.mat.query.IContextObject;
+import org.eclipse.mat.snapshot.ClassHistogramRecord;
+import org.eclipse.mat.snapshot.ExcludedReferencesDescriptor;
+import org.eclipse.mat.snapshot.Histogram;
 import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
 import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.snapshot.model.IClassLoader;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.query.RetainedSizeDerivedData;
 import org.eclipse.mat.tests.TestSnapshots;
 import org.eclipse.mat.util.VoidProgressListener;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
 
@@ -32,6 +48,358 @@ public class DominatorTreeTest {
         testWith(TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK5_64BIT, false), 376);
     }
 
+    @Test
+    public void testDomTreeInBackground() throws SnapshotException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("background_dominator_tree", "true");
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, options, true);
+        // the retained sizes are not 0 while the calculation runs
+        for (int root : snapshot.getGCRoots())
+            assertTrue(snapshot.getRetainedHeapSize(root) >= snapshot.getHeapSize(root));
+        // getImmediateDominatedIds() has to wait for the dominator tree
+        testWith(snapshot, 224);
+    }
+
+    /**
+     * The minimum retained sizes of the classes are written with the dominator
+     * tree, so asking for them waits for the calculation in the background.
+     */
+    @Test
+    public void testMinRetainedSizesWithDomTreeInBackground() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("domtree", null);
+        File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_32BIT), dump);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("background_dominator_tree", "true");
+        final ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener() {
+            @Override
+            public void subTask(String name) {
+                if (!"DominatorTreeThread".equals(Thread.currentThread().getName()))
+                    return;
+                started.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            final ISnapshot expected = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+            final Collection<IClass> classes = expected.getClasses();
+            FutureTask<Map<IClass, Long>> sizes = new FutureTask<Map<IClass, Long>>(
+                    new Callable<Map<IClass, Long>>() {
+                        public Map<IClass, Long> call() throws SnapshotException {
+                            Map<IClass, Long> answer = new HashMap<IClass, Long>();
+                            for (IClass clazz : classes) {
+                                int objectId = snapshot.mapAddressToId(clazz.getObjectAddress());
+                                answer.put(clazz, ((SnapshotImpl) snapshot).getMinRetainedSizeOfObjects(objectId));
+                            }
+                            return answer;
+                        }
+                    });
+            new Thread(sizes).start();
+            try {
+                sizes.get(200, TimeUnit.MILLISECONDS);
+                fail("minimum retained sizes before the dominator tree is calculated");
+            } catch (TimeoutException ignore) {
+                // waiting for the calculation
+            }
+            released.countDown();
+
+            int checked = 0;
+            for (Map.Entry<IClass, Long> entry : sizes.get(60, TimeUnit.SECONDS).entrySet()) {
+                long size = ((SnapshotImpl) expected).getMinRetainedSizeOfObjects(entry.getKey().getObjectId());
+                assertEquals(entry.getKey().getName(), size, entry.getValue().longValue());
+                if (size > 0)
+                    checked++;
+            }
+            assertTrue(checked > 1);
+        } finally {
+            released.countDown();
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * The retained set taken from the dominator tree matches the one of a
+     * full marking from the GC roots.
+     */
+    @Test
+    public void testRetainedSetOfManyObjects() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        List<int[]> sets = new ArrayList<int[]>();
+        for (IClass clazz : snapshot.getClasses()) {
+            if (clazz.getNumberOfObjects() > 1)
+                sets.add(clazz.getObjectIds());
+        }
+        // objects dominated by the same object
+        IClass rClass = snapshot.getClassesByName("org.eclipse.mat.tests.CreateSampleDump$DominatorTestData$R",
+                false).iterator().next();
+        sets.add(snapshot.getImmediateDominatedIds(rClass.getObjectIds()[0]));
+
+        for (int[] objectIds : sets) {
+            int[] expected = snapshot.getRetainedSet(objectIds, new ExcludedReferencesDescriptor[0],
+                    new VoidProgressListener());
+            int[] retained = snapshot.getRetainedSet(objectIds, new VoidProgressListener());
+            Arrays.sort(expected);
+            Arrays.sort(retained);
+            assertArrayEquals(expected, retained);
+        }
+    }
+
+    /**
+     * Retained sets taken from the dominator tree come in ascending order,
+     * like the ones computed by marking, and repeated ids are counted once.
+     */
+    @Test
+    public void testRetainedSetOrderAndDuplicates() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        for (IClass clazz : snapshot.getClasses()) {
+            int[] objectIds = clazz.getObjectIds();
+            if (objectIds.length < 2)
+                continue;
+
+            int[] retained = snapshot.getRetainedSet(objectIds, new VoidProgressListener());
+            for (int ii = 1; ii < retained.length; ii++)
+                assertTrue(retained[ii - 1] < retained[ii]);
+
+            int[] duplicates = new int[objectIds.length + 2];
+            System.arraycopy(objectIds, 0, duplicates, 0, objectIds.length);
+            duplicates[objectIds.length] = objectIds[0];
+            duplicates[objectIds.length + 1] = objectIds[objectIds.length - 1];
+            assertArrayEquals(retained, snapshot.getRetainedSet(duplicates, new VoidProgressListener()));
+            assertEquals(snapshot.getHeapSize(retained), snapshot.getRetainedHeapSize(duplicates,
+                    new VoidProgressListener()));
+        }
+    }
+
+    /**
+     * The minimum retained sizes of all classes, calculated at once, match the
+     * ones calculated class by class. The classes overlap with the instances
+     * of java.lang.Class.
+     */
+    @Test
+    public void testMinRetainedSizes() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        List<int[]> sets = new ArrayList<int[]>();
+        for (IClass clazz : snapshot.getClasses()) {
+            SetInt set = new SetInt();
+            set.add(clazz.getObjectId());
+            for (int objectId : clazz.getObjectIds())
+                set.add(objectId);
+            sets.add(set.toArray());
+        }
+
+        int[][] objectIds = sets.toArray(new int[sets.size()][]);
+        long[] sizes = snapshot.getMinRetainedSizes(objectIds, new VoidProgressListener());
+        assertEquals(objectIds.length, sizes.length);
+        for (int ii = 0; ii < objectIds.length; ii++)
+            assertEquals(snapshot.getMinRetainedSize(objectIds[ii], new VoidProgressListener()), sizes[ii]);
+
+        // few objects
+        int[][] few = {objectIds[0], objectIds[1]};
+        sizes = snapshot.getMinRetainedSizes(few, new VoidProgressListener());
+        assertEquals(snapshot.getMinRetainedSize(few[1], new VoidProgressListener()), sizes[1]);
+    }
+
+    /**
+     * The minimum retained sizes calculated for all rows of a histogram at
+     * once are kept with the classes, like the ones calculated row by row.
+     */
+    @Test
+    public void testMinRetainedSizesOfHistogram() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, true);
+        Histogram histogram = snapshot.getHistogram(new VoidProgressListener());
+        RetainedSizeDerivedData data = new RetainedSizeDerivedData(snapshot);
+        Column column = data.columnFor(data.getDerivedColumns()[0], histogram, new ContextProvider((String) null) {
+            public IContextObject getContext(Object row) {
+                return null;
+            }
+        });
+
+        // forget the precalculated sizes, so the batch calculates all rows
+        List<ClassHistogramRecord> records = new ArrayList<ClassHistogramRecord>(
+                histogram.getClassHistogramRecords());
+        for (ClassHistogramRecord record : records)
+            record.setRetainedHeapSize(0);
+        ((ContextDerivedData.DerivedBatchCalculator) column.getData(ContextDerivedData.DerivedCalculator.class))
+                .calculate(RetainedSizeDerivedData.APPROXIMATE, records, new VoidProgressListener());
+
+        // single objects are left to the calculation row by row. The class
+        // java.lang.Class is one of its instances, too
+        RetainedSizeCache cache = ((SnapshotImpl) snapshot).getRetainedSizeCache();
+        int checked = 0;
+        for (ClassHistogramRecord record : records) {
+            SetInt objectIds = new SetInt();
+            for (int objectId : record.getRetainedSizeObjectIds(snapshot))
+                objectIds.add(objectId);
+            if (objectIds.size() < 2)
+                continue;
+            long size = snapshot.getMinRetainedSize(objectIds.toArray(), new VoidProgressListener());
+            assertEquals(-size, record.getRetainedHeapSize());
+            assertEquals(-size, cache.get(record.getClassId()));
+            checked++;
+        }
+        assertTrue(checked > 1);
+    }
+
+    /**
+     * Big object sets are climbed on several threads. Repeat a set until it is
+     * big enough and compare with the set itself.
+     */
+    @Test
+    public void testTopAncestorsOfBigSets() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        SetInt set = new SetInt();
+        for (IClass clazz : snapshot.getClasses()) {
+            if (clazz.getName().startsWith("java.util."))
+                for (int objectId : clazz.getObjectIds())
+                    set.add(objectId);
+        }
+        int[] objectIds = set.toArray();
+        int[] repeated = new int[objectIds.length * (100000 / objectIds.length + 1)];
+        for (int ii = 0; ii < repeated.length; ii++)
+            repeated[ii] = objectIds[ii % objectIds.length];
+
+        int[] expected = snapshot.getTopAncestorsInDominatorTree(objectIds, new VoidProgressListener());
+        int[] ancestors = snapshot.getTopAncestorsInDominatorTree(repeated, new VoidProgressListener());
+        assertEquals(expected.length * (repeated.length / objectIds.length), ancestors.length);
+        assertEquals(asSet(expected), asSet(ancestors));
+
+        expected = snapshot.getMinRetainedSet(objectIds, new VoidProgressListener());
+        int[] retained = snapshot.getMinRetainedSet(repeated, new VoidProgressListener());
+        Arrays.sort(expected);
+        Arrays.sort(retained);
+        assertArrayEquals(expected, retained);
+    }
+
+    /**
+     * The retained size of a set is the size of its retained set, also when
+     * it is taken from the cache for the same ids in another order.
+     */
+    @Test
+    public void testRetainedHeapSizeOfSets() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        int[] objectIds = snapshot.getClassesByName("java.util.HashMap", false).iterator().next().getObjectIds();
+        long expected = snapshot.getHeapSize(snapshot.getRetainedSet(objectIds, new VoidProgressListener()));
+        assertEquals(expected, snapshot.getRetainedHeapSize(objectIds, new VoidProgressListener()));
+
+        int[] reversed = new int[objectIds.length];
+        for (int ii = 0; ii < objectIds.length; ii++)
+            reversed[ii] = objectIds[objectIds.length - 1 - ii];
+        assertEquals(expected, snapshot.getRetainedHeapSize(reversed, new VoidProgressListener()));
+    }
+
+    /**
+     * The minimum retained sizes of all classes and class loaders are
+     * calculated together with the dominator tree.
+     */
+    @Test
+    public void testMinRetainedSizesOfClasses() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, new HashMap<String, String>(),
+                true);
+        Map<Integer, SetInt> loaders = new HashMap<Integer, SetInt>();
+        for (IClass clazz : snapshot.getClasses()) {
+            SetInt ids = new SetInt();
+            ids.add(clazz.getObjectId());
+            for (int objectId : clazz.getObjectIds())
+                ids.add(objectId);
+            long expected = snapshot.getMinRetainedSize(ids.toArray(), new VoidProgressListener());
+            assertEquals(clazz.getName(), -expected, clazz.getRetainedHeapSizeOfObjects(false, false, null));
+
+            SetInt loaderIds = loaders.get(clazz.getClassLoaderId());
+            if (loaderIds == null) {
+                loaders.put(clazz.getClassLoaderId(), loaderIds = new SetInt());
+                loaderIds.add(clazz.getClassLoaderId());
+            }
+            for (int objectId : ids.toArray())
+                loaderIds.add(objectId);
+        }
+
+        for (Map.Entry<Integer, SetInt> entry : loaders.entrySet()) {
+            IObject loader = snapshot.getObject(entry.getKey());
+            if (loader instanceof IClassLoader) {
+                long expected = snapshot.getMinRetainedSize(entry.getValue().toArray(), new VoidProgressListener());
+                assertEquals(-expected, ((IClassLoader) loader).getRetainedHeapSizeOfObjects(false, false, null));
+            }
+        }
+    }
+
+    /**
+     * The retained sizes summed up on several threads and the dominated index
+     * written from the sorted runs match a tree walk done object by object.
+     */
+    @Test
+    public void testRetainedSizesAndDominatedIndex() throws SnapshotException {
+        checkDominatorTree(TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false));
+        checkDominatorTree(TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK5_64BIT, false));
+    }
+
+    /**
+     * The same with the dumps split into many chunks.
+     */
+    @Test
+    public void testRetainedSizesAndDominatedIndexInChunks() throws SnapshotException {
+        Map<String, String> options = new HashMap<String, String>();
+        checkDominatorTree(TestSnapshots.getSnapshotInChunks(TestSnapshots.SUN_JDK6_32BIT, options));
+        checkDominatorTree(TestSnapshots.getSnapshotInChunks(TestSnapshots.SUN_JDK5_64BIT, options));
+    }
+
+    private void checkDominatorTree(ISnapshot snapshot) throws SnapshotException {
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+
+        // walk down from the <ROOT>, every object has to be met exactly once
+        int[] order = new int[numberOfObjects];
+        int size = 0;
+        boolean[] visited = new boolean[numberOfObjects];
+        int[] stack = new int[numberOfObjects + 1];
+        int top = 0;
+        stack[top++] = -1;
+        while (top > 0) {
+            int parent = stack[--top];
+            for (int child : snapshot.getImmediateDominatedIds(parent)) {
+                assertFalse(visited[child]);
+                visited[child] = true;
+                assertEquals(parent, snapshot.getImmediateDominatorId(child));
+                order[size++] = child;
+                stack[top++] = child;
+            }
+        }
+        assertEquals(numberOfObjects, size);
+
+        // children come before their parents in the reversed walk
+        long[] expected = new long[numberOfObjects];
+        for (int ii = size - 1; ii >= 0; ii--) {
+            int objectId = order[ii];
+            expected[objectId] += snapshot.getHeapSize(objectId);
+            int dominatorId = snapshot.getImmediateDominatorId(objectId);
+            if (dominatorId >= 0)
+                expected[dominatorId] += expected[objectId];
+        }
+
+        // including the objects dominated by the <ROOT>
+        for (int objectId = -1; objectId < numberOfObjects; objectId++) {
+            if (objectId >= 0)
+                assertEquals(expected[objectId], snapshot.getRetainedHeapSize(objectId));
+
+            int[] dominated = snapshot.getImmediateDominatedIds(objectId);
+            for (int ii = 1; ii < dominated.length; ii++)
+                assertTrue(expected[dominated[ii - 1]] >= expected[dominated[ii]]);
+        }
+    }
+
+    private static Set<Integer> asSet(int[] objectIds) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int objectId : objectIds)
+            set.add(objectId);
+        return set;
+    }
+
     private void testWith(ISnapshot snapshot, long size) throws SnapshotException {
         Collection<IClass> rClasses = snapshot.getClassesByName(
                 "org.eclipse.mat.tests.CreateSampleDump$DominatorTestData$R", false);
@@ -12,7 +12,12 @@ package org.eclipse.mat.tests.snapshot;
 
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.SetInt;
+import org.eclipse.mat.inspections.collections.CollectionUtil;
 import org.eclipse.mat.query.IResult;
+import org.eclipse.mat.snapshot.ClassHistogramRecord;
+import org.eclipse.mat.snapshot.FieldColumns;
+import org.eclipse.mat.snapshot.Histogram;
+import org.eclipse.mat.snapshot.IObjectVisitor;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.SnapshotFactory;
 import org.eclipse.mat.snapshot.model.*;
@@ -27,8 +32,14 @@ import org.junit.runners.Parameterized.Parameters;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 import static org.junit.Assume.assumeTrue;
@@ -221,6 +232,200 @@ public class GeneralSnapshotTests {
         assertTrue(snapshot.getSnapshotInfo().getNumberOfClassLoaders() > 1);
     }
 
+    /**
+     * Read the objects from several threads at once, the results must match
+     * the ones read by one thread.
+     */
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        final String[] expected = new String[numberOfObjects];
+        for (int o = 0; o < numberOfObjects; o++)
+            expected[o] = describe(snapshot.getObject(o));
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int mismatches = 0;
+                        // every thread starts elsewhere, so the readers keep seeking
+                        for (int ii = 0; ii < numberOfObjects; ii++) {
+                            int o = (int) ((ii + (long) offset * numberOfObjects / 4) % numberOfObjects);
+                            if (!expected[o].equals(describe(snapshot.getObject(o))))
+                                mismatches++;
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            for (Future<Integer> f : futures)
+                assertEquals(Integer.valueOf(0), f.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetObjects() throws SnapshotException {
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        // every other object backwards, with a duplicate
+        int[] objectIds = new int[numberOfObjects / 2 + 1];
+        for (int ii = 0; ii < objectIds.length - 1; ii++)
+            objectIds[ii] = numberOfObjects - 1 - 2 * ii;
+        objectIds[objectIds.length - 1] = objectIds[0];
+
+        IObject[] objects = snapshot.getObjects(objectIds, new VoidProgressListener());
+        assertEquals(objectIds.length, objects.length);
+        for (int ii = 0; ii < objectIds.length; ii++) {
+            assertEquals(objectIds[ii], objects[ii].getObjectId());
+            assertEquals(describe(snapshot.getObject(objectIds[ii])), describe(objects[ii]));
+        }
+
+        final boolean[] visited = new boolean[objectIds.length];
+        snapshot.getObjects(objectIds, new IObjectVisitor() {
+            public void visit(int index, IObject object) {
+                assertFalse(visited[index]);
+                visited[index] = true;
+            }
+        }, new VoidProgressListener());
+        for (boolean v : visited)
+            assertTrue(v);
+    }
+
+    /**
+     * The histogram built in chunks has the objects of each class in the
+     * order they were given, the counting histogram the same numbers.
+     */
+    @Test
+    public void testHistogramOfObjects() throws SnapshotException {
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        int[] objectIds = new int[numberOfObjects];
+        for (int ii = 0; ii < numberOfObjects; ii++)
+            objectIds[ii] = numberOfObjects - 1 - ii;
+
+        Histogram histogram = snapshot.getHistogram(objectIds, new VoidProgressListener());
+        Histogram counts = snapshot.getHistogram(objectIds, false, new VoidProgressListener());
+        assertEquals(numberOfObjects, histogram.getNumberOfObjects());
+        assertEquals(snapshot.getHeapSize(objectIds), histogram.getUsedHeapSize());
+        assertEquals(histogram.getNumberOfObjects(), counts.getNumberOfObjects());
+        assertEquals(histogram.getUsedHeapSize(), counts.getUsedHeapSize());
+        assertEquals(histogram.getClassHistogramRecords().size(), counts.getClassHistogramRecords().size());
+
+        for (ClassHistogramRecord record : histogram.getClassHistogramRecords()) {
+            int[] ids = record.getObjectIds();
+            assertEquals(record.getNumberOfObjects(), ids.length);
+            for (int ii = 0; ii < ids.length; ii++) {
+                assertEquals(record.getClassId(), snapshot.getClassOf(ids[ii]).getObjectId());
+                if (ii > 0)
+                    assertTrue(ids[ii - 1] > ids[ii]);
+            }
+        }
+    }
+
+    /**
+     * The size of a collection is the same whether its fields have been
+     * decoded already or only the size field is read.
+     */
+    @Test
+    public void testCollectionSize() throws SnapshotException {
+        CollectionUtil.Info info = CollectionUtil.getInfo("java.util.ArrayList");
+        Collection<IClass> classes = snapshot.getClassesByName("java.util.ArrayList", false);
+        assumeTrue(classes != null && !classes.isEmpty());
+
+        for (int objectId : classes.iterator().next().getObjectIds()) {
+            IObject list = snapshot.getObject(objectId);
+            int size = info.getSize(list);
+            assertEquals(((Integer) list.resolveValue("size")).intValue(), size);
+            // now from the decoded fields
+            assertEquals(size, info.getSize(list));
+        }
+    }
+
+    @Test
+    public void testReadField() throws SnapshotException {
+        int checked = 0;
+        for (IClass cls : snapshot.getClasses()) {
+            int[] objectIds = cls.getObjectIds();
+            if (objectIds.length == 0 || snapshot.isArray(objectIds[0]) || cls.getName().equals("java.lang.Class"))
+                continue;
+            // at most a few objects per class
+            for (int ii = 0; ii < Math.min(5, objectIds.length); ii++) {
+                int objectId = objectIds[ii];
+                IInstance instance = (IInstance) snapshot.getObject(objectId);
+                for (Field field : instance.getFields()) {
+                    // the value read alone must match the value in the instance
+                    Object expected = instance.getField(field.getName()).getValue();
+                    Object value = snapshot.readField(objectId, field.getName());
+                    if (expected instanceof ObjectReference)
+                        assertEquals(((ObjectReference) expected).getObjectAddress(),
+                                ((ObjectReference) value).getObjectAddress());
+                    else
+                        assertEquals(expected, value);
+
+                    FieldRef ref = snapshot.getFieldRef(cls, field.getName());
+                    if (expected instanceof Integer)
+                        assertEquals(expected, snapshot.readIntField(objectId, ref));
+                    else if (expected instanceof Long)
+                        assertEquals(expected, snapshot.readLongField(objectId, ref));
+                    else if (field.getType() == IObject.Type.OBJECT)
+                        assertEquals(expected == null ? 0 : ((ObjectReference) expected).getObjectAddress(),
+                                snapshot.readRefField(objectId, ref));
+                    checked++;
+                }
+            }
+        }
+        assertTrue(checked > 0);
+        assertNull(snapshot.readField(0, "noSuchField"));
+    }
+
+    @Test
+    public void testFieldColumns() throws SnapshotException {
+        IClass string = snapshot.getClassesByName("java.lang.String", false).iterator().next();
+        String[] names = {"value", "hash", "noSuchField"};
+        FieldColumns columns = snapshot.getFieldColumns(string, true, names, new VoidProgressListener());
+        assertTrue(Arrays.equals(string.getObjectIds(), columns.getObjectIds()));
+
+        for (int row = 0; row < columns.getNumberOfRows(); row++) {
+            int objectId = columns.getObjectIds()[row];
+            ObjectReference value = (ObjectReference) snapshot.readField(objectId, "value");
+            assertEquals(value == null ? -1 : value.getObjectId(), columns.getObjectId(row, 0));
+            assertEquals(snapshot.readField(objectId, "hash"), columns.getInt(row, 1));
+            assertFalse(columns.isPresent(row, 2));
+        }
+
+        // arrays have no fields
+        int[] arrays = {};
+        for (IClass cls : snapshot.getClasses()) {
+            if (cls.isArrayType() && cls.getNumberOfObjects() > 0) {
+                arrays = cls.getObjectIds();
+                break;
+            }
+        }
+        columns = snapshot.getFieldColumns(arrays, names, new VoidProgressListener());
+        for (int row = 0; row < columns.getNumberOfRows(); row++)
+            assertFalse(columns.isPresent(row, 0));
+    }
+
+    private static String describe(IObject obj) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(obj.getObjectAddress()).append(' ').append(obj.getUsedHeapSize());
+        if (obj instanceof IInstance) {
+            for (Field field : ((IInstance) obj).getFields())
+                buf.append(' ').append(field.getName()).append('=').append(field.getValue());
+        } else if (obj instanceof IObjectArray) {
+            buf.append(' ').append(Arrays.toString(((IObjectArray) obj).getReferenceArray()));
+        } else if (obj instanceof IPrimitiveArray) {
+            IPrimitiveArray array = (IPrimitiveArray) obj;
+            for (int ii = 0; ii < array.getLength(); ii++)
+                buf.append(' ').append(array.getValueAt(ii));
+        }
+        return buf.toString();
+    }
+
     @Test
     public void testRegressionReport() throws SnapshotException {
         SnapshotQuery query = SnapshotQuery.parse("default_report org.eclipse.mat.tests:regression", snapshot);
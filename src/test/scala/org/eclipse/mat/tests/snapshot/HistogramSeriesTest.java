@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import org.eclipse.mat.snapshot.ClassHistogramRecord;
+import org.eclipse.mat.snapshot.ClassLoaderHistogramRecord;
+import org.eclipse.mat.snapshot.Histogram;
+import org.eclipse.mat.snapshot.HistogramSeries;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class HistogramSeriesTest {
+
+    /**
+     * Classes are matched by name, missing classes count as 0, and the
+     * steadiest growing class comes first.
+     */
+    @Test
+    public void testGrowth() {
+        HistogramSeries series = new HistogramSeries();
+        series.add(histogram("dump1", record("a.Leak", 10, 100), record("a.Shrinking", 30, 300)));
+        series.add(histogram("dump2", record("a.Leak", 20, 200), record("a.Shrinking", 20, 200),
+                record("a.Late", 1, 10), record("a.Leak", 5, 50)));
+        series.add(histogram("dump3", record("a.Leak", 40, 400), record("a.Late", 1, 10)));
+
+        assertEquals(3, series.getNumberOfDumps());
+        assertEquals(3, series.getRowCount());
+        assertEquals("dump2", series.getLabel(1));
+
+        assertEquals("a.Leak", series.getClassName(0));
+        assertEquals("a.Late", series.getClassName(1));
+        assertEquals("a.Shrinking", series.getClassName(2));
+
+        assertEquals(25, series.getValue(0, 1, HistogramSeries.OBJECTS));
+        assertEquals(250, series.getValue(0, 1, HistogramSeries.SHALLOW_HEAP));
+        assertEquals(0, series.getValue(1, 0, HistogramSeries.SHALLOW_HEAP));
+        assertEquals(0, series.getValue(2, 2, HistogramSeries.OBJECTS));
+
+        assertEquals(15.0, series.getGrowth(0, HistogramSeries.OBJECTS), 1e-9);
+        assertEquals(150.0, series.getGrowth(0, HistogramSeries.SHALLOW_HEAP), 1e-9);
+        assertEquals(5.0, series.getGrowth(1, HistogramSeries.SHALLOW_HEAP), 1e-9);
+        assertEquals(-150.0, series.getGrowth(2, HistogramSeries.SHALLOW_HEAP), 1e-9);
+        assertEquals(-15.0, series.getGrowth(2, HistogramSeries.RETAINED_HEAP), 1e-9);
+
+        Object row = series.getRow(0);
+        assertEquals("a.Leak", series.getColumnValue(row, 0));
+        assertEquals(400L, series.getColumnValue(row, 3));
+        assertEquals(150.0, series.getColumnValue(row, 5));
+        assertEquals(7, series.getColumns().length);
+    }
+
+    /**
+     * The same dump twice does not grow, and holds the values of its
+     * histogram.
+     */
+    @Test
+    public void testSameDump() throws Exception {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        Histogram histogram = snapshot.getHistogram(new VoidProgressListener());
+        HistogramSeries series = new HistogramSeries(histogram, histogram);
+
+        long objects = 0;
+        long shallowHeap = 0;
+        for (int ii = 0; ii < series.getRowCount(); ii++) {
+            assertEquals(0.0, series.getGrowth(ii, HistogramSeries.SHALLOW_HEAP), 0.0);
+            assertEquals(series.getValue(ii, 0, HistogramSeries.OBJECTS),
+                    series.getValue(ii, 1, HistogramSeries.OBJECTS));
+            objects += series.getValue(ii, 1, HistogramSeries.OBJECTS);
+            shallowHeap += series.getValue(ii, 1, HistogramSeries.SHALLOW_HEAP);
+        }
+        assertEquals(histogram.getNumberOfObjects(), objects);
+        assertEquals(histogram.getUsedHeapSize(), shallowHeap);
+    }
+
+    private static ClassHistogramRecord record(String className, long numberOfObjects, long usedHeapSize) {
+        return new ClassHistogramRecord(className, -1, numberOfObjects, usedHeapSize, -usedHeapSize / 10);
+    }
+
+    private static Histogram histogram(String label, ClassHistogramRecord... records) {
+        ArrayList<ClassHistogramRecord> classRecords = new ArrayList<ClassHistogramRecord>();
+        for (ClassHistogramRecord record : records)
+            classRecords.add(record);
+        return new Histogram(label, classRecords, new ArrayList<ClassLoaderHistogramRecord>(), 0, 0, 0);
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.IPathsFromGCRootsComputer;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PathsFromGCRootsTest {
+
+    /**
+     * The first path taken from the GC root parents index is a shortest path,
+     * and the search finds all the other paths without repeating it.
+     */
+    @Test
+    public void testIndexedShortestPath() throws SnapshotException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("gc_root_paths", "true");
+        ISnapshot indexed = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, options, true);
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+        assertTrue(new File(indexed.getSnapshotInfo().getPrefix() + "gcpar.index").exists());
+
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        for (int objectId = 0; objectId < numberOfObjects; objectId += numberOfObjects / 50) {
+            List<int[]> expected = getAllPaths(snapshot.getPathsFromGCRoots(objectId, null));
+            List<int[]> paths = getAllPaths(indexed.getPathsFromGCRoots(objectId, null));
+            if (expected.isEmpty()) {
+                assertTrue(paths.isEmpty());
+                continue;
+            }
+
+            int[] first = paths.get(0);
+            assertEquals(expected.get(0).length, first.length);
+            assertEquals(objectId, first[0]);
+            for (int ii = 1; ii < first.length; ii++)
+                assertTrue(contains(indexed.getInboundRefererIds(first[ii - 1]), first[ii]));
+            assertTrue(indexed.isGCRoot(first[first.length - 1])
+                    || indexed.isGCRoot(first[first.length - 2]));
+
+            Set<List<Integer>> found = new HashSet<List<Integer>>();
+            for (int[] path : paths)
+                assertTrue(found.add(asList(path)));
+            for (int[] path : expected)
+                assertTrue(found.contains(asList(path)));
+        }
+    }
+
+    /**
+     * The paths found for many objects at once are shortest paths, also with
+     * excluded fields, and the same with the GC root parents index.
+     */
+    @Test
+    public void testMultiplePaths() throws SnapshotException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("gc_root_paths", "true");
+        ISnapshot indexed = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, options, true);
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+
+        int[] objectIds = snapshot.getClassesByName("java.lang.String", false).iterator().next().getObjectIds();
+        Map<IClass, Set<String>> excludeMap = new HashMap<IClass, Set<String>>();
+        for (IClass clazz : snapshot.getClassesByName("java.lang.ref.Reference", true))
+            excludeMap.put(clazz, Collections.singleton("referent"));
+        excludeMap.put(snapshot.getClassesByName("java.lang.Thread", false).iterator().next(), null);
+
+        Object[] paths = snapshot.getMultiplePathsFromGCRoots(objectIds, null).getAllPaths(
+                new VoidProgressListener());
+        Object[] indexedPaths = indexed.getMultiplePathsFromGCRoots(objectIds, null).getAllPaths(
+                new VoidProgressListener());
+        assertEquals(objectIds.length, paths.length);
+        assertEquals(paths.length, indexedPaths.length);
+        for (int ii = 0; ii < paths.length; ii++)
+            assertArrayEquals((int[]) paths[ii], (int[]) indexedPaths[ii]);
+        checkShortest(snapshot, paths, null);
+
+        paths = snapshot.getMultiplePathsFromGCRoots(objectIds, excludeMap).getAllPaths(new VoidProgressListener());
+        assertTrue(paths.length > 0);
+        checkShortest(snapshot, paths, excludeMap);
+    }
+
+    /**
+     * Fields excluded from instances, threads with local variables and the
+     * reference of an instance to its class.
+     */
+    @Test
+    public void testMultiplePathsExcludedFields() throws SnapshotException {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, false);
+
+        int[] objectIds = snapshot.getClassesByName("java.lang.String", false).iterator().next().getObjectIds();
+        Map<IClass, Set<String>> excludeMap = new HashMap<IClass, Set<String>>();
+        for (IClass clazz : snapshot.getClassesByName("java.util.HashMap$Entry", true))
+            excludeMap.put(clazz, new HashSet<String>(Arrays.asList("next", "value")));
+        for (IClass clazz : snapshot.getClassesByName("java.lang.Thread", true))
+            excludeMap.put(clazz, new HashSet<String>(Arrays.asList("name", "<class>")));
+        assertTrue(excludeMap.size() > 2);
+
+        Object[] paths = snapshot.getMultiplePathsFromGCRoots(objectIds, excludeMap).getAllPaths(
+                new VoidProgressListener());
+        assertTrue(paths.length > 0);
+        checkShortest(snapshot, paths, excludeMap);
+    }
+
+    private static void checkShortest(ISnapshot snapshot, Object[] paths, Map<IClass, Set<String>> excludeMap)
+            throws SnapshotException {
+        for (int ii = 0; ii < paths.length; ii += 10) {
+            int[] path = (int[]) paths[ii];
+            int[] expected = snapshot.getPathsFromGCRoots(path[0], excludeMap).getNextShortestPath();
+            assertEquals(expected.length, path.length);
+            assertTrue(snapshot.isGCRoot(path[path.length - 1]));
+        }
+    }
+
+    private static List<int[]> getAllPaths(IPathsFromGCRootsComputer computer) throws SnapshotException {
+        List<int[]> paths = new ArrayList<int[]>();
+        int[] path;
+        while ((path = computer.getNextShortestPath()) != null)
+            paths.add(path);
+        return paths;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int ii : ids)
+            if (ii == id)
+                return true;
+        return false;
+    }
+
+    private static List<Integer> asList(int[] path) {
+        List<Integer> list = new ArrayList<Integer>(path.length);
+        for (int id : path)
+            list.add(id);
+        return list;
+    }
+}
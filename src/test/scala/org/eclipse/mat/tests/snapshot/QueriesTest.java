@@ -14,6 +14,7 @@ package org.eclipse.mat.tests.snapshot;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.query.Column;
 import org.eclipse.mat.query.IContextObject;
+import org.eclipse.mat.query.IResultTable;
 import org.eclipse.mat.query.IResultTree;
 import org.eclipse.mat.query.refined.RefinedResultBuilder;
 import org.eclipse.mat.query.refined.RefinedTable;
@@ -28,6 +29,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import static org.junit.Assert.*;
 
 public class QueriesTest {
@@ -177,4 +181,34 @@ public class QueriesTest {
             prev = val;
         }
     }
+
+    /**
+     * Group by a primitive and by a reference field, the groups must match
+     * the values of the objects.
+     */
+    @Test
+    public void testGroupByValue() throws SnapshotException {
+        IClass thread = snapshot.getClassesByName("java.lang.Thread", false).iterator().next();
+        for (String field : new String[]{"priority", "name"}) {
+            Set<String> expected = new HashSet<String>();
+            for (int objectId : thread.getObjectIds()) {
+                Object value = snapshot.getObject(objectId).resolveValue(field);
+                if (value instanceof IObject)
+                    value = ((IObject) value).getClassSpecificName();
+                expected.add(String.valueOf(value));
+            }
+
+            SnapshotQuery query = SnapshotQuery.parse("group_by_value java.lang.Thread -field " + field, snapshot);
+            IResultTable table = (IResultTable) query.execute(new VoidProgressListener());
+            Set<String> found = new HashSet<String>();
+            int count = 0;
+            for (int row = 0; row < table.getRowCount(); row++) {
+                Object r = table.getRow(row);
+                found.add(String.valueOf(table.getColumnValue(r, 0)));
+                count += ((Number) table.getColumnValue(r, 1)).intValue();
+            }
+            assertEquals(expected, found);
+            assertEquals(thread.getNumberOfObjects(), count);
+        }
+    }
 }
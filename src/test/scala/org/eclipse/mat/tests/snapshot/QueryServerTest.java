@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import org.eclipse.mat.internal.apps.QueryServer;
+import org.eclipse.mat.query.IResultTable;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.query.SnapshotQuery;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryServerTest {
+    private ISnapshot snapshot;
+    private QueryServer server;
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_18_32BIT, false);
+        server = new QueryServer(0, 2);
+        server.start();
+        socket = new Socket(InetAddress.getByName(null), server.getPort());
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        server.stop();
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        String path = "\"" + snapshot.getSnapshotInfo().getPath() + "\"";
+
+        List<String> answer = send("open " + path);
+        assertEquals("OK", answer.get(0));
+        assertEquals(snapshot.getSnapshotInfo().getPath(), answer.get(1));
+
+        // the options of an open snapshot cannot change
+        answer = send("open " + path + " -gc_root_paths");
+        assertTrue(answer.get(0).startsWith("ERROR "));
+        answer = send("open " + path + " -gc_root_paths=false");
+        assertEquals("OK", answer.get(0));
+        // the defaults of the parser and no options at all
+        answer = send("open " + path + " -validate_indices -keep_unreachable_objects=false");
+        assertEquals("OK", answer.get(0));
+        answer = send("open " + path);
+        assertEquals("OK", answer.get(0));
+
+        // one line per class plus the header
+        answer = send("query " + path + " csv histogram");
+        assertEquals("OK", answer.get(0));
+        assertEquals(snapshot.getClasses().size() + 2, answer.size());
+        // in the order of the query, not sorted
+        IResultTable histogram = (IResultTable) SnapshotQuery.parse("histogram", snapshot).execute(
+                new VoidProgressListener());
+        for (int row = 0; row < histogram.getRowCount(); row++) {
+            Object label = histogram.getColumnValue(histogram.getRow(row), 0);
+            assertTrue(answer.get(row + 2).startsWith(String.valueOf(label)));
+        }
+
+        answer = send("oql " + path + " json SELECT s.count FROM java.lang.String s");
+        assertEquals("OK", answer.get(0));
+        assertEquals("[", answer.get(1));
+        assertEquals("]", answer.get(answer.size() - 1));
+        assertEquals(snapshot.getClassesByName("java.lang.String", false).iterator().next().getNumberOfObjects(),
+                answer.size() - 3);
+
+        answer = send("query " + path + " csv no_such_query");
+        assertTrue(answer.get(0).startsWith("ERROR "));
+
+        answer = send("list");
+        assertEquals(2, answer.size());
+
+        answer = send("close " + path);
+        assertEquals(1, answer.size());
+        answer = send("close " + path);
+        assertTrue(answer.get(0).startsWith("ERROR "));
+    }
+
+    /**
+     * More clients than threads stay connected without sending commands, and
+     * all of them are still served.
+     */
+    @Test
+    public void testIdleConnections() throws Exception {
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            // the server has 2 threads, one connection is open already
+            for (int ii = 0; ii < 4; ii++) {
+                Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+                socket.setSoTimeout(30000);
+                sockets.add(socket);
+            }
+            for (int ii = sockets.size() - 1; ii >= 0; ii--) {
+                Socket socket = sockets.get(ii);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                assertEquals("OK", send(in, out, "list").get(0));
+            }
+            socket.setSoTimeout(30000);
+            assertEquals("OK", send("list").get(0));
+        } finally {
+            for (Socket socket : sockets)
+                socket.close();
+        }
+    }
+
+    /**
+     * Closing a dump while queries run on it on other connections does not
+     * dispose the snapshot under them. The dump is a copy, so only the server
+     * keeps it open.
+     */
+    @Test
+    public void testCloseWhileBusy() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("server", null);
+        File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(new File(snapshot.getSnapshotInfo().getPath()), dump);
+        closeWhileBusy("\"" + dump.getPath() + "\"", snapshot.getClasses().size() + 2);
+    }
+
+    private void closeWhileBusy(final String path, final int expected) throws Exception {
+        assertEquals("OK", send("open " + path).get(0));
+
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread client = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+                    try {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                "UTF-8"));
+                        Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                        for (int ii = 0; ii < 20; ii++) {
+                            List<String> answer = send(in, out, "query " + path + " csv histogram");
+                            if (!"OK".equals(answer.get(0)) || answer.size() != expected)
+                                failures.add(answer.get(0));
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    failures.add(e.toString());
+                }
+            }
+        };
+        client.start();
+        while (client.isAlive()) {
+            // the dump is not open if the query has not reopened it yet
+            send("close " + path);
+        }
+        client.join();
+        assertEquals(Collections.<String>emptyList(), failures);
+        send("close " + path);
+    }
+
+
+    /**
+     * @return the answer without the final dot
+     */
+    private List<String> send(String command) throws IOException {
+        return send(in, out, command);
+    }
+
+    private static List<String> send(BufferedReader in, Writer out, String command) throws IOException {
+        out.write(command + "\n");
+        out.flush();
+
+        List<String> answer = new ArrayList<String>();
+        String line;
+        while (!".".equals(line = in.readLine())) {
+            assertNotNull(line);
+            answer.add(line.startsWith("..") ? line.substring(1) : line);
+        }
+        return answer;
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.hprof.HprofFieldStore;
+import org.eclipse.mat.parser.index.IndexManager.Index;
+import org.eclipse.mat.parser.index.SnapshotContainer;
+import org.eclipse.mat.parser.internal.SnapshotImpl;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.snapshot.model.Field;
+import org.eclipse.mat.snapshot.model.FieldDescriptor;
+import org.eclipse.mat.snapshot.model.GCRootInfo;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.snapshot.model.IInstance;
+import org.eclipse.mat.snapshot.model.ObjectReference;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SnapshotContainerTest {
+
+    @Test
+    public void testSunJDK6_18_64() throws Exception {
+        compare(TestSnapshots.SUN_JDK6_18_64BIT);
+    }
+
+    @Test
+    public void testSunJDK5_64() throws Exception {
+        compare(TestSnapshots.SUN_JDK5_64BIT);
+    }
+
+    /**
+     * The container is written once the dominator tree calculated in the
+     * background is complete.
+     */
+    @Test
+    public void testDominatorTreeInBackground() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("background_dominator_tree", "true");
+        compare(TestSnapshots.SUN_JDK6_18_64BIT, options);
+    }
+
+    private void compare(String dumpname) throws Exception {
+        compare(dumpname, new HashMap<String, String>());
+    }
+
+    private void compare(String dumpname, Map<String, String> options) throws Exception {
+        options.put("snapshot_container", "true");
+        ISnapshot snapshot = TestSnapshots.getSnapshot(dumpname, options, true);
+
+        File container = new File(snapshot.getSnapshotInfo().getPrefix() + SnapshotContainer.SUFFIX);
+        assertTrue(SnapshotContainer.isContainer(container));
+        assertTrue(SnapshotContainer.open(container).contains(Index.I2MINRETAINED.getFile("").getName()));
+
+        // open a copy of the container, without any of the index files
+        File directory = TestSnapshots.createGeneratedName("container", null);
+        File copy = new File(directory, "copy." + SnapshotContainer.SUFFIX);
+        ISnapshot copied = null;
+        try {
+            TestSnapshots.copyFile(container, copy);
+            copied = SnapshotFactory.openSnapshot(copy, new HashMap<String, String>(), new VoidProgressListener());
+
+            assertEquals(snapshot.getSnapshotInfo().getNumberOfObjects(), copied.getSnapshotInfo()
+                    .getNumberOfObjects());
+            assertEquals(snapshot.getSnapshotInfo().getUsedHeapSize(), copied.getSnapshotInfo().getUsedHeapSize());
+            int[] roots = snapshot.getGCRoots().clone();
+            int[] copiedRoots = copied.getGCRoots().clone();
+            Arrays.sort(roots);
+            Arrays.sort(copiedRoots);
+            assertTrue(Arrays.equals(roots, copiedRoots));
+
+            compareClasses(snapshot, copied);
+
+            int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+            for (int objectId = 0; objectId < numberOfObjects; objectId++) {
+                assertEquals(snapshot.isArray(objectId), copied.isArray(objectId));
+                assertEquals(snapshot.isClassLoader(objectId), copied.isClassLoader(objectId));
+                assertEquals(snapshot.mapIdToAddress(objectId), copied.mapIdToAddress(objectId));
+                assertEquals(snapshot.getClassOf(objectId).getName(), copied.getClassOf(objectId).getName());
+                assertEquals(snapshot.getHeapSize(objectId), copied.getHeapSize(objectId));
+                assertEquals(snapshot.getRetainedHeapSize(objectId), copied.getRetainedHeapSize(objectId));
+                assertTrue(Arrays.equals(snapshot.getOutboundReferentIds(objectId), copied
+                        .getOutboundReferentIds(objectId)));
+                assertTrue(Arrays.equals(snapshot.getInboundRefererIds(objectId), copied
+                        .getInboundRefererIds(objectId)));
+                assertTrue(Arrays.equals(snapshot.getImmediateDominatedIds(objectId), copied
+                        .getImmediateDominatedIds(objectId)));
+            }
+
+            // thread stacks come from the container, too
+            for (int objectId : snapshot.getGCRoots()) {
+                for (GCRootInfo info : snapshot.getGCRootInfo(objectId)) {
+                    if (info.getType() == GCRootInfo.Type.THREAD_OBJ)
+                        assertEquals(snapshot.getThreadStack(objectId) != null,
+                                copied.getThreadStack(objectId) != null);
+                }
+            }
+        } finally {
+            if (copied != null)
+                SnapshotFactory.dispose(copied);
+        }
+    }
+
+    /**
+     * The classes are restored from the master index of the container, their
+     * minimum retained sizes from its section.
+     */
+    private static void compareClasses(ISnapshot snapshot, ISnapshot copied) throws SnapshotException {
+        assertEquals(snapshot.getClasses().size(), copied.getClasses().size());
+        long minRetainedSizes = 0;
+        for (IClass clazz : snapshot.getClasses()) {
+            IClass copy = (IClass) copied.getObject(clazz.getObjectId());
+            long minRetainedSize = ((SnapshotImpl) snapshot).getMinRetainedSizeOfObjects(clazz.getObjectId());
+            assertEquals(minRetainedSize, ((SnapshotImpl) copied).getMinRetainedSizeOfObjects(copy.getObjectId()));
+            minRetainedSizes += minRetainedSize;
+            assertEquals(clazz.getName(), copy.getName());
+            assertEquals(clazz.getObjectAddress(), copy.getObjectAddress());
+            assertEquals(clazz.getSuperClassId(), copy.getSuperClassId());
+            assertEquals(clazz.getClassLoaderId(), copy.getClassLoaderId());
+            assertEquals(clazz.getClazz().getObjectId(), copy.getClazz().getObjectId());
+            assertEquals(clazz.getNumberOfObjects(), copy.getNumberOfObjects());
+            assertEquals(clazz.getHeapSizePerInstance(), copy.getHeapSizePerInstance());
+            assertEquals(clazz.getUsedHeapSize(), copy.getUsedHeapSize());
+            assertTrue(Arrays.equals(clazz.getObjectIds(), copy.getObjectIds()));
+
+            List<Field> statics = clazz.getStaticFields();
+            List<Field> copiedStatics = copy.getStaticFields();
+            assertEquals(statics.size(), copiedStatics.size());
+            for (int ii = 0; ii < statics.size(); ii++) {
+                assertEquals(statics.get(ii).getName(), copiedStatics.get(ii).getName());
+                assertEquals(statics.get(ii).getType(), copiedStatics.get(ii).getType());
+                Object value = statics.get(ii).getValue();
+                if (value instanceof ObjectReference)
+                    assertEquals(((ObjectReference) value).getObjectId(), ((ObjectReference) copiedStatics.get(ii)
+                            .getValue()).getObjectId());
+                else
+                    assertEquals(value, copiedStatics.get(ii).getValue());
+            }
+
+            List<FieldDescriptor> fields = clazz.getFieldDescriptors();
+            List<FieldDescriptor> copiedFields = copy.getFieldDescriptors();
+            assertEquals(fields.size(), copiedFields.size());
+            for (int ii = 0; ii < fields.size(); ii++) {
+                assertEquals(fields.get(ii).getName(), copiedFields.get(ii).getName());
+                assertEquals(fields.get(ii).getType(), copiedFields.get(ii).getType());
+            }
+
+            assertEquals(clazz.getSubclasses().size(), copy.getSubclasses().size());
+            for (int ii = 0; ii < clazz.getSubclasses().size(); ii++)
+                assertEquals(clazz.getSubclasses().get(ii).getObjectId(), copy.getSubclasses().get(ii).getObjectId());
+        }
+        assertTrue(minRetainedSizes > 0);
+
+        for (int objectId : snapshot.getGCRoots()) {
+            GCRootInfo[] infos = snapshot.getGCRootInfo(objectId);
+            GCRootInfo[] copiedInfos = copied.getGCRootInfo(objectId);
+            assertEquals(infos.length, copiedInfos.length);
+            for (int ii = 0; ii < infos.length; ii++) {
+                assertEquals(infos[ii].getObjectAddress(), copiedInfos[ii].getObjectAddress());
+                assertEquals(infos[ii].getContextAddress(), copiedInfos[ii].getContextAddress());
+                assertEquals(infos[ii].getContextId(), copiedInfos[ii].getContextId());
+                assertEquals(infos[ii].getType(), copiedInfos[ii].getType());
+            }
+        }
+    }
+
+    /**
+     * With a field store the instances can be read after the heap dump is
+     * gone.
+     */
+    @Test
+    public void testFieldStore() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("snapshot_container", "true");
+        options.put("field_store", "true");
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_18_64BIT, options, true);
+        ISnapshot expected = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_18_64BIT, false);
+
+        String prefix = snapshot.getSnapshotInfo().getPrefix();
+        assertTrue(new File(prefix + HprofFieldStore.DATA).exists());
+        compareInstances(expected, snapshot);
+
+        File directory = TestSnapshots.createGeneratedName("container", null);
+        File copy = new File(directory, "copy." + SnapshotContainer.SUFFIX);
+        ISnapshot copied = null;
+        try {
+            TestSnapshots.copyFile(new File(prefix + SnapshotContainer.SUFFIX), copy);
+            SnapshotFactory.dispose(snapshot);
+            assertTrue(new File(snapshot.getSnapshotInfo().getPath()).delete());
+
+            copied = SnapshotFactory.openSnapshot(copy, new HashMap<String, String>(), new VoidProgressListener());
+            compareInstances(expected, copied);
+        } finally {
+            if (copied != null)
+                SnapshotFactory.dispose(copied);
+        }
+    }
+
+    private static void compareInstances(ISnapshot expected, ISnapshot snapshot) throws SnapshotException {
+        int numberOfObjects = expected.getSnapshotInfo().getNumberOfObjects();
+        for (int objectId = 0; objectId < numberOfObjects; objectId++) {
+            if (expected.isArray(objectId) || expected.isClass(objectId))
+                continue;
+            List<Field> expectedFields = ((IInstance) expected.getObject(objectId)).getFields();
+            List<Field> fields = ((IInstance) snapshot.getObject(objectId)).getFields();
+            assertEquals(expectedFields.size(), fields.size());
+            for (int ii = 0; ii < fields.size(); ii++) {
+                Object value = fields.get(ii).getValue();
+                Object expectedValue = expectedFields.get(ii).getValue();
+                if (value instanceof ObjectReference)
+                    assertEquals(((ObjectReference) expectedValue).getObjectAddress(), ((ObjectReference) value)
+                            .getObjectAddress());
+                else
+                    assertEquals(expectedValue, value);
+                assertEquals(expected.readField(objectId, fields.get(ii).getName()) != null,
+                        snapshot.readField(objectId, fields.get(ii).getName()) != null);
+            }
+        }
+    }
+
+}
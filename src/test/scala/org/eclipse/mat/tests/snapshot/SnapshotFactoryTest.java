@@ -0,0 +1,498 @@
+/*******************************************************************************
+ * Copyright (c) 2013 SAP AG and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    SAP AG - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.BitField;
+import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.internal.SnapshotImpl;
+import org.eclipse.mat.parser.model.ClassImpl;
+import org.eclipse.mat.parser.model.XGCRootInfo;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.snapshot.model.GCRootInfo;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SnapshotFactoryTest {
+
+    /**
+     * Concurrent opens of a heap dump share one parse and one snapshot.
+     */
+    @Test
+    public void testConcurrentOpens() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        final File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_18_32BIT), dump);
+
+        int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<ISnapshot> opened = new ArrayList<ISnapshot>();
+        try {
+            List<Future<ISnapshot>> futures = new ArrayList<Future<ISnapshot>>();
+            for (int ii = 0; ii < threads; ii++) {
+                futures.add(executor.submit(new Callable<ISnapshot>() {
+                    public ISnapshot call() throws Exception {
+                        start.await();
+                        return SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                                new VoidProgressListener());
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<ISnapshot> f : futures)
+                opened.add(f.get());
+
+            for (ISnapshot snapshot : opened)
+                assertSame(opened.get(0), snapshot);
+
+            // still open while one user is left
+            for (int ii = 1; ii < opened.size(); ii++)
+                SnapshotFactory.dispose(opened.get(ii));
+            assertEquals(opened.get(0).getSnapshotInfo().getNumberOfObjects(), opened.get(0).getObject(0)
+                    .getSnapshot().getSnapshotInfo().getNumberOfObjects());
+            SnapshotFactory.dispose(opened.get(0));
+            opened.clear();
+
+            // the last dispose removed the snapshot, the next open reads the index
+            ISnapshot reopened = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                    new VoidProgressListener());
+            opened.add(reopened);
+            assertNotSame(futures.get(0).get(), reopened);
+        } finally {
+            executor.shutdown();
+            for (ISnapshot snapshot : opened)
+                SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * Users waiting for a concurrent open may dispose the snapshot as soon as
+     * they get it, without closing it under the remaining user.
+     */
+    @Test
+    public void testDisposeRightAfterOpen() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        final File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_18_32BIT), dump);
+
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ISnapshot kept = null;
+        try {
+            List<Future<ISnapshot>> futures = new ArrayList<Future<ISnapshot>>();
+            for (int ii = 0; ii < threads; ii++) {
+                final boolean keep = ii == 0;
+                futures.add(executor.submit(new Callable<ISnapshot>() {
+                    public ISnapshot call() throws Exception {
+                        start.await();
+                        ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                                new VoidProgressListener());
+                        if (!keep)
+                            SnapshotFactory.dispose(snapshot);
+                        return snapshot;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<ISnapshot> f : futures)
+                f.get();
+            kept = futures.get(0).get();
+
+            // the snapshot is still open for the user keeping it
+            int numberOfObjects = kept.getSnapshotInfo().getNumberOfObjects();
+            for (int objectId = 0; objectId < numberOfObjects; objectId += numberOfObjects / 20)
+                assertNotNull(kept.getObject(objectId).getTechnicalName());
+        } finally {
+            executor.shutdown();
+            if (kept != null)
+                SnapshotFactory.dispose(kept);
+        }
+    }
+
+    /**
+     * A snapshot in use cannot be opened with other arguments, missing ones
+     * have their default value.
+     */
+    @Test
+    public void testConflictingArguments() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_18_32BIT), dump);
+
+        ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                new VoidProgressListener());
+        try {
+            HashMap<String, String> options = new HashMap<String, String>();
+            options.put("gc_root_paths", "false");
+            ISnapshot same = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+            assertSame(snapshot, same);
+            SnapshotFactory.dispose(same);
+
+            options.put("gc_root_paths", "true");
+            try {
+                SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+                fail("opened with another value of gc_root_paths");
+            } catch (SnapshotException expected) {
+                assertTrue(expected.getMessage().contains("gc_root_paths=true"));
+            }
+        } finally {
+            SnapshotFactory.dispose(snapshot);
+        }
+
+        // not in use anymore
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("gc_root_paths", "true");
+        snapshot = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+        try {
+            assertNotNull(snapshot.getSnapshotInfo());
+        } finally {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * Arguments given only when the snapshot was parsed count, too. The
+     * arguments of the parser do not count for a snapshot read from its
+     * indices.
+     */
+    @Test
+    public void testConflictingArgumentsOfParser() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_18_32BIT), dump);
+
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("field_store", "true");
+        ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+        try {
+            try {
+                SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), new VoidProgressListener());
+                fail("opened without field_store");
+            } catch (SnapshotException expected) {
+                assertTrue(expected.getMessage().contains("field_store=false"));
+            }
+
+            // the defaults of the parser
+            options.put("validate_indices", "true");
+            options.put("keep_unreachable_objects", "FALSE");
+            ISnapshot same = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+            assertSame(snapshot, same);
+            SnapshotFactory.dispose(same);
+        } finally {
+            SnapshotFactory.dispose(snapshot);
+        }
+
+        // read from the indices
+        snapshot = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), new VoidProgressListener());
+        try {
+            options = new HashMap<String, String>();
+            options.put("gc_root_paths", "true");
+            ISnapshot same = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+            assertSame(snapshot, same);
+            SnapshotFactory.dispose(same);
+
+            options.put("snapshot_identifier", "other");
+            try {
+                SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+                fail("opened with another snapshot_identifier");
+            } catch (SnapshotException expected) {
+                assertTrue(expected.getMessage().contains("snapshot_identifier=other"));
+            }
+        } finally {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * A caller waiting for the open of another caller opens the dump itself
+     * if the other caller cancels, and stops waiting if it cancels itself.
+     */
+    @Test
+    public void testCanceledOpen() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        final File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_18_32BIT), dump);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ISnapshot snapshot = null;
+        try {
+            // the first caller cancels once the second one waits for it
+            Future<ISnapshot> canceled = executor.submit(new Callable<ISnapshot>() {
+                public ISnapshot call() throws Exception {
+                    return SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                            new VoidProgressListener() {
+                                @Override
+                                public boolean isCanceled() {
+                                    started.countDown();
+                                    try {
+                                        return waiting.await(30, TimeUnit.SECONDS);
+                                    } catch (InterruptedException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                }
+                            });
+                }
+            });
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            snapshot = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), new VoidProgressListener() {
+                @Override
+                public boolean isCanceled() {
+                    waiting.countDown();
+                    return false;
+                }
+            });
+            assertTrue(snapshot.getSnapshotInfo().getNumberOfObjects() > 0);
+            try {
+                canceled.get();
+                fail("open not canceled");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof IProgressListener.OperationCanceledException);
+            }
+
+            // now the second caller cancels while waiting
+            final CountDownLatch opening = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            SnapshotFactory.dispose(snapshot);
+            snapshot = null;
+            for (File f : directory.listFiles())
+                if (!f.equals(dump))
+                    f.delete();
+            Future<ISnapshot> first = executor.submit(new Callable<ISnapshot>() {
+                public ISnapshot call() throws Exception {
+                    return SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                            new VoidProgressListener() {
+                                @Override
+                                public void beginTask(String name, int totalWork) {
+                                    opening.countDown();
+                                    try {
+                                        release.await(30, TimeUnit.SECONDS);
+                                    } catch (InterruptedException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                }
+                            });
+                }
+            });
+            assertTrue(opening.await(30, TimeUnit.SECONDS));
+            try {
+                VoidProgressListener listener = new VoidProgressListener();
+                listener.setCanceled(true);
+                SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), listener);
+                fail("waited although canceled");
+            } catch (IProgressListener.OperationCanceledException expected) {
+                // stopped waiting
+            } finally {
+                release.countDown();
+            }
+            snapshot = first.get();
+
+            // the last user disposes the snapshot
+            SnapshotFactory.dispose(snapshot);
+            ISnapshot reopened = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                    new VoidProgressListener());
+            assertNotSame(snapshot, reopened);
+            snapshot = reopened;
+        } finally {
+            executor.shutdown();
+            if (snapshot != null)
+                SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * The dominator tree calculated in the background reports to the listener
+     * of the open and stops when its task is canceled. It can be calculated
+     * again afterwards.
+     */
+    @Test
+    public void testCancelDominatorTreeInBackground() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK6_18_32BIT), dump);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch canceled = new CountDownLatch(1);
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("background_dominator_tree", "true");
+        ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener() {
+            @Override
+            public void subTask(String name) {
+                if (!"DominatorTreeThread".equals(Thread.currentThread().getName()))
+                    return;
+                started.countDown();
+                try {
+                    canceled.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            Future<Void> task = ((SnapshotImpl) snapshot).getDominatorTreeTask();
+            assertTrue(task.cancel(true));
+            canceled.countDown();
+            assertTrue(task.isCancelled());
+
+            try {
+                snapshot.getImmediateDominatedIds(-1);
+                fail("dominator tree of a canceled calculation");
+            } catch (SnapshotException expected) {
+                // the calculation has stopped
+            }
+
+            ((SnapshotImpl) snapshot).calculateDominatorTree(new VoidProgressListener());
+            for (int root : snapshot.getGCRoots())
+                assertTrue(snapshot.getRetainedHeapSize(root) >= snapshot.getHeapSize(root));
+            assertTrue(snapshot.getImmediateDominatedIds(-1).length > 0);
+        } finally {
+            canceled.countDown();
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * A master index written with Java serialization, version MAT_01, is
+     * still read, without parsing the dump again.
+     */
+    @Test
+    public void testLegacyMasterIndex() throws Exception {
+        File directory = TestSnapshots.createGeneratedName("factory", null);
+        File dump = new File(directory, "dump.hprof");
+        TestSnapshots.copyFile(TestSnapshots.getResourceFile(TestSnapshots.SUN_JDK5_64BIT), dump);
+
+        ISnapshot reopened = null;
+        try {
+            ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                    new VoidProgressListener());
+            File indexFile = new File(snapshot.getSnapshotInfo().getPrefix() + "index");
+            try {
+                writeLegacyMasterIndex((SnapshotImpl) snapshot, indexFile);
+            } finally {
+                SnapshotFactory.dispose(snapshot);
+            }
+
+            final List<String> warnings = new ArrayList<String>();
+            reopened = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), new VoidProgressListener() {
+                @Override
+                public void sendUserMessage(Severity severity, String message, Throwable exception) {
+                    if (severity != Severity.INFO)
+                        warnings.add(message);
+                }
+            });
+            assertEquals(new ArrayList<String>(), warnings);
+            // not parsed again, which would write the current version
+            DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+            try {
+                assertEquals(0xACED, in.readUnsignedShort());
+            } finally {
+                in.close();
+            }
+
+            ISnapshot expected = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK5_64BIT, false);
+            int numberOfObjects = expected.getSnapshotInfo().getNumberOfObjects();
+            assertEquals(numberOfObjects, reopened.getSnapshotInfo().getNumberOfObjects());
+            assertEquals(expected.getSnapshotInfo().getUsedHeapSize(), reopened.getSnapshotInfo().getUsedHeapSize());
+            assertEquals(expected.getClasses().size(), reopened.getClasses().size());
+            assertArrayEquals(sortedRoots(expected), sortedRoots(reopened));
+            for (int rootId : expected.getGCRoots())
+                assertEquals(GCRootInfo.getTypeSetAsString(expected.getGCRootInfo(rootId)),
+                        GCRootInfo.getTypeSetAsString(reopened.getGCRootInfo(rootId)));
+            assertEquals(((SnapshotImpl) expected).getRootsPerThread().size(), ((SnapshotImpl) reopened)
+                    .getRootsPerThread().size());
+
+            for (int objectId = 0; objectId < numberOfObjects; objectId++) {
+                assertEquals(expected.mapIdToAddress(objectId), reopened.mapIdToAddress(objectId));
+                assertEquals(expected.getClassOf(objectId).getName(), reopened.getClassOf(objectId).getName());
+                assertEquals(expected.getHeapSize(objectId), reopened.getHeapSize(objectId));
+                assertEquals(expected.isArray(objectId), reopened.isArray(objectId));
+                assertEquals(expected.isClassLoader(objectId), reopened.isClassLoader(objectId));
+                assertEquals(((SnapshotImpl) expected).getClassLoaderLabel(objectId), ((SnapshotImpl) reopened)
+                        .getClassLoaderLabel(objectId));
+            }
+            for (IClass clazz : expected.getClasses()) {
+                IClass copy = (IClass) reopened.getObject(clazz.getObjectId());
+                assertEquals(clazz.getName(), copy.getName());
+                assertEquals(clazz.getSuperClassId(), copy.getSuperClassId());
+                assertEquals(clazz.getStaticFields().size(), copy.getStaticFields().size());
+                assertEquals(clazz.getFieldDescriptors().size(), copy.getFieldDescriptors().size());
+                assertArrayEquals(clazz.getObjectIds(), copy.getObjectIds());
+            }
+        } finally {
+            if (reopened != null)
+                SnapshotFactory.dispose(reopened);
+        }
+    }
+
+    private static int[] sortedRoots(ISnapshot snapshot) throws Exception {
+        int[] roots = snapshot.getGCRoots().clone();
+        Arrays.sort(roots);
+        return roots;
+    }
+
+    /**
+     * Writes the master index of the snapshot as it was written before the
+     * binary format: the serialized objects, version MAT_01.
+     */
+    private static void writeLegacyMasterIndex(SnapshotImpl snapshot, File file) throws Exception {
+        HashMapIntObject<ClassImpl> classCache = new HashMapIntObject<ClassImpl>();
+        for (IClass clazz : snapshot.getClasses())
+            classCache.put(clazz.getObjectId(), (ClassImpl) clazz);
+
+        HashMapIntObject<XGCRootInfo[]> roots = new HashMapIntObject<XGCRootInfo[]>();
+        for (int rootId : snapshot.getGCRoots())
+            roots.put(rootId, (XGCRootInfo[]) snapshot.getGCRootInfo(rootId));
+
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        HashMapIntObject<String> loaderLabels = new HashMapIntObject<String>();
+        BitField arrayObjects = new BitField(numberOfObjects);
+        IIndexReader.IOne2SizeIndex a2size = snapshot.getIndexManager().a2size();
+        for (int objectId = 0; objectId < numberOfObjects; objectId++) {
+            if (snapshot.isClassLoader(objectId))
+                loaderLabels.put(objectId, snapshot.getClassLoaderLabel(objectId));
+            if (a2size.get(objectId) != 0)
+                arrayObjects.set(objectId);
+        }
+
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeUTF("MAT_01");
+            out.writeUTF("uniqueID");
+            out.writeObject(snapshot.getSnapshotInfo());
+            out.writeObject(classCache);
+            out.writeObject(roots);
+            out.writeObject(snapshot.getRootsPerThread());
+            out.writeObject(loaderLabels);
+            out.writeObject(arrayObjects);
+        } finally {
+            out.close();
+        }
+    }
+
+}
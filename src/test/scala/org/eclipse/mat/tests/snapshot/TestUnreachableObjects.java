@@ -1,17 +1,24 @@
 package org.eclipse.mat.tests.snapshot;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayLong;
 import org.eclipse.mat.snapshot.ClassHistogramRecord;
 import org.eclipse.mat.snapshot.Histogram;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.UnreachableObjectsHistogram;
+import org.eclipse.mat.snapshot.model.GCRootInfo;
 import org.eclipse.mat.tests.TestSnapshots;
 import org.eclipse.mat.util.VoidProgressListener;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class TestUnreachableObjects {
 
     @Test
@@ -24,12 +31,114 @@ public class TestUnreachableObjects {
         compare(TestSnapshots.SUN_JDK6_32BIT);
     }
 
+    @Test
+    public void testRemovedObjectsSunJDK5_64() throws SnapshotException {
+        checkRemovedObjects(TestSnapshots.SUN_JDK5_64BIT);
+    }
+
+    @Test
+    public void testRemovedObjectsSunJDK6_32() throws SnapshotException {
+        checkRemovedObjects(TestSnapshots.SUN_JDK6_32BIT);
+    }
+
+    /**
+     * Unreachable objects which are kept get the same extra GC roots on every
+     * parse, although the candidates are selected in chunks on several
+     * threads.
+     */
+    @Test
+    public void testUnreachableRootsAreStable() throws SnapshotException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("keep_unreachable_objects", "true");
+        ISnapshot first = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK6_32BIT, options, true);
+        ISnapshot second = TestSnapshots.getSnapshotInChunks(TestSnapshots.SUN_JDK6_32BIT, options);
+        long[] roots = unreachableRoots(first);
+        assertTrue(roots.length > 0);
+        assertArrayEquals(roots, unreachableRoots(second));
+    }
+
+    /**
+     * Parsing without the unreachable objects removes exactly the objects not
+     * reachable from the GC roots of the dump and keeps the other objects in
+     * address order, with their classes, sizes and references.
+     */
+    private void checkRemovedObjects(String snapshotName) throws SnapshotException {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("keep_unreachable_objects", "true");
+
+        ISnapshot full = TestSnapshots.getSnapshotInChunks(snapshotName, options);
+        ISnapshot classic = TestSnapshots.getSnapshotInChunks(snapshotName, new HashMap<String, String>());
+
+        // mark from the GC roots of the dump, not from the extra ones
+        boolean[] reachable = new boolean[full.getSnapshotInfo().getNumberOfObjects()];
+        int[] stack = new int[reachable.length];
+        int top = 0;
+        for (int rootId : full.getGCRoots()) {
+            for (GCRootInfo info : full.getGCRootInfo(rootId)) {
+                if (info.getType() != GCRootInfo.Type.UNREACHABLE && !reachable[rootId]) {
+                    reachable[rootId] = true;
+                    stack[top++] = rootId;
+                }
+            }
+        }
+        while (top > 0) {
+            for (int out : full.getOutboundReferentIds(stack[--top])) {
+                if (!reachable[out]) {
+                    reachable[out] = true;
+                    stack[top++] = out;
+                }
+            }
+        }
+
+        ArrayLong expected = new ArrayLong();
+        for (int objectId = 0; objectId < reachable.length; objectId++) {
+            if (reachable[objectId])
+                expected.add(full.mapIdToAddress(objectId));
+        }
+        long[] addresses = new long[classic.getSnapshotInfo().getNumberOfObjects()];
+        assertTrue(addresses.length < reachable.length);
+        for (int objectId = 0; objectId < addresses.length; objectId++)
+            addresses[objectId] = classic.mapIdToAddress(objectId);
+        assertArrayEquals(expected.toArray(), addresses);
+
+        for (int objectId = 0; objectId < addresses.length; objectId++) {
+            int fullId = full.mapAddressToId(addresses[objectId]);
+            assertEquals(full.getClassOf(fullId).getName(), classic.getClassOf(objectId).getName());
+            assertEquals(full.getHeapSize(fullId), classic.getHeapSize(objectId));
+            assertArrayEquals(outboundAddresses(full, fullId), outboundAddresses(classic, objectId));
+        }
+    }
+
+    private static long[] outboundAddresses(ISnapshot snapshot, int objectId) throws SnapshotException {
+        int[] outbound = snapshot.getOutboundReferentIds(objectId);
+        long[] addresses = new long[outbound.length];
+        for (int ii = 0; ii < outbound.length; ii++)
+            addresses[ii] = snapshot.mapIdToAddress(outbound[ii]);
+        Arrays.sort(addresses);
+        return addresses;
+    }
+
+    private static long[] unreachableRoots(ISnapshot snapshot) throws SnapshotException {
+        ArrayLong roots = new ArrayLong();
+        for (int rootId : snapshot.getGCRoots()) {
+            for (GCRootInfo info : snapshot.getGCRootInfo(rootId)) {
+                if (info.getType() == GCRootInfo.Type.UNREACHABLE) {
+                    roots.add(info.getObjectAddress());
+                    break;
+                }
+            }
+        }
+        long[] answer = roots.toArray();
+        Arrays.sort(answer);
+        return answer;
+    }
+
     private void compare(String snapshotName) throws SnapshotException {
         Map<String, String> options = new HashMap<String, String>();
         options.put("keep_unreachable_objects", "true");
 
-        ISnapshot unreachables = TestSnapshots.getSnapshot(snapshotName, options, true);
-        ISnapshot classic = TestSnapshots.getSnapshot(snapshotName, true);
+        ISnapshot unreachables = TestSnapshots.getSnapshotInChunks(snapshotName, options);
+        ISnapshot classic = TestSnapshots.getSnapshotInChunks(snapshotName, new HashMap<String, String>());
 
         Histogram fullHistogram = unreachables.getHistogram(new VoidProgressListener());
 